@@ -46,6 +46,19 @@ public class ChannelClientConfiguration {
     private boolean enablePool = false;
     private boolean enableHeap = false;
 
+    private int sharedUDPChannels = 0;
+    private int maxPooledTCPConnections = 0;
+    private int maxInFlightTCP = 1;
+    private int maxRequestsPerPeer = 0;
+    private int maxBytesPerPeer = 0;
+
+    private Transport transport = new NioTransport();
+
+    private boolean batchUDPWrites = false;
+    private int maxMessagesPerReadUDP = ConnectionBean.DEFAULT_MAX_MESSAGES_PER_READ_UDP;
+    private MTUProfile mtuProfile = new MTUProfile();
+    private int encoderAllocationBudget = 0;
+
     /**
      * @return The maximum number of permanent (long-lived) connections
      */
@@ -148,6 +161,193 @@ public class ChannelClientConfiguration {
         return this;
     }
 
+    /**
+     * @return The number of long-lived UDP channels that are shared among all outgoing UDP requests. If 0, each
+     *         request binds its own UDP channel
+     */
+    public int sharedUDPChannels() {
+        return sharedUDPChannels;
+    }
+
+    /**
+     * @param sharedUDPChannels
+     *            The number of long-lived UDP channels that are shared among all outgoing UDP requests. A good value
+     *            is the number of event loops. Set to 0 to bind a UDP channel for each request
+     * @return This class
+     */
+    public ChannelClientConfiguration sharedUDPChannels(final int sharedUDPChannels) {
+        this.sharedUDPChannels = sharedUDPChannels;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of pooled TCP connections that are reused for requests to the same peer. If 0,
+     *         each TCP request opens its own connection
+     */
+    public int maxPooledTCPConnections() {
+        return maxPooledTCPConnections;
+    }
+
+    /**
+     * @param maxPooledTCPConnections
+     *            The maximum number of pooled TCP connections that are reused for requests to the same peer. Each
+     *            pooled connection uses a permanent TCP permit, thus this value should be lower than
+     *            {@link #maxPermitsPermanentTCP()}. Set to 0 to disable the pool
+     * @return This class
+     */
+    public ChannelClientConfiguration maxPooledTCPConnections(final int maxPooledTCPConnections) {
+        this.maxPooledTCPConnections = maxPooledTCPConnections;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of requests that are sent over a {@link PeerConnection} without waiting for their
+     *         responses. If 1, a request waits until the previous request on this connection is done
+     */
+    public int maxInFlightTCP() {
+        return maxInFlightTCP;
+    }
+
+    /**
+     * @param maxInFlightTCP
+     *            The maximum number of requests that are sent over a {@link PeerConnection} without waiting for
+     *            their responses. The responses are matched to the requests by their message id. Set to 1 to send
+     *            one request after the other
+     * @return This class
+     */
+    public ChannelClientConfiguration maxInFlightTCP(final int maxInFlightTCP) {
+        this.maxInFlightTCP = maxInFlightTCP;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of requests in flight to a single peer, 0 for no limit
+     */
+    public int maxRequestsPerPeer() {
+        return maxRequestsPerPeer;
+    }
+
+    /**
+     * @param maxRequestsPerPeer
+     *            The maximum number of requests in flight to a single peer. Further requests to this peer are
+     *            deferred until a request finishes. Set to 0 for no limit
+     * @return This class
+     */
+    public ChannelClientConfiguration maxRequestsPerPeer(final int maxRequestsPerPeer) {
+        this.maxRequestsPerPeer = maxRequestsPerPeer;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of estimated bytes in flight to a single peer, 0 for no limit
+     */
+    public int maxBytesPerPeer() {
+        return maxBytesPerPeer;
+    }
+
+    /**
+     * @param maxBytesPerPeer
+     *            The maximum number of estimated bytes in flight to a single peer. Further requests to this peer
+     *            are deferred until a request finishes. A single request is always sent. Set to 0 for no limit
+     * @return This class
+     */
+    public ChannelClientConfiguration maxBytesPerPeer(final int maxBytesPerPeer) {
+        this.maxBytesPerPeer = maxBytesPerPeer;
+        return this;
+    }
+
+    /**
+     * @return The Netty transport that creates the outgoing channels
+     */
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * @param transport
+     *            The Netty transport that creates the outgoing channels. This needs to be the same transport as in
+     *            {@link ChannelServerConfiguration#transport()}, as the event loops are shared
+     * @return This class
+     */
+    public ChannelClientConfiguration transport(final Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return True if the datagrams that are written to a shared UDP channel within the same event loop tick are
+     *         flushed together
+     */
+    public boolean isBatchUDPWrites() {
+        return batchUDPWrites;
+    }
+
+    /**
+     * @param batchUDPWrites
+     *            Set to true to flush the datagrams that are written to a shared UDP channel within the same event
+     *            loop tick together. Only used if {@link #sharedUDPChannels()} is set
+     * @return This class
+     */
+    public ChannelClientConfiguration batchUDPWrites(final boolean batchUDPWrites) {
+        this.batchUDPWrites = batchUDPWrites;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of datagrams that a shared UDP channel reads in one go
+     */
+    public int maxMessagesPerReadUDP() {
+        return maxMessagesPerReadUDP;
+    }
+
+    /**
+     * @param maxMessagesPerReadUDP
+     *            The maximum number of datagrams that a shared UDP channel reads in one go, before the event loop
+     *            handles other channels
+     * @return This class
+     */
+    public ChannelClientConfiguration maxMessagesPerReadUDP(final int maxMessagesPerReadUDP) {
+        this.maxMessagesPerReadUDP = maxMessagesPerReadUDP;
+        return this;
+    }
+
+    /**
+     * @return The datagram sizes for outgoing UDP requests and the receive buffer size of UDP channels
+     */
+    public MTUProfile mtuProfile() {
+        return mtuProfile;
+    }
+
+    /**
+     * @param mtuProfile
+     *            The datagram sizes for outgoing UDP requests and the receive buffer size of UDP channels. Requests
+     *            that are larger than the datagram size to the recipient are sent over a TCP connection that is
+     *            reserved for the request
+     * @return This class
+     */
+    public ChannelClientConfiguration mtuProfile(final MTUProfile mtuProfile) {
+        this.mtuProfile = mtuProfile;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes the encoder may allocate for a message, 0 for no budget
+     */
+    public int encoderAllocationBudget() {
+        return encoderAllocationBudget;
+    }
+
+    /**
+     * @param encoderAllocationBudget
+     *            The number of bytes the encoder may allocate for a message. If a message exceeds it, a warning is
+     *            logged. Set to 0 to disable the check
+     * @return This class
+     */
+    public ChannelClientConfiguration encoderAllocationBudget(final int encoderAllocationBudget) {
+        this.encoderAllocationBudget = encoderAllocationBudget;
+        return this;
+    }
+
 	public InetAddress senderUDP() {
 	    return senderUDP;
     }
@@ -204,4 +404,33 @@ public class ChannelClientConfiguration {
 			return AlternativeCompositeByteBuf.UNPOOLED_DIRECT;
 		}
 	}
+
+    /**
+     * @return A copy of this configuration, the peer changes its copy, e.g., the transport, and not the configuration
+     *         that was passed in
+     */
+    public ChannelClientConfiguration copy() {
+        final ChannelClientConfiguration copy = new ChannelClientConfiguration();
+        copy.maxPermitsPermanentTCP = maxPermitsPermanentTCP;
+        copy.maxPermitsUDP = maxPermitsUDP;
+        copy.maxPermitsTCP = maxPermitsTCP;
+        copy.pipelineFilter = pipelineFilter;
+        copy.signatureFactory = signatureFactory;
+        copy.bindings = bindings;
+        copy.senderUDP = senderUDP;
+        copy.senderTCP = senderTCP;
+        copy.enablePool = enablePool;
+        copy.enableHeap = enableHeap;
+        copy.sharedUDPChannels = sharedUDPChannels;
+        copy.maxPooledTCPConnections = maxPooledTCPConnections;
+        copy.maxInFlightTCP = maxInFlightTCP;
+        copy.maxRequestsPerPeer = maxRequestsPerPeer;
+        copy.maxBytesPerPeer = maxBytesPerPeer;
+        copy.transport = transport;
+        copy.batchUDPWrites = batchUDPWrites;
+        copy.maxMessagesPerReadUDP = maxMessagesPerReadUDP;
+        copy.mtuProfile = mtuProfile;
+        copy.encoderAllocationBudget = encoderAllocationBudget;
+        return copy;
+    }
 }
@@ -25,22 +25,20 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.ChannelGroupFuture;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Message;
@@ -67,27 +65,20 @@ public class ChannelCreator {
 	private final int maxPermitsUDP;
 	private final int maxPermitsTCP;
 
-	private final Semaphore semaphoreUPD;
-	private final Semaphore semaphoreTCP;
-
-	// we should be fair, otherwise we see connection timeouts due to unfairness
-	// if busy
-	private final ReadWriteLock readWriteLockUDP = new ReentrantReadWriteLock(true);
-	private final Lock readUDP = readWriteLockUDP.readLock();
-	private final Lock writeUDP = readWriteLockUDP.writeLock();
-
-	private final ReadWriteLock readWriteLockTCP = new ReentrantReadWriteLock(true);
-	private final Lock readTCP = readWriteLockTCP.readLock();
-	private final Lock writeTCP = readWriteLockTCP.writeLock();
+	private final PermitScheduler permits;
 
 	private final FutureDone<Void> futureChannelCreationDone;
 
 	private final ChannelClientConfiguration channelClientConfiguration;
 
+	// null if every UDP request binds its own channel
+	private final UDPMultiplexer udpMultiplexer;
+	// the requests that were sent over a shared UDP channel and are not finished yet
+	private final Collection<FutureResponse> multiplexedResponses = new HashSet<FutureResponse>();
+
 	private EventExecutorGroup handlerExecutor;
 
-	private boolean shutdownUDP = false;
-	private boolean shutdownTCP = false;
+	private final AtomicBoolean shutdown = new AtomicBoolean(false);
 
 	/**
 	 * Package private constructor, since this is created by
@@ -105,22 +96,27 @@ public class ChannelCreator {
 	 *            The number of max. parallel TCP connections.
 	 * @param channelClientConfiguration
 	 *            The configuration that contains the pipeline filter
+	 * @param udpMultiplexer
+	 *            The shared UDP channels or null if each UDP request binds its
+	 *            own channel
 	 */
 	ChannelCreator(final EventLoopGroup workerGroup, final FutureDone<Void> futureChannelCreationDone,
 			int maxPermitsUDP, int maxPermitsTCP,
-			final ChannelClientConfiguration channelClientConfiguration) {
+			final ChannelClientConfiguration channelClientConfiguration, final UDPMultiplexer udpMultiplexer) {
 		this.workerGroup = workerGroup;
 		this.futureChannelCreationDone = futureChannelCreationDone;
 		this.maxPermitsUDP = maxPermitsUDP;
 		this.maxPermitsTCP = maxPermitsTCP;
-		this.semaphoreUPD = new Semaphore(maxPermitsUDP);
-		this.semaphoreTCP = new Semaphore(maxPermitsTCP);
+		this.permits = new PermitScheduler(maxPermitsUDP, maxPermitsTCP);
 		this.channelClientConfiguration = channelClientConfiguration;
+		this.udpMultiplexer = udpMultiplexer;
 	}
 
 	/**
 	 * Creates a "channel" to the given address. This won't send any message
-	 * unlike TCP.
+	 * unlike TCP. If shared UDP channels are configured, the request is
+	 * registered with the {@link UDPMultiplexer} and one of its long-lived
+	 * channels is returned. Broadcasts always use their own channel.
 	 * 
 	 * @param broadcast
 	 *            Sets this channel to be able to broadcast
@@ -130,37 +126,43 @@ public class ChannelCreator {
 	 */
 	public ChannelFuture createUDP(final boolean broadcast, final Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers,
 			FutureResponse futureResponse) {
-		readUDP.lock();
-		try {
-			if (shutdownUDP) {
+		if (shutdown.get()) {
+			return null;
+		}
+		if (!permits.tryAcquire(1, 0)) {
+			if (permits.isShutdown()) {
 				return null;
 			}
-			if (!semaphoreUPD.tryAcquire()) {
-				final String errorMsg = "Tried to acquire more resources (UDP) than announced.";
-				LOG.error(errorMsg);
-				throw new RuntimeException(errorMsg);
-			}
-			final Bootstrap b = new Bootstrap();
-			b.group(workerGroup);
-			b.channel(NioDatagramChannel.class);
-			b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
-			if (broadcast) {
-				b.option(ChannelOption.SO_BROADCAST, true);
+			final String errorMsg = "Tried to acquire more resources (UDP) than announced.";
+			LOG.error(errorMsg);
+			throw new RuntimeException(errorMsg);
+		}
+		if (udpMultiplexer != null && !broadcast) {
+			final ChannelFuture channelFuture = udpMultiplexer.register(channelHandlers, futureResponse);
+			if (channelFuture != null) {
+				setupReleaseListener(futureResponse);
+				return channelFuture;
 			}
-			Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers2 = channelClientConfiguration.pipelineFilter().filter(
-					channelHandlers, false, true);
-			addHandlers(b, channelHandlers2);
-			// Here we need to bind, as opposed to the TCP, were we connect if
-			// we do a connect, we cannot receive
-			// broadcast messages
-			final ChannelFuture channelFuture;
-			channelFuture = b.bind(new InetSocketAddress(channelClientConfiguration.senderUDP(), 0));
-			recipients.add(channelFuture.channel());
-			setupCloseListener(channelFuture, semaphoreUPD, futureResponse);
-			return channelFuture;
-		} finally {
-			readUDP.unlock();
 		}
+		final Bootstrap b = new Bootstrap();
+		b.group(workerGroup);
+		b.channel(channelClientConfiguration.transport().datagramChannel());
+		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(channelClientConfiguration.mtuProfile()
+				.maxDatagramSize()));
+		if (broadcast) {
+			b.option(ChannelOption.SO_BROADCAST, true);
+		}
+		Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers2 = channelClientConfiguration.pipelineFilter().filter(
+				channelHandlers, false, true);
+		addHandlers(b, channelHandlers2);
+		// Here we need to bind, as opposed to the TCP, were we connect if
+		// we do a connect, we cannot receive
+		// broadcast messages
+		final ChannelFuture channelFuture;
+		channelFuture = b.bind(new InetSocketAddress(channelClientConfiguration.senderUDP(), 0));
+		addRecipient(channelFuture);
+		setupCloseListener(channelFuture, 1, 0, futureResponse);
+		return channelFuture;
 	}
 
 	/**
@@ -179,34 +181,46 @@ public class ChannelCreator {
 	 */
 	public ChannelFuture createTCP(final SocketAddress socketAddress, final int connectionTimeoutMillis,
 			final Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers, final FutureResponse futureResponse) {
-		readTCP.lock();
-		try {
-			if (shutdownTCP) {
+		if (shutdown.get()) {
+			return null;
+		}
+		if (!permits.tryAcquire(0, 1)) {
+			if (permits.isShutdown()) {
 				return null;
 			}
-			if (!semaphoreTCP.tryAcquire()) {
-				final String errorMsg = "Tried to acquire more resources (TCP) than announced.";
-				LOG.error(errorMsg);
-				throw new RuntimeException(errorMsg);
-			}
-			Bootstrap b = new Bootstrap();
-			b.group(workerGroup);
-			b.channel(NioSocketChannel.class);
-			b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMillis);
-			b.option(ChannelOption.TCP_NODELAY, true);
-			b.option(ChannelOption.SO_LINGER, 0);
-			b.option(ChannelOption.SO_REUSEADDR, true);
-			Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers2 = channelClientConfiguration.pipelineFilter().filter(
-					channelHandlers, true, true);
-			addHandlers(b, channelHandlers2);
-
-			ChannelFuture channelFuture = b.connect(socketAddress, new InetSocketAddress(channelClientConfiguration.senderTCP(), 0));
-
-			recipients.add(channelFuture.channel());
-			setupCloseListener(channelFuture, semaphoreTCP, futureResponse);
-			return channelFuture;
-		} finally {
-			readTCP.unlock();
+			final String errorMsg = "Tried to acquire more resources (TCP) than announced.";
+			LOG.error(errorMsg);
+			throw new RuntimeException(errorMsg);
+		}
+		Bootstrap b = new Bootstrap();
+		b.group(workerGroup);
+		b.channel(channelClientConfiguration.transport().socketChannel());
+		b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectionTimeoutMillis);
+		b.option(ChannelOption.TCP_NODELAY, true);
+		b.option(ChannelOption.SO_LINGER, 0);
+		b.option(ChannelOption.SO_REUSEADDR, true);
+		Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers2 = channelClientConfiguration.pipelineFilter().filter(
+				channelHandlers, true, true);
+		addHandlers(b, channelHandlers2);
+
+		ChannelFuture channelFuture = b.connect(socketAddress, new InetSocketAddress(channelClientConfiguration.senderTCP(), 0));
+
+		addRecipient(channelFuture);
+		setupCloseListener(channelFuture, 0, 1, futureResponse);
+		return channelFuture;
+	}
+
+	/**
+	 * Adds the channel to the recipients that are closed on shutdown. If we
+	 * shut down while the channel was created, the channel is closed here.
+	 * 
+	 * @param channelFuture
+	 *            The channel future
+	 */
+	private void addRecipient(final ChannelFuture channelFuture) {
+		recipients.add(channelFuture.channel());
+		if (shutdown.get()) {
+			channelFuture.channel().close();
 		}
 	}
 
@@ -239,22 +253,24 @@ public class ChannelCreator {
 	}
 
 	/**
-	 * When a channel is closed, the semaphore is released and another channel can
-	 * be created. Also, the lock for the channel creating is being released.
-	 * This means that the ChannelCreator can be shut down.
+	 * When a channel is closed, the permit is released and another channel can
+	 * be created. Once all permits are released, the ChannelCreator can be
+	 * shut down.
 	 * 
 	 * @param channelFuture
 	 *            The channel future
-	 * @param semaphore
-	 *            The semaphore to release
+	 * @param permitsUDP
+	 *            The number of UDP permits to release
+	 * @param permitsTCP
+	 *            The number of TCP permits to release
 	 * @return The same future that was passed as an argument
 	 */
-	private ChannelFuture setupCloseListener(final ChannelFuture channelFuture, final Semaphore semaphore,
-			final FutureResponse futureResponse) {
+	private ChannelFuture setupCloseListener(final ChannelFuture channelFuture, final int permitsUDP,
+			final int permitsTCP, final FutureResponse futureResponse) {
 		channelFuture.channel().closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
 			@Override
 			public void operationComplete(final ChannelFuture future) throws Exception {
-				// it is important that the release of the semaphore and the set
+				// it is important that the release of the permit and the set
 				// of the future happen sequentially. If this is run in this
 				// thread it will be a netty thread, and this is not what the
 				// user may have wanted. The future responses should be executed
@@ -262,7 +278,7 @@ public class ChannelCreator {
 				Runnable runner = new Runnable() {
 					@Override
 					public void run() {
-						semaphore.release();
+						permits.release(permitsUDP, permitsTCP);
 
 						Message request = futureResponse.request();
 						if (request != null && futureResponse.responseMessage() == null && request.recipient().isSlow()
@@ -285,6 +301,32 @@ public class ChannelCreator {
 		return channelFuture;
 	}
 
+	/**
+	 * A shared UDP channel is never closed, thus the UDP permit is released
+	 * once the request is finished.
+	 * 
+	 * @param futureResponse
+	 *            The future of the request sent over a shared channel
+	 */
+	private void setupReleaseListener(final FutureResponse futureResponse) {
+		synchronized (multiplexedResponses) {
+			multiplexedResponses.add(futureResponse);
+		}
+		if (shutdown.get()) {
+			// shutdown may not have seen this request
+			futureResponse.responseNow();
+		}
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				synchronized (multiplexedResponses) {
+					multiplexedResponses.remove(future);
+				}
+				permits.release(1, 0);
+			}
+		});
+	}
+
 	/**
 	 * Setup the close listener for a channel that was already created
 	 * 
@@ -305,7 +347,7 @@ public class ChannelCreator {
 	}
 
 	public boolean isShutdown() {
-		return shutdownTCP || shutdownUDP;
+		return shutdown.get();
 	}
 
 	/**
@@ -315,28 +357,28 @@ public class ChannelCreator {
 	 * @return The shutdown future.
 	 */
 	public FutureDone<Void> shutdown() {
-		// set shutdown flag for UDP and TCP
-        // if we acquire a write lock, all read locks are blocked as well
-		writeUDP.lock();
-		writeTCP.lock();
-		try {
-			if (shutdownTCP || shutdownUDP) {
-				shutdownFuture().failed("already shutting down");
-				return shutdownFuture();
-			}
-			shutdownUDP = true;
-			shutdownTCP = true;
-		} finally {
-			writeTCP.unlock();
-			writeUDP.unlock();
+		// set shutdown flag for UDP and TCP, a create that runs concurrently
+		// closes its channel itself
+		if (!shutdown.compareAndSet(false, true)) {
+			shutdownFuture().failed("already shutting down");
+			return shutdownFuture();
+		}
+
+		// requests on shared channels are not affected by closing the
+		// recipients, fail them here to get the permits back
+		final Collection<FutureResponse> copyMultiplexedResponses;
+		synchronized (multiplexedResponses) {
+			copyMultiplexedResponses = new ArrayList<FutureResponse>(multiplexedResponses);
+		}
+		for (FutureResponse futureResponse : copyMultiplexedResponses) {
+			futureResponse.responseNow();
 		}
 
-		recipients.close().addListener(new GenericFutureListener<ChannelGroupFuture>() {
+		// the permits are released once the channels are closed
+		recipients.close();
+		permits.shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 			@Override
-			public void operationComplete(final ChannelGroupFuture future) throws Exception {
-				// we can block here as we block in GlobalEventExecutor.INSTANCE
-				semaphoreUPD.acquireUninterruptibly(maxPermitsUDP);
-				semaphoreTCP.acquireUninterruptibly(maxPermitsTCP);
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
 				shutdownFuture().done();
 			}
 		});
@@ -352,21 +394,19 @@ public class ChannelCreator {
 	}
 
 	public int availableUDPPermits() {
-		return semaphoreUPD.availablePermits();
+		return permits.availableUDP();
 	}
 
 	public int availableTCPPermits() {
-		return semaphoreTCP.availablePermits();
+		return permits.availableTCP();
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder("sem-udp:");
-		sb.append(semaphoreUPD.availablePermits());
+		sb.append(permits.availableUDP());
 		sb.append(",sem-tcp:");
-		sb.append(semaphoreTCP.availablePermits());
-		sb.append(",addrUDP:");
-		sb.append(semaphoreUPD);
+		sb.append(permits.availableTCP());
 		return sb.toString();
 	}
 }
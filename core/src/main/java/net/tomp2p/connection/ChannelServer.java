@@ -26,14 +26,14 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.FixedRecvByteBufAllocator;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.GenericFutureListener;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -257,14 +257,21 @@ public final class ChannelServer implements DiscoverNetworkListener{
 	 * @return True if startup was successful
 	 */
 	boolean startupUDP(final InetSocketAddress listenAddresses, final ChannelServerConfiguration config, boolean broadcastFlag) {
+		final Transport transport = channelServerConfiguration.transport();
+		final boolean reusePort = transport.isReusePortSupported() && channelServerConfiguration.udpReceivers() > 1;
 		Bootstrap b = new Bootstrap();
 		b.group(workerGroup);
-		b.channel(NioDatagramChannel.class);
+		b.channel(transport.datagramChannel());
 		//option broadcast only required as we not listen to the broadcast address directly
 		if(broadcastFlag) {
 			b.option(ChannelOption.SO_BROADCAST, true);
 		}
-		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(ConnectionBean.UDP_LIMIT));
+		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(channelServerConfiguration.mtuProfile()
+				.maxDatagramSize()));
+		b.option(ChannelOption.MAX_MESSAGES_PER_READ, channelServerConfiguration.maxMessagesPerReadUDP());
+		if (reusePort) {
+			transport.reusePort(b);
+		}
 
 		b.handler(new ChannelInitializer<Channel>() {
 			@Override
@@ -282,7 +289,46 @@ public final class ChannelServer implements DiscoverNetworkListener{
 
 		ChannelFuture future = b.bind(listenAddresses);
 		channelsUDP.put(listenAddresses.getAddress(), future.channel());
-		return handleFuture(future);
+		final boolean success = handleFuture(future);
+		if (success && reusePort) {
+			bindReusePort(b, future.channel(), channelServerConfiguration.udpReceivers() - 1);
+		}
+		return success;
+	}
+
+	/**
+	 * Binds additional UDP channels to the port of an already bound channel.
+	 * The bootstrap registers each channel with the next event loop, thus
+	 * every event loop reads from its own socket. The additional channels are
+	 * closed together with the first channel.
+	 * 
+	 * @param b
+	 *            The bootstrap with SO_REUSEPORT set
+	 * @param channel
+	 *            The first channel that is bound to the port
+	 * @param additional
+	 *            The number of channels to bind in addition
+	 */
+	private void bindReusePort(final Bootstrap b, final Channel channel, final int additional) {
+		final SocketAddress localAddress = channel.localAddress();
+		final List<Channel> reusePortChannels = new ArrayList<Channel>(additional);
+		for (int i = 0; i < additional; i++) {
+			final ChannelFuture future = b.bind(localAddress);
+			if (!handleFuture(future)) {
+				LOG.warn("cannot bind additional UDP socket on {}", localAddress);
+				break;
+			}
+			reusePortChannels.add(future.channel());
+		}
+		LOG.info("Listening UDP with {} sockets on {}", reusePortChannels.size() + 1, localAddress);
+		channel.closeFuture().addListener(new GenericFutureListener<ChannelFuture>() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				for (Channel reusePortChannel : reusePortChannels) {
+					reusePortChannel.close();
+				}
+			}
+		});
 	}
 
 	/**
@@ -297,7 +343,7 @@ public final class ChannelServer implements DiscoverNetworkListener{
 	boolean startupTCP(final InetSocketAddress listenAddresses, final ChannelServerConfiguration config) {
 		ServerBootstrap b = new ServerBootstrap();
 		b.group(bossGroup, workerGroup);
-		b.channel(NioServerSocketChannel.class);
+		b.channel(channelServerConfiguration.transport().serverSocketChannel());
 		b.childHandler(new ChannelInitializer<Channel>() {
 			@Override
 			protected void initChannel(final Channel ch) throws Exception {
@@ -359,8 +405,11 @@ public final class ChannelServer implements DiscoverNetworkListener{
 			handlers.put("dropconnection", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDropConnectionInboundHandler));
 			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, udpDecoderHandler));
 		}
+		// only the UDP replies can be batched, as they share the listening channel
 		handlers.put("encoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(
-		        channelServerConfiguration.signatureFactory(), channelServerConfiguration.byteBufAllocator())));
+		        channelServerConfiguration.signatureFactory(), channelServerConfiguration.byteBufAllocator(),
+		        !tcp && channelServerConfiguration.isBatchUDPWrites()).allocationBudget(
+		        channelServerConfiguration.encoderAllocationBudget())));
 		handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
 		return channelServerConfiguration.pipelineFilter().filter(handlers, tcp, false);
 	}
@@ -57,6 +57,14 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
     private boolean enablePool = false;
     private boolean enableHeap = false;
 
+    private Transport transport = new NioTransport();
+    private int udpReceivers = 1;
+
+    private boolean batchUDPWrites = false;
+    private int maxMessagesPerReadUDP = ConnectionBean.DEFAULT_MAX_MESSAGES_PER_READ_UDP;
+    private MTUProfile mtuProfile = new MTUProfile();
+    private int encoderAllocationBudget = 0;
+
     /**
      * @return True if this peer is behind a firewall and cannot be accessed directly
      */
@@ -277,6 +285,116 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
 	    return this;
     }
 
+    /**
+     * @return The Netty transport that creates the event loops and the listening channels
+     */
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * @param transport
+     *            The Netty transport that creates the event loops and the listening channels. If the transport is not
+     *            available on this platform, NIO is used
+     * @return This class
+     */
+    public ChannelServerConfiguration transport(final Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * @return The number of UDP sockets that listen on the same port, each handled by its own event loop
+     */
+    public int udpReceivers() {
+        return udpReceivers;
+    }
+
+    /**
+     * @param udpReceivers
+     *            The number of UDP sockets that listen on the same port, each handled by its own event loop. This
+     *            needs a transport that supports SO_REUSEPORT, otherwise only one socket is bound
+     * @return This class
+     */
+    public ChannelServerConfiguration udpReceivers(final int udpReceivers) {
+        this.udpReceivers = udpReceivers;
+        return this;
+    }
+
+    /**
+     * @return True if the replies that are written to a listening UDP channel within the same event loop tick are
+     *         flushed together
+     */
+    public boolean isBatchUDPWrites() {
+        return batchUDPWrites;
+    }
+
+    /**
+     * @param batchUDPWrites
+     *            Set to true to flush the replies that are written to a listening UDP channel within the same event
+     *            loop tick together
+     * @return This class
+     */
+    public ChannelServerConfiguration batchUDPWrites(final boolean batchUDPWrites) {
+        this.batchUDPWrites = batchUDPWrites;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of datagrams that a listening UDP channel reads in one go
+     */
+    public int maxMessagesPerReadUDP() {
+        return maxMessagesPerReadUDP;
+    }
+
+    /**
+     * @param maxMessagesPerReadUDP
+     *            The maximum number of datagrams that a listening UDP channel reads in one go, before the event loop
+     *            handles other channels
+     * @return This class
+     */
+    public ChannelServerConfiguration maxMessagesPerReadUDP(final int maxMessagesPerReadUDP) {
+        this.maxMessagesPerReadUDP = maxMessagesPerReadUDP;
+        return this;
+    }
+
+    /**
+     * @return The datagram sizes of this binding, the largest size is the receive buffer size of the listening UDP
+     *         channel
+     */
+    public MTUProfile mtuProfile() {
+        return mtuProfile;
+    }
+
+    /**
+     * @param mtuProfile
+     *            The datagram sizes of this binding, the largest size is the receive buffer size of the listening UDP
+     *            channel. The profile is shared with the client side of the peer
+     * @return This class
+     */
+    public ChannelServerConfiguration mtuProfile(final MTUProfile mtuProfile) {
+        this.mtuProfile = mtuProfile;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes the encoder may allocate for a message, 0 for no budget
+     */
+    public int encoderAllocationBudget() {
+        return encoderAllocationBudget;
+    }
+
+    /**
+     * @param encoderAllocationBudget
+     *            The number of bytes the encoder may allocate for a message. If a message exceeds it, a warning is
+     *            logged. Set to 0 to disable the check
+     * @return This class
+     */
+    public ChannelServerConfiguration encoderAllocationBudget(final int encoderAllocationBudget) {
+        this.encoderAllocationBudget = encoderAllocationBudget;
+        return this;
+    }
+
 	public ChannelServerConfiguration slowResponseTimeoutSeconds(final int slowResponseTimeoutSeconds) {
 		this.slowResponseTimeoutSeconds = slowResponseTimeoutSeconds;
 		return this;
@@ -325,4 +443,37 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
 			return AlternativeCompositeByteBuf.UNPOOLED_DIRECT;
 		}
 	}
+
+    /**
+     * @return A copy of this configuration, the peer changes its copy, e.g., the transport, and not the configuration
+     *         that was passed in
+     */
+    public ChannelServerConfiguration copy() {
+        final ChannelServerConfiguration copy = new ChannelServerConfiguration();
+        copy.behindFirewall = behindFirewall;
+        copy.disableBind = disableBind;
+        copy.idleTCPMillis = idleTCPMillis;
+        copy.idleUDPMillis = idleUDPMillis;
+        copy.connectionTimeoutTCPMillis = connectionTimeoutTCPMillis;
+        copy.slowResponseTimeoutSeconds = slowResponseTimeoutSeconds;
+        copy.pipelineFilter = pipelineFilter;
+        copy.bindings = bindings;
+        copy.signatureFactory = signatureFactory;
+        copy.forceTCP = forceTCP;
+        copy.forceUDP = forceUDP;
+        copy.portsForwarding = portsForwarding;
+        copy.ports = ports;
+        copy.maxTCPIncomingConnections = maxTCPIncomingConnections;
+        copy.maxUDPIncomingConnections = maxUDPIncomingConnections;
+        copy.heartBeatMillis = heartBeatMillis;
+        copy.enablePool = enablePool;
+        copy.enableHeap = enableHeap;
+        copy.transport = transport;
+        copy.udpReceivers = udpReceivers;
+        copy.batchUDPWrites = batchUDPWrites;
+        copy.maxMessagesPerReadUDP = maxMessagesPerReadUDP;
+        copy.mtuProfile = mtuProfile;
+        copy.encoderAllocationBudget = encoderAllocationBudget;
+        return copy;
+    }
 }
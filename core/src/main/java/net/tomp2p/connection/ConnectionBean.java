@@ -36,7 +36,18 @@ public class ConnectionBean {
     public static int DEFAULT_CONNECTION_TIMEOUT_TCP = 3 * 1000;
     public static int DEFAULT_SLOW_RESPONSE_TIMEOUT_SECONDS = 60;
     
+    /**
+     * The default datagram size to all peers, see {@link MTUProfile} to enable larger datagrams on the loopback
+     * interface and in the local network.
+     */
     public static int UDP_LIMIT = 1400;
+    /**
+     * The number of datagrams a UDP channel reads per wakeup. Netty reads 16 for NIO, a routing or a hedged request
+     * answers with a burst of replies from many peers, which can be read with one wakeup. Each read holds at most one
+     * datagram of {@link #UDP_LIMIT} bytes, and the channels of a peer share the event loops, thus 64 does not starve
+     * other channels.
+     */
+    public static int DEFAULT_MAX_MESSAGES_PER_READ_UDP = 64;
 
     private final int p2pId;
     private final Dispatcher dispatcher;
@@ -67,6 +67,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
     private final int p2pID;
     private final PeerBean peerBeanMaster;
     private final int heartBeatMillis;
+    private volatile MTUProfile mtuProfile = null;
 
     //use locks instead copy on write as testcases became really slow
     final private ReentrantReadWriteLock reentrantReadWriteLock = new ReentrantReadWriteLock();
@@ -100,6 +101,22 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
     	return peerBeanMaster;
     }
 
+    public MTUProfile mtuProfile() {
+        return mtuProfile;
+    }
+
+    /**
+     * @param mtuProfile
+     *            The datagram sizes to the requesters. A UDP reply that is larger is replaced by a
+     *            {@link Type#TRUNCATED} reply, so the requester sends the request again over TCP. Null to send all
+     *            replies as they are
+     * @return This class
+     */
+    public Dispatcher mtuProfile(final MTUProfile mtuProfile) {
+        this.mtuProfile = mtuProfile;
+        return this;
+    }
+
     /**
      * Registers a handler with this dispatcher. Future received messages adhering to the given parameters will be
      * forwarded to that handler. Note that the dispatcher only handles REQUEST messages. This method is thread-safe,
@@ -261,7 +278,7 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
      * @param response
      *            The response message to send
      */
-    private FutureDone<Void> response(final ChannelHandlerContext ctx, final Message response) {
+    private FutureDone<Void> response(final ChannelHandlerContext ctx, Message response) {
     	final FutureDone<Void> futureDone = new FutureDone<Void>();
         if (ctx.channel() instanceof DatagramChannel) {
         	// Check, if channel is still open. If not, then do not send anything
@@ -270,6 +287,12 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
 				LOG.debug("Channel UDP is not open. Do not reply {}.", response);
                 return futureDone.failed("channel UDP is not open, do not reply");
             }
+            final MTUProfile mtuProfile = this.mtuProfile;
+            if (mtuProfile != null
+                    && response.estimateSize() > mtuProfile.datagramSize(response.recipient().inetAddress())) {
+                LOG.debug("Response UDP message {} is too large for a datagram, reply truncated.", response);
+                response = truncated(response);
+            }
             LOG.debug("Response UDP message {}.", response);
         } else {
         	// Check, if channel is still open. If not, then do not send anything
@@ -291,6 +314,24 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
         return futureDone;
     }
 
+    /**
+     * @return A reply with the header of the given reply and without payload, which tells the requester to send the
+     *         request again over TCP
+     */
+    private static Message truncated(final Message response) {
+        final Message truncated = new Message();
+        truncated.senderSocket(response.senderSocket());
+        truncated.recipientSocket(response.recipientSocket());
+        truncated.recipient(response.recipient());
+        truncated.sender(response.sender());
+        truncated.command(response.command());
+        truncated.type(Type.TRUNCATED);
+        truncated.version(response.version());
+        truncated.messageId(response.messageId());
+        truncated.udp(true);
+        return truncated;
+    }
+
 	/**
 	 * Returns the registered handler for the provided message, if any.
 	 * 
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The native Linux transport based on epoll. It needs the
+ * netty-transport-native-epoll library, if it is not available, use
+ * {@link NioTransport}. This transport supports SO_REUSEPORT, thus several
+ * event loops can read from their own UDP socket on the same port.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class EpollTransport implements Transport {
+
+	@Override
+	public boolean isAvailable() {
+		try {
+			return Epoll.isAvailable();
+		} catch (LinkageError e) {
+			// the native library is not on the class path
+			return false;
+		}
+	}
+
+	@Override
+	public EventLoopGroup eventLoopGroup(final int nThreads, final ThreadFactory threadFactory) {
+		return new EpollEventLoopGroup(nThreads, threadFactory);
+	}
+
+	@Override
+	public Class<? extends DatagramChannel> datagramChannel() {
+		return EpollDatagramChannel.class;
+	}
+
+	@Override
+	public Class<? extends SocketChannel> socketChannel() {
+		return EpollSocketChannel.class;
+	}
+
+	@Override
+	public Class<? extends ServerSocketChannel> serverSocketChannel() {
+		return EpollServerSocketChannel.class;
+	}
+
+	@Override
+	public boolean isReusePortSupported() {
+		return true;
+	}
+
+	@Override
+	public void reusePort(final Bootstrap bootstrap) {
+		bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+	}
+}
@@ -11,6 +11,7 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.p2p.builder.PingBuilder;
 
 import org.slf4j.Logger;
@@ -186,9 +187,20 @@ public class HeartBeat extends ChannelDuplexHandler {
             if(peerConnection!=null && nextDelay <= 0) {
                 LOG.debug("Sending heart beat to {}. Channel: {}.", peerConnection.remotePeer(),
                 		(peerConnection.channelFuture() != null ? peerConnection.channelFuture().channel() : null));
+                final PeerConnection current = peerConnection;
                 PingBuilder builder = pingBuilderFactory.create();
-                BaseFuture baseFuture = builder.peerConnection(peerConnection).start();
+                BaseFuture baseFuture = builder.peerConnection(current).start();
                 builder.notifyAutomaticFutures(baseFuture);
+                baseFuture.addListener(new BaseFutureAdapter<BaseFuture>() {
+                    @Override
+                    public void operationComplete(BaseFuture future) throws Exception {
+                        if (future.isFailed() && current.isPooled()) {
+                            // the pooled connection is dead, closing it notifies the peer connection and the pool
+                            LOG.debug("Heart beat to {} failed, close channel {}.", current.remotePeer(), ctx.channel());
+                            ctx.close();
+                        }
+                    }
+                });
             } else {
             	LOG.debug("Not sending heart beat to {}. Channel: {}", peerConnection.remotePeer(),
                 		(peerConnection.channelFuture() != null ? peerConnection.channelFuture().channel() : null));
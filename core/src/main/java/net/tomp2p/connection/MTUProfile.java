@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.connection;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The maximum size of a UDP datagram depending on where the remote peer is.
+ * All address classes default to {@link ConnectionBean#UDP_LIMIT}, which is
+ * safe everywhere. On the loopback interface and in the local network, much
+ * larger datagrams can be sent, but this needs to be enabled with
+ * {@link #loopback(int)} or {@link #lan(int)}, as e.g. a firewall may drop
+ * fragmented datagrams. Sizes found by path MTU probing with
+ * {@link net.tomp2p.rpc.PingRPC#probeUDP} override the defaults for a
+ * specific address. The receive buffer of a UDP channel is set to
+ * {@link #maxDatagramSize()}, thus, the profile is fixed once a channel is
+ * bound.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class MTUProfile {
+
+    /**
+     * The largest payload of an IPv4 UDP datagram.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private int loopback = ConnectionBean.UDP_LIMIT;
+    private int lan = ConnectionBean.UDP_LIMIT;
+    private int internet = ConnectionBean.UDP_LIMIT;
+
+    private final ConcurrentMap<InetAddress, Integer> probed = new ConcurrentHashMap<InetAddress, Integer>();
+
+    /**
+     * Returns the datagram size for a remote address. If the path to this
+     * address was probed, the probed size is returned.
+     * 
+     * @param remote
+     *            The address of the remote peer
+     * @return The maximum size of a UDP datagram to this address
+     */
+    public int datagramSize(final InetAddress remote) {
+        if (remote == null) {
+            return internet;
+        }
+        final Integer size = probed.get(remote);
+        if (size != null) {
+            return size;
+        }
+        if (remote.isLoopbackAddress()) {
+            return loopback;
+        }
+        if (remote.isSiteLocalAddress() || remote.isLinkLocalAddress()) {
+            return lan;
+        }
+        return internet;
+    }
+
+    /**
+     * @return The size of the largest datagram we may receive, which is used
+     *         as the receive buffer size of UDP channels
+     */
+    public int maxDatagramSize() {
+        return Math.max(loopback, Math.max(lan, internet));
+    }
+
+    /**
+     * Stores the result of a path MTU probe. The size is capped by
+     * {@link #maxDatagramSize()}.
+     * 
+     * @param remote
+     *            The probed address
+     * @param datagramSize
+     *            The size of the largest datagram that reached the remote peer
+     * @return This class
+     */
+    public MTUProfile probed(final InetAddress remote, final int datagramSize) {
+        probed.put(remote, Math.min(datagramSize, maxDatagramSize()));
+        return this;
+    }
+
+    /**
+     * Removes the result of a path MTU probe, e.g., if the peer went offline.
+     * 
+     * @param remote
+     *            The probed address
+     * @return This class
+     */
+    public MTUProfile removeProbed(final InetAddress remote) {
+        probed.remove(remote);
+        return this;
+    }
+
+    /**
+     * @return The datagram size on the loopback interface
+     */
+    public int loopback() {
+        return loopback;
+    }
+
+    /**
+     * @param loopback
+     *            The datagram size on the loopback interface
+     * @return This class
+     */
+    public MTUProfile loopback(final int loopback) {
+        this.loopback = checkSize(loopback);
+        return this;
+    }
+
+    /**
+     * @return The datagram size to site- and link-local addresses
+     */
+    public int lan() {
+        return lan;
+    }
+
+    /**
+     * @param lan
+     *            The datagram size to site- and link-local addresses. Larger
+     *            datagrams than the MTU of the network are fragmented, which is
+     *            usually fine in a local network
+     * @return This class
+     */
+    public MTUProfile lan(final int lan) {
+        this.lan = checkSize(lan);
+        return this;
+    }
+
+    /**
+     * @return The datagram size to all other addresses
+     */
+    public int internet() {
+        return internet;
+    }
+
+    /**
+     * @param internet
+     *            The datagram size to all other addresses
+     * @return This class
+     */
+    public MTUProfile internet(final int internet) {
+        this.internet = checkSize(internet);
+        return this;
+    }
+
+    private static int checkSize(final int size) {
+        if (size <= 0 || size > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Datagram size must be between 1 and " + MAX_DATAGRAM_SIZE + ", was "
+                    + size);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The default transport based on Java NIO, which is available on every
+ * platform.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class NioTransport implements Transport {
+
+	@Override
+	public boolean isAvailable() {
+		return true;
+	}
+
+	@Override
+	public EventLoopGroup eventLoopGroup(final int nThreads, final ThreadFactory threadFactory) {
+		return new NioEventLoopGroup(nThreads, threadFactory);
+	}
+
+	@Override
+	public Class<? extends DatagramChannel> datagramChannel() {
+		return NioDatagramChannel.class;
+	}
+
+	@Override
+	public Class<? extends SocketChannel> socketChannel() {
+		return NioSocketChannel.class;
+	}
+
+	@Override
+	public Class<? extends ServerSocketChannel> serverSocketChannel() {
+		return NioServerSocketChannel.class;
+	}
+
+	@Override
+	public boolean isReusePortSupported() {
+		return false;
+	}
+
+	@Override
+	public void reusePort(final Bootstrap bootstrap) {
+		// SO_REUSEPORT is not supported by NIO, since isReusePortSupported()
+		// returns false, this is never called and nothing needs to be set
+	}
+}
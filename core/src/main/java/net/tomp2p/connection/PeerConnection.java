@@ -5,8 +5,10 @@ import io.netty.channel.ChannelFuture;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
 
@@ -23,7 +25,9 @@ public class PeerConnection {
 	final private static Logger LOG = LoggerFactory.getLogger(PeerConnection.class);
 	final public static int HEART_BEAT_MILLIS = 2000;
     
-	final private Semaphore oneConnection;
+	// the number of requests that may wait for a response at the same time
+	final private Semaphore inFlight;
+    final private int maxInFlight;
     final private PeerAddress remotePeer;
     final private ChannelCreator cc;
     final private boolean initiator;
@@ -34,11 +38,13 @@ public class PeerConnection {
 
     // these may be called from different threads, but they will never be called concurrently within this library
     private volatile ChannelFuture channelFuture;
+    private volatile boolean pooled = false;
     
-    private PeerConnection(Semaphore oneConnection, PeerAddress remotePeer, ChannelCreator cc, 
+    private PeerConnection(Semaphore inFlight, int maxInFlight, PeerAddress remotePeer, ChannelCreator cc, 
     		boolean initiator, Map<FutureChannelCreator, FutureResponse> map, FutureDone<Void> closeFuture, 
     		int heartBeatMillis, ChannelFuture channelFuture) {
-    	this.oneConnection = oneConnection;
+    	this.inFlight = inFlight;
+    	this.maxInFlight = maxInFlight;
     	this.remotePeer = remotePeer;
     	this.cc = cc;
     	this.initiator = initiator;
@@ -60,11 +66,29 @@ public class PeerConnection {
      *            The heart beat in milliseconds
      */
     public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, int heartBeatMillis) {
+        this(remotePeer, cc, heartBeatMillis, 1);
+    }
+
+    /**
+     * If we don't have an open TCP connection, we first need a channel creator to open a channel. Up to maxInFlight
+     * requests are sent over this connection without waiting for their responses.
+     * 
+     * @param remotePeer
+     *            The remote peer to connect to
+     * @param cc
+     *            The channel creator where we can open a TCP connection
+     * @param heartBeatMillis
+     *            The heart beat in milliseconds
+     * @param maxInFlight
+     *            The maximum number of requests that wait for a response at the same time
+     */
+    public PeerConnection(PeerAddress remotePeer, ChannelCreator cc, int heartBeatMillis, int maxInFlight) {
         this.remotePeer = remotePeer;
         this.cc = cc;
         this.heartBeatMillis = heartBeatMillis;
         this.initiator = true;
-        this.oneConnection = new Semaphore(1);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
         this.map = new LinkedHashMap<FutureChannelCreator, FutureResponse>();
         this.closeFuture = new FutureDone<Void>();
     }
@@ -86,7 +110,8 @@ public class PeerConnection {
         this.cc = null;
         this.heartBeatMillis = heartBeatMillis;
         this.initiator = false;
-        this.oneConnection = new Semaphore(1);
+        this.maxInFlight = 1;
+        this.inFlight = new Semaphore(1);
         this.map = new LinkedHashMap<FutureChannelCreator, FutureResponse>();
         this.closeFuture = new FutureDone<Void>();
     }
@@ -101,10 +126,36 @@ public class PeerConnection {
 	    return heartBeatMillis;
     }
 
+    /**
+     * @return The maximum number of requests that wait for a response at the same time
+     */
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return True if several requests may be sent over this connection without waiting for their responses
+     */
+    public boolean isPipelined() {
+        return maxInFlight > 1;
+    }
+
     public ChannelFuture channelFuture() {
         return channelFuture;
     }
 
+    /**
+     * @return True if this connection is kept open by a {@link PeerConnectionPool}
+     */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public PeerConnection pooled(boolean pooled) {
+        this.pooled = pooled;
+        return this;
+    }
+
     public FutureDone<Void> closeFuture() {
         return closeFuture;
     }
@@ -149,34 +200,86 @@ public class PeerConnection {
     private FutureChannelCreator acquire(final FutureChannelCreator futureChannelCreator,
             final FutureResponse futureResponse) {
     	LOG.debug("About to acquire a peer connection for {}.", remotePeer);
-        if (oneConnection.tryAcquire()) {
-        	LOG.debug("Acquired a peer connection for {}.", remotePeer);
-            futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
-                @Override
-                public void operationComplete(FutureResponse future) throws Exception {
-                    oneConnection.release();
-                    LOG.debug("released peer connection for {}", remotePeer);
-                    synchronized (map) {
-                        Iterator<Map.Entry<FutureChannelCreator, FutureResponse>> iterator = map.entrySet()
-                                .iterator();
-                        if (iterator.hasNext()) {
-                            Map.Entry<FutureChannelCreator, FutureResponse> entry = iterator.next();
-                            iterator.remove();
-                            acquire(entry.getKey(), entry.getValue());
-                        }
-                    }
-                }
-            });
-            futureChannelCreator.reserved(cc);
-            return futureChannelCreator;
-        } else {
-            synchronized (map) {
+    	final boolean acquired;
+        synchronized (map) {
+            // requests that already wait go first
+            acquired = map.isEmpty() && tryAcquirePermit();
+            if (!acquired) {
                 map.put(futureChannelCreator, futureResponse);
             }
         }
+        if (acquired) {
+            granted(futureChannelCreator, futureResponse);
+        }
         return futureChannelCreator;
     }
 
+    /**
+     * Acquires this connection only if it can be used right away. Unlike {@link #acquire(FutureResponse)}, the
+     * request is not queued.
+     * 
+     * @param futureResponse
+     *            The future of the request, once it finishes, the connection is released
+     * @return True if the connection was acquired, false if it is in use
+     */
+    public boolean tryAcquire(final FutureResponse futureResponse) {
+        synchronized (map) {
+            if (!map.isEmpty() || !tryAcquirePermit()) {
+                return false;
+            }
+        }
+        LOG.debug("Acquired a peer connection for {} without waiting.", remotePeer);
+        addReleaseListener(futureResponse);
+        return true;
+    }
+
+    /**
+     * @return True if a request is currently using this connection
+     */
+    public boolean isInUse() {
+        return inFlight.availablePermits() < maxInFlight;
+    }
+
+    /**
+     * Needs to be called while holding the lock on map. Until the channel is connected, only the request that opens
+     * the channel may use this connection.
+     */
+    private boolean tryAcquirePermit() {
+        if (!isActive() && isInUse()) {
+            return false;
+        }
+        return inFlight.tryAcquire();
+    }
+
+    private void granted(final FutureChannelCreator futureChannelCreator, final FutureResponse futureResponse) {
+        LOG.debug("Acquired a peer connection for {}.", remotePeer);
+        addReleaseListener(futureResponse);
+        futureChannelCreator.reserved(cc);
+    }
+
+    private void addReleaseListener(final FutureResponse futureResponse) {
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(FutureResponse future) throws Exception {
+                inFlight.release();
+                LOG.debug("released peer connection for {}", remotePeer);
+                final List<Map.Entry<FutureChannelCreator, FutureResponse>> granted = new ArrayList<Map.Entry<FutureChannelCreator, FutureResponse>>(1);
+                synchronized (map) {
+                    Iterator<Map.Entry<FutureChannelCreator, FutureResponse>> iterator = map.entrySet()
+                            .iterator();
+                    while (iterator.hasNext() && tryAcquirePermit()) {
+                        granted.add(iterator.next());
+                        iterator.remove();
+                    }
+                }
+                // outside the lock, as the listeners may send right away
+                for (Map.Entry<FutureChannelCreator, FutureResponse> entry : granted) {
+                    granted(entry.getKey(), entry.getValue());
+                }
+            }
+        });
+    }
+
     public ChannelCreator channelCreator() {
         return cc;
     }
@@ -185,6 +288,10 @@ public class PeerConnection {
         return remotePeer;
     }
     
+    private boolean isActive() {
+        return channelFuture != null && channelFuture.channel().isActive();
+    }
+
     public boolean isOpen() {
     	if (channelFuture!=null) {
     		return channelFuture.channel().isOpen();
@@ -194,7 +301,8 @@ public class PeerConnection {
     }
     
     public PeerConnection changeRemotePeer(PeerAddress remotePeer) {
-    	return new PeerConnection(oneConnection, remotePeer, cc, initiator, map, closeFuture, heartBeatMillis, channelFuture);
+    	return new PeerConnection(inFlight, maxInFlight, remotePeer, cc, initiator, map, closeFuture, heartBeatMillis, channelFuture)
+    			.pooled(pooled);
     }
     
 	@Override
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size-bounded pool of permanent TCP connections, one per remote peer. The
+ * {@link Sender} uses a pooled connection if it is open and not in use,
+ * otherwise it falls back to a short-lived connection and a pooled connection
+ * to that peer is reserved for the next request. Each pooled connection holds
+ * a permanent TCP permit from the {@link Reservation} and is kept alive by the
+ * {@link HeartBeat}. If the pool is full, the least recently used idle
+ * connection is closed.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PeerConnectionPool {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PeerConnectionPool.class);
+
+	private final Reservation reservation;
+	private final int maxConnections;
+	private final int heartBeatMillis;
+	private final int maxInFlight;
+
+	// access ordered, the first entry is the least recently used connection
+	private final Map<PeerAddress, PeerConnection> connections = new LinkedHashMap<PeerAddress, PeerConnection>(16,
+	        0.75f, true);
+	// the peers for which a permanent connection is being reserved
+	private final Collection<PeerAddress> pending = new HashSet<PeerAddress>();
+	private boolean shutdown = false;
+
+	/**
+	 * Creates a connection pool.
+	 *
+	 * @param reservation
+	 *            The reservation that hands out the permanent TCP permits
+	 * @param maxConnections
+	 *            The maximum number of pooled connections. This should be lower
+	 *            than the number of permanent TCP permits, as those are shared
+	 *            with {@link PeerConnection}s created by the user
+	 * @param heartBeatMillis
+	 *            The heart beat that keeps the pooled connections alive
+	 * @param maxInFlight
+	 *            The maximum number of requests that are sent over a pooled
+	 *            connection without waiting for their responses
+	 */
+	public PeerConnectionPool(final Reservation reservation, final int maxConnections, final int heartBeatMillis,
+	        final int maxInFlight) {
+		this.reservation = reservation;
+		this.maxConnections = maxConnections;
+		this.heartBeatMillis = heartBeatMillis;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Acquires the pooled connection to the remote peer for the given request.
+	 * The connection is released once the request finishes. If there is no
+	 * pooled connection yet, one is reserved in the background for the next
+	 * request.
+	 *
+	 * @param remotePeer
+	 *            The remote peer
+	 * @param futureResponse
+	 *            The future of the request that uses the connection
+	 * @return The pooled connection or null if there is no connection or it is
+	 *         in use by another request
+	 */
+	public PeerConnection acquire(final PeerAddress remotePeer, final FutureResponse futureResponse) {
+		synchronized (connections) {
+			if (shutdown) {
+				return null;
+			}
+			final PeerConnection pooled = connections.get(remotePeer);
+			if (pooled != null && (pooled.channelFuture() == null || pooled.isOpen())) {
+				return pooled.tryAcquire(futureResponse) ? pooled : null;
+			}
+			if (pooled != null || pending.contains(remotePeer)) {
+				// either a closed connection that the close listener will
+				// evict, or we are already reserving one
+				return null;
+			}
+			pending.add(remotePeer);
+		}
+		// outside the lock, as the listener may be called right away
+		reserve(remotePeer);
+		return null;
+	}
+
+	/**
+	 * Removes a connection from the pool and closes it, e.g., if a request on
+	 * this connection failed.
+	 *
+	 * @param peerConnection
+	 *            The connection to close
+	 */
+	public void evict(final PeerConnection peerConnection) {
+		// if the reservation is shutting down, the channel creator is already
+		// shut down and must not be shut down twice
+		if (remove(peerConnection) && !peerConnection.channelCreator().isShutdown()) {
+			LOG.debug("Evict pooled connection to {}.", peerConnection.remotePeer());
+			peerConnection.close();
+		}
+	}
+
+	/**
+	 * @return The number of pooled connections
+	 */
+	public int size() {
+		synchronized (connections) {
+			return connections.size();
+		}
+	}
+
+	/**
+	 * Closes all pooled connections.
+	 *
+	 * @return The future that is done once all pooled connections are closed
+	 */
+	public FutureDone<Void> shutdown() {
+		final Collection<PeerConnection> copy;
+		synchronized (connections) {
+			shutdown = true;
+			copy = new ArrayList<PeerConnection>(connections.values());
+			connections.clear();
+		}
+		final FutureDone<Void> futureShutdown = new FutureDone<Void>();
+		if (copy.isEmpty()) {
+			return futureShutdown.done();
+		}
+		final AtomicInteger counter = new AtomicInteger(copy.size());
+		for (PeerConnection peerConnection : copy) {
+			peerConnection.close().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+				@Override
+				public void operationComplete(final FutureDone<Void> future) throws Exception {
+					if (counter.decrementAndGet() == 0) {
+						futureShutdown.done();
+					}
+				}
+			});
+		}
+		return futureShutdown;
+	}
+
+	private void reserve(final PeerAddress remotePeer) {
+		final FutureChannelCreator futureChannelCreator = reservation.createPermanent(1);
+		futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+			@Override
+			public void operationComplete(final FutureChannelCreator future) throws Exception {
+				if (!future.isSuccess()) {
+					synchronized (connections) {
+						pending.remove(remotePeer);
+					}
+					LOG.debug("Could not reserve a pooled connection to {}: {}.", remotePeer, future.failedReason());
+					return;
+				}
+				final PeerConnection peerConnection = new PeerConnection(remotePeer, future.channelCreator(),
+				        heartBeatMillis, maxInFlight).pooled(true);
+				if (!add(remotePeer, peerConnection)) {
+					// this also releases the permit
+					peerConnection.close();
+				}
+			}
+		});
+	}
+
+	private boolean add(final PeerAddress remotePeer, final PeerConnection peerConnection) {
+		PeerConnection evicted = null;
+		synchronized (connections) {
+			pending.remove(remotePeer);
+			if (shutdown) {
+				return false;
+			}
+			if (connections.size() >= maxConnections) {
+				// find the least recently used connection that is idle
+				for (Iterator<PeerConnection> iterator = connections.values().iterator(); iterator.hasNext();) {
+					final PeerConnection candidate = iterator.next();
+					if (!candidate.isInUse()) {
+						iterator.remove();
+						evicted = candidate;
+						break;
+					}
+				}
+				if (evicted == null) {
+					LOG.debug("Pool is full and all connections are in use, not pooling {}.", remotePeer);
+					return false;
+				}
+			}
+			final PeerConnection old = connections.put(remotePeer, peerConnection);
+			if (old != null && old != evicted) {
+				// a stale, closed connection
+				old.close();
+			}
+		}
+		if (evicted != null) {
+			LOG.debug("Pool is full, close least recently used connection to {}.", evicted.remotePeer());
+			evicted.close();
+		}
+		peerConnection.closeFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				// the channel was closed by the other peer, a failed heart
+				// beat or an idle timeout
+				evict(peerConnection);
+			}
+		});
+		return true;
+	}
+
+	private boolean remove(final PeerConnection peerConnection) {
+		synchronized (connections) {
+			final PeerAddress remotePeer = peerConnection.remotePeer();
+			if (connections.get(remotePeer) == peerConnection) {
+				connections.remove(remotePeer);
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -17,7 +17,6 @@
 package net.tomp2p.connection;
 
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -88,25 +87,44 @@ public class PeerCreator {
 	        final ChannelServerConfiguration channelServerConfiguration,
 	        final ChannelClientConfiguration channelClientConfiguration,
 	        final ScheduledExecutorService timer, SendBehavior sendBehavior) throws IOException {
+		// the transport and the MTU profile are aligned below, do not change the configurations of the caller
+		final ChannelServerConfiguration serverConfiguration = channelServerConfiguration.copy();
+		final ChannelClientConfiguration clientConfiguration = channelClientConfiguration.copy();
 		//peer bean
 		peerBean = new PeerBean(keyPair);
-		PeerAddress self = findPeerAddress(peerId, channelClientConfiguration, channelServerConfiguration);
+		PeerAddress self = findPeerAddress(peerId, clientConfiguration, serverConfiguration);
 		peerBean.serverPeerAddress(self);
 		LOG.info("Visible address to other peers: {}", self);
 		
 		//start server
-		workerGroup = new NioEventLoopGroup(0, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
+		Transport transport = serverConfiguration.transport();
+		if (!transport.isAvailable()) {
+			LOG.warn("Transport {} is not available on this platform, use NIO.", transport.getClass().getSimpleName());
+			transport = new NioTransport();
+			serverConfiguration.transport(transport);
+		}
+		// the event loops are shared, thus the client needs to create the same channels
+		clientConfiguration.transport(transport);
+		// a peer sends and receives with the same datagram sizes, probes are shared
+		clientConfiguration.mtuProfile(serverConfiguration.mtuProfile());
+		workerGroup = transport.eventLoopGroup(0, new DefaultThreadFactory(ConnectionBean.THREAD_NAME
 		        + "worker-client/server - "));
-		bossGroup = new NioEventLoopGroup(2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - "));
-		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, channelServerConfiguration.heartBeatMillis());
-		final ChannelServer channelServer = new ChannelServer(bossGroup, workerGroup, channelServerConfiguration,
+		bossGroup = transport.eventLoopGroup(2, new DefaultThreadFactory(ConnectionBean.THREAD_NAME + "boss - "));
+		Dispatcher dispatcher = new Dispatcher(p2pId, peerBean, serverConfiguration.heartBeatMillis())
+				.mtuProfile(serverConfiguration.mtuProfile());
+		final ChannelServer channelServer = new ChannelServer(bossGroup, workerGroup, serverConfiguration,
 		        dispatcher, peerBean.peerStatusListeners(), timer);
 		
 		//connection bean
-		Sender sender = new Sender(peerId, peerBean.peerStatusListeners(), channelClientConfiguration, dispatcher, sendBehavior, peerBean);
-		Reservation reservation = new Reservation(workerGroup, channelClientConfiguration);
+		Sender sender = new Sender(peerId, peerBean.peerStatusListeners(), clientConfiguration, dispatcher, sendBehavior, peerBean);
+		Reservation reservation = new Reservation(workerGroup, clientConfiguration);
+		if (clientConfiguration.maxPooledTCPConnections() > 0) {
+			sender.peerConnectionPool(new PeerConnectionPool(reservation,
+					clientConfiguration.maxPooledTCPConnections(), serverConfiguration.heartBeatMillis(),
+					clientConfiguration.maxInFlightTCP()));
+		}
 		connectionBean = new ConnectionBean(p2pId, dispatcher, sender, channelServer, reservation,
-		        channelClientConfiguration, timer);
+		        clientConfiguration, timer);
 		this.master = true;
 	}
 
@@ -159,6 +177,21 @@ public class PeerCreator {
 		connectionBean.timer().shutdown();
 		
 		LOG.debug("Shutting down client...");
+		// the pooled connections hold permanent permits, close them first
+		final PeerConnectionPool peerConnectionPool = connectionBean.sender().peerConnectionPool();
+		final FutureDone<Void> futurePool = peerConnectionPool != null ? peerConnectionPool.shutdown()
+				: new FutureDone<Void>().done();
+		futurePool.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				shutdownClient();
+			}
+		});
+		// this is blocking
+		return futureServerDone;
+	}
+
+	private void shutdownClient() {
 		connectionBean.reservation().shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 			@Override
 			public void operationComplete(final FutureDone<Void> future) throws Exception {
@@ -170,8 +203,6 @@ public class PeerCreator {
 				});
 			}
 		});
-		// this is blocking
-		return futureServerDone;
 	}
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.connection;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the requests and bytes that are in flight to a single remote peer. A
+ * request that exceeds the budget of its recipient, or that would be written
+ * to a channel that is not writable, is deferred until a previous request to
+ * this peer finishes or the channel becomes writable again. A deferred request
+ * is marked with {@link FutureResponse#isBackpressured()}, so that builders
+ * can slow down. The byte count is the estimated size of the request.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class PeerFlowControl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeerFlowControl.class);
+
+    private static final String HANDLER_NAME = "flowcontrol";
+
+    private final int maxRequestsPerPeer;
+    private final int maxBytesPerPeer;
+
+    private final ConcurrentMap<PeerAddress, PeerFlow> flows = new ConcurrentHashMap<PeerAddress, PeerFlow>();
+    private final WritabilityHandler writabilityHandler = new WritabilityHandler();
+
+    /**
+     * Creates the flow control.
+     * 
+     * @param maxRequestsPerPeer
+     *            The maximum number of requests in flight to a single peer, 0
+     *            for no limit
+     * @param maxBytesPerPeer
+     *            The maximum number of bytes in flight to a single peer, 0 for
+     *            no limit
+     */
+    public PeerFlowControl(final int maxRequestsPerPeer, final int maxBytesPerPeer) {
+        this.maxRequestsPerPeer = maxRequestsPerPeer;
+        this.maxBytesPerPeer = maxBytesPerPeer;
+    }
+
+    /**
+     * Writes a request now, or defers it if the budget of the recipient is
+     * used up or the channel is not writable. The budget is released once the
+     * future response finishes.
+     * 
+     * @param channel
+     *            The channel the request is written to
+     * @param futureResponse
+     *            The future of the request
+     * @param write
+     *            The write operation
+     */
+    public void send(final Channel channel, final FutureResponse futureResponse, final Runnable write) {
+        final PeerAddress recipient = futureResponse.request().recipient();
+        final int bytes = futureResponse.request().estimateSize();
+        final Pending pending = new Pending(channel, futureResponse, write, bytes);
+        boolean now = false;
+        boolean added = false;
+        PeerFlow flow = null;
+        while (!added) {
+            flow = flows.get(recipient);
+            if (flow == null) {
+                final PeerFlow newFlow = new PeerFlow();
+                flow = flows.putIfAbsent(recipient, newFlow);
+                if (flow == null) {
+                    flow = newFlow;
+                }
+            }
+            synchronized (flow) {
+                // a flow that was idle may have been removed in the meantime
+                if (flow.removed) {
+                    continue;
+                }
+                now = flow.queue.isEmpty() && flow.fits(bytes) && channel.isWritable();
+                if (now) {
+                    flow.account(bytes);
+                } else {
+                    flow.queue.add(pending);
+                    flow.deferred++;
+                }
+                added = true;
+            }
+        }
+        final PeerFlow current = flow;
+        if (now) {
+            start(recipient, current, pending);
+        } else {
+            LOG.debug("Defer request {}, the budget of the recipient is used up or the channel is not writable.",
+                    futureResponse.request());
+            futureResponse.backpressured(true);
+            if (!channel.isWritable()) {
+                watch(channel, recipient);
+            }
+        }
+    }
+
+    /**
+     * @param remotePeer
+     *            The remote peer
+     * @return True if requests to this peer are being deferred
+     */
+    public boolean isBackpressured(final PeerAddress remotePeer) {
+        final PeerFlow flow = flows.get(remotePeer);
+        if (flow == null) {
+            return false;
+        }
+        synchronized (flow) {
+            return !flow.queue.isEmpty();
+        }
+    }
+
+    /**
+     * @param remotePeer
+     *            The remote peer
+     * @return The current counters for this peer or null if nothing is in
+     *         flight to this peer
+     */
+    public FlowStatistic statistic(final PeerAddress remotePeer) {
+        final PeerFlow flow = flows.get(remotePeer);
+        if (flow == null) {
+            return null;
+        }
+        synchronized (flow) {
+            return new FlowStatistic(flow.requests, flow.bytes, flow.queue.size(), flow.sent, flow.deferred);
+        }
+    }
+
+    /**
+     * @return The number of peers with requests in flight
+     */
+    public int activePeers() {
+        return flows.size();
+    }
+
+    private void start(final PeerAddress recipient, final PeerFlow flow, final Pending pending) {
+        pending.futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                release(recipient, flow, pending.bytes);
+            }
+        });
+        pending.write.run();
+    }
+
+    private void release(final PeerAddress recipient, final PeerFlow flow, final int bytes) {
+        synchronized (flow) {
+            flow.requests--;
+            flow.bytes -= bytes;
+        }
+        drain(recipient, flow);
+    }
+
+    private void drain(final PeerAddress recipient, final PeerFlow flow) {
+        final List<Pending> ready = new ArrayList<Pending>(1);
+        synchronized (flow) {
+            Pending pending;
+            while ((pending = flow.queue.peek()) != null) {
+                if (pending.futureResponse.isCompleted()) {
+                    // timed out or canceled while waiting
+                    flow.queue.poll();
+                    continue;
+                }
+                if (!flow.fits(pending.bytes) || !pending.channel.isWritable() && pending.channel.isActive()) {
+                    break;
+                }
+                flow.queue.poll();
+                flow.account(pending.bytes);
+                ready.add(pending);
+            }
+            if (flow.requests == 0 && flow.queue.isEmpty()) {
+                flow.removed = true;
+                flows.remove(recipient, flow);
+            }
+        }
+        // outside the lock, a write may complete right away
+        for (Pending pending : ready) {
+            start(recipient, flow, pending);
+        }
+    }
+
+    private void watch(final Channel channel, final PeerAddress recipient) {
+        final ChannelPipeline pipeline = channel.pipeline();
+        synchronized (pipeline) {
+            if (pipeline.get(HANDLER_NAME) == null) {
+                pipeline.addFirst(HANDLER_NAME, writabilityHandler);
+            }
+        }
+        // the channel may have become writable before the handler was added
+        if (channel.isWritable()) {
+            final PeerFlow flow = flows.get(recipient);
+            if (flow != null) {
+                drain(recipient, flow);
+            }
+        }
+    }
+
+    /**
+     * Drains the deferred requests of all peers that wait for a channel to
+     * become writable or that was closed.
+     */
+    @Sharable
+    private class WritabilityHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                drainAll();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+            // the deferred writes fail, which releases them
+            drainAll();
+            ctx.fireChannelInactive();
+        }
+
+        private void drainAll() {
+            for (PeerAddress recipient : flows.keySet()) {
+                final PeerFlow flow = flows.get(recipient);
+                if (flow != null) {
+                    drain(recipient, flow);
+                }
+            }
+        }
+    }
+
+    /**
+     * The counters of a single remote peer.
+     */
+    private final class PeerFlow {
+        private final Queue<Pending> queue = new LinkedList<Pending>();
+        private int requests = 0;
+        private int bytes = 0;
+        private long sent = 0;
+        private long deferred = 0;
+        private boolean removed = false;
+
+        private boolean fits(final int size) {
+            // a single request is always allowed, even if it is larger
+            if (requests == 0) {
+                return true;
+            }
+            return (maxRequestsPerPeer <= 0 || requests < maxRequestsPerPeer)
+                    && (maxBytesPerPeer <= 0 || bytes + size <= maxBytesPerPeer);
+        }
+
+        private void account(final int size) {
+            requests++;
+            bytes += size;
+            sent++;
+        }
+    }
+
+    private static final class Pending {
+        private final Channel channel;
+        private final FutureResponse futureResponse;
+        private final Runnable write;
+        private final int bytes;
+
+        private Pending(final Channel channel, final FutureResponse futureResponse, final Runnable write,
+                final int bytes) {
+            this.channel = channel;
+            this.futureResponse = futureResponse;
+            this.write = write;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A snapshot of the counters of a remote peer.
+     * 
+     * @author Thomas Bocek
+     * 
+     */
+    public static final class FlowStatistic {
+        private final int requests;
+        private final int bytes;
+        private final int queued;
+        private final long sent;
+        private final long deferred;
+
+        private FlowStatistic(final int requests, final int bytes, final int queued, final long sent,
+                final long deferred) {
+            this.requests = requests;
+            this.bytes = bytes;
+            this.queued = queued;
+            this.sent = sent;
+            this.deferred = deferred;
+        }
+
+        /**
+         * @return The number of requests in flight
+         */
+        public int requests() {
+            return requests;
+        }
+
+        /**
+         * @return The estimated bytes of the requests in flight
+         */
+        public int bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The number of requests that wait to be sent
+         */
+        public int queued() {
+            return queued;
+        }
+
+        /**
+         * @return The number of requests that were sent since there was
+         *         traffic to this peer
+         */
+        public long sent() {
+            return sent;
+        }
+
+        /**
+         * @return The number of requests that had to wait since there was
+         *         traffic to this peer
+         */
+        public long deferred() {
+            return deferred;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.FutureDone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking scheduler for UDP and TCP permits. Both counters are kept in
+ * a single atomic long, thus UDP and TCP permits are acquired together with
+ * one compare-and-set. Waiters are served in FIFO order by the thread that
+ * adds the waiter or releases permits, so no extra thread is needed. Only one
+ * thread drains the queue at a time, other threads only signal that there is
+ * more work to do.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class PermitScheduler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PermitScheduler.class);
+
+	private static final long MASK = 0xFFFFFFFFL;
+
+	private final int maxPermitsUDP;
+	private final int maxPermitsTCP;
+
+	// the upper 32 bits are the available UDP permits, the lower the TCP permits
+	private final AtomicLong available;
+	private final Queue<Waiter> queue = new ConcurrentLinkedQueue<Waiter>();
+	private final AtomicInteger queued = new AtomicInteger(0);
+	// the number of drain requests, only the thread that increments it from 0 drains
+	private final AtomicInteger wip = new AtomicInteger(0);
+
+	private final FutureDone<Void> futureShutdown = new FutureDone<Void>();
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates a scheduler with all permits available.
+	 * 
+	 * @param maxPermitsUDP
+	 *            The number of UDP permits
+	 * @param maxPermitsTCP
+	 *            The number of TCP permits
+	 */
+	public PermitScheduler(final int maxPermitsUDP, final int maxPermitsTCP) {
+		if (maxPermitsUDP < 0 || maxPermitsTCP < 0) {
+			throw new IllegalArgumentException("The number of permits cannot be negative.");
+		}
+		this.maxPermitsUDP = maxPermitsUDP;
+		this.maxPermitsTCP = maxPermitsTCP;
+		this.available = new AtomicLong(encode(maxPermitsUDP, maxPermitsTCP));
+	}
+
+	/**
+	 * Acquires the permits right away, without waiting and without looking at
+	 * the queue.
+	 * 
+	 * @param permitsUDP
+	 *            The number of UDP permits
+	 * @param permitsTCP
+	 *            The number of TCP permits
+	 * @return True if both the UDP and TCP permits were acquired, false if not
+	 *         enough permits are available or we are shut down
+	 */
+	public boolean tryAcquire(final int permitsUDP, final int permitsTCP) {
+		for (;;) {
+			if (shutdown) {
+				return false;
+			}
+			final long current = available.get();
+			final int udp = udp(current) - permitsUDP;
+			final int tcp = tcp(current) - permitsTCP;
+			if (udp < 0 || tcp < 0) {
+				return false;
+			}
+			if (available.compareAndSet(current, encode(udp, tcp))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Adds the waiter to the queue. The waiter is notified once the permits
+	 * are available and all waiters that were added before are served. If we
+	 * are shut down, the waiter fails.
+	 * 
+	 * @param waiter
+	 *            The waiter that wants the permits
+	 */
+	public void acquire(final Waiter waiter) {
+		if (waiter.permitsUDP > maxPermitsUDP || waiter.permitsTCP > maxPermitsTCP) {
+			throw new IllegalArgumentException("Cannot acquire more permits than available.");
+		}
+		queued.incrementAndGet();
+		queue.offer(waiter);
+		drain();
+	}
+
+	/**
+	 * Releases the permits and serves the waiters, if any, in this thread.
+	 * 
+	 * @param permitsUDP
+	 *            The number of UDP permits
+	 * @param permitsTCP
+	 *            The number of TCP permits
+	 */
+	public void release(final int permitsUDP, final int permitsTCP) {
+		for (;;) {
+			final long current = available.get();
+			final int udp = udp(current) + permitsUDP;
+			final int tcp = tcp(current) + permitsTCP;
+			if (udp > maxPermitsUDP || tcp > maxPermitsTCP) {
+				throw new IllegalStateException("Released more permits than acquired.");
+			}
+			if (available.compareAndSet(current, encode(udp, tcp))) {
+				break;
+			}
+		}
+		drain();
+		checkShutdownDone();
+	}
+
+	/**
+	 * @return The number of waiters that wait for permits
+	 */
+	public int queueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return The number of UDP permits that are available
+	 */
+	public int availableUDP() {
+		return udp(available.get());
+	}
+
+	/**
+	 * @return The number of TCP permits that are available
+	 */
+	public int availableTCP() {
+		return tcp(available.get());
+	}
+
+	/**
+	 * @return True if {@link #shutdown()} was called
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Fails all waiters and does not hand out any permits anymore.
+	 * 
+	 * @return The future that is done once all permits are released
+	 */
+	public FutureDone<Void> shutdown() {
+		shutdown = true;
+		drain();
+		checkShutdownDone();
+		return futureShutdown;
+	}
+
+	private void checkShutdownDone() {
+		if (shutdown && available.get() == encode(maxPermitsUDP, maxPermitsTCP)) {
+			futureShutdown.done();
+		}
+	}
+
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			// the thread that drains will do another round
+			return;
+		}
+		int missed = 1;
+		for (;;) {
+			for (;;) {
+				final Waiter waiter = queue.peek();
+				if (waiter == null) {
+					break;
+				}
+				if (shutdown) {
+					remove();
+					notifyFailed(waiter);
+					continue;
+				}
+				if (!tryAcquire(waiter.permitsUDP, waiter.permitsTCP)) {
+					// FIFO, the others need to wait as well
+					break;
+				}
+				remove();
+				notifyAcquired(waiter);
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0) {
+				return;
+			}
+		}
+	}
+
+	private void remove() {
+		queue.poll();
+		queued.decrementAndGet();
+	}
+
+	private static void notifyAcquired(final Waiter waiter) {
+		try {
+			waiter.acquired();
+		} catch (Throwable t) {
+			LOG.error("Waiter failed after acquiring permits.", t);
+		}
+	}
+
+	private static void notifyFailed(final Waiter waiter) {
+		try {
+			waiter.failed("Shutting down.");
+		} catch (Throwable t) {
+			LOG.error("Waiter failed.", t);
+		}
+	}
+
+	private static long encode(final int udp, final int tcp) {
+		return ((long) udp << 32) | (tcp & MASK);
+	}
+
+	private static int udp(final long value) {
+		return (int) (value >>> 32);
+	}
+
+	private static int tcp(final long value) {
+		return (int) (value & MASK);
+	}
+
+	/**
+	 * Waits for permits. The callbacks are called from the thread that
+	 * releases the permits or adds the waiter, thus they should not block.
+	 * 
+	 * @author Thomas Bocek
+	 * 
+	 */
+	public abstract static class Waiter {
+		private final int permitsUDP;
+		private final int permitsTCP;
+
+		/**
+		 * @param permitsUDP
+		 *            The number of UDP permits to wait for
+		 * @param permitsTCP
+		 *            The number of TCP permits to wait for
+		 */
+		protected Waiter(final int permitsUDP, final int permitsTCP) {
+			this.permitsUDP = permitsUDP;
+			this.permitsTCP = permitsTCP;
+		}
+
+		public int permitsUDP() {
+			return permitsUDP;
+		}
+
+		public int permitsTCP() {
+			return permitsTCP;
+		}
+
+		/**
+		 * Called once the permits are acquired. The permits need to be
+		 * released with {@link PermitScheduler#release(int, int)}.
+		 */
+		protected abstract void acquired();
+
+		/**
+		 * Called if the scheduler shuts down before the permits were acquired.
+		 * 
+		 * @param reason
+		 *            The reason
+		 */
+		protected abstract void failed(String reason);
+	}
+}
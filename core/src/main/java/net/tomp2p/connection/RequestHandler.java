@@ -17,12 +17,16 @@ package net.tomp2p.connection;
 
  import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramChannel;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.MessageID;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.RPC;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +61,9 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
     private final int idleUDPMillis; // = ConnectionBean.DEFAULT_UDP_IDLE_SECONDS;
     private final int connectionTimeoutTCPMillis; // = ConnectionBean.DEFAULT_CONNECTION_TIMEOUT_TCP;
     private final int slowResponseTimeoutSeconds; // = ConnectionBean.DEFAULT_SLOW_RESPONSE_TIMEOUT_SECONDS;
+
+    // set by the UDPMultiplexer or the RequestPipeline, a shared channel must never be closed
+    private volatile boolean multiplexed = false;
     /**
 	 * Creates a request handler that can send TCP and UDP messages.
      * 
@@ -82,6 +89,21 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         this.slowResponseTimeoutSeconds = configuration.slowResponseTimeoutSeconds();
     }
 
+    /**
+     * Creates a request handler with the configuration of another request handler, to send its request again.
+     */
+    private RequestHandler(final K futureResponse, final RequestHandler<?> other) {
+        this.peerBean = other.peerBean;
+        this.connectionBean = other.connectionBean;
+        this.futureResponse = futureResponse;
+        this.message = futureResponse.request();
+        this.sendMessageID = new MessageID(message);
+        this.idleTCPMillis = other.idleTCPMillis;
+        this.idleUDPMillis = other.idleUDPMillis;
+        this.connectionTimeoutTCPMillis = other.connectionTimeoutTCPMillis;
+        this.slowResponseTimeoutSeconds = other.slowResponseTimeoutSeconds;
+    }
+
     /**
      * @return The future response that will be called when we get an answer
      */
@@ -131,6 +153,24 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
     	return slowResponseTimeoutSeconds;
     }
 
+    /**
+     * @return True if the request was sent over a shared UDP channel or a pipelined TCP channel
+     */
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * @param multiplexed
+     *            Set to true if the request was sent over a shared UDP channel or a pipelined TCP channel, which
+     *            must not be closed once the response arrived
+     * @return This class
+     */
+    RequestHandler<K> multiplexed(final boolean multiplexed) {
+        this.multiplexed = multiplexed;
+        return this;
+    }
+
     /**
      * Sends a UDP message and expects a reply.
      * 
@@ -139,10 +179,73 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
      * @return The future that was added in the constructor
      */
     public K sendUDP(final ChannelCreator channelCreator) {
+        // the message does not fit into a datagram to this peer. Pings are never switched, as they are used to probe
+        // the UDP path.
+        if (message.command() != RPC.Commands.PING.getNr() && !message.recipient().isRelayed()
+                && !connectionBean.sender().fitsDatagram(message)) {
+            LOG.debug("Message {} is too large for UDP, send it over TCP.", message);
+            return sendTCPReserved();
+        }
         connectionBean.sender().sendUDP(this, futureResponse, message, channelCreator, idleUDPMillis, false);
         return futureResponse;
     }
 
+    /**
+     * Sends the message over TCP with a permit that is reserved for this message only. The permits of the channel
+     * creator of the caller are not touched, as other requests may need them.
+     * 
+     * @return The future that was added in the constructor
+     */
+    private K sendTCPReserved() {
+        if (connectionBean.reservation().maxPermitsTCP() == 0) {
+            futureResponse.failed("Message is too large for UDP and no TCP connections are allowed.");
+            return futureResponse;
+        }
+        final FutureChannelCreator futureChannelCreator = connectionBean.reservation().create(0, 1);
+        Utils.addReleaseListener(futureChannelCreator, futureResponse);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    sendTCP(future.channelCreator());
+                } else {
+                    futureResponse.failed("Could not reserve a TCP connection.", future);
+                }
+            }
+        });
+        return futureResponse;
+    }
+
+    /**
+     * Sends the request again over TCP, as the reply did not fit into a datagram. The reply over TCP completes the
+     * future of this request.
+     * 
+     * @param ctx
+     *            The channel context of the UDP request
+     */
+    private void retryTCP(final ChannelHandlerContext ctx) {
+        if (connectionBean.reservation().maxPermitsTCP() == 0) {
+            futureResponse.failed("Reply was truncated and no TCP connections are allowed to send the request again.");
+            close(ctx);
+            return;
+        }
+        // the reply over TCP may take longer than the UDP idle timeout, which would fail this request
+        TimeoutFactory.removeTimeout(ctx);
+        final FutureResponse futureTCP = new FutureResponse(message);
+        futureTCP.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (future.responseMessage() != null) {
+                    futureResponse.responseLater(future.responseMessage());
+                } else {
+                    futureResponse.failed("Sending the request again over TCP failed.", future);
+                }
+                close(ctx);
+            }
+        });
+        new RequestHandler<FutureResponse>(futureTCP, this).sendTCPReserved();
+    }
+
     /**
 	 * Broadcasts a UDP message (layer 2) and expects a response.
      * 
@@ -248,7 +351,22 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         
 		LOG.debug("Report failure: ", cause);
         futureResponse.failedLater(cause);
-        ctx.close();
+        close(ctx);
+    }
+
+    /**
+     * Closes the channel, which notifies the future response. A shared UDP channel or a pipelined TCP channel stays
+     * open, in this case the future response is notified right away.
+     * 
+     * @param ctx
+     *            The channel context
+     */
+    private void close(final ChannelHandlerContext ctx) {
+        if (multiplexed) {
+            futureResponse.responseNow();
+        } else {
+            ctx.close();
+        }
     }
 
     @Override
@@ -308,6 +426,13 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
 			peerBean.notifyPeerFound(responseMessage.sender(), null, null, futureResponse.getRoundTripTime());
 		}
         
+        // the reply was too large for a datagram, the other peer only sent the header
+        if (responseMessage.type() == Message.Type.TRUNCATED && ctx.channel() instanceof DatagramChannel) {
+            LOG.debug("Reply to {} was truncated, send the request again over TCP.", message);
+            retryTCP(ctx);
+            return;
+        }
+
         // call this for streaming support
         if (!responseMessage.isDone()) {
             LOG.debug("Good message is streaming. {}", responseMessage);
@@ -320,7 +445,9 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
         	// wait for the (real) answer of the unreachable peer.
         	connectionBean.dispatcher().addPendingRequest(message.messageId(), futureResponse, slowResponseTimeoutSeconds, connectionBean.timer());
         	// close the channel to the relay peer
-        	ctx.close();
+        	if (!multiplexed) {
+        		ctx.close();
+        	}
         	return;
         }
         
@@ -330,7 +457,7 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
             futureResponse.responseLater(responseMessage); 
 			// the channel creator adds a listener that sets futureResponse.setResponseNow, when the channel
 			// is closed
-            ctx.close();
+            close(ctx);
         } else {
 			LOG.debug("Good message {}. Leave channel {} open.", responseMessage, ctx.channel());
             futureResponse.response(responseMessage);
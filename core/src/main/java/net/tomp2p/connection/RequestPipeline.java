@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches the responses on a TCP channel of a pipelined {@link PeerConnection}
+ * to the {@link RequestHandler} of the request by the message id. This allows
+ * to send several requests over the same channel without waiting for the
+ * previous responses. Each channel has its own instance, which is added to the
+ * pipeline as "handler".
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RequestPipeline extends SimpleChannelInboundHandler<Message> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RequestPipeline.class);
+
+	// the requests that wait for a response, the key is the message id
+	private final ConcurrentMap<Integer, RequestHandler<?>> inFlight = new ConcurrentHashMap<Integer, RequestHandler<?>>();
+
+	/**
+	 * Registers a request that is about to be written to the channel.
+	 *
+	 * @param channel
+	 *            The channel the request is written to
+	 * @param requestHandler
+	 *            The handler that waits for the response
+	 * @param futureResponse
+	 *            The future response of the request
+	 * @param timeoutMillis
+	 *            The time to wait for the response
+	 * @return False if a request with the same message id is already in
+	 *         flight on this channel
+	 */
+	public boolean register(final Channel channel, final RequestHandler<?> requestHandler,
+			final FutureResponse futureResponse, final int timeoutMillis) {
+		final Integer messageId = futureResponse.request().messageId();
+		if (inFlight.putIfAbsent(messageId, requestHandler) != null) {
+			return false;
+		}
+		requestHandler.multiplexed(true);
+		// the idle handlers of the channel cannot be used, as other requests
+		// keep the channel busy
+		final ScheduledFuture<?> timeout = channel.eventLoop().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (inFlight.remove(messageId, requestHandler)) {
+					LOG.warn("Request timeout on pipelined channel {} for {}.", channel, futureResponse.request());
+					futureResponse.failed("No response within " + timeoutMillis + "ms");
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				inFlight.remove(messageId, requestHandler);
+				timeout.cancel(false);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * @return The number of requests that wait for a response
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	@Override
+	protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+		if (message.isRequest()) {
+			ctx.fireChannelRead(message);
+			return;
+		}
+		// a streamed response arrives in several parts, the request is removed
+		// once its future response finishes
+		final RequestHandler<?> requestHandler = inFlight.get(message.messageId());
+		if (requestHandler == null) {
+			LOG.debug("No pending request for {}, the response arrived too late.", message);
+			return;
+		}
+		requestHandler.channelRead(ctx, message);
+	}
+
+	@Override
+	public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+		for (RequestHandler<?> requestHandler : inFlight.values()) {
+			requestHandler.futureResponse().failed("Channel closed.");
+		}
+		inFlight.clear();
+		ctx.fireChannelInactive();
+	}
+
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+		// the stream is out of sync, the channel cannot be used anymore
+		LOG.warn("Error on pipelined channel {}.", ctx.channel(), cause);
+		ctx.close();
+	}
+}
@@ -21,16 +21,6 @@ import io.netty.channel.EventLoopGroup;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
@@ -42,7 +32,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Reserves a block of connections.
+ * Reserves a block of connections. The permits are handed out by a
+ * {@link PermitScheduler} in FIFO order, a reservation that cannot be served
+ * right away is completed by the thread that releases the permits.
  * 
  * @author Thomas Bocek
  * 
@@ -55,23 +47,18 @@ public class Reservation {
 	private final int maxPermitsTCP;
 	private final int maxPermitsPermanentTCP;
 
-	private final Semaphore semaphoreUPD;
-	private final Semaphore semaphoreTCP;
-	private final Semaphore semaphorePermanentTCP;
+	// short-lived UDP and TCP permits
+	private final PermitScheduler permits;
+	// long-lived TCP permits, stored as TCP permits
+	private final PermitScheduler permitsPermanent;
 
 	private final ChannelClientConfiguration channelClientConfiguration;
 
-	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
-	// single thread
-	private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, queue);
 	private final EventLoopGroup workerGroup;
+	// null if every UDP request binds its own channel
+	private final UDPMultiplexer udpMultiplexer;
 
-	// we should be fair, otherwise we see connection timeouts due to unfairness
-	// if busy
-	private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock(true);
-	private final Lock read = readWriteLock.readLock();
-	private final Lock write = readWriteLock.writeLock();
-	private boolean shutdown = false;
+	private volatile boolean shutdown = false;
 	private final Collection<ChannelCreator> channelCreators = Collections
 	        .synchronizedList(new ArrayList<ChannelCreator>());
 
@@ -94,10 +81,27 @@ public class Reservation {
 		this.maxPermitsUDP = channelClientConfiguration.maxPermitsUDP();
 		this.maxPermitsTCP = channelClientConfiguration.maxPermitsTCP();
 		this.maxPermitsPermanentTCP = channelClientConfiguration.maxPermitsPermanentTCP();
-		this.semaphoreUPD = new Semaphore(maxPermitsUDP);
-		this.semaphoreTCP = new Semaphore(maxPermitsTCP);
-		this.semaphorePermanentTCP = new Semaphore(maxPermitsPermanentTCP);
+		this.permits = new PermitScheduler(maxPermitsUDP, maxPermitsTCP);
+		this.permitsPermanent = new PermitScheduler(0, maxPermitsPermanentTCP);
 		this.channelClientConfiguration = channelClientConfiguration;
+		this.udpMultiplexer = channelClientConfiguration.sharedUDPChannels() > 0 ? new UDPMultiplexer(workerGroup,
+		        channelClientConfiguration) : null;
+	}
+
+	/**
+	 * @return The shared UDP channels or null if each UDP request binds its own
+	 *         channel
+	 */
+	public UDPMultiplexer udpMultiplexer() {
+		return udpMultiplexer;
+	}
+
+	/**
+	 * @return The maximum number of short-lived TCP connections, 0 if only UDP
+	 *         is allowed
+	 */
+	public int maxPermitsTCP() {
+		return maxPermitsTCP;
 	}
 
 	/**
@@ -105,7 +109,23 @@ public class Reservation {
 	 *         executed yet.
 	 */
 	public int pendingRequests() {
-		return queue.size();
+		return permits.queueDepth() + permitsPermanent.queueDepth();
+	}
+
+	/**
+	 * @return The number of reservations for short-lived connections that
+	 *         wait for permits
+	 */
+	public int queueDepth() {
+		return permits.queueDepth();
+	}
+
+	/**
+	 * @return The number of reservations for permanent connections that wait
+	 *         for permits
+	 */
+	public int queueDepthPermanent() {
+		return permitsPermanent.queueDepth();
 	}
 
 	/**
@@ -136,9 +156,9 @@ public class Reservation {
 		}
 		if (routingConfiguration != null) {
 			if (!builder.isForceTCP()) {
-				nrConnectionsUDP = Math.max(nrConnectionsUDP, routingConfiguration.parallel());
+				nrConnectionsUDP = Math.max(nrConnectionsUDP, routingConfiguration.minParallel());
 			} else {
-				nrConnectionsTCP = Math.max(nrConnectionsTCP, routingConfiguration.parallel());
+				nrConnectionsTCP = Math.max(nrConnectionsTCP, routingConfiguration.minParallel());
 			}
 		}
 
@@ -166,29 +186,42 @@ public class Reservation {
 			throw new IllegalArgumentException(String.format("Cannot acquire more TCP connections (%s) than maximally allowed (%s).", permitsTCP, maxPermitsTCP));
 		}
 		final FutureChannelCreator futureChannelCreator = new FutureChannelCreator();
-		read.lock();
-		try {
-			if (shutdown) {
-				return futureChannelCreator.failed("Shutting down.");
-			}
-
-			FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
-			futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
-				@Override
-				public void operationComplete(final FutureDone<Void> future) throws Exception {
-					// release the permits in all cases
-                    // otherwise, we may see inconsistencies
-					semaphoreUPD.release(permitsUDP);
-					semaphoreTCP.release(permitsTCP);
-				}
-			});
-			executor.execute(new WaitReservation(futureChannelCreator, futureChannelCreationDone, permitsUDP,
-			        permitsTCP));
-			return futureChannelCreator;
+		if (shutdown) {
+			return futureChannelCreator.failed("Shutting down.");
+		}
+		// if we shut down in the meantime, the scheduler fails the reservation
+		permits.acquire(new WaitReservation(futureChannelCreator, permitsUDP, permitsTCP));
+		if (!futureChannelCreator.isCompleted()) {
+			// we have to wait for other reservations to release their permits
+			futureChannelCreator.backpressured();
+		}
+		return futureChannelCreator;
+	}
 
-		} finally {
-			read.unlock();
+	/**
+	 * Creates a channel creator for short-lived connections only if the
+	 * permits are available right away. This never waits, thus it can be
+	 * called while holding other permits. Always call
+	 * {@link ChannelCreator#shutdown()} on the returned channel creator to
+	 * release the permits.
+	 * 
+	 * @param permitsUDP
+	 *            The number of short-lived UDP connections
+	 * @param permitsTCP
+	 *            The number of short-lived TCP connections
+	 * @return The channel creator, or null if the permits are not available,
+	 *         other reservations are waiting, or we are shutting down
+	 */
+	public ChannelCreator tryCreate(final int permitsUDP, final int permitsTCP) {
+		if (shutdown || permitsUDP > maxPermitsUDP || permitsTCP > maxPermitsTCP) {
+			return null;
+		}
+		// do not overtake the reservations that wait in the queue
+		if (permits.queueDepth() > 0 || !permits.tryAcquire(permitsUDP, permitsTCP)) {
+			return null;
 		}
+		final ChannelCreator channelCreator = newChannelCreator(permitsUDP, permitsTCP);
+		return addToSet(channelCreator) ? channelCreator : null;
 	}
 
 	/**
@@ -203,26 +236,14 @@ public class Reservation {
 			throw new IllegalArgumentException(String.format("Cannot acquire more permantent TCP connections (%s) than maximally allowed (%s).", permitsPermanentTCP, maxPermitsPermanentTCP));
 		}
 		final FutureChannelCreator futureChannelCreator = new FutureChannelCreator();
-		read.lock();
-		try {
-			if (shutdown) {
-				return futureChannelCreator.failed("shutting down");
-			}
-			FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
-			futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
-				@Override
-				public void operationComplete(final FutureDone<Void> future) throws Exception {
-					// release the permits in all cases
-                    // otherwise, we may see inconsistencies
-					semaphorePermanentTCP.release(permitsPermanentTCP);
-				}
-			});
-			executor.execute(new WaitReservationPermanent(futureChannelCreator, futureChannelCreationDone,
-			        permitsPermanentTCP));
-			return futureChannelCreator;
-		} finally {
-			read.unlock();
+		if (shutdown) {
+			return futureChannelCreator.failed("shutting down");
+		}
+		permitsPermanent.acquire(new WaitReservationPermanent(futureChannelCreator, permitsPermanentTCP));
+		if (!futureChannelCreator.isCompleted()) {
+			futureChannelCreator.backpressured();
 		}
+		return futureChannelCreator;
 	}
 
 	/**
@@ -231,75 +252,96 @@ public class Reservation {
 	 * @return The future when the shutdown is complete
 	 */
 	public FutureDone<Void> shutdown() {
-		write.lock();
-		try {
+		synchronized (this) {
 			if (shutdown) {
 				return futureReservationDone.failed("Already shutting down");
 			}
 			shutdown = true;
-		} finally {
-			write.unlock();
 		}
 
-		// Fast shutdown for those that are in the queue is not required.
-        // Let the executor finish since the shutdown-flag is set and the
-        // future will be set as well to "shutting down".
+		// the waiting reservations fail right away, the futures are done once
+		// all channel creators are shut down and released their permits
+		final FutureDone<Void> futurePermitsDone = permits.shutdown();
+		final FutureDone<Void> futurePermitsPermanentDone = permitsPermanent.shutdown();
 
-		for (Runnable r : executor.shutdownNow()) {
-			if (r instanceof WaitReservation) {
-				WaitReservation wr = (WaitReservation) r;
-				wr.futureChannelCreator().failed("Shutting down.");
-			} else {
-				WaitReservationPermanent wr = (WaitReservationPermanent) r;
-				wr.futureChannelCreator().failed("Shutting down.");
-			}
-		}
-		
 		final Collection<ChannelCreator> copyChannelCreators;
 		synchronized (channelCreators) {
 			copyChannelCreators = new ArrayList<ChannelCreator>(channelCreators);
+			// a reservation that is served concurrently must not shut down
+			// these channel creators a second time
+			channelCreators.clear();
 		}
-		
 
-		// the channelCreator does not change anymore from here on
-		final int size = copyChannelCreators.size();
-		if (size == 0) {
-			futureReservationDone.done();
-		} else {
-			final AtomicInteger completeCounter = new AtomicInteger(0);
-			for (final ChannelCreator channelCreator : copyChannelCreators) {
-				// this is very important that we set first the listener and
-				// then call shutdown. Otherwise, the order of
-				// the listener calls is not guaranteed and we may call this
-				// listener before the semphore.release,
-				// causing an exception.
-				channelCreator.shutdownFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+		futurePermitsDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				futurePermitsPermanentDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 					@Override
 					public void operationComplete(final FutureDone<Void> future) throws Exception {
-						if (completeCounter.incrementAndGet() == size) {
-							// we can block here as we block in
-							// GlobalEventExecutor.INSTANCE
-							semaphoreUPD.acquireUninterruptibly(maxPermitsUDP);
-							semaphoreTCP.acquireUninterruptibly(maxPermitsTCP);
-							semaphorePermanentTCP.acquireUninterruptibly(maxPermitsPermanentTCP);
-							futureReservationDone.done();
-						}
+						shutdownMultiplexer();
 					}
 				});
-				channelCreator.shutdown();
 			}
+		});
+
+		for (final ChannelCreator channelCreator : copyChannelCreators) {
+			channelCreator.shutdown();
 		}
 		// wait for completion
 		return futureReservationDone;
 	}
 
 	/**
-	 * Adds a channel creator to the set and also adds it to the shutdown listener.
+	 * Closes the shared UDP channels, if any, once all channel creators are
+	 * shut down. Then the reservation is done.
+	 */
+	private void shutdownMultiplexer() {
+		if (udpMultiplexer == null) {
+			futureReservationDone.done();
+			return;
+		}
+		udpMultiplexer.shutdown().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				futureReservationDone.done();
+			}
+		});
+	}
+
+	/**
+	 * Creates a channel creator for permits that are already acquired. The
+	 * permits are released once the channel creator shuts down.
+	 * 
+	 * @param permitsUDP
+	 *            The acquired permits for UDP
+	 * @param permitsTCP
+	 *            The acquired permits for TCP
+	 * @return The channel creator
+	 */
+	private ChannelCreator newChannelCreator(final int permitsUDP, final int permitsTCP) {
+		final FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
+		futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+			@Override
+			public void operationComplete(final FutureDone<Void> future) throws Exception {
+				// release the permits in all cases
+				// otherwise, we may see inconsistencies
+				permits.release(permitsUDP, permitsTCP);
+			}
+		});
+		return new ChannelCreator(workerGroup, futureChannelCreationDone, permitsUDP, permitsTCP,
+		        channelClientConfiguration, udpMultiplexer);
+	}
+
+	/**
+	 * Adds a channel creator to the set and also adds it to the shutdown
+	 * listener. If we shut down in the meantime, the channel creator is shut
+	 * down right away.
 	 * 
 	 * @param channelCreator
 	 *            The channel creator
+	 * @return False if we are shutting down
 	 */
-	private void addToSet(final ChannelCreator channelCreator) {
+	private boolean addToSet(final ChannelCreator channelCreator) {
 		channelCreator.shutdownFuture().addListener(new BaseFutureAdapter<FutureDone<Void>>() {
 			@Override
 			public void operationComplete(final FutureDone<Void> future) throws Exception {
@@ -307,144 +349,104 @@ public class Reservation {
 			}
 		});
 		channelCreators.add(channelCreator);
+		if (shutdown && channelCreators.remove(channelCreator)) {
+			channelCreator.shutdown();
+			return false;
+		}
+		return true;
 	}
 
 	/**
-	 * Tries to reserve a channel creator. If too many channels already created,
-	 * wait until channels are closed. This waiter is for the short-lived
-	 * connections.
+	 * Creates a {@link ChannelCreator} once the permits for the short-lived
+	 * connections are acquired.
 	 * 
 	 * @author Thomas Bocek
 	 * 
 	 */
-	private class WaitReservation implements Runnable {
+	private class WaitReservation extends PermitScheduler.Waiter {
 		private final FutureChannelCreator futureChannelCreator;
-		private final FutureDone<Void> futureChannelCreationShutdown;
-		private final int permitsUDP;
-		private final int permitsTCP;
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
-		 * future once we have the semaphore.
+		 * future once we have the permits.
 		 * 
 		 * @param futureChannelCreator
 		 *            The status of the creating
-		 * @param futureChannelCreationShutdown
-		 *            The {@link ChannelCreator} shutdown feature needs to be
-		 *            passed since we need it for {@link ChannelCreator#shutdown()}.
 		 * @param permitsUDP
 		 *            The number of permits for UDP
 		 * @param permitsTCP
 		 *            The number of permits for TCP
 		 */
-		public WaitReservation(final FutureChannelCreator futureChannelCreator,
-		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsUDP, final int permitsTCP) {
+		public WaitReservation(final FutureChannelCreator futureChannelCreator, final int permitsUDP,
+		        final int permitsTCP) {
+			super(permitsUDP, permitsTCP);
 			this.futureChannelCreator = futureChannelCreator;
-			this.futureChannelCreationShutdown = futureChannelCreationShutdown;
-			this.permitsUDP = permitsUDP;
-			this.permitsTCP = permitsTCP;
 		}
 
 		@Override
-		public void run() {
-			final ChannelCreator channelCreator;
-			read.lock();
-			try {
-				if (shutdown) {
-					futureChannelCreator.failed("shutting down");
-					return;
-				}
-
-				try {
-					semaphoreUPD.acquire(permitsUDP);
-				} catch (InterruptedException e) {
-					futureChannelCreator.failed(e);
-					return;
-				}
-				try {
-					semaphoreTCP.acquire(permitsTCP);
-				} catch (InterruptedException e) {
-					semaphoreUPD.release(permitsUDP);
-					futureChannelCreator.failed(e);
-					return;
-				}
-
-				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, permitsUDP, permitsTCP,
-				        channelClientConfiguration);
-				addToSet(channelCreator);
-			} finally {
-				read.unlock();
+		protected void acquired() {
+			final ChannelCreator channelCreator = newChannelCreator(permitsUDP(), permitsTCP());
+			if (addToSet(channelCreator)) {
+				futureChannelCreator.reserved(channelCreator);
+			} else {
+				futureChannelCreator.failed("shutting down");
 			}
-			futureChannelCreator.reserved(channelCreator);
 		}
 
-		private FutureChannelCreator futureChannelCreator() {
-			return futureChannelCreator;
+		@Override
+		protected void failed(final String reason) {
+			futureChannelCreator.failed(reason);
 		}
-
 	}
 
 	/**
-	 * Tries to reserve a channel creator. If too many channel already created,
-	 * wait until channels are closed. This waiter is for the long-lived
-	 * connections.
+	 * Creates a {@link ChannelCreator} once the permits for the long-lived
+	 * connections are acquired.
 	 * 
 	 * @author Thomas Bocek
 	 * 
 	 */
-	private final class WaitReservationPermanent implements Runnable {
+	private final class WaitReservationPermanent extends PermitScheduler.Waiter {
 		private final FutureChannelCreator futureChannelCreator;
-		private final FutureDone<Void> futureChannelCreationShutdown;
-		private final int permitsPermanentTCP;
 
 		/**
 		 * Creates a reservation that returns a {@link ChannelCreator} in a
-		 * future once we have the semaphore.
+		 * future once we have the permits.
 		 * 
 		 * @param futureChannelCreator
 		 *            The status of the creating
-		 * @param futureChannelCreationShutdown
-		 *            The {@link ChannelCreator} shutdown feature needs to be
-		 *            passed since we need it for {@link Reservation#shutdown()}
-		 *            .
 		 * @param permitsPermanentTCP
 		 *            The number of permits
 		 */
 		private WaitReservationPermanent(final FutureChannelCreator futureChannelCreator,
-		        final FutureDone<Void> futureChannelCreationShutdown, final int permitsPermanentTCP) {
+		        final int permitsPermanentTCP) {
+			super(0, permitsPermanentTCP);
 			this.futureChannelCreator = futureChannelCreator;
-			this.futureChannelCreationShutdown = futureChannelCreationShutdown;
-			this.permitsPermanentTCP = permitsPermanentTCP;
 		}
 
 		@Override
-		public void run() {
-			ChannelCreator channelCreator;
-			read.lock();
-			try {
-				if (shutdown) {
-					futureChannelCreator.failed("shutting down");
-					return;
-				}
-
-				try {
-					semaphorePermanentTCP.acquire(permitsPermanentTCP);
-				} catch (InterruptedException e) {
-					futureChannelCreator.failed(e);
-					return;
+		protected void acquired() {
+			final FutureDone<Void> futureChannelCreationDone = new FutureDone<Void>();
+			futureChannelCreationDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+				@Override
+				public void operationComplete(final FutureDone<Void> future) throws Exception {
+					// release the permits in all cases
+					// otherwise, we may see inconsistencies
+					permitsPermanent.release(0, permitsTCP());
 				}
-
-				channelCreator = new ChannelCreator(workerGroup, futureChannelCreationShutdown, 0, permitsPermanentTCP,
-				        channelClientConfiguration);
-				addToSet(channelCreator);
-			} finally {
-				read.unlock();
+			});
+			final ChannelCreator channelCreator = new ChannelCreator(workerGroup, futureChannelCreationDone, 0,
+			        permitsTCP(), channelClientConfiguration, null);
+			if (addToSet(channelCreator)) {
+				futureChannelCreator.reserved(channelCreator);
+			} else {
+				futureChannelCreator.failed("shutting down");
 			}
-			futureChannelCreator.reserved(channelCreator);
 		}
 
-		private FutureChannelCreator futureChannelCreator() {
-			return futureChannelCreator;
+		@Override
+		protected void failed(final String reason) {
+			futureChannelCreator.failed(reason);
 		}
 	}
 
@@ -16,6 +16,7 @@
 
 package net.tomp2p.connection;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -83,6 +84,7 @@ public class Sender {
 	private final SendBehavior sendBehavior;
 	private final Random random;
 	private final PeerBean peerBean;
+	private final PeerFlowControl peerFlowControl;
 	private final DataFilter dataFilterTTL = new DataFilterTTL();
 
 	// this map caches all messages which are meant to be sent by a reverse
@@ -91,6 +93,9 @@ public class Sender {
 
 	private PingBuilderFactory pingBuilderFactory;
 
+	// null if each TCP request opens its own connection
+	private PeerConnectionPool peerConnectionPool;
+
 	/**
 	 * Creates a new sender with the listeners for offline peers.
 	 * 
@@ -110,6 +115,16 @@ public class Sender {
 		this.sendBehavior = sendBehavior;
 		this.random = new Random(peerId.hashCode());
 		this.peerBean = peerBean;
+		this.peerFlowControl = new PeerFlowControl(channelClientConfiguration.maxRequestsPerPeer(),
+				channelClientConfiguration.maxBytesPerPeer());
+	}
+
+	/**
+	 * @return The flow control that limits the requests in flight per remote
+	 *         peer
+	 */
+	public PeerFlowControl peerFlowControl() {
+		return peerFlowControl;
 	}
 
 	public ChannelClientConfiguration channelClientConfiguration() {
@@ -125,6 +140,15 @@ public class Sender {
 		return this;
 	}
 
+	public PeerConnectionPool peerConnectionPool() {
+		return peerConnectionPool;
+	}
+
+	public Sender peerConnectionPool(PeerConnectionPool peerConnectionPool) {
+		this.peerConnectionPool = peerConnectionPool;
+		return this;
+	}
+
 	/**
 	 * Sends a message via TCP.
 	 * 
@@ -167,14 +191,16 @@ public class Sender {
 
 		final ChannelFuture channelFuture;
 		if (peerConnection != null && peerConnection.channelFuture() != null && peerConnection.channelFuture().channel().isActive()) {
-			channelFuture = sendTCPPeerConnection(peerConnection, handler, channelCreator, futureResponse);
+			channelFuture = sendTCPPeerConnection(peerConnection, handler, channelCreator, futureResponse, idleTCPMillis);
 			afterConnect(futureResponse, message, channelFuture, handler == null);
 		} else if (channelCreator != null) {
 			final TimeoutFactory timeoutHandler = createTimeoutHandler(futureResponse, idleTCPMillis, handler == null);
 
 			switch (sendBehavior.tcpSendBehavior(message)) {
 			case DIRECT:
-				connectAndSend(handler, futureResponse, channelCreator, connectTimeoutMillis, peerConnection, timeoutHandler, message);
+				if (!sendPooled(handler, futureResponse, message, idleTCPMillis, connectTimeoutMillis, timeoutHandler)) {
+					connectAndSend(handler, futureResponse, channelCreator, connectTimeoutMillis, peerConnection, timeoutHandler, message);
+				}
 				break;
 			case RCON:
 				handleRcon(handler, futureResponse, message, channelCreator, connectTimeoutMillis, peerConnection, timeoutHandler);
@@ -310,6 +336,84 @@ public class Sender {
 		afterConnect(futureResponse, message, channelFuture, handler == null);
 	}
 
+	/**
+	 * Sends the message over a pooled connection if the pool has an open
+	 * connection to the recipient that is not in use. Otherwise, the pool
+	 * reserves a connection for the next request and the caller has to open
+	 * a short-lived connection.
+	 * 
+	 * @param handler
+	 * @param futureResponse
+	 * @param message
+	 * @param idleTCPMillis
+	 * @param connectTimeoutMillis
+	 * @param timeoutHandler
+	 * @return True if the message was sent over a pooled connection
+	 */
+	private boolean sendPooled(final SimpleChannelInboundHandler<Message> handler, final FutureResponse futureResponse,
+			final Message message, final int idleTCPMillis, final int connectTimeoutMillis, final TimeoutFactory timeoutHandler) {
+		if (peerConnectionPool == null || handler == null) {
+			return false;
+		}
+		final PeerConnection pooled = peerConnectionPool.acquire(message.recipient(), futureResponse);
+		if (pooled == null) {
+			return false;
+		}
+		LOG.debug("use pooled connection to {}", message.recipient());
+		message.keepAlive(true);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isFailed()) {
+					peerConnectionPool.evict(pooled);
+				}
+			}
+		});
+
+		final ChannelFuture channelFuture;
+		if (pooled.channelFuture() == null) {
+			// first request, open the connection with the permanent permit of the pool
+			InetSocketAddress recipient = message.recipient().createSocketTCP();
+			channelFuture = sendTCPCreateChannel(recipient, pooled.channelCreator(), pooled, handler, timeoutHandler,
+					connectTimeoutMillis, futureResponse);
+		} else {
+			channelFuture = sendTCPPeerConnection(pooled, handler, null, futureResponse, idleTCPMillis);
+			// the request pipeline of a pipelined connection takes care of
+			// timeouts and a closed channel
+			if (!pooled.isPipelined()) {
+				addTimeoutHandlers(channelFuture, timeoutHandler, futureResponse);
+			}
+		}
+		afterConnect(futureResponse, message, channelFuture, false);
+		return true;
+	}
+
+	/**
+	 * Adds the timeout handlers of a request to an open channel that outlives
+	 * the request.
+	 */
+	private void addTimeoutHandlers(final ChannelFuture channelFuture, final TimeoutFactory timeoutHandler,
+			final FutureResponse futureResponse) {
+		final ChannelPipeline pipeline = channelFuture.channel().pipeline();
+		addOrReplace(pipeline, "decoder", "timeout0", timeoutHandler.idleStateHandlerTomP2P());
+		addOrReplace(pipeline, "decoder", "timeout1", timeoutHandler.timeHandler());
+		// the channel outlives this request, so remove the close listener
+		// afterwards, otherwise listeners pile up on the close future
+		final GenericFutureListener<ChannelFuture> closeListener = new GenericFutureListener<ChannelFuture>() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				futureResponse.responseNow();
+			}
+		};
+		channelFuture.channel().closeFuture().addListener(closeListener);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				channelFuture.channel().closeFuture().removeListener(closeListener);
+			}
+		});
+	}
+
 	/**
 	 * Both peers are relayed, thus sending directly or over reverse connection
 	 * is not possible. Send the message to one of the receiver's relays.
@@ -470,15 +574,20 @@ public class Sender {
 		handlers.put(
 				"encoder",
 				new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(channelClientConfiguration.signatureFactory(),
-						channelClientConfiguration.byteBufAllocator())));
+						channelClientConfiguration.byteBufAllocator()).allocationBudget(
+						channelClientConfiguration.encoderAllocationBudget())));
 
 		if (peerConnection != null) {
 			// we expect replies on this connection
 			handlers.put("dispatcher", new Pair<EventExecutorGroup, ChannelHandler>(null, dispatcher));
 		}
 
+		// several requests share a pipelined connection, the responses are
+		// matched by the message id
+		final RequestPipeline requestPipeline = peerConnection != null && peerConnection.isPipelined()
+				&& handler instanceof RequestHandler ? new RequestPipeline() : null;
 		if (timeoutHandler != null) {
-			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
+			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, requestPipeline != null ? requestPipeline : handler));
 		}
 
 		HeartBeat heartBeat = null;
@@ -494,14 +603,25 @@ public class Sender {
 		if (peerConnection != null && channelFuture != null) {
 			peerConnection.channelFuture(channelFuture);
 			heartBeat.peerConnection(peerConnection);
+			if (requestPipeline != null) {
+				requestPipeline.register(channelFuture.channel(), (RequestHandler<?>) handler, futureResponse,
+						timeoutHandler.timeoutMillis());
+			}
 		}
 		return channelFuture;
 	}
 
 	private ChannelFuture sendTCPPeerConnection(PeerConnection peerConnection, ChannelHandler handler, final ChannelCreator channelCreator,
-			final FutureResponse futureResponse) {
-		// if the channel gets closed, the future should get notified
+			final FutureResponse futureResponse, final int idleTCPMillis) {
 		ChannelFuture channelFuture = peerConnection.channelFuture();
+		if (peerConnection.isPipelined() && handler instanceof RequestHandler) {
+			final RequestPipeline requestPipeline = requestPipeline(peerConnection, channelFuture.channel().pipeline());
+			if (!requestPipeline.register(channelFuture.channel(), (RequestHandler<?>) handler, futureResponse, idleTCPMillis)) {
+				futureResponse.failed("A request with the same message id is already in flight.");
+			}
+			return channelFuture;
+		}
+		// if the channel gets closed, the future should get notified
 		// channelCreator can be null if we don't need to create any channels
 		if (channelCreator != null) {
 			channelCreator.setupCloseListener(channelFuture, futureResponse);
@@ -518,6 +638,22 @@ public class Sender {
 		return channelFuture;
 	}
 
+	/**
+	 * Returns the request pipeline of a pipelined connection. If the channel
+	 * was opened by the other peer, the pipeline is added on the first request.
+	 */
+	private RequestPipeline requestPipeline(final PeerConnection peerConnection, final ChannelPipeline pipeline) {
+		synchronized (peerConnection) {
+			final ChannelHandler handler = pipeline.get("handler");
+			if (handler instanceof RequestPipeline) {
+				return (RequestPipeline) handler;
+			}
+			final RequestPipeline requestPipeline = new RequestPipeline();
+			addOrReplace(pipeline, "dispatcher", "handler", requestPipeline);
+			return requestPipeline;
+		}
+	}
+
 	// private boolean addIfAbsent(ChannelPipeline pipeline, String before,
 	// String name,
 	// ChannelHandler channelHandler) {
@@ -638,6 +774,17 @@ public class Sender {
 		}
 	}
 
+	/**
+	 * @param message
+	 *            The message to send
+	 * @return True if the estimated size of the message is within the datagram
+	 *         size of the {@link MTUProfile} for the recipient
+	 */
+	public boolean fitsDatagram(final Message message) {
+		final int datagramSize = channelClientConfiguration.mtuProfile().datagramSize(message.recipient().inetAddress());
+		return message.estimateSize() <= datagramSize;
+	}
+
 	/**
 	 * This method needed to be extracted from sendUDP(...), because it is also
 	 * needed by the method handleHolePunch(...).
@@ -740,7 +887,8 @@ public class Sender {
 				new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory(), channelClientConfiguration.byteBufAllocator())));
 		handlers.put(
 				"encoder",
-				new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(channelClientConfiguration.signatureFactory(), channelClientConfiguration.byteBufAllocator())));
+				new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2POutbound(channelClientConfiguration.signatureFactory(), channelClientConfiguration.byteBufAllocator())
+						.allocationBudget(channelClientConfiguration.encoderAllocationBudget())));
 		if (!isFireAndForget) {
 			handlers.put("handler", new Pair<EventExecutorGroup, ChannelHandler>(null, handler));
 		}
@@ -782,15 +930,27 @@ public class Sender {
 			return;
 		}
 		LOG.debug("about to connect to {} with channel {}, ff={}", message.recipient(), channelFuture.channel(), fireAndForget);
-		final Cancel connectCancel = createCancel(channelFuture);
-		futureResponse.addCancel(connectCancel);
+		// a shared channel is bound for all requests, a single request must
+		// not cancel it
+		final Cancel connectCancel = UDPMultiplexer.isMultiplexed(channelFuture.channel()) ? null : createCancel(channelFuture);
+		if (connectCancel != null) {
+			futureResponse.addCancel(connectCancel);
+		}
 		channelFuture.addListener(new GenericFutureListener<ChannelFuture>() {
 			@Override
 			public void operationComplete(final ChannelFuture future) throws Exception {
-				futureResponse.removeCancel(connectCancel);
+				if (connectCancel != null) {
+					futureResponse.removeCancel(connectCancel);
+				}
 				if (future.isSuccess()) {
-					final ChannelFuture writeFuture = future.channel().writeAndFlush(message);
-					afterSend(writeFuture, futureResponse, fireAndForget);
+					final Channel channel = future.channel();
+					peerFlowControl.send(channel, futureResponse, new Runnable() {
+						@Override
+						public void run() {
+							final ChannelFuture writeFuture = channel.writeAndFlush(message);
+							afterSend(writeFuture, futureResponse, fireAndForget);
+						}
+					});
 				} else {
 					LOG.debug("Channel creation failed", future.cause());
 					futureResponse.failed("Channel creation failed " + future.channel() + "/" + future.cause());
@@ -823,15 +983,26 @@ public class Sender {
 			@Override
 			public void operationComplete(final ChannelFuture future) throws Exception {
 				futureResponse.removeCancel(writeCancel);
+				// a shared channel stays open, report right away
+				final boolean multiplexed = UDPMultiplexer.isMultiplexed(future.channel());
 				if (!future.isSuccess()) {
 					futureResponse.failedLater(future.cause());
-					reportFailed(futureResponse, future.channel().close());
+					if (multiplexed) {
+						futureResponse.responseNow();
+					} else {
+						reportFailed(futureResponse, future.channel().close());
+					}
 					LOG.warn("Failed to write channel the request {} {}.", futureResponse.request(), future.cause());
 				}
 				if (fireAndForget) {
 					futureResponse.responseLater(null);
-					LOG.debug("fire and forget, close channel {} now. {}", futureResponse.request(), future.channel());
-					reportMessage(futureResponse, future.channel().close());
+					if (multiplexed) {
+						LOG.debug("fire and forget, keep shared channel {} open. {}", future.channel(), futureResponse.request());
+						futureResponse.responseNow();
+					} else {
+						LOG.debug("fire and forget, close channel {} now. {}", futureResponse.request(), future.channel());
+						reportMessage(futureResponse, future.channel().close());
+					}
 				}
 			}
 		});
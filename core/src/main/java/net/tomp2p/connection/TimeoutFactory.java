@@ -67,6 +67,13 @@ public class TimeoutFactory {
 		this.name = name;
 	}
 
+	/**
+	 * @return The time for a timeout
+	 */
+	public int timeoutMillis() {
+		return timeoutMillis;
+	}
+
 	/**
 	 * @return Two handlers, one default Netty that will call the second handler
 	 */
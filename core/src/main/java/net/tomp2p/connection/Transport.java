@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Netty transport that creates the event loops and channels. The event
+ * loops and the channels must come from the same transport. The default is
+ * {@link NioTransport}, which works everywhere. On Linux, {@link EpollTransport}
+ * avoids the selector overhead, {@link Transports#best()} only selects it if
+ * the optional native library is available.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface Transport {
+
+	/**
+	 * @return True if this transport can be used on this platform
+	 */
+	boolean isAvailable();
+
+	/**
+	 * Creates an event loop group for this transport.
+	 * 
+	 * @param nThreads
+	 *            The number of threads, 0 for the Netty default
+	 * @param threadFactory
+	 *            The factory that names the threads
+	 * @return The event loop group
+	 */
+	EventLoopGroup eventLoopGroup(int nThreads, ThreadFactory threadFactory);
+
+	/**
+	 * @return The class of UDP channels
+	 */
+	Class<? extends DatagramChannel> datagramChannel();
+
+	/**
+	 * @return The class of outgoing TCP channels
+	 */
+	Class<? extends SocketChannel> socketChannel();
+
+	/**
+	 * @return The class of listening TCP channels
+	 */
+	Class<? extends ServerSocketChannel> serverSocketChannel();
+
+	/**
+	 * @return True if several UDP channels can be bound to the same port with
+	 *         {@link #reusePort(Bootstrap)}, so that each event loop reads
+	 *         from its own socket
+	 */
+	boolean isReusePortSupported();
+
+	/**
+	 * Sets SO_REUSEPORT on the bootstrap. Only called if
+	 * {@link #isReusePortSupported()} returns true.
+	 * 
+	 * @param bootstrap
+	 *            The bootstrap of a UDP channel
+	 */
+	void reusePort(Bootstrap bootstrap);
+}
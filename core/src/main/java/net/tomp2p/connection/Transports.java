@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selects the transport for this platform. The netty-transport-native-epoll
+ * library is optional, thus {@link EpollTransport} is only loaded if the
+ * library is on the class path and Epoll.isAvailable() returns true.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public final class Transports {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Transports.class);
+
+	private static final String EPOLL_CLASS = "io.netty.channel.epoll.Epoll";
+	private static final String EPOLL_TRANSPORT_CLASS = "net.tomp2p.connection.EpollTransport";
+
+	private Transports() {
+	}
+
+	/**
+	 * @return The native epoll transport if it is available, otherwise
+	 *         {@link NioTransport}
+	 */
+	public static Transport best() {
+		try {
+			final Class<?> epoll = Class.forName(EPOLL_CLASS);
+			if (Boolean.TRUE.equals(epoll.getMethod("isAvailable").invoke(null))) {
+				return (Transport) Class.forName(EPOLL_TRANSPORT_CLASS).newInstance();
+			}
+		} catch (Exception e) {
+			LOG.debug("Epoll transport not available, use NIO.", e);
+		} catch (LinkageError e) {
+			LOG.debug("Epoll transport not available, use NIO.", e);
+		}
+		return new NioTransport();
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.TomP2POutbound;
+import net.tomp2p.message.TomP2PSinglePacketUDP;
+import net.tomp2p.utils.Pair;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a small number of long-lived UDP channels that are shared among all
+ * outgoing UDP requests of a peer. Instead of binding a new datagram channel
+ * for every request, the request is written to one of the shared channels and
+ * the response is matched by its message id to the {@link RequestHandler}
+ * that waits for it. The permits are still handled by {@link ChannelCreator},
+ * this class is created by {@link Reservation}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class UDPMultiplexer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(UDPMultiplexer.class);
+
+	/**
+	 * Marks a channel as shared, such a channel must not be closed after a
+	 * request.
+	 */
+	public static final AttributeKey<UDPMultiplexer> MULTIPLEXER_KEY = AttributeKey.valueOf("udp-multiplexer");
+
+	private final EventLoopGroup workerGroup;
+	private final ChannelClientConfiguration channelClientConfiguration;
+
+	private final ChannelFuture[] channels;
+	private final AtomicInteger counter = new AtomicInteger(0);
+
+	// the pending requests, the key is the message id
+	private final ConcurrentMap<Integer, RequestHandler<?>> pendingRequests = new ConcurrentHashMap<Integer, RequestHandler<?>>();
+	private final Demultiplexer demultiplexer = new Demultiplexer();
+
+	private final FutureDone<Void> futureShutdown = new FutureDone<Void>();
+	private boolean shutdown = false;
+
+	/**
+	 * Creates the multiplexer. The channels are bound lazily, on the first
+	 * request that uses them.
+	 *
+	 * @param workerGroup
+	 *            The worker group for netty that is shared between TCP and UDP.
+	 *            This workergroup is not shutdown if this class is shutdown
+	 * @param channelClientConfiguration
+	 *            The configuration that contains the number of shared channels
+	 */
+	public UDPMultiplexer(final EventLoopGroup workerGroup, final ChannelClientConfiguration channelClientConfiguration) {
+		this.workerGroup = workerGroup;
+		this.channelClientConfiguration = channelClientConfiguration;
+		this.channels = new ChannelFuture[Math.max(1, channelClientConfiguration.sharedUDPChannels())];
+	}
+
+	/**
+	 * Registers a request and returns the shared channel the request has to be
+	 * written to. The user pipeline filter is not applied to shared channels.
+	 *
+	 * @param channelHandlers
+	 *            The handlers that would have been added to a dedicated
+	 *            channel. Only the timeout and the handler are used
+	 * @param futureResponse
+	 *            The future response of the request
+	 * @return The channel future of the shared channel, or null if this
+	 *         request cannot be multiplexed and needs a dedicated channel
+	 */
+	public ChannelFuture register(final Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers,
+			final FutureResponse futureResponse) {
+		final Pair<EventExecutorGroup, ChannelHandler> pair = channelHandlers.get("handler");
+		final ChannelHandler handler = pair == null ? null : pair.element1();
+		if (handler != null && !(handler instanceof RequestHandler)) {
+			// we can only demultiplex responses for our own request handler
+			return null;
+		}
+		final ChannelFuture channelFuture = nextChannel();
+		if (channelFuture == null) {
+			return null;
+		}
+		if (handler == null) {
+			// fire and forget, nothing to wait for
+			return channelFuture;
+		}
+		final RequestHandler<?> requestHandler = (RequestHandler<?>) handler;
+		final Integer messageId = futureResponse.request().messageId();
+		if (pendingRequests.putIfAbsent(messageId, requestHandler) != null) {
+			LOG.debug("Message id {} is already in flight, use a dedicated channel.", messageId);
+			return null;
+		}
+		requestHandler.multiplexed(true);
+
+		final long timeoutMillis = timeoutMillis(channelHandlers);
+		final ScheduledFuture<?> timeout = workerGroup.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pendingRequests.remove(messageId, requestHandler)) {
+					LOG.warn("Request timeout on shared UDP channel for {}.", futureResponse.request());
+					futureResponse.failed("Channel is idle, no response within " + timeoutMillis + "ms");
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				pendingRequests.remove(messageId, requestHandler);
+				timeout.cancel(false);
+			}
+		});
+		return channelFuture;
+	}
+
+	/**
+	 * @param channel
+	 *            The channel to check
+	 * @return True if the channel is shared by a {@link UDPMultiplexer} and
+	 *         must not be closed after a request
+	 */
+	public static boolean isMultiplexed(final Channel channel) {
+		return channel != null && channel.attr(MULTIPLEXER_KEY).get() != null;
+	}
+
+	/**
+	 * @return The number of requests that wait for a response
+	 */
+	public int pendingRequests() {
+		return pendingRequests.size();
+	}
+
+	/**
+	 * Closes all shared channels and fails the requests that are still waiting
+	 * for a response.
+	 *
+	 * @return The future when all shared channels are closed
+	 */
+	public FutureDone<Void> shutdown() {
+		final ChannelFuture[] copy;
+		synchronized (this) {
+			if (shutdown) {
+				return futureShutdown;
+			}
+			shutdown = true;
+			copy = channels.clone();
+		}
+		for (RequestHandler<?> requestHandler : pendingRequests.values()) {
+			requestHandler.futureResponse().failed("Shutting down.");
+		}
+		pendingRequests.clear();
+
+		int open = 0;
+		for (ChannelFuture channelFuture : copy) {
+			if (channelFuture != null) {
+				open++;
+			}
+		}
+		if (open == 0) {
+			return futureShutdown.done();
+		}
+		final AtomicInteger closed = new AtomicInteger(0);
+		final int max = open;
+		for (ChannelFuture channelFuture : copy) {
+			if (channelFuture == null) {
+				continue;
+			}
+			channelFuture.channel().close().addListener(new GenericFutureListener<ChannelFuture>() {
+				@Override
+				public void operationComplete(final ChannelFuture future) throws Exception {
+					if (closed.incrementAndGet() == max) {
+						futureShutdown.done();
+					}
+				}
+			});
+		}
+		return futureShutdown;
+	}
+
+	/**
+	 * Picks the next shared channel in a round-robin fashion and binds it if
+	 * it is not yet bound or was closed.
+	 *
+	 * @return The channel future or null if we are shut down
+	 */
+	private ChannelFuture nextChannel() {
+		final int index = (counter.getAndIncrement() & Integer.MAX_VALUE) % channels.length;
+		synchronized (this) {
+			if (shutdown) {
+				return null;
+			}
+			ChannelFuture channelFuture = channels[index];
+			if (channelFuture == null || (channelFuture.isDone() && !channelFuture.channel().isOpen())) {
+				channelFuture = bind();
+				channels[index] = channelFuture;
+			}
+			return channelFuture;
+		}
+	}
+
+	private ChannelFuture bind() {
+		final Bootstrap b = new Bootstrap();
+		b.group(workerGroup);
+		b.channel(channelClientConfiguration.transport().datagramChannel());
+		b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(channelClientConfiguration
+				.mtuProfile().maxDatagramSize()));
+		// the responses of many requests arrive on the same channel
+		b.option(ChannelOption.MAX_MESSAGES_PER_READ, channelClientConfiguration.maxMessagesPerReadUDP());
+		b.handler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(final Channel ch) throws Exception {
+				ch.config().setAllocator(channelClientConfiguration.byteBufAllocator());
+				ch.pipeline().addLast("decoder", new TomP2PSinglePacketUDP(channelClientConfiguration.signatureFactory(),
+						channelClientConfiguration.byteBufAllocator()));
+				ch.pipeline().addLast("encoder", new TomP2POutbound(channelClientConfiguration.signatureFactory(),
+						channelClientConfiguration.byteBufAllocator(), channelClientConfiguration.isBatchUDPWrites())
+						.allocationBudget(channelClientConfiguration.encoderAllocationBudget()));
+				ch.pipeline().addLast("demultiplexer", demultiplexer);
+			}
+		});
+		final ChannelFuture channelFuture = b.bind(new InetSocketAddress(channelClientConfiguration.senderUDP(), 0));
+		channelFuture.channel().attr(MULTIPLEXER_KEY).set(this);
+		LOG.debug("Bind shared UDP channel {}.", channelFuture.channel());
+		return channelFuture;
+	}
+
+	private static long timeoutMillis(final Map<String, Pair<EventExecutorGroup, ChannelHandler>> channelHandlers) {
+		final Pair<EventExecutorGroup, ChannelHandler> pair = channelHandlers.get("timeout0");
+		if (pair != null && pair.element1() instanceof IdleStateHandlerTomP2P) {
+			final long timeoutMillis = ((IdleStateHandlerTomP2P) pair.element1()).getAllIdleTimeInMillis();
+			if (timeoutMillis > 0) {
+				return timeoutMillis;
+			}
+		}
+		return ConnectionBean.DEFAULT_UDP_IDLE_MILLIS;
+	}
+
+	/**
+	 * Hands an incoming response to the request handler that is waiting for
+	 * it.
+	 *
+	 * @author Thomas Bocek
+	 *
+	 */
+	@Sharable
+	private class Demultiplexer extends SimpleChannelInboundHandler<Message> {
+		@Override
+		protected void channelRead0(final ChannelHandlerContext ctx, final Message message) throws Exception {
+			if (message.isRequest()) {
+				LOG.debug("Drop request {} on shared UDP channel, requests are handled by the server.", message);
+				return;
+			}
+			final RequestHandler<?> requestHandler = pendingRequests.remove(message.messageId());
+			if (requestHandler == null) {
+				LOG.debug("No pending request for {}, the response arrived too late.", message);
+				return;
+			}
+			try {
+				requestHandler.channelRead(ctx, message);
+			} catch (Throwable t) {
+				requestHandler.exceptionCaught(ctx, t);
+			}
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+			// never close a shared channel because of a single broken packet
+			LOG.warn("Error on shared UDP channel {}.", ctx.channel(), cause);
+		}
+	}
+}
@@ -25,6 +25,7 @@ import net.tomp2p.connection.ChannelCreator;
  */
 public class FutureChannelCreator extends BaseFutureImpl<FutureChannelCreator> {
     private ChannelCreator channelCreator;
+    private volatile boolean backpressured = false;
 
     /**
      * Creates a new future for the shutdown operation.
@@ -51,6 +52,23 @@ public class FutureChannelCreator extends BaseFutureImpl<FutureChannelCreator> {
         notifyListeners();
     }
 
+    /**
+     * Marks this reservation as waiting, because not enough permits were available.
+     * 
+     * @return This class
+     */
+    public FutureChannelCreator backpressured() {
+        this.backpressured = true;
+        return this;
+    }
+
+    /**
+     * @return True if the reservation had to wait for permits. Builders can use this to defer work
+     */
+    public boolean isBackpressured() {
+        return backpressured;
+    }
+
     /**
      * @return The ChannelCreator
      */
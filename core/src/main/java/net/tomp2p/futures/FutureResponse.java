@@ -38,6 +38,8 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
     
     private boolean reponseLater = false;
 
+    private volatile boolean backpressured = false;
+
     private final RTT roundTripTime = new RTT();
 
     /**
@@ -64,6 +66,27 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
         self(this);
     }
 
+    /**
+     * Marks this request as deferred, because too many requests are in flight to the recipient or the channel is not
+     * writable.
+     * 
+     * @param backpressured
+     *            True if the request had to wait before it was written
+     * @return This class
+     */
+    public FutureResponse backpressured(final boolean backpressured) {
+        this.backpressured = backpressured;
+        return this;
+    }
+
+    /**
+     * @return True if the request had to wait before it was written. Builders can use this to slow down the requests
+     *         to this peer
+     */
+    public boolean isBackpressured() {
+        return backpressured;
+    }
+
     /**
      * If we don't get a reply message, which is the case for fire-and-forget messages, then set the reply to null and
      * set this future to complete with the type Success.
@@ -21,6 +21,7 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import net.tomp2p.p2p.ParallelismController;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.DigestInfo;
 
@@ -45,6 +46,8 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
 
     private SortedSet<PeerAddress> routingPath;
 
+    private volatile ParallelismController parallelismController;
+
     public FutureRouting() {
     	self(this);
     }
@@ -177,6 +180,26 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
         }
     }
 
+    /**
+     * @param parallelismController
+     *            The controller of the adaptive parallelism of this routing
+     * @return This class
+     */
+    public FutureRouting parallelismController(final ParallelismController parallelismController) {
+        this.parallelismController = parallelismController;
+        return this;
+    }
+
+    /**
+     * Returns the metrics of the adaptive parallelism of this routing, e.g., how many responses were slow and how
+     * often the parallelism changed.
+     * 
+     * @return The controller or null if the routing used a fixed parallelism
+     */
+    public ParallelismController parallelismController() {
+        return parallelismController;
+    }
+
     @Override
     public String failedReason() {
         synchronized (lock) {
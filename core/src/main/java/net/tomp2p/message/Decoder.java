@@ -66,11 +66,14 @@ public class Decoder {
 
 	private int keyCollectionSize = -1;
 	private KeyCollection keyCollection = null;
+	private Number640List keyList = null;
 
 	private int mapSize = -1;
 	private DataMap dataMap = null;
 	private Data data = null;
 	private Number640 key = null;
+	// the key decoded before, its parts are reused if they are equal
+	private Number640 previousKey = null;
 
 	private int keyMap640KeysSize = -1;
 	private KeyMap640Keys keyMap640Keys = null;
@@ -242,9 +245,7 @@ public class Decoder {
 				if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
 					return false;
 				}
-				byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-				buf.readBytes(me);
-				message.key(new Number160(me));
+				message.key(new Number160(buf));
 				lastContent = contentTypes.poll();
 				break;
 			case BLOOM_FILTER:
@@ -320,30 +321,30 @@ public class Decoder {
 				}
 				if (keyCollectionSize == -1) {
 					keyCollectionSize = buf.readInt();
+					if (keyCollectionSize < 0) {
+						final int negative = keyCollectionSize;
+						keyCollectionSize = -1;
+						throw new IllegalArgumentException("Negative number of keys: " + negative + ".");
+					}
 				}
 				if (keyCollection == null) {
-					keyCollection = new KeyCollection(new ArrayList<Number640>(keyCollectionSize));
-				}
-				for (int i = keyCollection.size(); i < keyCollectionSize; i++) {
-					if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+					// the keys are read as ints, the Number640 are created on access. The number of keys comes
+					// from the other peer, so only the keys that already arrived are allocated, the list grows
+					keyList = new Number640List(Math.min(keyCollectionSize,
+							buf.readableBytes() / Number640.BYTE_ARRAY_SIZE));
+					keyCollection = new KeyCollection(keyList);
+				}
+				for (int i = keyList.size(); i < keyCollectionSize; i++) {
+					if (buf.readableBytes() < Number640.BYTE_ARRAY_SIZE) {
 						return false;
 					}
-					byte[] me2 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me2);
-					Number160 locationKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 domainKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 contentKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 versionKey = new Number160(me2);
-					keyCollection.add(new Number640(locationKey, domainKey, contentKey, versionKey));
+					keyList.read(buf);
 				}
 				message.keyCollection(keyCollection);
 				lastContent = contentTypes.poll();
 				keyCollectionSize = -1;
 				keyCollection = null;
+				keyList = null;
 				break;
 			case MAP_KEY640_DATA:
 				if (mapSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
@@ -367,20 +368,10 @@ public class Decoder {
 				}
 				for (int i = dataMap.size(); i < mapSize; i++) {
 					if (key == null) {
-						if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE
-								+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
+						if (buf.readableBytes() < Number640.BYTE_ARRAY_SIZE) {
 							return false;
 						}
-						byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-						buf.readBytes(me3);
-						Number160 locationKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 domainKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 contentKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 versionKey = new Number160(me3);
-						key = new Number640(locationKey, domainKey, contentKey, versionKey);
+						key = readKey(buf);
 					}
 					LOG.debug("Key decoded in message {}, remaining {}", message, buf.readableBytes());
 					data = Data.decodeHeader(buf, signatureFactory);
@@ -408,6 +399,7 @@ public class Decoder {
 				lastContent = contentTypes.poll();
 				mapSize = -1;
 				dataMap = null;
+				previousKey = null;
 				break;
 			case MAP_KEY640_KEYS:
 				if (keyMap640KeysSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
@@ -432,31 +424,23 @@ public class Decoder {
 					if (buf.readableBytes() < meta + Utils.BYTE_BYTE_SIZE + (size * Number160.BYTE_ARRAY_SIZE )) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
+					final Number640 key640 = readKey(buf);
 
 					int numBasedOn = buf.readByte();
-					Set<Number160> value = new HashSet<Number160>(numBasedOn);
+					// sized so that it does not rehash
+					Set<Number160> value = new HashSet<Number160>(numBasedOn * 4 / 3 + 1);
 					for (int j = 0; j < numBasedOn; j++) {
-						buf.readBytes(me3);
-						Number160 basedOnKey = new Number160(me3);
-						value.add(basedOnKey);
+						value.add(new Number160(buf));
 					}
 
-					keyMap640Keys.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMap640Keys.put(key640, value);
 				}
 
 				message.keyMap640Keys(keyMap640Keys);
 				lastContent = contentTypes.poll();
 				keyMap640KeysSize = -1;
 				keyMap640Keys = null;
+				previousKey = null;
 				break;
 			case MAP_KEY640_BYTE:
 				if (keyMapByteSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
@@ -474,23 +458,16 @@ public class Decoder {
 							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE + 1) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
+					final Number640 key640 = readKey(buf);
 					byte value = buf.readByte();
-					keyMapByte.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMapByte.put(key640, value);
 				}
 
 				message.keyMapByte(keyMapByte);
 				lastContent = contentTypes.poll();
 				keyMapByteSize = -1;
 				keyMapByte = null;
+				previousKey = null;
 				break;
 			case BYTE_BUFFER:
 				if (bufferSize == -1 && buf.readableBytes() < Utils.INTEGER_BYTE_SIZE) {
@@ -607,6 +584,36 @@ public class Decoder {
 		return true;
 	}
 
+	/**
+	 * Reads a key with ints directly from the buffer. If the location, domain
+	 * or version key is equal to the one of the key before, that instance is
+	 * reused, as the keys in a map usually share their location and domain.
+	 * 
+	 * @param buf
+	 *            The buffer with at least 80 readable bytes
+	 * @return The key
+	 */
+	private Number640 readKey(final ByteBuf buf) {
+		final Number640 before = previousKey;
+		final Number640 key640;
+		if (before == null) {
+			key640 = new Number640(new Number160(buf), new Number160(buf), new Number160(buf), new Number160(buf));
+		} else {
+			key640 = new Number640(readKey(buf, before.locationKey()), readKey(buf, before.domainKey()),
+					readKey(buf, before.contentKey()), readKey(buf, before.versionKey()));
+		}
+		previousKey = key640;
+		return key640;
+	}
+
+	private static Number160 readKey(final ByteBuf buf, final Number160 before) {
+		if (before.isEqual(buf, buf.readerIndex())) {
+			buf.skipBytes(Number160.BYTE_ARRAY_SIZE);
+			return before;
+		}
+		return new Number160(buf);
+	}
+
 	public Message prepareFinish() {
 		Message ret = message;
 		message.setDone();
@@ -616,9 +623,12 @@ public class Decoder {
 		neighborSet = null;
 		keyCollectionSize = -1;
 		keyCollection = null;
+		keyList = null;
 		mapSize = -1;
 		dataMap = null;
 		data = null;
+		key = null;
+		previousKey = null;
 		keyMap640KeysSize = -1;
 		keyMap640Keys = null;
 		bufferSize = -1;
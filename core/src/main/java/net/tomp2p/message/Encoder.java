@@ -34,15 +34,59 @@ public class Encoder {
 
     private final SignatureFactory signatureFactory;
 
+    // 0 means no budget
+    private int allocationBudget = 0;
+    private int allocatedBytes = 0;
+
     public Encoder(SignatureFactory signatureFactory) {
         this.signatureFactory = signatureFactory;
     }
 
+    /**
+     * Sets the number of bytes the encoder may allocate for a message. The
+     * keys and addresses are written directly to the buffer and large data is
+     * attached without a copy, so this is mostly the header and the keys. If
+     * the budget is exceeded, a warning is logged.
+     * 
+     * @param allocationBudget
+     *            The budget in bytes, 0 to disable the check
+     * @return This class
+     */
+    public Encoder allocationBudget(final int allocationBudget) {
+        this.allocationBudget = allocationBudget;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes the encoder may allocate for a message, 0 if
+     *         there is no budget
+     */
+    public int allocationBudget() {
+        return allocationBudget;
+    }
+
+    /**
+     * @return The number of bytes that were allocated to encode the last
+     *         message or message part
+     */
+    public int allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return True if the last message or message part was encoded within the
+     *         allocation budget
+     */
+    public boolean isWithinBudget() {
+        return allocationBudget <= 0 || allocatedBytes <= allocationBudget;
+    }
+
     public boolean write(final AlternativeCompositeByteBuf buf, final Message message, SignatureCodec signatureCodec) throws InvalidKeyException,
             SignatureException, IOException {
 
         this.message = message;
         LOG.debug("message for outbound {}", message);
+        final int allocatedBefore = buf.allocatedBytes();
         
         if (message.sender().isRelayed() && message.peerSocketAddresses().isEmpty()) {
         	message.peerSocketAddresses(message.sender().peerSocketAddresses());
@@ -72,6 +116,11 @@ public class Encoder {
             	signatureCodec.write(buf);
             }
         }
+        allocatedBytes = buf.allocatedBytes() - allocatedBefore;
+        if (!isWithinBudget()) {
+            LOG.warn("Allocated {} bytes to encode {}, the budget is {} bytes.", allocatedBytes, message,
+                    allocationBudget);
+        }
         return done;
     }
 
@@ -82,7 +131,7 @@ public class Encoder {
         	final Content content = next.content(); 
             switch (content) {
             case KEY:
-                buf.writeBytes(message.key(next.index()).toByteArray());
+                message.key(next.index()).toByteBuf(buf);
                 message.contentReferences().poll();
                 break;
             case INTEGER:
@@ -98,7 +147,7 @@ public class Encoder {
                 // length
                 buf.writeByte(neighborSet.size());
                 for (PeerAddress neighbor : neighborSet.neighbors()) {
-                    buf.writeBytes(neighbor.toByteArray());
+                    neighbor.toByteBuf(buf);
                 }
                 message.contentReferences().poll();
                 break;
@@ -109,7 +158,7 @@ public class Encoder {
                 for (PeerSocketAddress psa : list) {
                 	// IP version flag
                 	buf.writeByte(psa.isIPv4() ? 0:1);
-                    buf.writeBytes(psa.toByteArray());
+                    psa.toByteBuf(buf);
                 }
                 message.contentReferences().poll();
                 break;
@@ -124,17 +173,14 @@ public class Encoder {
                 buf.writeInt(keys.size());
                 if (keys.isConvert()) {
                     for (Number160 key : keys.keysConvert()) {
-                        buf.writeBytes(keys.locationKey().toByteArray());
-                        buf.writeBytes(keys.domainKey().toByteArray());
-                        buf.writeBytes(key.toByteArray());
-                        buf.writeBytes(keys.versionKey().toByteArray());
+                        keys.locationKey().toByteBuf(buf);
+                        keys.domainKey().toByteBuf(buf);
+                        key.toByteBuf(buf);
+                        keys.versionKey().toByteBuf(buf);
                     }
                 } else {
                     for (Number640 key : keys.keys()) {
-                        buf.writeBytes(key.locationKey().toByteArray());
-                        buf.writeBytes(key.domainKey().toByteArray());
-                        buf.writeBytes(key.contentKey().toByteArray());
-                        buf.writeBytes(key.versionKey().toByteArray());
+                        key.toByteBuf(buf);
                     }
                 }
                 message.contentReferences().poll();
@@ -145,10 +191,10 @@ public class Encoder {
                 buf.writeInt(dataMap.size());
                 if (dataMap.isConvert()) {
                     for (Entry<Number160, Data> entry : dataMap.dataMapConvert().entrySet()) {
-                    	buf.writeBytes(dataMap.locationKey().toByteArray());
-                    	buf.writeBytes(dataMap.domainKey().toByteArray());
-                    	buf.writeBytes(entry.getKey().toByteArray());
-                    	buf.writeBytes(dataMap.versionKey().toByteArray());
+                    	dataMap.locationKey().toByteBuf(buf);
+                    	dataMap.domainKey().toByteBuf(buf);
+                    	entry.getKey().toByteBuf(buf);
+                    	dataMap.versionKey().toByteBuf(buf);
                     	synchronized (entry.getValue().lockObject()) {
                     		if(entry.getValue().isReleased()) {
                     			encodeData(buf, new Data(), dataMap.isConvertMeta(), !message.isRequest());
@@ -159,10 +205,7 @@ public class Encoder {
                     }
                 } else {
                     for (Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
-                        buf.writeBytes(entry.getKey().locationKey().toByteArray());
-                        buf.writeBytes(entry.getKey().domainKey().toByteArray());
-                        buf.writeBytes(entry.getKey().contentKey().toByteArray());
-                        buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                        entry.getKey().toByteBuf(buf);
                         synchronized (entry.getValue().lockObject()) {
                         	if(entry.getValue().isReleased()) {
                         		encodeData(buf, new Data(), dataMap.isConvertMeta(), !message.isRequest());
@@ -179,15 +222,12 @@ public class Encoder {
                 // length
                 buf.writeInt(keyMap640Keys.size());
                 for (Entry<Number640, Collection<Number160>> entry : keyMap640Keys.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().locationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().domainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().contentKey().toByteArray());
-                    buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                    entry.getKey().toByteBuf(buf);
                     // write number of based-on keys
                     buf.writeByte(entry.getValue().size());
                     // write based-on keys
                     for (Number160 basedOnKey : entry.getValue()) {
-                        buf.writeBytes(basedOnKey.toByteArray());
+                        basedOnKey.toByteBuf(buf);
                     }
                 }
                 message.contentReferences().poll();
@@ -197,10 +237,7 @@ public class Encoder {
                 // length
                 buf.writeInt(keysMap.size());
                 for (Entry<Number640, Byte> entry : keysMap.keysMap().entrySet()) {
-                    buf.writeBytes(entry.getKey().locationKey().toByteArray());
-                    buf.writeBytes(entry.getKey().domainKey().toByteArray());
-                    buf.writeBytes(entry.getKey().contentKey().toByteArray());
-                    buf.writeBytes(entry.getKey().versionKey().toByteArray());
+                    entry.getKey().toByteBuf(buf);
                     buf.writeByte(entry.getValue());
                 }
                 message.contentReferences().poll();
@@ -228,8 +265,7 @@ public class Encoder {
                 TrackerData trackerData = message.trackerData(next.index());
                 buf.writeByte(trackerData.peerAddresses().size()); // 1 bytes - length, max. 255
                 for (Map.Entry<PeerAddress, Data> entry : trackerData.peerAddresses().entrySet()) {
-                	byte[] me = entry.getKey().toByteArray();
-                    buf.writeBytes(me);
+                    entry.getKey().toByteBuf(buf);
                     Data data = entry.getValue().duplicate();
                     encodeData(buf, data, false, !message.isRequest());
                 }
@@ -156,7 +156,12 @@ public class Message {
 		/**
 		 * Still unused
 		 */
-		RESERVED1
+		RESERVED1,
+
+		/**
+		 * The reply did not fit into a datagram to the requester, the request needs to be sent over TCP
+		 */
+		TRUNCATED
 	};
 
     // Header:
@@ -64,10 +64,10 @@ public final class MessageHeaderCodec {
         buffer.writeInt(versionAndType); // 4
         buffer.writeInt(message.messageId()); // 8
         buffer.writeByte(message.command()); // 9
-        buffer.writeBytes(message.sender().peerId().toByteArray()); // 29
+        message.sender().peerId().toByteBuf(buffer); // 29
         buffer.writeShort((short) message.sender().tcpPort()); // 31
         buffer.writeShort((short) message.sender().udpPort()); // 33
-        buffer.writeBytes(message.recipient().peerId().toByteArray()); // 53
+        message.recipient().peerId().toByteBuf(buffer); // 53
         buffer.writeInt(encodeContentTypes(message.contentTypes())); // 57
         // three bits for the message options, 5 bits for the sender options
         buffer.writeByte((message.sender().options() << 3) | message.options()); // 58
@@ -128,9 +128,7 @@ public final class MessageHeaderCodec {
      * @return A 160bit number from the Netty buffer (deserialized)
      */
     private static Number160 readID(final ByteBuf buffer) {
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        buffer.readBytes(me);
-        return new Number160(me);
+        return new Number160(buffer);
     }
 
     /**
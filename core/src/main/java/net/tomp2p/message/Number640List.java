@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * A list of {@link Number640} keys that stores the keys as ints in a single
+ * array. The decoder reads the keys of a message directly into this array, the
+ * {@link Number640} objects are only created when an element is accessed. If
+ * the location, domain or version key of an element is equal to the one of the
+ * element accessed before, the same {@link Number160} is used, which is the
+ * common case when iterating over the keys of a digest or a get response.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class Number640List extends AbstractList<Number640> implements RandomAccess {
+
+    private static final int INTS = Number160.INT_ARRAY_SIZE * 4;
+
+    private int[] keys;
+    private int size = 0;
+
+    // the element accessed before, a race only means we don't share the keys
+    private volatile Number640 last = null;
+
+    /**
+     * Creates a list for the given number of keys.
+     * 
+     * @param capacity
+     *            The number of keys, the list grows if more keys are added
+     */
+    public Number640List(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity: " + capacity + ".");
+        }
+        this.keys = new int[Math.min(capacity, Integer.MAX_VALUE / INTS) * INTS];
+    }
+
+    /**
+     * Reads the next key from the buffer, which has to have at least
+     * {@link Number640#BYTE_ARRAY_SIZE} readable bytes.
+     * 
+     * @param buf
+     *            The buffer to read from
+     * @return This class
+     */
+    public Number640List read(final ByteBuf buf) {
+        final int offset = ensureCapacity();
+        for (int i = 0; i < INTS; i++) {
+            keys[offset + i] = buf.readInt();
+        }
+        size++;
+        return this;
+    }
+
+    @Override
+    public boolean add(final Number640 key) {
+        final int offset = ensureCapacity();
+        key.locationKey().toIntArray(keys, offset);
+        key.domainKey().toIntArray(keys, offset + Number160.INT_ARRAY_SIZE);
+        key.contentKey().toIntArray(keys, offset + 2 * Number160.INT_ARRAY_SIZE);
+        key.versionKey().toIntArray(keys, offset + 3 * Number160.INT_ARRAY_SIZE);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Number640 get(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        final int offset = index * INTS;
+        final Number640 before = last;
+        final Number640 key;
+        if (before == null) {
+            key = new Number640(new Number160(keys, offset),
+                    new Number160(keys, offset + Number160.INT_ARRAY_SIZE),
+                    new Number160(keys, offset + 2 * Number160.INT_ARRAY_SIZE),
+                    new Number160(keys, offset + 3 * Number160.INT_ARRAY_SIZE));
+        } else {
+            key = new Number640(share(before.locationKey(), offset),
+                    share(before.domainKey(), offset + Number160.INT_ARRAY_SIZE),
+                    share(before.contentKey(), offset + 2 * Number160.INT_ARRAY_SIZE),
+                    share(before.versionKey(), offset + 3 * Number160.INT_ARRAY_SIZE));
+        }
+        last = key;
+        return key;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private Number160 share(final Number160 before, final int offset) {
+        return before.isEqual(keys, offset) ? before : new Number160(keys, offset);
+    }
+
+    private int ensureCapacity() {
+        final int offset = size * INTS;
+        if (offset + INTS > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(INTS, keys.length * 2));
+        }
+        return offset;
+    }
+}
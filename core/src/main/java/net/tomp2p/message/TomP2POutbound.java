@@ -21,12 +21,46 @@ import org.slf4j.LoggerFactory;
 public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
 
     private static final Logger LOG = LoggerFactory.getLogger(TomP2POutbound.class);
+    // Android needs addresses without a host name, see below
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
     private final Encoder encoder;
     private final ByteBufAllocator byteBufAllocator;
+    private final boolean batchUDP;
+
+    // only accessed from the event loop of the channel
+    private boolean flushPending = false;
 
     public TomP2POutbound(SignatureFactory signatureFactory, ByteBufAllocator byteBufAllocator) {
+        this(signatureFactory, byteBufAllocator, false);
+    }
+
+    /**
+     * Creates an encoder that optionally batches UDP writes. If batched, the datagrams that are written within the
+     * same event loop tick are flushed together, e.g., the neighbor requests of a routing step that are sent over a
+     * shared UDP channel. This only makes sense for channels that send more than one datagram.
+     * 
+     * @param signatureFactory
+     *            The signature factory
+     * @param byteBufAllocator
+     *            The allocator for the encoded messages
+     * @param batchUDP
+     *            True to flush the datagrams once per event loop tick instead of one by one
+     */
+    public TomP2POutbound(SignatureFactory signatureFactory, ByteBufAllocator byteBufAllocator, boolean batchUDP) {
         this.encoder = new Encoder(signatureFactory);
         this.byteBufAllocator = byteBufAllocator;
+        this.batchUDP = batchUDP;
+    }
+
+    /**
+     * @param allocationBudget
+     *            The number of bytes the encoder may allocate for a message, 0 for no budget
+     * @return This class
+     */
+    public TomP2POutbound allocationBudget(final int allocationBudget) {
+        encoder.allocationBudget(allocationBudget);
+        return this;
     }
 
     @Override
@@ -69,13 +103,20 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
                     	sender = message.recipientSocket();
                     }
                     
-                    // FIXME quickfix for Android (by Nico)
-                    recipient = new InetSocketAddress(InetAddress.getByAddress(recipient.getAddress().getAddress()), recipient.getPort());
-                    sender =  new InetSocketAddress(InetAddress.getByAddress(sender.getAddress().getAddress()), sender.getPort());
+                    if (ANDROID) {
+                        // FIXME quickfix for Android (by Nico)
+                        recipient = new InetSocketAddress(InetAddress.getByAddress(recipient.getAddress().getAddress()), recipient.getPort());
+                        sender =  new InetSocketAddress(InetAddress.getByAddress(sender.getAddress().getAddress()), sender.getPort());
+                    }
                     
                     DatagramPacket d = new DatagramPacket(buf, recipient, sender);
                     LOG.debug("Send UDP message {}, datagram: {}.", message, d);
-                    ctx.writeAndFlush(d, promise);
+                    if (batchUDP) {
+                        ctx.write(d, promise);
+                        flush(ctx);
+                    } else {
+                        ctx.writeAndFlush(d, promise);
+                    }
                     
                 } else {
                     LOG.debug("Send TCP message {} to {}.", message, message.senderSocket());
@@ -102,6 +143,29 @@ public class TomP2POutbound extends ChannelOutboundHandlerAdapter {
         }
     }
 
+    /**
+     * If UDP writes are batched, the flush is deferred to the end of the current event loop tick. All datagrams that
+     * are written until then are flushed together.
+     */
+    @Override
+    public void flush(final ChannelHandlerContext ctx) throws Exception {
+        if (!batchUDP || !(ctx.channel() instanceof DatagramChannel)) {
+            ctx.flush();
+            return;
+        }
+        if (flushPending) {
+            return;
+        }
+        flushPending = true;
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                flushPending = false;
+                ctx.flush();
+            }
+        });
+    }
+
     @Override
     public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
         if (encoder.message() == null) {
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.p2p;
+
+/**
+ * Configures the adaptive mode of the routing parallelism. Instead of keeping a fixed number of requests in flight, a
+ * {@link ParallelismController} per lookup starts with the configured parallelism and widens it by one if a response
+ * is slow or a request fails, and narrows it by one after a number of healthy responses in a row. A response is slow
+ * if it took longer than the p90 of the RTTs that {@link net.tomp2p.peers.PeerStatistic} has measured for this peer,
+ * or longer than a fixed threshold if there are no measurements. Only the permits for the lower bound are reserved
+ * up front, a lookup reserves a permit for each request above it while it is widened. Set with
+ * {@link RoutingConfiguration}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class AdaptiveParallelism {
+
+    public static final int DEFAULT_NARROW_AFTER = 2;
+    public static final int DEFAULT_SLOW_MILLIS = 1000;
+    public static final double SLOW_PERCENTILE = 0.9;
+
+    private final int minParallel;
+    private final int maxParallel;
+    private final int narrowAfter;
+    private final int slowMillis;
+
+    /**
+     * Creates an adaptive parallelism that narrows after {@link #DEFAULT_NARROW_AFTER} healthy responses and considers
+     * responses of unknown peers slow after {@link #DEFAULT_SLOW_MILLIS}.
+     * 
+     * @param minParallel
+     *            The lowest number of requests in flight
+     * @param maxParallel
+     *            The highest number of requests in flight
+     */
+    public AdaptiveParallelism(final int minParallel, final int maxParallel) {
+        this(minParallel, maxParallel, DEFAULT_NARROW_AFTER, DEFAULT_SLOW_MILLIS);
+    }
+
+    /**
+     * Creates an adaptive parallelism.
+     * 
+     * @param minParallel
+     *            The lowest number of requests in flight
+     * @param maxParallel
+     *            The highest number of requests in flight
+     * @param narrowAfter
+     *            The number of healthy responses in a row after which the parallelism is reduced by one
+     * @param slowMillis
+     *            The RTT above which a response of a peer without RTT measurements is considered slow
+     */
+    public AdaptiveParallelism(final int minParallel, final int maxParallel, final int narrowAfter,
+            final int slowMillis) {
+        if (minParallel < 1 || maxParallel < minParallel || narrowAfter < 1 || slowMillis < 0) {
+            throw new IllegalArgumentException("Need 1 <= min <= max, narrowAfter >= 1 and slowMillis >= 0.");
+        }
+        this.minParallel = minParallel;
+        this.maxParallel = maxParallel;
+        this.narrowAfter = narrowAfter;
+        this.slowMillis = slowMillis;
+    }
+
+    /**
+     * Creates the controller for a lookup.
+     * 
+     * @param parallel
+     *            The parallelism to start with, it is limited to the bounds
+     * @return A new controller
+     */
+    public ParallelismController controller(final int parallel) {
+        return new ParallelismController(Math.min(maxParallel, Math.max(minParallel, parallel)), minParallel,
+                maxParallel, narrowAfter, slowMillis);
+    }
+
+    public int minParallel() {
+        return minParallel;
+    }
+
+    public int maxParallel() {
+        return maxParallel;
+    }
+
+    public int narrowAfter() {
+        return narrowAfter;
+    }
+
+    public int slowMillis() {
+        return slowMillis;
+    }
+}
@@ -34,13 +34,16 @@ import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.ClosestPeers;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapFilter;
 import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.rpc.RecursiveNeighborRPC;
 import net.tomp2p.utils.Pair;
 
 import org.slf4j.Logger;
@@ -57,12 +60,26 @@ import org.slf4j.LoggerFactory;
 public class DistributedRouting {
     private static final Logger LOG = LoggerFactory.getLogger(DistributedRouting.class);
 
+    // the start peers are only used until the routing queue is filled, so each thread can reuse its selection
+    private static final ThreadLocal<ClosestPeers> START_PEERS = new ThreadLocal<ClosestPeers>() {
+        @Override
+        protected ClosestPeers initialValue() {
+            return new ClosestPeers();
+        }
+    };
+
     private final NeighborRPC neighbors;
 
     private final PeerBean peerBean;
 
     private final Random rnd;
 
+    private volatile RouteCache routeCache;
+
+    private volatile Hedging hedging;
+
+    private volatile RecursiveNeighborRPC recursiveNeighbors;
+
     /**
      * The routing process involves multiple RPCs, mostly UDP based.
      * 
@@ -123,14 +140,70 @@ public class DistributedRouting {
         return futureDone;
     }
     
+    /**
+     * Sets the cache for routing results. The cache needs to be registered as a listener on the peer map.
+     * 
+     * @param routeCache
+     *            The cache or null to always route
+     * @return This class
+     */
+    public DistributedRouting routeCache(final RouteCache routeCache) {
+        this.routeCache = routeCache;
+        return this;
+    }
+
+    /**
+     * @return The cache for routing results or null if routing results are not cached
+     */
+    public RouteCache routeCache() {
+        return routeCache;
+    }
+
+    /**
+     * Sets the hedging of slow requests. The DHT operations use the same hedging, so they share its budget.
+     * 
+     * @param hedging
+     *            The hedging or null to wait for slow peers
+     * @return This class
+     */
+    public DistributedRouting hedging(final Hedging hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    /**
+     * @return The hedging of slow requests or null if slow requests are not hedged
+     */
+    public Hedging hedging() {
+        return hedging;
+    }
+
+    /**
+     * Sets the RPC for recursive lookups, which are used if the routing builder allows it.
+     * 
+     * @param recursiveNeighbors
+     *            The RPC or null to always route iteratively
+     * @return This class
+     */
+    public DistributedRouting recursiveNeighbors(final RecursiveNeighborRPC recursiveNeighbors) {
+        this.recursiveNeighbors = recursiveNeighbors;
+        return this;
+    }
+
+    /**
+     * @return The RPC for recursive lookups or null if only iterative routing is used
+     */
+    public RecursiveNeighborRPC recursiveNeighbors() {
+        return recursiveNeighbors;
+    }
+
     public FutureRouting quit(final RoutingBuilder routingBuilder, final ChannelCreator cc) {
-    	Collection<PeerStatistic> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
-                routingBuilder.parallel() * 2);
-        return routing(startPeers, routingBuilder, Type.REQUEST_4, cc);
+        return routeClosePeers(routingBuilder, Type.REQUEST_4, cc);
     }
 
     /**
-     * Looks for a route to the location key given in the routing builder.
+     * Looks for a route to the location key given in the routing builder. If a {@link RouteCache} is set and the
+     * routing builder allows it, a recent result for the same key is returned as a completed future without routing.
      * 
      * @param routingBuilder
      *            All relevant information for the routing process
@@ -142,17 +215,158 @@ public class DistributedRouting {
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     public FutureRouting route(final RoutingBuilder routingBuilder, final Type type, final ChannelCreator cc) {
+        final RouteCache cache = routeCache;
+        if (cache != null && RouteCache.isCacheable(routingBuilder, type)) {
+            final FutureRouting cached = cache.get(routingBuilder);
+            if (cached != null) {
+                LOG.debug("Use cached route to {}.", routingBuilder.locationKey());
+                return cached;
+            }
+            final FutureRouting futureRouting = routeClosePeers(routingBuilder, type, cc);
+            cache.put(routingBuilder, futureRouting);
+            return futureRouting;
+        }
+        return routeClosePeers(routingBuilder, type, cc);
+    }
+
+    private FutureRouting routeClosePeers(final RoutingBuilder routingBuilder, final Type type, final ChannelCreator cc) {
+        final RecursiveNeighborRPC recursive = recursiveNeighbors;
+        if (recursive != null && routingBuilder.isRecursive() && type == Type.REQUEST_1
+                && !routingBuilder.isBootstrap() && routingBuilder.locationKey() != null) {
+            return routeRecursive(recursive, routingBuilder, type, cc);
+        }
+        return routeIterative(routingBuilder, type, cc);
+    }
+
+    private FutureRouting routeIterative(final RoutingBuilder routingBuilder, final Type type, final ChannelCreator cc) {
         // for bad distribution, use large NO_NEW_INFORMATION
-        Collection<PeerStatistic> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
-                routingBuilder.parallel() * 2);
-        return routing(startPeers, routingBuilder, type, cc);
+        final ClosestPeers startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
+                routingBuilder.parallel() * 2, START_PEERS.get());
+        try {
+            return routing(startPeers, routingBuilder, type, cc);
+        } finally {
+            startPeers.clear();
+        }
+    }
+
+    /**
+     * Forwards the lookup from peer to peer, starting with the closest peer we know. The peers reported by the last
+     * hop become the potential hits. If the lookup fails, e.g., because a hop went offline, we route iteratively.
+     * 
+     * @param recursive
+     *            The RPC for recursive lookups
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @param type
+     *            The type of the routing, only REQUEST_1 is routed recursively
+     * @param cc
+     *            The channel creator
+     * @return a FutureRouting object, is set to complete if the route has been found
+     */
+    private FutureRouting routeRecursive(final RecursiveNeighborRPC recursive, final RoutingBuilder routingBuilder,
+            final Type type, final ChannelCreator cc) {
+        final ClosestPeers startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(), 1,
+                START_PEERS.get());
+        final PeerAddress firstHop;
+        try {
+            firstHop = startPeers.isEmpty() ? null : startPeers.get(0).peerAddress();
+        } finally {
+            startPeers.clear();
+        }
+        if (firstHop == null) {
+            return routeIterative(routingBuilder, type, cc);
+        }
+        final FutureRouting futureRouting = new FutureRouting();
+        final FutureDone<Message> futureDone = recursive.route(firstHop, routingBuilder.locationKey(),
+                RecursiveNeighborRPC.DEFAULT_MAX_HOPS, routingBuilder.idleUDPMillis(), cc, routingBuilder);
+        futureDone.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+            @Override
+            public void operationComplete(final FutureDone<Message> future) throws Exception {
+                if (future.isSuccess()) {
+                    recursiveResult(routingBuilder, futureRouting, future.object());
+                    return;
+                }
+                LOG.debug("Recursive lookup failed, route iteratively: {}.", future.failedReason());
+                routeIterative(routingBuilder, type, cc).addListener(new BaseFutureAdapter<FutureRouting>() {
+                    @Override
+                    public void operationComplete(final FutureRouting future) throws Exception {
+                        if (future.isSuccess()) {
+                            futureRouting.parallelismController(future.parallelismController());
+                            futureRouting.neighbors(future.directHitsDigest(), future.potentialHits(),
+                                    future.routingPath(), routingBuilder.isBootstrap(),
+                                    routingBuilder.isRoutingToOthers());
+                        } else {
+                            futureRouting.failed(future);
+                        }
+                    }
+                });
+            }
+        });
+        return futureRouting;
+    }
+
+    /**
+     * Completes the routing with the answer of the last hop of a recursive lookup.
+     * 
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @param futureRouting
+     *            The future to complete
+     * @param answer
+     *            The message of the last hop with its close peers and the path
+     */
+    private void recursiveResult(final RoutingBuilder routingBuilder, final FutureRouting futureRouting,
+            final Message answer) {
+        final Comparator<PeerAddress> addressComparator = PeerMap.createXORAddressComparator(routingBuilder
+                .locationKey());
+        final NavigableSet<PeerAddress> potentialHits = new TreeSet<PeerAddress>(addressComparator);
+        final SortedSet<PeerAddress> alreadyAsked = new TreeSet<PeerAddress>(addressComparator);
+        potentialHits.add(peerBean.serverPeerAddress());
+        alreadyAsked.add(peerBean.serverPeerAddress());
+        // the answer travels back along the path, the last hop is the last peer on the path
+        PeerAddress lastHop = answer.sender();
+        if (answer.neighborsSet(1) != null) {
+            for (PeerAddress hop : answer.neighborsSet(1).neighbors()) {
+                alreadyAsked.add(hop);
+                lastHop = hop;
+            }
+        }
+        potentialHits.add(lastHop);
+        for (PeerAddress neighbor : answer.neighborsSet(0).neighbors()) {
+            if (!isRejected(routingBuilder, neighbor, potentialHits)) {
+                potentialHits.add(neighbor);
+            }
+        }
+        LOG.debug("Recursive lookup to {} answered by {}, path {}.", routingBuilder.locationKey(), lastHop,
+                alreadyAsked);
+        final RoutingMechanism routingMechanism = routingBuilder.createRoutingMechanism(futureRouting);
+        routingMechanism.queueToAsk(new UpdatableTreeSet<PeerStatistic>(peerMap().createStatisticComparator(
+                routingBuilder.locationKey())));
+        routingMechanism.potentialHits(potentialHits);
+        routingMechanism.directHits(new TreeMap<PeerAddress, DigestInfo>(addressComparator));
+        routingMechanism.alreadyAsked(alreadyAsked);
+        routingBuilder.routingOnlyToSelf(false);
+        routingMechanism.neighbors(routingBuilder);
+    }
+
+    private static boolean isRejected(final RoutingBuilder routingBuilder, final PeerAddress peerAddress,
+            final Collection<PeerAddress> all) {
+        if (routingBuilder.peerMapFilters() == null) {
+            return false;
+        }
+        for (PeerMapFilter peerMapFilter : routingBuilder.peerMapFilters()) {
+            if (peerMapFilter.rejectPreRouting(peerAddress, all)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Looks for a route to the given peer address.
      *
      * @param peerAddresses
-     *            nodes which should be asked first for a route
+     *            nodes which should be asked first for a route, only read before this method returns
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     private FutureRouting routing(final Collection<PeerStatistic> peerAddresses,
@@ -226,6 +440,12 @@ public class DistributedRouting {
         routingMechanism.potentialHits(potentialHits);
         routingMechanism.directHits(directHits);
         routingMechanism.alreadyAsked(alreadyAsked);
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                routingMechanism.shutdownSlotChannelCreators();
+            }
+        });
         
         if (peerAddresses.isEmpty()) {
         	routingBuilder.routingOnlyToSelf(false);
@@ -238,11 +458,45 @@ public class DistributedRouting {
             boolean isRoutingOnlyToSelf = (peerAddresses.size() == 1 && peerAddresses.iterator().next()
                     .peerAddress().equals(peerBean.serverPeerAddress()));
             routingBuilder.routingOnlyToSelf(isRoutingOnlyToSelf);
-            routingRec(routingBuilder, routingMechanism, type, cc);
+            reserveAndRoutingRec(routingBuilder, routingMechanism, type, cc);
         }
         return futureRouting;
     }
 
+    /**
+     * Reserves a permit for each slot above the reserved parallelism that the adaptive parallelism has widened to, and
+     * releases the permits of the slots it has narrowed away from. Then, the routing continues with
+     * {@link #routingRec(RoutingBuilder, RoutingMechanism, Type, ChannelCreator)} right away. If a permit is not free
+     * immediately, its slot stays empty until the next round.
+     * 
+     * @param routingBuilder
+     * @param routingMechanism
+     * @param type
+     * @param channelCreator
+     */
+    private void reserveAndRoutingRec(final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism,
+            final Type type, final ChannelCreator channelCreator) {
+        final int reserved = routingMechanism.reservedParallel();
+        final int parallel = Math.min(routingMechanism.parallel(), routingMechanism.futureResponses().length());
+        routingMechanism.releaseSlotChannelCreators(Math.max(reserved, parallel));
+        if (!routingMechanism.isStopCreatingNewFutures()) {
+            final boolean tcp = routingBuilder.isForceTCP();
+            for (int i = reserved; i < parallel; i++) {
+                if (routingMechanism.slotChannelCreator(i) == null) {
+                    // never wait for a permit while holding the reserved ones, other routings may wait for ours
+                    final ChannelCreator slotChannelCreator = neighbors.connectionBean().reservation()
+                            .tryCreate(tcp ? 0 : 1, tcp ? 1 : 0);
+                    if (slotChannelCreator == null) {
+                        LOG.debug("No free permit for slot {}, leave it empty.", i);
+                        break;
+                    }
+                    routingMechanism.slotChannelCreator(i, slotChannelCreator);
+                }
+            }
+        }
+        routingRec(routingBuilder, routingMechanism, type, channelCreator);
+    }
+
     /**
      * Looks for a route to the given locationKey, performing recursively. Since this method is not called concurrently,
      * but sequentially, no synchronization is necessary.
@@ -257,11 +511,22 @@ public class DistributedRouting {
 
         final boolean randomSearch = routingBuilder.locationKey() == null;
         int active = 0;
-        for (int i = 0; i < routingMechanism.parallel(); i++) {
-            if (routingMechanism.futureResponse(i) == null && !routingMechanism.isStopCreatingNewFutures()) {
+        // in adaptive mode, requests may still be in flight in slots above the current parallelism
+        final int parallel = routingMechanism.parallel();
+        final int reserved = routingMechanism.reservedParallel();
+        final int slots = routingMechanism.futureResponses().length();
+        for (int i = 0; i < slots; i++) {
+            // the slots above the reserved parallelism use their own permit
+            final ChannelCreator slotChannelCreator = i < reserved ? channelCreator : routingMechanism
+                    .slotChannelCreator(i);
+            if (routingMechanism.futureResponse(i) == null && i < parallel && slotChannelCreator != null
+                    && !routingMechanism.isStopCreatingNewFutures()) {
                 final PeerAddress next;
                 if (randomSearch) {
                     next = routingMechanism.pollRandomInQueueToAsk(rnd);
+                } else if (routingBuilder.routingStrategy() != null) {
+                    next = routingMechanism.pollInQueueToAsk(routingBuilder.routingStrategy(),
+                            routingBuilder.locationKey());
                 } else {
                     next = routingMechanism.pollFirstInQueueToAsk();
                 }
@@ -276,14 +541,18 @@ public class DistributedRouting {
                      
                     if(LOG.isWarnEnabled() ) {
                     	//routing is per default UDP, don't show warning if the other TCP/UDP is used
-                    	if(channelCreator.availableUDPPermits()==0 && !routingBuilder.isForceTCP()) {
+                    	if(slotChannelCreator.availableUDPPermits()==0 && !routingBuilder.isForceTCP()) {
                     		LOG.warn("Sanity check failed UDP: {}, {}.",i,Thread.currentThread().getName());
-                    	} else if(channelCreator.availableTCPPermits()==0 && routingBuilder.isForceTCP()) {
+                    	} else if(slotChannelCreator.availableTCPPermits()==0 && routingBuilder.isForceTCP()) {
                     		LOG.warn("Sanity check failed TCP: {}, {}.",i,Thread.currentThread().getName());
                     	}
                     }
-                    routingMechanism.futureResponse(i, neighbors.closeNeighbors(next,
-                            routingBuilder.searchValues(), type, channelCreator, routingBuilder));
+                    final FutureResponse futureResponse = neighbors.closeNeighbors(next,
+                            routingBuilder.searchValues(), type, slotChannelCreator, routingBuilder,
+                            randomSearch ? null : routingMechanism.knownPeersFilter());
+                    // a hedge can answer in place of a slow or failed request
+                    routingMechanism.futureResponse(i, randomSearch ? futureResponse : hedge(futureResponse, next,
+                            routingBuilder, routingMechanism, type));
                     LOG.debug("get close neighbors: {} on {}", next, i);
                 }
             } else if (routingMechanism.futureResponse(i) != null) {
@@ -304,6 +573,7 @@ public class DistributedRouting {
         fp.addListener(new BaseFutureAdapter<FutureForkJoin<FutureResponse>>() {
             @Override
             public void operationComplete(final FutureForkJoin<FutureResponse> future) throws Exception {
+                adaptParallelism(routingMechanism.parallelismController(), future);
                 final boolean finished;
                 if (future.isSuccess()) {
                     Message lastResponse = future.last().responseMessage();
@@ -338,12 +608,87 @@ public class DistributedRouting {
                     // stop all operations, as we are finished, no need to go further
                 } else {
 
-                    routingRec(routingBuilder, routingMechanism, type, channelCreator);
+                    reserveAndRoutingRec(routingBuilder, routingMechanism, type, channelCreator);
                 }
             }
         });
     }
 
+    /**
+     * Sends the same request to the next peer in the queue if the peer is slow to answer. The first successful
+     * response completes the returned future, so the routing sees the responding peer as the sender of the last
+     * response.
+     * 
+     * @param futureResponse
+     *            The request to watch
+     * @param recipient
+     *            The peer the request was sent to
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @param routingMechanism
+     *            The state of the routing process
+     * @param type
+     *            The type of the routing
+     * @return The future to put into the slot of the request
+     */
+    private FutureResponse hedge(final FutureResponse futureResponse, final PeerAddress recipient,
+            final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism, final Type type) {
+        final Hedging current = hedging;
+        if (current == null) {
+            return futureResponse;
+        }
+        return current.hedge(futureResponse, peerMap().getPeerStatistic(recipient), neighbors.connectionBean(),
+                routingBuilder.isForceTCP(), new Hedging.HedgeRequest() {
+                    @Override
+                    public FutureResponse create(final ChannelCreator channelCreator) {
+                        if (routingMechanism.isStopCreatingNewFutures()) {
+                            return null;
+                        }
+                        final PeerAddress next;
+                        if (routingBuilder.routingStrategy() != null) {
+                            next = routingMechanism.pollInQueueToAsk(routingBuilder.routingStrategy(),
+                                    routingBuilder.locationKey());
+                        } else {
+                            next = routingMechanism.pollFirstInQueueToAsk();
+                        }
+                        if (next == null) {
+                            return null;
+                        }
+                        routingMechanism.addToAlreadyAsked(next);
+                        LOG.debug("Hedge close neighbors request to {} with {}.", recipient, next);
+                        return neighbors.closeNeighbors(next, routingBuilder.searchValues(), type, channelCreator,
+                                routingBuilder, routingMechanism.knownPeersFilter());
+                    }
+                });
+    }
+
+    /**
+     * Reports the responses and failures of a round to the adaptive parallelism.
+     * 
+     * @param controller
+     *            The controller or null if the parallelism is fixed
+     * @param future
+     *            The round of requests that finished
+     */
+    private void adaptParallelism(final ParallelismController controller,
+            final FutureForkJoin<FutureResponse> future) {
+        if (controller == null) {
+            return;
+        }
+        for (final FutureResponse futureResponse : future.completed()) {
+            if (futureResponse.isSuccess()) {
+                // the RTT and the peer of the request that answered, which is the hedge if it won
+                final FutureResponse answered = futureResponse instanceof Hedging.HedgedResponse
+                        ? ((Hedging.HedgedResponse) futureResponse).answered() : futureResponse;
+                controller.success(answered.getRoundTripTime().getRtt(),
+                        peerMap().getPeerStatistic(answered.request().recipient()));
+            } else {
+                controller.failed();
+            }
+        }
+        LOG.debug("Adaptive parallelism {}.", controller);
+    }
+
     public PeerMap peerMap() {
         return peerBean.peerMap();
     }
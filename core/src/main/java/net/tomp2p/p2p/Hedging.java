@@ -0,0 +1,415 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a duplicate request if a peer is slow to answer. If a request has not finished after a percentile of the
+ * RTTs that {@link PeerStatistic} has measured for the peer, the same request is sent to the next candidate. The
+ * first successful response completes the {@link HedgedResponse}, and the request that lost is canceled. A failure of
+ * the original request does not cancel the hedge, as the hedge may still answer. Such a hedge
+ * request uses its own channel creator, so it does not take a permit of the lookup. If no permit is free at that
+ * moment, the hedge is skipped and its budget is refunded.
+ * <p>
+ * To avoid that hedging amplifies the load, e.g. if the whole network is slow, all lookups of a peer share one
+ * budget. Every request earns a fraction of a hedge and a hedge can only be sent if a whole one has been earned.
+ * Furthermore, only a limited number of hedges may be in flight at the same time. Set with
+ * {@link PeerBuilder#hedging(Hedging)}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class Hedging {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Hedging.class);
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final int DEFAULT_DELAY_MILLIS = 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.05;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    // the budget is counted in thousandths of a hedge
+    private static final long TOKEN = 1000;
+
+    private final double percentile;
+    private final int defaultDelayMillis;
+    private final int maxInFlight;
+    private final long tokensPerRequest;
+    private final long maxTokens;
+
+    private final AtomicLong tokens = new AtomicLong(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+    private final AtomicLong denied = new AtomicLong();
+
+    /**
+     * Creates a hedging with the p95 as delay, {@link #DEFAULT_DELAY_MILLIS} for peers without measurements, a budget
+     * of 5% of the requests and at most {@link #DEFAULT_MAX_IN_FLIGHT} hedges in flight.
+     */
+    public Hedging() {
+        this(DEFAULT_PERCENTILE, DEFAULT_DELAY_MILLIS, DEFAULT_BUDGET_RATIO, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a hedging.
+     * 
+     * @param percentile
+     *            The percentile of the RTTs of a peer after which a hedge is sent, e.g. 0.95
+     * @param defaultDelayMillis
+     *            The delay after which a hedge is sent if a peer has no RTT measurements
+     * @param budgetRatio
+     *            The number of hedges per request, e.g. 0.05 allows one hedge for every 20 requests
+     * @param maxInFlight
+     *            The maximum number of hedges in flight, this is also the number of hedges that can be saved up
+     */
+    public Hedging(final double percentile, final int defaultDelayMillis, final double budgetRatio,
+            final int maxInFlight) {
+        if (percentile <= 0 || percentile > 1 || defaultDelayMillis < 0 || budgetRatio < 0 || budgetRatio > 1
+                || maxInFlight < 0) {
+            throw new IllegalArgumentException(
+                    "Need 0 < percentile <= 1, 0 <= budgetRatio <= 1, defaultDelayMillis >= 0 and maxInFlight >= 0.");
+        }
+        this.percentile = percentile;
+        this.defaultDelayMillis = defaultDelayMillis;
+        this.maxInFlight = maxInFlight;
+        this.tokensPerRequest = Math.round(budgetRatio * TOKEN);
+        this.maxTokens = maxInFlight * TOKEN;
+    }
+
+    /**
+     * @param peerStatistic
+     *            The statistic of the peer or null if the peer is unknown
+     * @return The time to wait for a response of this peer before a hedge is sent
+     */
+    public long delayMillis(final PeerStatistic peerStatistic) {
+        if (peerStatistic != null) {
+            final long rtt = peerStatistic.rttPercentile(percentile);
+            if (rtt > 0) {
+                return rtt;
+            }
+        }
+        return defaultDelayMillis;
+    }
+
+    /**
+     * Watches a request and sends a hedge if it is slow and the budget allows it. This method returns right away.
+     * 
+     * @param primary
+     *            The request to watch
+     * @param peerStatistic
+     *            The statistic of the peer the request was sent to, or null if the peer is unknown
+     * @param connectionBean
+     *            The connection bean with the timer and the reservation for the hedge
+     * @param tcp
+     *            True if the hedge needs a TCP permit, false for UDP
+     * @param hedgeRequest
+     *            Creates the hedge to the next candidate
+     * @return The future to wait for instead of the primary request. It completes with the first successful response
+     *         of the primary request or the hedge, and fails only if both failed, see
+     *         {@link HedgedResponse#answered()}
+     */
+    public FutureResponse hedge(final FutureResponse primary, final PeerStatistic peerStatistic,
+            final ConnectionBean connectionBean, final boolean tcp, final HedgeRequest hedgeRequest) {
+        if (primary == null || primary.isCompleted()) {
+            return primary;
+        }
+        requests.incrementAndGet();
+        earn();
+        final HedgedResponse answer = new HedgedResponse(primary);
+        final ScheduledFuture<?> scheduled = connectionBean.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!answer.startHedge()) {
+                    return;
+                }
+                if (!acquire()) {
+                    denied.incrementAndGet();
+                    LOG.debug("No budget to hedge {}.", primary.request());
+                    answer.hedgeDone(null);
+                    return;
+                }
+                // a hedge is only worth it if it can be sent right away, never queue for a permit
+                final ChannelCreator channelCreator = connectionBean.reservation().tryCreate(tcp ? 0 : 1,
+                        tcp ? 1 : 0);
+                if (channelCreator == null) {
+                    LOG.debug("No free permit to hedge {}.", primary.request());
+                    release(true);
+                    answer.hedgeDone(null);
+                    return;
+                }
+                final FutureResponse hedge = answer.isCompleted() ? null : hedgeRequest.create(channelCreator);
+                if (hedge == null) {
+                    release(true);
+                    channelCreator.shutdown();
+                    answer.hedgeDone(null);
+                    return;
+                }
+                sent(answer, hedge, channelCreator);
+            }
+        }, delayMillis(peerStatistic), TimeUnit.MILLISECONDS);
+
+        primary.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                answer.primaryDone();
+            }
+        });
+        answer.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                scheduled.cancel(false);
+                if (!primary.isCompleted()) {
+                    primary.cancel();
+                }
+            }
+        });
+        return answer;
+    }
+
+    private void sent(final HedgedResponse answer, final FutureResponse hedge, final ChannelCreator channelCreator) {
+        hedges.incrementAndGet();
+        LOG.debug("Hedge {} with {}.", answer.request(), hedge.request());
+        Utils.addReleaseListener(channelCreator, hedge);
+        hedge.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                release(false);
+                if (answer.hedgeDone(future)) {
+                    won.incrementAndGet();
+                }
+            }
+        });
+        answer.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (!hedge.isCompleted()) {
+                    hedge.cancel();
+                }
+            }
+        });
+    }
+
+    private void earn() {
+        while (true) {
+            final long current = tokens.get();
+            final long next = Math.min(maxTokens, current + tokensPerRequest);
+            if (next == current || tokens.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private boolean acquire() {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        while (true) {
+            final long current = tokens.get();
+            if (current < TOKEN) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(final boolean refund) {
+        inFlight.decrementAndGet();
+        if (refund) {
+            tokens.addAndGet(TOKEN);
+        }
+    }
+
+    /**
+     * @return The number of requests that have been watched
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of hedges that have been sent
+     */
+    public long hedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return The number of hedges that answered before the original request
+     */
+    public long won() {
+        return won.get();
+    }
+
+    /**
+     * @return The number of slow requests that were not hedged because the budget was used up
+     */
+    public long denied() {
+        return denied.get();
+    }
+
+    /**
+     * @return The number of hedges in flight
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public double percentile() {
+        return percentile;
+    }
+
+    public int defaultDelayMillis() {
+        return defaultDelayMillis;
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("hedging:");
+        sb.append(hedges()).append("/").append(requests()).append(",won:").append(won()).append(",denied:")
+                .append(denied());
+        return sb.toString();
+    }
+
+    /**
+     * The future of a hedged request. It completes with the first successful response of the primary request or the
+     * hedge. If the primary request fails while a hedge is on its way, the hedge can still answer, so the slot of the
+     * primary request is filled.
+     * 
+     * @author Thomas Bocek
+     * 
+     */
+    public static final class HedgedResponse extends FutureResponse {
+
+        private final FutureResponse primary;
+
+        // guarded by this
+        private boolean hedgeRunning = false;
+        private boolean primaryFailed = false;
+        private FutureResponse answered;
+
+        private HedgedResponse(final FutureResponse primary) {
+            super(primary.request());
+            this.primary = primary;
+        }
+
+        /**
+         * @return The request that answered, or the primary request if none has answered yet. Its RTT and recipient
+         *         belong to the peer that answered
+         */
+        public synchronized FutureResponse answered() {
+            return answered == null ? primary : answered;
+        }
+
+        /**
+         * @return True if a hedge may be sent, false if the primary request has already finished
+         */
+        private boolean startHedge() {
+            synchronized (this) {
+                if (primary.isCompleted() || isCompleted()) {
+                    return false;
+                }
+                hedgeRunning = true;
+                return true;
+            }
+        }
+
+        private void primaryDone() {
+            if (primary.isSuccess()) {
+                answer(primary);
+                return;
+            }
+            synchronized (this) {
+                primaryFailed = true;
+                if (hedgeRunning) {
+                    // the hedge may still answer
+                    return;
+                }
+            }
+            failed(primary);
+        }
+
+        /**
+         * @param hedge
+         *            The hedge that finished or null if no hedge was sent
+         * @return True if the hedge answered
+         */
+        private boolean hedgeDone(final FutureResponse hedge) {
+            if (hedge != null && hedge.isSuccess()) {
+                return answer(hedge);
+            }
+            synchronized (this) {
+                hedgeRunning = false;
+                if (!primaryFailed) {
+                    return false;
+                }
+            }
+            failed(primary);
+            return false;
+        }
+
+        private boolean answer(final FutureResponse futureResponse) {
+            synchronized (this) {
+                if (answered != null) {
+                    return false;
+                }
+                answered = futureResponse;
+            }
+            response(futureResponse.responseMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Creates the hedge of a slow request.
+     * 
+     * @author Thomas Bocek
+     * 
+     */
+    public interface HedgeRequest {
+        /**
+         * @param channelCreator
+         *            The channel creator with one permit for the hedge
+         * @return The hedge to the next candidate or null if there is no candidate left
+         */
+        FutureResponse create(ChannelCreator channelCreator);
+    }
+}
@@ -1,20 +1,36 @@
 package net.tomp2p.p2p;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FuturePing;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.BatchMaintainable;
 import net.tomp2p.peers.Maintainable;
+import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,14 +40,33 @@ public class MaintenanceTask implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(MaintenanceTask.class);
     private static final int MAX_PING = 5;
     private static final AtomicInteger COUNTER = new AtomicInteger(0);
+    
+    public static final int DEFAULT_REFRESH_INTERVAL_MILLIS = 10 * 60 * 1000;
 
     private Peer peer;
+    
+    private DistributedRouting distributedRouting;
 
     private int intervalMillis = 1000;
+    
+    private int maxPingsPerTick = MAX_PING;
+    
+    private int refreshIntervalMillis = DEFAULT_REFRESH_INTERVAL_MILLIS;
+    
+    private RoutingConfiguration refreshRoutingConfiguration = new RoutingConfiguration(8, 10, 2);
+    
+    private final ConnectionConfiguration connectionConfiguration = new DefaultConnectionConfiguration();
 
     private List<Maintainable> maintainables = new ArrayList<Maintainable>();
 
     private Map<BaseFuture, PeerAddress> runningFutures = new HashMap<BaseFuture, PeerAddress>();
+    
+    // the last time a bag was refreshed with a lookup, the index is the bag index
+    private final long[] lastRefresh = new long[Number160.BITS];
+    
+    private final Random random = new Random();
+    
+    private boolean refreshing = false;
 
     private boolean shutdown = false;
 
@@ -41,43 +76,204 @@ public class MaintenanceTask implements Runnable {
 
     public void init(Peer peer, ScheduledExecutorService timer) {
         this.peer = peer;
+        // a bag is only stale if it has not been seen for a whole refresh interval after startup
+        Arrays.fill(lastRefresh, System.currentTimeMillis());
         scheduledFuture = timer.scheduleAtFixedRate(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void run() {
         synchronized (lock) {
-            //make sure we only have 5 pings in parallel
-            if (shutdown || COUNTER.get() > MAX_PING) {
+            if (shutdown) {
                 return;
             }
-            for (Maintainable maintainable : maintainables) {
-                PeerStatistic peerStatatistic = maintainable.nextForMaintenance(runningFutures.values());
-                if(peerStatatistic == null) {
-                    continue;
+            //make sure we only have 5 pings in parallel
+            final int budget = Math.min(maxPingsPerTick, MAX_PING - COUNTER.get());
+            if (budget > 0) {
+                pingDue(budget);
+            }
+            if (refreshIntervalMillis > 0 && distributedRouting != null && !refreshing) {
+                refreshStaleBag();
+            }
+        }
+    }
+
+    /**
+     * Picks the peers that need maintenance from all maintainables and pings them. The remote peers are pinged with a
+     * single reservation for the whole batch, so that the pings share the channel creator and, if enabled, the shared
+     * UDP channels.
+     * 
+     * @param budget
+     *            The maximum number of pings for this tick
+     */
+    private void pingDue(final int budget) {
+        final Collection<PeerAddress> notInterested = new HashSet<PeerAddress>(runningFutures.values());
+        final List<PeerStatistic> remote = new ArrayList<PeerStatistic>();
+        int count = 0;
+        for (Maintainable maintainable : maintainables) {
+            if (count >= budget) {
+                break;
+            }
+            for (PeerStatistic peerStatistic : nextForMaintenance(maintainable, notInterested, budget - count)) {
+                notInterested.add(peerStatistic.peerAddress());
+                count++;
+                if (peerStatistic.isLocal()) {
+                    final BaseFuture future = peer.localAnnounce().ping().peerAddress(peerStatistic.peerAddress()).start();
+                    LOG.debug("Maintenance local ping from {} to {}.", peer.peerAddress(), peerStatistic.peerAddress());
+                    track(future, peerStatistic.peerAddress());
+                } else {
+                    remote.add(peerStatistic);
                 }
-                BaseFuture future;
-                if(peerStatatistic.isLocal()) {
-                	future = peer.localAnnounce().ping().peerAddress(peerStatatistic.peerAddress()).start();
-                	LOG.debug("Maintenance local ping from {} to {}.", peer.peerAddress(), peerStatatistic.peerAddress());
-                } else { 
-                	future = peer.ping().peerAddress(peerStatatistic.peerAddress()).start();
-                	LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), peerStatatistic.peerAddress());
+            }
+        }
+        if (remote.isEmpty()) {
+            return;
+        }
+        final List<FuturePing> futurePings = new ArrayList<FuturePing>(remote.size());
+        for (PeerStatistic peerStatistic : remote) {
+            final FuturePing futurePing = new FuturePing();
+            futurePings.add(futurePing);
+            track(futurePing, peerStatistic.peerAddress());
+        }
+        LOG.debug("Maintenance ping from {} to {} peers.", peer.peerAddress(), remote.size());
+        final FutureChannelCreator fcc = peer.connectionBean().reservation().create(remote.size(), 0);
+        fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    for (FuturePing futurePing : futurePings) {
+                        futurePing.failed(future);
+                    }
+                    return;
                 }
-                peer.notifyAutomaticFutures(future);
-                runningFutures.put(future, peerStatatistic.peerAddress());
-                COUNTER.incrementAndGet();
-                future.addListener(new BaseFutureAdapter<BaseFuture>() {
+                final FutureResponse[] futureResponses = new FutureResponse[remote.size()];
+                for (int i = 0; i < futureResponses.length; i++) {
+                    final PeerAddress remotePeer = remote.get(i).peerAddress();
+                    futureResponses[i] = peer.pingRPC().ping(remotePeer, connectionConfiguration)
+                            .sendUDP(future.channelCreator());
+                    LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), remotePeer);
+                    addPingListener(futurePings.get(i), futureResponses[i]);
+                }
+                Utils.addReleaseListener(future.channelCreator(), futureResponses);
+            }
+        });
+    }
+
+    private static List<PeerStatistic> nextForMaintenance(final Maintainable maintainable,
+            final Collection<PeerAddress> notInterested, final int max) {
+        if (maintainable instanceof BatchMaintainable) {
+            return ((BatchMaintainable) maintainable).nextForMaintenance(notInterested, max);
+        }
+        final List<PeerStatistic> result = new ArrayList<PeerStatistic>();
+        final Collection<PeerAddress> skip = new HashSet<PeerAddress>(notInterested);
+        while (result.size() < max) {
+            final PeerStatistic peerStatistic = maintainable.nextForMaintenance(skip);
+            if (peerStatistic == null || !skip.add(peerStatistic.peerAddress())) {
+                break;
+            }
+            result.add(peerStatistic);
+        }
+        return result;
+    }
+
+    private static void addPingListener(final FuturePing futurePing, final FutureResponse futureResponse) {
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (future.isSuccess()) {
+                    futurePing.done(future.responseMessage().sender());
+                } else {
+                    futurePing.failed(future);
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks for the closest bag that has not been seen online for a refresh interval and refreshes it with a lookup of
+     * a random id in the range of this bag. Only bags from the closest non-empty bag on are considered, as the closer
+     * bags are expected to be empty. At most one bag is refreshed at a time.
+     */
+    private void refreshStaleBag() {
+        final PeerMap peerMap = peer.peerBean().peerMap();
+        final int closestBag = peerMap.closestBag();
+        if (closestBag < 0) {
+            // nothing to lookup from, this is what bootstrap is for
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (int i = closestBag; i < Number160.BITS; i++) {
+            if (now - lastRefresh[i] < refreshIntervalMillis || now - peerMap.lastSeenOnline(i) < refreshIntervalMillis) {
+                continue;
+            }
+            lastRefresh[i] = now;
+            refresh(peerMap.randomIdInBag(i, random), i);
+            return;
+        }
+    }
+
+    private void refresh(final Number160 randomId, final int bagIndex) {
+        final FutureDone<Void> futureRefresh = new FutureDone<Void>();
+        refreshing = true;
+        // not a check of a peer, so there is no address to exclude
+        runningFutures.put(futureRefresh, null);
+        futureRefresh.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                synchronized (lock) {
+                    runningFutures.remove(future);
+                    refreshing = false;
+                }
+            }
+        });
+        LOG.debug("Refresh bag {} of {} with a lookup for {}.", bagIndex, peer.peerAddress(), randomId);
+        final RoutingConfiguration routingConfiguration = refreshRoutingConfiguration;
+        final RoutingBuilder routingBuilder = new RoutingBuilder();
+        routingBuilder.locationKey(randomId);
+        routingBuilder.parallel(routingConfiguration.parallel());
+        routingBuilder.setMaxNoNewInfo(routingConfiguration.maxNoNewInfoDiff());
+        routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
+        routingBuilder.maxFailures(routingConfiguration.maxFailures());
+        routingBuilder.maxSuccess(routingConfiguration.maxSuccess());
+        final FutureChannelCreator fcc = peer.connectionBean().reservation()
+                .create(routingConfiguration, null, routingBuilder);
+        fcc.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureRefresh.failed(future);
+                    return;
+                }
+                final FutureRouting futureRouting = distributedRouting.route(routingBuilder, Type.REQUEST_1,
+                        future.channelCreator());
+                Utils.addReleaseListener(future.channelCreator(), futureRouting);
+                futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                     @Override
-                    public void operationComplete(BaseFuture future) throws Exception {
-                    	synchronized (lock) {
-                            runningFutures.remove(future);
-                            COUNTER.decrementAndGet();
+                    public void operationComplete(final FutureRouting future) throws Exception {
+                        if (future.isSuccess()) {
+                            futureRefresh.done();
+                        } else {
+                            futureRefresh.failed(future);
                         }
                     }
                 });
             }
-        }
+        });
+    }
+
+    private void track(final BaseFuture future, final PeerAddress peerAddress) {
+        peer.notifyAutomaticFutures(future);
+        runningFutures.put(future, peerAddress);
+        COUNTER.incrementAndGet();
+        future.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(BaseFuture future) throws Exception {
+                synchronized (lock) {
+                    runningFutures.remove(future);
+                    COUNTER.decrementAndGet();
+                }
+            }
+        });
     }
 
     public FutureDone<Void> shutdown() {
@@ -116,6 +312,59 @@ public class MaintenanceTask implements Runnable {
         this.intervalMillis = intervalMillis;
         return this;
     }
+
+    public int maxPingsPerTick() {
+        return maxPingsPerTick;
+    }
+
+    /**
+     * @param maxPingsPerTick
+     *            The maximum number of maintenance pings per interval. The number of pings in flight is limited to 5
+     *            in any case
+     * @return This class
+     */
+    public MaintenanceTask maxPingsPerTick(int maxPingsPerTick) {
+        this.maxPingsPerTick = maxPingsPerTick;
+        return this;
+    }
+
+    public int refreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    /**
+     * @param refreshIntervalMillis
+     *            The time after which a bag without any peer seen online is refreshed with a lookup. Set to 0 to
+     *            disable the refresh
+     * @return This class
+     */
+    public MaintenanceTask refreshIntervalMillis(int refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        return this;
+    }
+
+    public RoutingConfiguration refreshRoutingConfiguration() {
+        return refreshRoutingConfiguration;
+    }
+
+    public MaintenanceTask refreshRoutingConfiguration(RoutingConfiguration refreshRoutingConfiguration) {
+        this.refreshRoutingConfiguration = refreshRoutingConfiguration;
+        return this;
+    }
+
+    public DistributedRouting distributedRouting() {
+        return distributedRouting;
+    }
+
+    /**
+     * @param distributedRouting
+     *            The routing used to refresh stale bags, null if routing is not enabled
+     * @return This class
+     */
+    public MaintenanceTask distributedRouting(DistributedRouting distributedRouting) {
+        this.distributedRouting = distributedRouting;
+        return this;
+    }
     
     public void addMaintainable(Maintainable maintainable) {
         maintainables.add(maintainable);
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.p2p;
+
+import net.tomp2p.peers.PeerStatistic;
+
+/**
+ * Adapts the number of requests in flight of one lookup, see {@link AdaptiveParallelism}. It also keeps the metrics of
+ * this lookup, which are available with {@link net.tomp2p.futures.FutureRouting#parallelismController()}. This class
+ * is thread-safe.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class ParallelismController {
+
+    private final int minParallel;
+    private final int maxParallel;
+    private final int narrowAfter;
+    private final int slowMillis;
+
+    private int parallel;
+    private int healthyInARow = 0;
+
+    private int responses = 0;
+    private int slowResponses = 0;
+    private int failures = 0;
+    private int widened = 0;
+    private int narrowed = 0;
+    private int highestParallel;
+    private int lowestParallel;
+
+    ParallelismController(final int parallel, final int minParallel, final int maxParallel, final int narrowAfter,
+            final int slowMillis) {
+        this.parallel = parallel;
+        this.minParallel = minParallel;
+        this.maxParallel = maxParallel;
+        this.narrowAfter = narrowAfter;
+        this.slowMillis = slowMillis;
+        this.highestParallel = parallel;
+        this.lowestParallel = parallel;
+    }
+
+    /**
+     * @return The number of requests that should be in flight now
+     */
+    public synchronized int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @return The number of requests that are in flight at least, the permits for these are reserved up front
+     */
+    public int minParallel() {
+        return minParallel;
+    }
+
+    /**
+     * @return The number of requests that can be in flight at most
+     */
+    public int maxParallel() {
+        return maxParallel;
+    }
+
+    /**
+     * Reports a response.
+     * 
+     * @param rttMillis
+     *            The round-trip time of the response
+     * @param peerStatistic
+     *            The statistic of the peer that responded, may be null if the peer is not in the peer map
+     * @return The new parallelism
+     */
+    public synchronized int success(final long rttMillis, final PeerStatistic peerStatistic) {
+        responses++;
+        final long expected = peerStatistic == null ? -1 : peerStatistic.rttPercentile(
+                AdaptiveParallelism.SLOW_PERCENTILE);
+        final boolean slow = expected >= 0 ? rttMillis > expected : rttMillis > slowMillis;
+        if (slow) {
+            slowResponses++;
+            healthyInARow = 0;
+            widen();
+        } else if (++healthyInARow >= narrowAfter) {
+            healthyInARow = 0;
+            narrow();
+        }
+        return parallel;
+    }
+
+    /**
+     * Reports a failed request, mostly a timeout.
+     * 
+     * @return The new parallelism
+     */
+    public synchronized int failed() {
+        failures++;
+        healthyInARow = 0;
+        widen();
+        return parallel;
+    }
+
+    public synchronized int responses() {
+        return responses;
+    }
+
+    public synchronized int slowResponses() {
+        return slowResponses;
+    }
+
+    public synchronized int failures() {
+        return failures;
+    }
+
+    /**
+     * @return How many times the parallelism was increased
+     */
+    public synchronized int widened() {
+        return widened;
+    }
+
+    /**
+     * @return How many times the parallelism was decreased
+     */
+    public synchronized int narrowed() {
+        return narrowed;
+    }
+
+    public synchronized int highestParallel() {
+        return highestParallel;
+    }
+
+    public synchronized int lowestParallel() {
+        return lowestParallel;
+    }
+
+    private void widen() {
+        if (parallel < maxParallel) {
+            parallel++;
+            widened++;
+            highestParallel = Math.max(highestParallel, parallel);
+        }
+    }
+
+    private void narrow() {
+        if (parallel > minParallel) {
+            parallel--;
+            narrowed++;
+            lowestParallel = Math.min(lowestParallel, parallel);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("parallel:");
+        sb.append(parallel).append(" [").append(lowestParallel).append("-").append(highestParallel);
+        sb.append("], responses:").append(responses).append(", slow:").append(slowResponses);
+        sb.append(", failures:").append(failures).append(", widened:").append(widened);
+        sb.append(", narrowed:").append(narrowed);
+        return sb.toString();
+    }
+}
@@ -44,6 +44,7 @@ import net.tomp2p.rpc.AnnounceRPC;
 import net.tomp2p.rpc.BroadcastRPC;
 import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.rpc.RecursiveNeighborRPC;
 import net.tomp2p.rpc.ObjectDataReply;
 import net.tomp2p.rpc.PingRPC;
 import net.tomp2p.rpc.QuitRPC;
@@ -87,6 +88,7 @@ public class Peer {
     private PingRPC pingRCP;
     private QuitRPC quitRPC;
     private NeighborRPC neighborRPC;
+    private RecursiveNeighborRPC recursiveNeighborRPC;
     private DirectDataRPC directDataRPC;
     private BroadcastRPC broadcastRPC;
     private AnnounceRPC announceRPC;
@@ -152,6 +154,18 @@ public class Peer {
         return this;
     }
 
+    public RecursiveNeighborRPC recursiveNeighborRPC() {
+        if (recursiveNeighborRPC == null) {
+            throw new RuntimeException("Recursive Neighbor RPC not enabled. Please enable this RPC in the PeerBuilder.");
+        }
+        return recursiveNeighborRPC;
+    }
+
+    public Peer recursiveNeighborRPC(RecursiveNeighborRPC recursiveNeighborRPC) {
+        this.recursiveNeighborRPC = recursiveNeighborRPC;
+        return this;
+    }
+
     public DirectDataRPC directDataRPC() {
         if (directDataRPC == null) {
             throw new RuntimeException("Direct Data RPC not enabled. Please enable this RPC in the PeerBuilder.");
@@ -273,7 +287,8 @@ public class Peer {
             public void operationComplete(final FutureChannelCreator future) throws Exception {
                 if (future.isSuccess()) {
                     final ChannelCreator cc = fcc.channelCreator();
-                    final PeerConnection peerConnection = new PeerConnection(destination, cc, heartBeatMillis);
+                    final PeerConnection peerConnection = new PeerConnection(destination, cc, heartBeatMillis,
+                            connectionBean().resourceConfiguration().maxInFlightTCP());
                     futureDone.done(peerConnection);
                 } else {
                     futureDone.failed(future);
@@ -53,6 +53,7 @@ import net.tomp2p.rpc.BroadcastRPC;
 import net.tomp2p.rpc.DefaultBloomfilterFactory;
 import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.rpc.RecursiveNeighborRPC;
 import net.tomp2p.rpc.PingRPC;
 import net.tomp2p.rpc.QuitRPC;
 import net.tomp2p.utils.Pair;
@@ -123,10 +124,13 @@ public class PeerBuilder {
 	private Random random = null;
 	private List<PeerInit> toInitialize = new ArrayList<PeerInit>(1);
 	private SendBehavior sendBehavior;
+	private RouteCache routeCache = null;
+	private Hedging hedging = null;
 
 	// enable / disable RPC/P2P/other
 	private boolean enableHandShakeRPC = true;
 	private boolean enableNeighborRPC = true;
+	private boolean enableRecursiveNeighborRPC = false;
 	private boolean enableDirectDataRPC = true;
 	private boolean enableBroadcast = true;
 	private boolean enableRouting = true;
@@ -276,6 +280,9 @@ public class PeerBuilder {
 		if (isEnableNeighborRPC()) {
 			NeighborRPC neighborRPC = new NeighborRPC(peerBean, connectionBean);
 			peer.neighborRPC(neighborRPC);
+			if (isEnableRecursiveNeighborRPC()) {
+				peer.recursiveNeighborRPC(new RecursiveNeighborRPC(peerBean, connectionBean, neighborRPC));
+			}
 		}
 
 		if (isEnableDirectDataRPC()) {
@@ -293,8 +300,15 @@ public class PeerBuilder {
 			peer.announceRPC(announceRPC);
 		}
 		
+		DistributedRouting routing = null;
 		if (isEnableRouting() && isEnableNeighborRPC()) {
-			DistributedRouting routing = new DistributedRouting(peerBean, peer.neighborRPC());
+			routing = new DistributedRouting(peerBean, peer.neighborRPC());
+			if (routeCache != null) {
+				routing.routeCache(routeCache);
+				peerMap.addPeerMapChangeListener(routeCache);
+			}
+			routing.hedging(hedging);
+			routing.recursiveNeighbors(peer.recursiveNeighborRPC());
 			peer.distributedRouting(routing);
 		}
 
@@ -304,6 +318,7 @@ public class PeerBuilder {
 
 		if (maintenanceTask != null) {
 			maintenanceTask.init(peer, connectionBean.timer());
+			maintenanceTask.distributedRouting(routing);
 			maintenanceTask.addMaintainable(peerMap);
 			maintenanceTask.addMaintainable(localMap);
 		}
@@ -562,6 +577,22 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public boolean isEnableRecursiveNeighborRPC() {
+		return enableRecursiveNeighborRPC;
+	}
+
+	/**
+	 * @param enableRecursiveNeighborRPC
+	 *            True to forward recursive lookups of other peers and to route recursively if the routing builder asks
+	 *            for it. This is off by default, as a peer then sends requests on behalf of other peers. It needs the
+	 *            neighbor RPC.
+	 * @return This class
+	 */
+	public PeerBuilder enableRecursiveNeighborRPC(boolean enableRecursiveNeighborRPC) {
+		this.enableRecursiveNeighborRPC = enableRecursiveNeighborRPC;
+		return this;
+	}
+
 	public boolean isEnableDirectDataRPC() {
 		return enableDirectDataRPC;
 	}
@@ -663,6 +694,46 @@ public class PeerBuilder {
 		return sendBehavior;
 	}
 
+	/**
+	 * Set the cache for routing results. If none is set, every DHT operation routes to its location key. The cache
+	 * is only used by operations that enable it.
+	 * 
+	 * @param routeCache
+	 *            The cache for routing results
+	 * @return This class
+	 */
+	public PeerBuilder routeCache(RouteCache routeCache) {
+		this.routeCache = routeCache;
+		return this;
+	}
+
+	/**
+	 * @return The cache for routing results or null if routing results are not cached
+	 */
+	public RouteCache routeCache() {
+		return routeCache;
+	}
+
+	/**
+	 * Set the hedging of slow requests. If none is set, the routing and the DHT operations wait for slow peers until
+	 * the request times out.
+	 * 
+	 * @param hedging
+	 *            The hedging with the budget that is shared by all operations of this peer
+	 * @return This class
+	 */
+	public PeerBuilder hedging(Hedging hedging) {
+		this.hedging = hedging;
+		return this;
+	}
+
+	/**
+	 * @return The hedging of slow requests or null if slow requests are not hedged
+	 */
+	public Hedging hedging() {
+		return hedging;
+	}
+
 	/**
 	 * The default filter is no filter, just return the same array.
 	 * 
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.p2p;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerStatistic;
+
+/**
+ * A routing strategy in the spirit of proximity neighbor selection. All peers that share the same bucket distance to
+ * the location key as the closest peer in the queue make the same progress, as each of them fixes the same number of
+ * bits. Among those, the peer with the lowest RTT percentile is asked, so that a far peer is not chosen if a near one
+ * gets us as close. Peers without a measured RTT fall back to their mean RTT, which may be an estimate from the peer
+ * that reported them. Peers without any RTT are only asked if no candidate has one, and then by XOR distance.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class ProximityRoutingStrategy implements RoutingStrategy {
+
+    public static final double DEFAULT_PERCENTILE = 0.9;
+    public static final int DEFAULT_MAX_CANDIDATES = 8;
+
+    private final double percentile;
+    private final int maxCandidates;
+
+    /**
+     * Creates a strategy that compares the p90 of up to 8 candidates.
+     */
+    public ProximityRoutingStrategy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MAX_CANDIDATES);
+    }
+
+    /**
+     * Creates a strategy.
+     * 
+     * @param percentile
+     *            The RTT percentile to compare, between 0 and 1
+     * @param maxCandidates
+     *            The number of peers in the same bucket distance that are considered, as the queue can be long
+     */
+    public ProximityRoutingStrategy(final double percentile, final int maxCandidates) {
+        if (percentile < 0 || percentile > 1 || maxCandidates < 1) {
+            throw new IllegalArgumentException("Percentile needs to be between 0 and 1, candidates at least 1.");
+        }
+        this.percentile = percentile;
+        this.maxCandidates = maxCandidates;
+    }
+
+    @Override
+    public PeerStatistic next(final NavigableSet<PeerStatistic> queueToAsk, final Number160 locationKey) {
+        if (queueToAsk.isEmpty()) {
+            return null;
+        }
+        if (locationKey == null || maxCandidates == 1) {
+            return queueToAsk.pollFirst();
+        }
+        final Iterator<PeerStatistic> iterator = queueToAsk.iterator();
+        PeerStatistic best = iterator.next();
+        final int bucket = locationKey.distanceBitLength(best.peerAddress().peerId());
+        long bestRTT = rtt(best);
+        for (int i = 1; i < maxCandidates && iterator.hasNext(); i++) {
+            final PeerStatistic candidate = iterator.next();
+            if (locationKey.distanceBitLength(candidate.peerAddress().peerId()) != bucket) {
+                // the queue is sorted by distance, no more peers with the same progress
+                break;
+            }
+            final long candidateRTT = rtt(candidate);
+            // on a tie keep the closer one
+            if (candidateRTT < bestRTT) {
+                best = candidate;
+                bestRTT = candidateRTT;
+            }
+        }
+        queueToAsk.remove(best);
+        return best;
+    }
+
+    private long rtt(final PeerStatistic peerStatistic) {
+        final long rtt = peerStatistic.rttPercentile(percentile);
+        if (rtt >= 0) {
+            return rtt;
+        }
+        final long mean = peerStatistic.getMeanRTT();
+        return mean >= 0 ? mean : Long.MAX_VALUE;
+    }
+}
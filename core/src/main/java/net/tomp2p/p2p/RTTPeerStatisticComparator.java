@@ -3,7 +3,6 @@ package net.tomp2p.p2p;
 import java.util.Comparator;
 
 import net.tomp2p.peers.Number160;
-import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatistic;
 
 /**
@@ -29,6 +28,7 @@ import net.tomp2p.peers.PeerStatistic;
 public class RTTPeerStatisticComparator implements PeerStatisticComparator {
     @Override
     public Comparator<PeerStatistic> getComparator(final Number160 location) {
+        final Number160.DistanceComparator distance = new Number160.DistanceComparator(location);
         return new Comparator<PeerStatistic>() {
             @Override
             public int compare(PeerStatistic o1, PeerStatistic o2) {
@@ -36,7 +36,9 @@ public class RTTPeerStatisticComparator implements PeerStatisticComparator {
                 if (o1.peerAddress().equals(o2.peerAddress())) return 0;
 
                 // First sort by bucket distance
-                int firstComp = PeerMap.classCloser(location, o1.peerAddress(), o2.peerAddress());
+                final int d1 = distance.distanceBitLength(o1.peerAddress().peerId());
+                final int d2 = distance.distanceBitLength(o2.peerAddress().peerId());
+                int firstComp = d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
                 if (firstComp == 0) {
                     // Second sort by "is rtt available"
                     if (o1.getMeanRTT() < 0 && o2.getMeanRTT() >= 0) {
@@ -45,12 +47,10 @@ public class RTTPeerStatisticComparator implements PeerStatisticComparator {
                         return -1;
                     } else if (o1.getMeanRTT() >= 0 && o2.getMeanRTT() >= 0 && o1.getMeanRTT() != o2.getMeanRTT()) {
                         // Third sort by rtt if they are different)
-                        Long rtt1 = o1.getMeanRTT();
-                        Long rtt2 = o2.getMeanRTT();
-                        return rtt1.compareTo(rtt2);
+                        return o1.getMeanRTT() < o2.getMeanRTT() ? -1 : 1;
                     }
                     // Last sort by true xor distance (will never be 0)
-                    return PeerMap.isKadCloser(location, o1.peerAddress(), o2.peerAddress());
+                    return distance.compare(o1.peerAddress().peerId(), o2.peerAddress().peerId());
                 } else {
                     return firstComp;
                 }
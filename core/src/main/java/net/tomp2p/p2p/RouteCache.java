@@ -0,0 +1,224 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.p2p;
+
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+/**
+ * Caches the results of the routing process for a short time. If the same location key is looked up again, the
+ * {@link DistributedRouting} returns the cached potential hits instead of starting a new iterative lookup, which saves
+ * the round-trips if a few keys are requested very often. Only the peers close to the location key are cached, which
+ * are the same for routing to a location key ({@link Type#REQUEST_1}) and routing that also looks for the data
+ * ({@link Type#REQUEST_2}). The direct hits and their digests depend on the data that is stored right now, so a cached
+ * result has no direct hits and the DHT operation asks the potential hits.
+ * <p>
+ * An entry expires after the time to live. It is also dropped if one of its peers has been removed from the peer map,
+ * which is checked when the entry is read. Thus, this class has to be added as a {@link PeerMapChangeListener}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class RouteCache implements PeerMapChangeListener {
+
+    public static final int DEFAULT_TIME_TO_LIVE_SECONDS = 10;
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final ConcurrentCacheMap<Number160, CachedRoute> routes;
+    // the time when a peer has been removed from the peer map, an entry created before is invalid
+    private final ConcurrentCacheMap<Number160, Long> removedPeers;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a route cache with a time to live of {@link #DEFAULT_TIME_TO_LIVE_SECONDS} and
+     * {@link #DEFAULT_MAX_ENTRIES} entries.
+     */
+    public RouteCache() {
+        this(DEFAULT_TIME_TO_LIVE_SECONDS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a route cache.
+     * 
+     * @param timeToLiveSeconds
+     *            The time a routing result is reused
+     * @param maxEntries
+     *            The number of routing results to keep, the least recently used is replaced
+     */
+    public RouteCache(final int timeToLiveSeconds, final int maxEntries) {
+        this.routes = new ConcurrentCacheMap<Number160, CachedRoute>(timeToLiveSeconds, maxEntries, false);
+        this.removedPeers = new ConcurrentCacheMap<Number160, Long>(timeToLiveSeconds, maxEntries, false);
+    }
+
+    /**
+     * @param routingBuilder
+     *            The routing information
+     * @param type
+     *            The type of the routing
+     * @return True if the result of this routing can be cached
+     */
+    public static boolean isCacheable(final RoutingBuilder routingBuilder, final Type type) {
+        if (!routingBuilder.isRouteCache() || routingBuilder.isBootstrap() || routingBuilder.locationKey() == null) {
+            return false;
+        }
+        return type == Type.REQUEST_1 || type == Type.REQUEST_2;
+    }
+
+    /**
+     * Returns the cached routing result. The future is already completed, it has no direct hits and its sets are
+     * copies, so the caller may modify them.
+     * 
+     * @param routingBuilder
+     *            The routing information, needs to be cacheable
+     * @return The completed routing future or null if nothing valid is cached
+     */
+    public FutureRouting get(final RoutingBuilder routingBuilder) {
+        final CachedRoute cachedRoute = routes.get(routingBuilder.locationKey());
+        if (cachedRoute == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!isValid(cachedRoute)) {
+            invalidations.incrementAndGet();
+            misses.incrementAndGet();
+            routes.remove(routingBuilder.locationKey(), cachedRoute);
+            return null;
+        }
+        hits.incrementAndGet();
+        final FutureRouting futureRouting = new FutureRouting();
+        futureRouting.neighbors(new TreeMap<PeerAddress, DigestInfo>(),
+                new TreeSet<PeerAddress>(cachedRoute.potentialHits), new TreeSet<PeerAddress>(cachedRoute.routingPath),
+                false, true);
+        return futureRouting;
+    }
+
+    /**
+     * Caches the result of the routing once it succeeded.
+     * 
+     * @param routingBuilder
+     *            The routing information, needs to be cacheable
+     * @param futureRouting
+     *            The routing that is in progress
+     */
+    public void put(final RoutingBuilder routingBuilder, final FutureRouting futureRouting) {
+        final Number160 locationKey = routingBuilder.locationKey();
+        final long created = System.currentTimeMillis();
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                if (!future.isSuccess() || future.potentialHits() == null || future.potentialHits().isEmpty()
+                        || future.routingPath() == null) {
+                    return;
+                }
+                // copy now, as the DHT operations consume the sets of the future
+                routes.put(locationKey, new CachedRoute(created, new TreeSet<PeerAddress>(future.potentialHits()),
+                        new TreeSet<PeerAddress>(future.routingPath())));
+            }
+        });
+    }
+
+    /**
+     * Removes all cached routing results.
+     */
+    public void clear() {
+        routes.clear();
+    }
+
+    /**
+     * @return The number of lookups that were answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of lookups that needed a routing
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of cached results dropped because one of its peers was removed
+     */
+    public long invalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        // a new close peer is picked up once the entry expires
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        removedPeers.put(peerAddress.peerId(), System.currentTimeMillis());
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        // the routing result does not change
+    }
+
+    private boolean isValid(final CachedRoute cachedRoute) {
+        for (final PeerAddress peerAddress : cachedRoute.potentialHits) {
+            if (isRemovedSince(peerAddress, cachedRoute.created)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isRemovedSince(final PeerAddress peerAddress, final long created) {
+        final Long removed = removedPeers.get(peerAddress.peerId());
+        return removed != null && removed.longValue() >= created;
+    }
+
+    /**
+     * An immutable routing result, the sets are never handed out.
+     */
+    private static final class CachedRoute {
+        private final long created;
+        private final NavigableSet<PeerAddress> potentialHits;
+        private final SortedSet<PeerAddress> routingPath;
+
+        private CachedRoute(final long created, final NavigableSet<PeerAddress> potentialHits,
+                final SortedSet<PeerAddress> routingPath) {
+            this.created = created;
+            this.potentialHits = potentialHits;
+            this.routingPath = routingPath;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package net.tomp2p.p2p;
 
 public class RoutingConfiguration {
+    private static final RoutingStrategy DEFAULT_ROUTING_STRATEGY = new DefaultRoutingStrategy();
+
     final private int maxDirectHits;
 
     final private int maxNoNewInfoDiff;
@@ -28,6 +30,10 @@ public class RoutingConfiguration {
 
     final private boolean forceTCP;
 
+    final private RoutingStrategy routingStrategy;
+
+    final private AdaptiveParallelism adaptiveParallelism;
+
     public RoutingConfiguration(int maxNoNewInfoDiff, int maxFailures, int parallel) {
         this(Integer.MAX_VALUE, maxNoNewInfoDiff, maxFailures, 20, parallel);
     }
@@ -60,6 +66,63 @@ public class RoutingConfiguration {
      */
     public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
             final int maxSuccess, final int parallel, final boolean forceTCP) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, forceTCP, null);
+    }
+
+    /**
+     * Sets the routing configuration, its stop conditions and how the next peer to ask is chosen.
+     * 
+     * @param maxDirectHits
+     *            Number of direct hits (d): This is used for fetching data. If d peers have been contacted that have
+     *            the data stored, routing stops.
+     * @param maxNoNewInfoDiff
+     *            Number of no new information (n): This is mainly used for storing data. It searches the closest peers
+     *            and if n peers do not report any closer nodes, the routing stops.
+     * @param maxFailures
+     *            Number of failures (f): The routing stops if f peers fail to respond.
+     * @param maxSuccess
+     *            Number of success (s): The routing stops if s peers respond.
+     * @param parallel
+     *            Number of parallel requests (p): This tells the routing how many peers to contact in parallel.
+     * @param forceTCP
+     *            Flag to indicate that routing should be done with TCP instead of UDP
+     * @param routingStrategy
+     *            Chooses the next peer to ask, e.g. {@link ProximityRoutingStrategy}. If null, the
+     *            {@link DefaultRoutingStrategy} asks the closest peer
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final boolean forceTCP, final RoutingStrategy routingStrategy) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, forceTCP, routingStrategy, null);
+    }
+
+    /**
+     * Sets the routing configuration, its stop conditions, how the next peer to ask is chosen and if the number of
+     * parallel requests adapts to the network.
+     * 
+     * @param maxDirectHits
+     *            Number of direct hits (d): This is used for fetching data. If d peers have been contacted that have
+     *            the data stored, routing stops.
+     * @param maxNoNewInfoDiff
+     *            Number of no new information (n): This is mainly used for storing data. It searches the closest peers
+     *            and if n peers do not report any closer nodes, the routing stops.
+     * @param maxFailures
+     *            Number of failures (f): The routing stops if f peers fail to respond.
+     * @param maxSuccess
+     *            Number of success (s): The routing stops if s peers respond.
+     * @param parallel
+     *            Number of parallel requests (p): This tells the routing how many peers to contact in parallel. In
+     *            adaptive mode, this is the number to start with.
+     * @param forceTCP
+     *            Flag to indicate that routing should be done with TCP instead of UDP
+     * @param routingStrategy
+     *            Chooses the next peer to ask, e.g. {@link ProximityRoutingStrategy}. If null, the
+     *            {@link DefaultRoutingStrategy} asks the closest peer
+     * @param adaptiveParallelism
+     *            The bounds of the adaptive mode, or null to always use p parallel requests
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final boolean forceTCP, final RoutingStrategy routingStrategy,
+            final AdaptiveParallelism adaptiveParallelism) {
         if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0) {
             throw new IllegalArgumentException("Some arguments need to be larger than or equals to zero.");
         }
@@ -69,6 +132,8 @@ public class RoutingConfiguration {
         this.maxSuccess = maxSuccess;
         this.parallel = parallel;
         this.forceTCP = forceTCP;
+        this.routingStrategy = routingStrategy == null ? DEFAULT_ROUTING_STRATEGY : routingStrategy;
+        this.adaptiveParallelism = adaptiveParallelism;
     }
 
     /**
@@ -120,6 +185,15 @@ public class RoutingConfiguration {
         return parallel;
     }
 
+    /**
+     * The lowest number of parallel requests, this is p or the lower bound of the adaptive mode. This many permits
+     * are reserved for the routing, if the adaptive mode widens, the routing reserves the additional permits itself.
+     * @return
+     */
+    public int minParallel() {
+        return adaptiveParallelism == null ? parallel : adaptiveParallelism.minParallel();
+    }
+
     /**
      * Flag to indicate that routing should be done with TCP instead of UDP.
      * @return
@@ -127,4 +201,20 @@ public class RoutingConfiguration {
     public boolean isForceTCP() {
         return forceTCP;
     }
+
+    /**
+     * The strategy that chooses the next peer to ask.
+     * @return
+     */
+    public RoutingStrategy routingStrategy() {
+        return routingStrategy;
+    }
+
+    /**
+     * The bounds of the adaptive parallelism or null if the number of parallel requests is fixed.
+     * @return
+     */
+    public AdaptiveParallelism adaptiveParallelism() {
+        return adaptiveParallelism;
+    }
 }
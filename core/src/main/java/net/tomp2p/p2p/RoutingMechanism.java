@@ -3,6 +3,7 @@ package net.tomp2p.p2p;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
@@ -11,6 +12,7 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
@@ -20,6 +22,8 @@ import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMapFilter;
 import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.rpc.DigestInfo;
+import net.tomp2p.rpc.NeighborRPC;
+import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.utils.Utils;
 
 import org.slf4j.Logger;
@@ -57,6 +61,10 @@ public class RoutingMechanism {
     private int maxFailures;
     private int maxSuccess;
     private boolean stopCreatingNewFutures;
+    private ParallelismController parallelismController;
+    // the permits of the slots above the reserved parallelism, guarded by this
+    private ChannelCreator[] slotChannelCreators;
+    private boolean slotChannelCreatorsClosed = false;
 
     /**
      * Creates the routing mechanism. Make sure to set the max* fields.
@@ -78,10 +86,114 @@ public class RoutingMechanism {
     }
 
     /**
-     * @return The number of parallel requests. The number is determined by the length of the future response array
+     * @return The number of parallel requests. The number is determined by the length of the future response array,
+     *         or by the controller in adaptive mode
      */
     public int parallel() {
-        return futureResponses.length();
+        final ParallelismController controller = parallelismController;
+        return controller == null ? futureResponses.length() : controller.parallel();
+    }
+
+    /**
+     * @return The controller of the adaptive parallelism or null if the parallelism is fixed
+     */
+    public ParallelismController parallelismController() {
+        return parallelismController;
+    }
+
+    public RoutingMechanism parallelismController(final ParallelismController parallelismController) {
+        this.parallelismController = parallelismController;
+        return this;
+    }
+
+    /**
+     * @return The number of parallel requests the channel creator of the routing has permits for. The slots above use
+     *         their own channel creator, see {@link #slotChannelCreator(int)}
+     */
+    public int reservedParallel() {
+        final ParallelismController controller = parallelismController;
+        return controller == null ? futureResponses.length() : Math.min(controller.minParallel(),
+                futureResponses.length());
+    }
+
+    /**
+     * @param slot
+     *            The slot above the reserved parallelism
+     * @return The channel creator with one permit for this slot or null if no permit has been reserved
+     */
+    public synchronized ChannelCreator slotChannelCreator(final int slot) {
+        return slotChannelCreators == null ? null : slotChannelCreators[slot];
+    }
+
+    /**
+     * Sets the channel creator with one permit for a slot above the reserved parallelism. If the routing is already
+     * finished, the channel creator is shut down right away.
+     * 
+     * @param slot
+     *            The slot above the reserved parallelism
+     * @param channelCreator
+     *            The channel creator with one permit
+     */
+    public void slotChannelCreator(final int slot, final ChannelCreator channelCreator) {
+        final ChannelCreator old;
+        synchronized (this) {
+            if (slotChannelCreatorsClosed) {
+                old = channelCreator;
+            } else {
+                if (slotChannelCreators == null) {
+                    slotChannelCreators = new ChannelCreator[futureResponses.length()];
+                }
+                old = slotChannelCreators[slot];
+                slotChannelCreators[slot] = channelCreator;
+            }
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Releases the permits of the slots at or above the given slot that have no request in flight. Called once the
+     * parallelism narrows.
+     * 
+     * @param from
+     *            The first slot to release
+     */
+    public void releaseSlotChannelCreators(final int from) {
+        final List<ChannelCreator> released = new ArrayList<ChannelCreator>();
+        synchronized (this) {
+            if (slotChannelCreators == null) {
+                return;
+            }
+            for (int i = from; i < slotChannelCreators.length; i++) {
+                if (slotChannelCreators[i] != null && futureResponses.get(i) == null) {
+                    released.add(slotChannelCreators[i]);
+                    slotChannelCreators[i] = null;
+                }
+            }
+        }
+        for (ChannelCreator channelCreator : released) {
+            channelCreator.shutdown();
+        }
+    }
+
+    /**
+     * Releases the permits of all slots, called once the routing is finished.
+     */
+    public void shutdownSlotChannelCreators() {
+        final ChannelCreator[] released;
+        synchronized (this) {
+            slotChannelCreatorsClosed = true;
+            released = slotChannelCreators;
+            slotChannelCreators = null;
+        }
+        if (released != null) {
+            for (ChannelCreator channelCreator : released) {
+                if (channelCreator != null) {
+                    channelCreator.shutdown();
+                }
+            }
+        }
     }
 
     /**
@@ -227,6 +339,15 @@ public class RoutingMechanism {
         }
     }
 
+    public PeerAddress pollInQueueToAsk(RoutingStrategy routingStrategy, Number160 locationKey) {
+        synchronized (this) {
+            PeerStatistic next = routingStrategy.next(queueToAsk, locationKey);
+            if (next == null)
+                return null;
+            return next.peerAddress();
+        }
+    }
+
     public PeerAddress pollRandomInQueueToAsk(Random rnd) {
         synchronized (this) {
             PeerStatistic first = Utils.pollRandom(queueToAsk(), rnd);
@@ -237,6 +358,32 @@ public class RoutingMechanism {
 
     }
 
+    /**
+     * Creates the filter of the peers the remote peer does not need to report. These are the peers closest to the
+     * location key that we have already asked or that are in the queue.
+     * 
+     * @return The filter or null if we know no peers
+     */
+    public SimpleBloomFilter<Number160> knownPeersFilter() {
+        final List<PeerAddress> known = new ArrayList<PeerAddress>(NeighborRPC.NEIGHBOR_SIZE * 2);
+        synchronized (this) {
+            // both sets are sorted by the distance to the location key, peers far away are not reported anyway
+            for (PeerAddress peerAddress : alreadyAsked) {
+                if (known.size() >= NeighborRPC.NEIGHBOR_SIZE) {
+                    break;
+                }
+                known.add(peerAddress);
+            }
+            for (PeerStatistic peerStatistic : queueToAsk) {
+                if (known.size() >= NeighborRPC.NEIGHBOR_SIZE * 2) {
+                    break;
+                }
+                known.add(peerStatistic.peerAddress());
+            }
+        }
+        return NeighborRPC.knownPeersFilter(known);
+    }
+
     public void addToAlreadyAsked(PeerAddress next) {
         synchronized (this) {
             alreadyAsked.add(next);
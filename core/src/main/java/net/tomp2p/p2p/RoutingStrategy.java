@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.p2p;
+
+import java.util.NavigableSet;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerStatistic;
+
+/**
+ * Decides which peer the routing asks next. The queue is sorted by the comparator of the peer map, the closest peer to
+ * the location key first. Set with {@link RoutingConfiguration}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface RoutingStrategy {
+
+    /**
+     * Removes the next peer to ask from the queue.
+     * 
+     * @param queueToAsk
+     *            The peers that have not been asked yet, the closest first
+     * @param locationKey
+     *            The key we are routing to
+     * @return The peer to ask next or null if the queue is empty
+     */
+    PeerStatistic next(NavigableSet<PeerStatistic> queueToAsk, Number160 locationKey);
+}
@@ -6,8 +6,12 @@ import java.util.concurrent.atomic.AtomicReferenceArray;
 import net.tomp2p.connection.DefaultConnectionConfiguration;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.p2p.AdaptiveParallelism;
+import net.tomp2p.p2p.ParallelismController;
 import net.tomp2p.p2p.PostRoutingFilter;
+import net.tomp2p.p2p.RouteCache;
 import net.tomp2p.p2p.RoutingMechanism;
+import net.tomp2p.p2p.RoutingStrategy;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerMapFilter;
@@ -37,6 +41,10 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
+    private boolean isRouteCache;
+    private boolean isRecursive;
+    private RoutingStrategy routingStrategy;
+    private AdaptiveParallelism adaptiveParallelism;
 
     public Number160 locationKey() {
         return locationKey;
@@ -161,6 +169,56 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         return isRoutingToOthers;
     }
 
+    /**
+     * @return True if a cached routing result may be used instead of routing, see {@link RouteCache}
+     */
+    public boolean isRouteCache() {
+        return isRouteCache;
+    }
+
+    public RoutingBuilder routeCache(boolean isRouteCache) {
+        this.isRouteCache = isRouteCache;
+        return this;
+    }
+
+    /**
+     * @return True if the lookup may be forwarded from peer to peer, see {@link net.tomp2p.rpc.RecursiveNeighborRPC}.
+     *         This is only used if the peer was built with
+     *         {@link net.tomp2p.p2p.PeerBuilder#enableRecursiveNeighborRPC(boolean)}
+     */
+    public boolean isRecursive() {
+        return isRecursive;
+    }
+
+    public RoutingBuilder recursive(boolean isRecursive) {
+        this.isRecursive = isRecursive;
+        return this;
+    }
+
+    /**
+     * @return The strategy that chooses the next peer to ask, null for the closest peer
+     */
+    public RoutingStrategy routingStrategy() {
+        return routingStrategy;
+    }
+
+    public RoutingBuilder routingStrategy(RoutingStrategy routingStrategy) {
+        this.routingStrategy = routingStrategy;
+        return this;
+    }
+
+    /**
+     * @return The bounds of the adaptive parallelism or null if {@link #parallel()} requests are always in flight
+     */
+    public AdaptiveParallelism adaptiveParallelism() {
+        return adaptiveParallelism;
+    }
+
+    public RoutingBuilder adaptiveParallelism(AdaptiveParallelism adaptiveParallelism) {
+        this.adaptiveParallelism = adaptiveParallelism;
+        return this;
+    }
+
     public Number160 contentKey() {
         return contentKey;
     }
@@ -186,9 +244,15 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     }
 
     public RoutingMechanism createRoutingMechanism(FutureRouting futureRouting) {
-        final FutureResponse[] futureResponses = new FutureResponse[parallel()];
+        final ParallelismController parallelismController = adaptiveParallelism == null ? null
+                : adaptiveParallelism.controller(parallel());
+        // in adaptive mode, there is a slot for the widest parallelism
+        final FutureResponse[] futureResponses = new FutureResponse[parallelismController == null ? parallel()
+                : parallelismController.maxParallel()];
         RoutingMechanism routingMechanism = new RoutingMechanism(
                 new AtomicReferenceArray<FutureResponse>(futureResponses), futureRouting, peerMapFilters);
+        routingMechanism.parallelismController(parallelismController);
+        futureRouting.parallelismController(parallelismController);
         routingMechanism.maxDirectHits(maxDirectHits());
         routingMechanism.maxFailures(maxFailures());
         routingMechanism.maxNoNewInfo(maxNoNewInfo());
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.peers;
+
+import java.util.AbstractList;
+import java.util.Comparator;
+import java.util.RandomAccess;
+
+/**
+ * Selects the k closest peers out of any number of peers with a bounded max-heap, which needs O(n log k) comparisons
+ * instead of sorting all peers. The array of the heap is reused, so an instance that is kept, e.g., in a
+ * {@link ThreadLocal}, selects peers without allocating any collection. Adding a peer offers it to the heap, it is
+ * only kept if it is among the k closest seen so far. Accessing the list sorts the selected peers, the closest first.
+ * This class is not thread-safe.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class ClosestPeers extends AbstractList<PeerStatistic> implements RandomAccess {
+
+    private PeerStatistic[] heap = new PeerStatistic[0];
+    private Comparator<PeerStatistic> comparator;
+    private int k = 0;
+    private int size = 0;
+    private boolean sorted = true;
+
+    /**
+     * Clears this selection and prepares it for a new one.
+     * 
+     * @param comparator
+     *            The comparator that defines the order, the smallest peer is the closest
+     * @param k
+     *            The number of peers to select
+     * @return This class
+     */
+    public ClosestPeers reset(final Comparator<PeerStatistic> comparator, final int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Cannot select a negative number of peers.");
+        }
+        // release the references of the previous selection
+        for (int i = 0; i < size; i++) {
+            heap[i] = null;
+        }
+        if (heap.length < k) {
+            heap = new PeerStatistic[k];
+        }
+        this.comparator = comparator;
+        this.k = k;
+        this.size = 0;
+        this.sorted = true;
+        return this;
+    }
+
+    /**
+     * Offers a peer to this selection.
+     * 
+     * @param peerStatistic
+     *            The peer to offer
+     * @return True if the peer is among the k closest peers seen so far
+     */
+    @Override
+    public boolean add(final PeerStatistic peerStatistic) {
+        if (k == 0) {
+            return false;
+        }
+        if (sorted) {
+            heapify();
+        }
+        if (size < k) {
+            heap[size] = peerStatistic;
+            siftUp(size++);
+            return true;
+        }
+        // the root is the peer furthest away of the selected peers
+        if (comparator.compare(peerStatistic, heap[0]) < 0) {
+            heap[0] = peerStatistic;
+            siftDown(0, size);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public PeerStatistic get(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (!sorted) {
+            sort();
+        }
+        return heap[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        reset(comparator, k);
+    }
+
+    /**
+     * Sorts the heap in place, the closest peer first. A sorted array is not a max-heap anymore, thus the heap is
+     * restored with {@link #heapify()} if another peer is added.
+     */
+    private void sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    private void heapify() {
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+        sorted = false;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (comparator.compare(heap[index], heap[parent]) <= 0) {
+                return;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, final int end) {
+        while (true) {
+            final int left = (index << 1) + 1;
+            if (left >= end) {
+                return;
+            }
+            final int right = left + 1;
+            final int larger = right < end && comparator.compare(heap[right], heap[left]) > 0 ? right : left;
+            if (comparator.compare(heap[larger], heap[index]) <= 0) {
+                return;
+            }
+            swap(index, larger);
+            index = larger;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final PeerStatistic tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+}
@@ -16,6 +16,7 @@
 
 package net.tomp2p.peers;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -117,12 +118,28 @@ public class DefaultMaintenance implements Maintenance {
      * @return The next most important peer to check if it is still alive.
      */
     public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
+        final List<PeerStatistic> next = nextForMaintenance(notInterestedAddresses, 1);
+        return next.isEmpty() ? null : next.get(0);
+    }
+
+    /**
+     * Finds the peers that should have a maintenance check in a single pass over all bags. The order is the same as
+     * in {@link #nextForMaintenance(Collection)}.
+     * 
+     * @param notInterestedAddresses
+     *            The peers that should not be returned
+     * @param max
+     *            The maximum number of peers to return
+     * @return The most important peers to check if they are still alive, or an empty list
+     */
+    public List<PeerStatistic> nextForMaintenance(final Collection<PeerAddress> notInterestedAddresses, final int max) {
         if (peerMapVerified == null || peerMapNonVerified == null || offlineMap == null 
                 || shutdownMap == null || exceptionMap == null) {
             throw new IllegalArgumentException("Did not initialize some of the maintenance maps.");
         }
+        final List<PeerStatistic> result = new ArrayList<PeerStatistic>(Math.min(max, 16));
         int peersBefore = 0;
-        for (int i = 0; i < Number160.BITS; i++) {
+        for (int i = 0; i < Number160.BITS && result.size() < max; i++) {
             final Map<Number160, PeerStatistic> mapVerified = peerMapVerified.get(i);
             boolean urgent = false;
             synchronized (mapVerified) {
@@ -131,39 +148,42 @@ public class DefaultMaintenance implements Maintenance {
                 urgent = isUrgent(i, size, peersBefore);
             }
             if (urgent) {
-                final Map<Number160, PeerStatistic> mapNonVerified = peerMapNonVerified.get(i);
-                final PeerStatistic readyForMaintenance = next(mapNonVerified);
-                if (readyForMaintenance != null
-                        && !notInterestedAddresses.contains(readyForMaintenance.peerAddress())) {
-                    LOG.debug("check peer {} from the non-verified map.", readyForMaintenance.peerAddress());
-                    return readyForMaintenance;
+                final int before = result.size();
+                next(peerMapNonVerified.get(i), notInterestedAddresses, result, max);
+                for (int j = before; j < result.size(); j++) {
+                    LOG.debug("check peer {} from the non-verified map.", result.get(j).peerAddress());
                 }
             }
-            final PeerStatistic readyForMaintenance = next(mapVerified);
-            if (readyForMaintenance != null
-                    && !notInterestedAddresses.contains(readyForMaintenance.peerAddress())) {
-                return readyForMaintenance;
-            }
+            next(mapVerified, notInterestedAddresses, result, max);
         }
-        return null;
+        return result;
     }
 
     /**
-     * Returns a peer with its statistics from a bag that needs maintenance.
+     * Adds the peers with their statistics from a bag that need maintenance.
      * 
      * @param map
      *            The bag with all the peers
-     * @return A peer that needs maintenance
+     * @param notInterestedAddresses
+     *            The peers to skip
+     * @param result
+     *            The list the peers that need maintenance are added to
+     * @param max
+     *            The maximum size of the result list
      */
-    private PeerStatistic next(final Map<Number160, PeerStatistic> map) {
+    private void next(final Map<Number160, PeerStatistic> map, final Collection<PeerAddress> notInterestedAddresses,
+            final List<PeerStatistic> result, final int max) {
         synchronized (map) {
             for (PeerStatistic peerStatistic : map.values()) {
-                if (needMaintenance(peerStatistic, intervalSeconds)) {
-                    return peerStatistic;
+                if (result.size() >= max) {
+                    return;
+                }
+                if (needMaintenance(peerStatistic, intervalSeconds)
+                        && !notInterestedAddresses.contains(peerStatistic.peerAddress())) {
+                    result.add(peerStatistic);
                 }
             }
         }
-        return null;
     }
 
     /**
@@ -15,6 +15,9 @@
  */
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
+import java.util.Comparator;
 import java.util.Random;
 
 import net.tomp2p.utils.Utils;
@@ -86,6 +89,34 @@ public final class Number160 extends Number implements Comparable<Number160> {
         }
     }
 
+    /**
+     * Reads a key from the buffer as five ints, without an intermediate byte
+     * array. This reads the format written by {@link #toByteBuf(ByteBuf)}.
+     * 
+     * @param buf
+     *            The buffer to read 20 bytes from
+     */
+    public Number160(final ByteBuf buf) {
+        this.val = new int[INT_ARRAY_SIZE];
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            this.val[i] = buf.readInt();
+        }
+    }
+
+    /**
+     * Creates a key from five ints of a larger array, e.g., an array that
+     * stores many keys.
+     * 
+     * @param val
+     *            The array that contains the key
+     * @param offset
+     *            The index of the first int of the key
+     */
+    public Number160(final int[] val, final int offset) {
+        this.val = new int[INT_ARRAY_SIZE];
+        System.arraycopy(val, offset, this.val, 0, INT_ARRAY_SIZE);
+    }
+
     /**
      * Create a Key from a string. The string has to be of length 42 to fit into the backing array. Note that this
      * string is *always* in hexadecimal, there is no 0x... required before the number.
@@ -231,6 +262,49 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return new Number160(result);
     }
 
+    /**
+     * Compares the XOR distances of two keys to this key, word by word and
+     * without creating the distances.
+     * 
+     * @param key1
+     *            The first key
+     * @param key2
+     *            The second key
+     * @return -1 if the first key is closer to this key, 1 if the second key is
+     *         closer, 0 if both are equal
+     */
+    public int compareDistance(final Number160 key1, final Number160 key2) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            // flip the sign bit for an unsigned comparison
+            final int d1 = (val[i] ^ key1.val[i]) ^ Integer.MIN_VALUE;
+            final int d2 = (val[i] ^ key2.val[i]) ^ Integer.MIN_VALUE;
+            if (d1 < d2) {
+                return -1;
+            } else if (d1 > d2) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Calculates the bit length of the XOR distance to the key, which is the
+     * same as xor(key).bitLength(), but without creating the distance.
+     * 
+     * @param key
+     *            The other key
+     * @return The bits used by the distance, 0 if both keys are equal
+     */
+    public int distanceBitLength(final Number160 key) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            final int d = val[i] ^ key.val[i];
+            if (d != 0) {
+                return Integer.SIZE - Integer.numberOfLeadingZeros(d) + Integer.SIZE * (INT_ARRAY_SIZE - i - 1);
+            }
+        }
+        return 0;
+    }
+
     /**
      * Returns a copy of the backing array, which is always of size 5.
      * 
@@ -268,6 +342,70 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return offset + BYTE_ARRAY_SIZE;
     }
 
+    /**
+     * Writes this number directly to the buffer, without creating an
+     * intermediate byte array. This writes the same 20 bytes as
+     * {@link #toByteArray()}.
+     * 
+     * @param buf
+     *            the buffer to write to
+     */
+    public void toByteBuf(final ByteBuf buf) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            buf.writeInt(val[i]);
+        }
+    }
+
+    /**
+     * Copies this key to an int array, e.g., an array that stores many keys.
+     * 
+     * @param me
+     *            The array to copy to
+     * @param offset
+     *            The index where to store the first int
+     */
+    public void toIntArray(final int[] me, final int offset) {
+        System.arraycopy(val, 0, me, offset, INT_ARRAY_SIZE);
+    }
+
+    /**
+     * Checks if the five ints of the array at the offset are equal to this
+     * key, without creating a key from them.
+     * 
+     * @param other
+     *            The array to compare with
+     * @param offset
+     *            The index of the first int
+     * @return True if equal
+     */
+    public boolean isEqual(final int[] other, final int offset) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            if (val[i] != other[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the 20 bytes of the buffer at the index are equal to this key,
+     * without reading them.
+     * 
+     * @param buf
+     *            The buffer to compare with
+     * @param index
+     *            The absolute index in the buffer
+     * @return True if equal
+     */
+    public boolean isEqual(final ByteBuf buf, final int index) {
+        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
+            if (val[i] != buf.getInt(index + (i << 2))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns a byte array, which is always of size 20.
      * 
@@ -334,6 +472,86 @@ public final class Number160 extends Number implements Comparable<Number160> {
         return toString(true);
     }
 
+    /**
+     * Compares keys by their XOR distance to a fixed target. The words of the
+     * target are kept in fields, so a comparison neither allocates nor reads
+     * the target array. Use this for sorted sets that are filled during a
+     * lookup.
+     * 
+     * @author Thomas Bocek
+     * 
+     */
+    public static final class DistanceComparator implements Comparator<Number160> {
+        private final int t0;
+        private final int t1;
+        private final int t2;
+        private final int t3;
+        private final int t4;
+
+        /**
+         * @param target
+         *            The key the distances are measured to
+         */
+        public DistanceComparator(final Number160 target) {
+            this.t0 = target.val[0];
+            this.t1 = target.val[1];
+            this.t2 = target.val[2];
+            this.t3 = target.val[3];
+            this.t4 = target.val[4];
+        }
+
+        @Override
+        public int compare(final Number160 key1, final Number160 key2) {
+            final int[] a = key1.val;
+            final int[] b = key2.val;
+            int cmp = compareUnsigned(a[0] ^ t0, b[0] ^ t0);
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = compareUnsigned(a[1] ^ t1, b[1] ^ t1);
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = compareUnsigned(a[2] ^ t2, b[2] ^ t2);
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = compareUnsigned(a[3] ^ t3, b[3] ^ t3);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return compareUnsigned(a[4] ^ t4, b[4] ^ t4);
+        }
+
+        /**
+         * @param key
+         *            The key
+         * @return The bits used by the XOR distance of the key to the target
+         */
+        public int distanceBitLength(final Number160 key) {
+            final int[] a = key.val;
+            if ((a[0] ^ t0) != 0) {
+                return 5 * Integer.SIZE - Integer.numberOfLeadingZeros(a[0] ^ t0);
+            }
+            if ((a[1] ^ t1) != 0) {
+                return 4 * Integer.SIZE - Integer.numberOfLeadingZeros(a[1] ^ t1);
+            }
+            if ((a[2] ^ t2) != 0) {
+                return 3 * Integer.SIZE - Integer.numberOfLeadingZeros(a[2] ^ t2);
+            }
+            if ((a[3] ^ t3) != 0) {
+                return 2 * Integer.SIZE - Integer.numberOfLeadingZeros(a[3] ^ t3);
+            }
+            return Integer.SIZE - Integer.numberOfLeadingZeros(a[4] ^ t4);
+        }
+
+        private static int compareUnsigned(final int x, final int y) {
+            final int x2 = x ^ Integer.MIN_VALUE;
+            final int y2 = y ^ Integer.MIN_VALUE;
+            return x2 < y2 ? -1 : (x2 == y2 ? 0 : 1);
+        }
+    }
+
     @Override
     public double doubleValue() {
         double d = 0;
@@ -16,6 +16,8 @@
 
 package net.tomp2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Random;
 
 /**
@@ -134,6 +136,20 @@ public final class Number640 extends Number implements Comparable<Number640> {
         return versionKey;
     }
 
+    /**
+     * Writes the location, domain, content and version key directly to the
+     * buffer.
+     * 
+     * @param buf
+     *            The buffer to write to
+     */
+    public void toByteBuf(final ByteBuf buf) {
+        locationKey.toByteBuf(buf);
+        domainKey.toByteBuf(buf);
+        contentKey.toByteBuf(buf);
+        versionKey.toByteBuf(buf);
+    }
+
     @Override
     public int hashCode() {
         return locationKey.hashCode() ^ domainKey.hashCode() ^ contentKey.hashCode() ^ versionKey.hashCode();
@@ -214,9 +214,7 @@ public final class PeerAddress implements Comparable<PeerAddress>, Serializable
         final byte b = (byte) (relays & MASK_1F);
         this.relayType = Utils.createBitSet(b);
         // now comes the ID
-        byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-        channelBuffer.readBytes(me);
-        this.peerId = new Number160(me);
+        this.peerId = new Number160(channelBuffer);
 
         this.peerSocketAddress = PeerSocketAddress.create(channelBuffer, isIPv4());
 
@@ -437,6 +435,23 @@ public final class PeerAddress implements Comparable<PeerAddress>, Serializable
         return newOffset;
     }
     
+    /**
+     * Serializes directly to a buffer in the same format as
+     * {@link #toByteArray()}, without an intermediate array.
+     * 
+     * @param buf
+     *            The buffer where the result should be stored
+     */
+    public void toByteBuf(final ByteBuf buf) {
+        buf.writeByte(options());
+        buf.writeByte(relays());
+        peerId.toByteBuf(buf);
+        peerSocketAddress.toByteBuf(buf);
+        for (PeerSocketAddress psa : peerSocketAddresses) {
+            psa.toByteBuf(buf);
+        }
+    }
+    
     public PeerSocketAddress peerSocketAddress() {
     	return peerSocketAddress;
     }
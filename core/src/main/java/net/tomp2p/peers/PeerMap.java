@@ -19,12 +19,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
-import java.util.SortedSet;
+import java.util.Random;
 import java.util.TreeSet;
 
 import net.tomp2p.connection.PeerConnection;
@@ -33,17 +32,20 @@ import net.tomp2p.connection.PeerException.AbortCause;
 import net.tomp2p.p2p.PeerStatisticComparator;
 import net.tomp2p.utils.CacheMap;
 import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.CopyOnWriteMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This routing implementation uses is based on Kademlia. However, many changes have been applied to make it faster and
- * more flexible. This class is partially thread-safe.
+ * more flexible. This class is partially thread-safe. The bags of verified peers are copy-on-write maps, so that
+ * frequent reads such as {@link #closePeers(Number160, int)} work on immutable snapshots and never block or get
+ * blocked by {@link #peerFound(PeerAddress, PeerAddress, PeerConnection, RTT)}.
  * 
  * @author Thomas Bocek
  */
-public class PeerMap implements PeerStatusListener, Maintainable {
+public class PeerMap implements PeerStatusListener, BatchMaintainable {
 	
     private static final Logger LOG = LoggerFactory.getLogger(PeerMap.class);
 
@@ -133,19 +135,16 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     private List<Map<Number160, PeerStatistic>> initMap(final int[] bagSizes, final boolean caching) {
         List<Map<Number160, PeerStatistic>> tmp = new ArrayList<Map<Number160, PeerStatistic>>();
         for (int i = 0; i < Number160.BITS; i++) {
-            // I made some experiments here and concurrent sets are not
-            // necessary, as we divide similar to segments aNonBlockingHashSets
-            // in a concurrent map. In a full network, we have 160 segments, for
-            // smaller we see around 3-4 segments, growing with the number of
-            // peers. bags closer to 0 will see more read than write, and bags
-            // closer to 160 will see more writes than reads.
-            //
-            // We also only allocate memory for the bags far away, as they are likely to be filled first.
+            // The verified bags are read for every routing request, but only
+            // change if a peer is added or removed. Updates of a known peer
+            // change its statistic, not the bag. Since the bags are small,
+            // copying them on change is cheap and lets the readers go without
+            // locks. The overflow bags are LRU caches that change on every
+            // access, so they stay synchronized.
             if (caching) {
                 tmp.add(new CacheMap<Number160, PeerStatistic>(bagSizes[i], true));
             } else {
-                final int memAlloc = bagSizes[i] / 8;
-                tmp.add(new HashMap<Number160, PeerStatistic>(memAlloc));
+                tmp.add(new CopyOnWriteMap<Number160, PeerStatistic>());
             }
         }
         return Collections.unmodifiableList(tmp);
@@ -232,9 +231,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public int size() {
         int size = 0;
         for (Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-                size += map.size();
-            }
+            size += map.size();
         }
         return size;
     }
@@ -453,10 +450,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatistic> tmp = peerMapVerified.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.peerId());
-        }
+        return peerMapVerified.get(classMember).containsKey(peerAddress.peerId());
     }
 
     /**
@@ -534,38 +528,66 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 
         if (comparator == null) comparator = createXORStatisticComparator(other);
         final NavigableSet<PeerStatistic> set = new TreeSet<PeerStatistic>(comparator);
+        fillCollection(self, other, atLeast, peerMap, set);
+        return set;
+    }
+
+    /**
+     * Selects the k closest peers to a given key. In contrast to {@link #closePeers(Number160, int)}, the peers of the
+     * visited bags are not sorted, but only the k closest are kept. This method is thread-safe as long as the
+     * selection is not shared among threads.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param k
+     *            The number of peers to select
+     * @param closestPeers
+     *            The selection to reuse, it is reset by this method
+     * @return The selection with at most k peers, the closest first
+     */
+    public ClosestPeers closePeers(final Number160 id, final int k, final ClosestPeers closestPeers) {
+        Comparator<PeerStatistic> comparator = peerStatisticComparator.getComparator(id);
+        if (comparator == null) {
+            comparator = createXORStatisticComparator(id);
+        }
+        closestPeers.reset(comparator, k);
+        fillCollection(self, id, k, peerMapVerified, closestPeers);
+        return closestPeers;
+    }
+
+    private static void fillCollection(final Number160 self, final Number160 other, final int atLeast,
+            final List<Map<Number160, PeerStatistic>> peerMap, final Collection<PeerStatistic> collection) {
         final int classMember = classMember(self, other);
         // special treatment, as we can start iterating from 0
         if (classMember == -1) {
             for (int j = 0; j < Number160.BITS; j++) {
                 final Map<Number160, PeerStatistic> tmp = peerMap.get(j);
-                if (fillSet(atLeast, set, tmp)) {
-                    return set;
+                if (fillSet(atLeast, collection, tmp)) {
+                    return;
                 }
             }
-            return set;
+            return;
         }
 
         Map<Number160, PeerStatistic> tmp = peerMap.get(classMember);
-        if (fillSet(atLeast, set, tmp)) {
-            return set;
+        if (fillSet(atLeast, collection, tmp)) {
+            return;
         }
 
         // in this case we have to go over all the bags that are smaller
         boolean last = false;
         for (int i = 0; i < classMember; i++) {
             tmp = peerMap.get(i);
-            last = fillSet(atLeast, set, tmp);
+            last = fillSet(atLeast, collection, tmp);
         }
         if (last) {
-            return set;
+            return;
         }
         // in this case we have to go over all the bags that are larger
         for (int i = classMember + 1; i < Number160.BITS; i++) {
             tmp = peerMap.get(i);
-            fillSet(atLeast, set, tmp);
+            fillSet(atLeast, collection, tmp);
         }
-        return set;
     }
     
     @Override
@@ -573,14 +595,12 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         final StringBuilder sb = new StringBuilder("I'm node ");
         sb.append(self()).append("\n");
         for (int i = 0; i < Number160.BITS; i++) {
-            final Map<Number160, PeerStatistic> tmp = peerMapVerified.get(i);
-            synchronized (tmp) {
-                if (tmp.size() > 0) {
-                    sb.append("class:").append(i).append("->\n");
-                    for (final PeerStatistic node : tmp.values()) {
-                        sb.append("node:").append(node.peerAddress()).append(",");
+            final Collection<PeerStatistic> tmp = peerMapVerified.get(i).values();
+            if (tmp.size() > 0) {
+                sb.append("class:").append(i).append("->\n");
+                for (final PeerStatistic node : tmp) {
+                    sb.append("node:").append(node.peerAddress()).append(",");
 
-                    }
                 }
             }
         }
@@ -604,10 +624,8 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public List<PeerAddress> all() {
         final List<PeerAddress> all = new ArrayList<PeerAddress>();
         for (final Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-                for (PeerStatistic peerStatistic : map.values()) {
-                    all.add(peerStatistic.peerAddress());
-                }
+            for (PeerStatistic peerStatistic : map.values()) {
+                all.add(peerStatistic.peerAddress());
             }
         }
         return all;
@@ -629,14 +647,12 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     		if(++bucketCounter > maxBucket) {
 				break;
 			}
-    		synchronized (map) {
-    			int neighborCounter = 0;
-    			for (PeerStatistic peerStatistic : map.values()) {
-    				if(++neighborCounter > nrNeighbors) {
-    					break;
-    				}
-    				fromEachBag.add(peerStatistic.peerAddress());
+    		int neighborCounter = 0;
+    		for (PeerStatistic peerStatistic : map.values()) {
+    			if(++neighborCounter > nrNeighbors) {
+    				break;
     			}
+    			fromEachBag.add(peerStatistic.peerAddress());
     		}
     	}
 	    return fromEachBag;
@@ -692,6 +708,92 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return maintenance.nextForMaintenance(notInterestedAddresses);
     }
 
+    /**
+     * Finds the peers that should have a maintenance check, in the same order as
+     * {@link #nextForMaintenance(Collection)}. The {@link DefaultMaintenance} walks over the bags only once.
+     * 
+     * @param notInterestedAddresses
+     *            The peers that should not be returned
+     * @param max
+     *            The maximum number of peers to return
+     * @return The most important peers to check if they are still alive, or an empty list
+     */
+    @Override
+    public List<PeerStatistic> nextForMaintenance(final Collection<PeerAddress> notInterestedAddresses, final int max) {
+        if (maintenance instanceof DefaultMaintenance) {
+            return ((DefaultMaintenance) maintenance).nextForMaintenance(notInterestedAddresses, max);
+        }
+        final List<PeerStatistic> result = new ArrayList<PeerStatistic>();
+        final Collection<PeerAddress> skip = new HashSet<PeerAddress>(notInterestedAddresses);
+        while (result.size() < max) {
+            final PeerStatistic peerStatistic = maintenance.nextForMaintenance(skip);
+            if (peerStatistic == null || !skip.add(peerStatistic.peerAddress())) {
+                break;
+            }
+            result.add(peerStatistic);
+        }
+        return result;
+    }
+
+    /**
+     * @param bagIndex
+     *            The bag index, see {@link #classMember(Number160, Number160)}
+     * @return The most recent time a verified peer in this bag has been seen online, or 0 if the bag is empty
+     */
+    public long lastSeenOnline(final int bagIndex) {
+        long lastSeenOnline = 0;
+        // copy-on-write map, no need to lock
+        for (PeerStatistic peerStatistic : peerMapVerified.get(bagIndex).values()) {
+            lastSeenOnline = Math.max(lastSeenOnline, peerStatistic.lastSeenOnline());
+        }
+        return lastSeenOnline;
+    }
+
+    /**
+     * @return The smallest bag index that contains a verified peer, or -1 if there are no verified peers
+     */
+    public int closestBag() {
+        for (int i = 0; i < Number160.BITS; i++) {
+            if (!peerMapVerified.get(i).isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates a random id that falls into the given bag, i.e., the highest bit of the XOR distance to self is the bag
+     * index. Such an id can be used to refresh a bag with a lookup.
+     * 
+     * @param bagIndex
+     *            The bag index, see {@link #classMember(Number160, Number160)}
+     * @param random
+     *            The random number generator
+     * @return A random id within the range of the bag
+     */
+    public Number160 randomIdInBag(final int bagIndex, final Random random) {
+        if (bagIndex < 0 || bagIndex >= Number160.BITS) {
+            throw new IllegalArgumentException("Bag index must be between 0 and " + (Number160.BITS - 1));
+        }
+        final int[] distance = new int[Number160.INT_ARRAY_SIZE];
+        for (int i = 0; i < Number160.INT_ARRAY_SIZE; i++) {
+            // the last int holds the least significant bits
+            final int top = bagIndex - ((Number160.INT_ARRAY_SIZE - 1 - i) * Integer.SIZE);
+            if (top < 0) {
+                continue;
+            }
+            final int value = random.nextInt();
+            if (top >= Integer.SIZE) {
+                distance[i] = value;
+            } else if (top == Integer.SIZE - 1) {
+                distance[i] = value | Integer.MIN_VALUE;
+            } else {
+                distance[i] = (value & ((1 << top) - 1)) | (1 << top);
+            }
+        }
+        return self().xor(new Number160(distance, 0));
+    }
+
     /**
      * Returns the number of the class that this id belongs to.
      * 
@@ -716,11 +818,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if first peer is closer, 1 otherwise, 0 if both are equal
      */
     public static int isKadCloser(final Number160 id, final PeerAddress rn, final PeerAddress rn2) {
-        return distance(id, rn.peerId()).compareTo(distance(id, rn2.peerId()));
+        return id.compareDistance(rn.peerId(), rn2.peerId());
     }
     
     public static int isKadCloser(final Number160 id, final Number160 rn, final Number160 rn2) {
-        return distance(id, rn).compareTo(distance(id, rn2));
+        return id.compareDistance(rn, rn2);
     }
 
     /**
@@ -734,17 +836,13 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      *          rn1 is closer or 0 if they are equal.
      */
     public static int classCloser(final Number160 ln, final PeerAddress rn, final PeerAddress rn2) {
-        Integer d1 = classMember(ln, rn.peerId());
-        Integer d2 = classMember(ln, rn2.peerId());
-        return d1.compareTo(d2);
+        final int d1 = ln.distanceBitLength(rn.peerId());
+        final int d2 = ln.distanceBitLength(rn2.peerId());
+        return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
     }
     
     public static Comparator<Number160> createXORNumberComparator(final Number160 location) {
-        return new Comparator<Number160>() {
-            public int compare(final Number160 remotePeer, final Number160 remotePeer2) {
-                return isKadCloser(location, remotePeer, remotePeer2);
-            }
-        };
+        return new Number160.DistanceComparator(location);
     }
 
     /**
@@ -755,19 +853,21 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return The XOR comparator
      */
     public static Comparator<PeerAddress> createXORAddressComparator(final Number160 location) {
+        final Number160.DistanceComparator distance = new Number160.DistanceComparator(location);
         return new Comparator<PeerAddress>() {
             public int compare(final PeerAddress remotePeer, final PeerAddress remotePeer2) {
-                return isKadCloser(location, remotePeer, remotePeer2);
+                return distance.compare(remotePeer.peerId(), remotePeer2.peerId());
             }
         };
     }
 
     public static Comparator<PeerStatistic> createXORStatisticComparator(final Number160 location) {
+        final Number160.DistanceComparator distance = new Number160.DistanceComparator(location);
         return new Comparator<PeerStatistic>() {
             @Override
             public int compare(PeerStatistic o1, PeerStatistic o2) {
                 if (o1.peerAddress() != null && o2.peerAddress() != null) {
-                    return isKadCloser(location, o1.peerAddress(), o2.peerAddress());
+                    return distance.compare(o1.peerAddress().peerId(), o2.peerAddress().peerId());
                 }
                 return 0;
             }
@@ -809,7 +909,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return The bit difference and -1 if they are equal
      */
     public static int classMember(final Number160 id1, final Number160 id2) {
-        return distance(id1, id2).bitLength() - 1;
+        return id1.distanceBitLength(id2) - 1;
     }
 
     /**
@@ -889,16 +989,23 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @param atLeast
      *            The number of addresses we want at least. It does not matter if it is more.
      * @param set
-     *            The set where to store the results
+     *            The set or selection where to store the results
      * @param tmp
      *            The bag where to take the addresses from
      * @return True if the desired size has been reached
      */
-    private static boolean fillSet(final int atLeast, final SortedSet<PeerStatistic> set,
+    private static boolean fillSet(final int atLeast, final Collection<PeerStatistic> set,
             final Map<Number160, PeerStatistic> tmp) {
-        synchronized (tmp) {
+        if (tmp instanceof CopyOnWriteMap) {
+            // iterates over an immutable snapshot, no need to block writers
             for (final PeerStatistic peerStatistic : tmp.values()) {
-            	set.add(peerStatistic);
+                set.add(peerStatistic);
+            }
+        } else {
+            synchronized (tmp) {
+                for (final PeerStatistic peerStatistic : tmp.values()) {
+                    set.add(peerStatistic);
+                }
             }
         }
         return set.size() >= atLeast;
@@ -915,11 +1022,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 	public int nrFilledBags() {
 		int counter = 0;
 		for (final Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-            	if(map.size() > 0) {
-            		counter++;
-            	}
-            }
+			if(map.size() > 0) {
+				counter++;
+			}
         }
 		return counter;
 	}
@@ -34,6 +34,8 @@ import net.tomp2p.utils.Utils;
 public class PeerSocketAddress implements Serializable {
     private static final long serialVersionUID = 8483270473601620720L;
     private final InetAddress inetAddress;
+    // the address is written with every message, so it is converted once
+    private final byte[] address;
     private final int tcpPort;
     private final int udpPort;
     private final int offset;
@@ -67,6 +69,7 @@ public class PeerSocketAddress implements Serializable {
      */
     public PeerSocketAddress(final InetAddress inetAddress, final int tcpPort, final int udpPort, final int offset) {
         this.inetAddress = inetAddress;
+        this.address = inetAddress.getAddress();
         this.tcpPort = tcpPort;
         this.udpPort = udpPort;
         this.offset = offset;
@@ -210,15 +213,28 @@ public class PeerSocketAddress implements Serializable {
 	    me[offset2++] = (byte) udpPort;
 	
 	    if (inetAddress instanceof Inet4Address) {
-	        System.arraycopy(inetAddress.getAddress(), 0, me, offset2, Utils.IPV4_BYTES);
+	        System.arraycopy(address, 0, me, offset2, Utils.IPV4_BYTES);
 	        offset2 += Utils.IPV4_BYTES;
 	    } else {
-	        System.arraycopy(inetAddress.getAddress(), 0, me, offset2, Utils.IPV6_BYTES);
+	        System.arraycopy(address, 0, me, offset2, Utils.IPV6_BYTES);
 	        offset2 += Utils.IPV6_BYTES;
 	    }
 	    return offset2;
 	}
 
+	/**
+	 * Serializes the PeerSocketAddress directly to a buffer in the same format
+	 * as {@link #toByteArray()}.
+	 * 
+	 * @param buf
+	 *            The buffer to serialize to
+	 */
+	public void toByteBuf(final ByteBuf buf) {
+		buf.writeShort(tcpPort);
+		buf.writeShort(udpPort);
+		buf.writeBytes(address);
+	}
+
 	/**
 	 * Calculates the size of this PeerSocketAddress in bytes.
 	 * Format: 2 bytes TCP port, 2 bytes UDP port, 4/16 bytes IPv4/IPv6 address.
@@ -47,6 +47,8 @@ public class PeerStatistic {
 
     private FIFOCache<RTT> rttCache = new FIFOCache<RTT>(RTT_CACHE_SIZE);
 
+    private final RTTHistogram rttHistogram = new RTTHistogram();
+
     private long numberOfResponses = 0;
 
     /**
@@ -174,6 +176,9 @@ public class PeerStatistic {
      */
     public PeerStatistic addRTT(RTT rtt) {
         if (rtt != null && rtt.getRtt() > 0) {
+            if (!rtt.isEstimated()) {
+                rttHistogram.add(rtt.getRtt());
+            }
             // If we have estimates in the cache,
             // clear cache before adding "real" measurement
             if (containsEstimates()) {
@@ -228,6 +233,18 @@ public class PeerStatistic {
         return sum / rttCache.size();
     }
 
+    /**
+     * Estimates a percentile of the measured RTTs. In contrast to {@link #getMeanRTT()}, this considers more than the
+     * last few measurements and ignores estimates.
+     * 
+     * @param percentile
+     *            The percentile between 0 and 1, e.g. 0.9 for the p90
+     * @return The RTT in milliseconds, rounded up to a power of two, or -1 if nothing has been measured
+     */
+    public long rttPercentile(final double percentile) {
+        return rttHistogram.percentile(percentile);
+    }
+
     /**
      * How many RTT measurements are in the cache
      *
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.tomp2p.peers;
+
+/**
+ * A small histogram of measured round-trip times with buckets of powers of two milliseconds. It is used to estimate a
+ * percentile of the RTT of a peer, e.g., the p90, which says more about the latency to expect than the mean of the last
+ * few measurements. Every {@link #MAX_COUNT} measurements, all buckets are halved, so older measurements fade out. This
+ * class is thread-safe.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class RTTHistogram {
+
+    // bucket i holds RTTs up to 2^i ms, the last bucket everything above
+    public static final int BUCKETS = 16;
+    public static final int MAX_COUNT = 64;
+
+    private final int[] buckets = new int[BUCKETS];
+    private int count = 0;
+    // the measurements since the buckets were halved
+    private int samples = 0;
+
+    /**
+     * Adds a measured round-trip time.
+     * 
+     * @param rttMillis
+     *            The round-trip time in milliseconds
+     * @return This class
+     */
+    public synchronized RTTHistogram add(final long rttMillis) {
+        if (rttMillis < 0) {
+            return this;
+        }
+        buckets[bucket(rttMillis)]++;
+        count++;
+        if (++samples >= MAX_COUNT) {
+            samples = 0;
+            count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] >>>= 1;
+                count += buckets[i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Returns the upper bound of the bucket that contains the given percentile.
+     * 
+     * @param percentile
+     *            The percentile between 0 and 1, e.g. 0.9 for the p90
+     * @return The estimated RTT in milliseconds or -1 if nothing has been measured
+     */
+    public synchronized long percentile(final double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        final int rank = Math.max(1, (int) Math.ceil(count * Math.min(1d, Math.max(0d, percentile))));
+        int sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            sum += buckets[i];
+            if (sum >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * @return The weighted number of measurements
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    private static int bucket(final long rttMillis) {
+        if (rttMillis <= 1) {
+            return 0;
+        }
+        // the smallest i with rtt <= 2^i
+        final int bucket = 64 - Long.numberOfLeadingZeros(rttMillis - 1);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+}
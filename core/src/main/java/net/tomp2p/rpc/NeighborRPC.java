@@ -15,13 +15,15 @@
  */
 package net.tomp2p.rpc;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableSet;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
@@ -34,15 +36,16 @@ import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.connection.Responder;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
 import net.tomp2p.message.KeyCollection;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.message.NeighborSet;
+import net.tomp2p.peers.ClosestPeers;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.peers.PeerStatusListener;
 
 import org.slf4j.Logger;
@@ -60,6 +63,20 @@ public class NeighborRPC extends DispatchHandler {
 
     public static final int NEIGHBOR_SIZE = 30;
     public static final int NEIGHBOR_LIMIT = 1000;
+    // the false positive rate of the known peers filter, a false positive hides a peer from one reply
+    public static final double KNOWN_PEERS_FALSE_POSITIVE = 0.01;
+    // a filter from the wire is ignored if it is larger or needs more hashes than this, a filter of the peers a
+    // requester sends is about 80 bytes and needs 7 hashes
+    public static final int KNOWN_PEERS_MAX_BYTES = 1024;
+    public static final int KNOWN_PEERS_MAX_HASHES = 16;
+
+    // neighbor requests are handled concurrently, each thread selects the close peers with its own heap
+    private static final ThreadLocal<ClosestPeers> CLOSEST_PEERS = new ThreadLocal<ClosestPeers>() {
+        @Override
+        protected ClosestPeers initialValue() {
+            return new ClosestPeers();
+        }
+    };
     
     public NeighborRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
         this(peerBean, connectionBean, true);
@@ -108,6 +125,31 @@ public class NeighborRPC extends DispatchHandler {
      */
     public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
             final Type type, final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
+        return closeNeighbors(remotePeer, searchValues, type, channelCreator, configuration, null);
+    }
+
+    /**
+     * Requests close neighbors from the remote peer, but without the peers the requester already knows. The remote
+     * peer fills the reply with the next closest peers instead. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request to
+     * @param searchValues
+     *            The values to search for in the storage
+     * @param type
+     *            The type of the neighbor request, see
+     *            {@link #closeNeighbors(PeerAddress, SearchValues, Type, ChannelCreator, ConnectionConfiguration)}
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @param configuration
+     *            The client-side connection configuration
+     * @param knownPeers
+     *            The ids of the peers the remote peer should omit, see {@link #knownPeersFilter(Collection)}, or null
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
+            final Type type, final ChannelCreator channelCreator, final ConnectionConfiguration configuration,
+            final SimpleBloomFilter<Number160> knownPeers) {
         Message message = createMessage(remotePeer, RPC.Commands.NEIGHBOR.getNr(), type);
         if (!message.isRequest()) {
             throw new IllegalArgumentException("The type must be a request");
@@ -134,6 +176,13 @@ public class NeighborRPC extends DispatchHandler {
         		message.bloomFilter(searchValues.contentBloomFilter());
         	}
         }
+        if (knownPeers != null) {
+            // a buffer and not a bloom filter, as the bloom filters are read by position. Peers that do not know
+            // this filter ignore it.
+            final ByteBuf buf = Unpooled.buffer();
+            knownPeers.toByteBuf(buf);
+            message.buffer(new Buffer(buf));
+        }
         return send(message, configuration, channelCreator);
     }
 
@@ -180,7 +229,13 @@ public class NeighborRPC extends DispatchHandler {
         Number160 locationKey = message.key(0);
         Number160 domainKey = message.key(1);
         
-        List<PeerAddress> neighbors = getNeighbors(locationKey, NEIGHBOR_SIZE);
+        final SimpleBloomFilter<Number160> knownPeers = knownPeersFilter(message.buffer(0));
+        final List<PeerAddress> neighbors;
+        if (knownPeers != null) {
+            neighbors = getNeighbors(locationKey, NEIGHBOR_SIZE, knownPeers);
+        } else {
+            neighbors = getNeighbors(locationKey, NEIGHBOR_SIZE);
+        }
         if(neighbors == null) {
             //return empty neighbor set
             Message response = createResponseMessage(message, Type.NOT_FOUND);
@@ -265,19 +320,109 @@ public class NeighborRPC extends DispatchHandler {
     }
 
     /**
-     * TODO: explain why protected method here.
+     * Returns the closest peers to the given key, the closest first.
+     * 
+     * @param id
+     *            The key
+     * @param atLeast
+     *            The number of peers to return, if that many peers are known
+     * @return The addresses of the closest peers
      */
     public List<PeerAddress> getNeighbors(Number160 id, int atLeast) {
-        NavigableSet<PeerStatistic> closePeers = peerBean().peerMap().closePeers(id, atLeast);
+        final ClosestPeers closePeers = peerBean().peerMap().closePeers(id, atLeast, CLOSEST_PEERS.get());
 
-        ArrayList<PeerAddress> result = new ArrayList<PeerAddress>();
-        for (PeerStatistic ps : closePeers) {
-            result.add(ps.peerAddress());
+        final List<PeerAddress> result = new ArrayList<PeerAddress>(closePeers.size());
+        for (int i = 0; i < closePeers.size(); i++) {
+            result.add(closePeers.get(i).peerAddress());
+        }
+        // don't keep the peers referenced until the next request of this thread
+        closePeers.clear();
+        return result;
+    }
+
+    /**
+     * Returns the closest peers to the given key that are not in the filter, the closest first.
+     * 
+     * @param id
+     *            The key
+     * @param atLeast
+     *            The number of peers to return, if that many unknown peers are among the close peers
+     * @param knownPeers
+     *            The ids of the peers to omit
+     * @return The addresses of the closest peers that are not known
+     */
+    public List<PeerAddress> getNeighbors(final Number160 id, final int atLeast,
+            final SimpleBloomFilter<Number160> knownPeers) {
+        // look at as many more peers as may be omitted
+        final int extra = Math.min(knownPeers.expectedElements(), NEIGHBOR_SIZE * 2);
+        final ClosestPeers closePeers = peerBean().peerMap().closePeers(id, atLeast + Math.max(0, extra),
+                CLOSEST_PEERS.get());
 
+        final List<PeerAddress> result = new ArrayList<PeerAddress>(atLeast);
+        for (int i = 0; i < closePeers.size() && result.size() < atLeast; i++) {
+            final PeerAddress peerAddress = closePeers.get(i).peerAddress();
+            if (!knownPeers.contains(peerAddress.peerId())) {
+                result.add(peerAddress);
+            }
         }
+        closePeers.clear();
         return result;
     }
 
+    /**
+     * Creates the filter of the peers a remote peer should omit in its reply.
+     * 
+     * @param peerAddresses
+     *            The peers the requester already knows
+     * @return The filter or null if there are no peers
+     */
+    public static SimpleBloomFilter<Number160> knownPeersFilter(final Collection<PeerAddress> peerAddresses) {
+        if (peerAddresses.isEmpty()) {
+            return null;
+        }
+        final SimpleBloomFilter<Number160> filter = new SimpleBloomFilter<Number160>(KNOWN_PEERS_FALSE_POSITIVE,
+                peerAddresses.size());
+        for (PeerAddress peerAddress : peerAddresses) {
+            filter.add(peerAddress.peerId());
+        }
+        return filter;
+    }
+
+    /**
+     * Reads the filter of the peers to omit from a request. The filter is set by the remote peer, so it is ignored if
+     * it is larger than {@link #KNOWN_PEERS_MAX_BYTES}, expects no elements or needs more than
+     * {@link #KNOWN_PEERS_MAX_HASHES} hashes per lookup.
+     * 
+     * @param buffer
+     *            The buffer of the request or null if there is none
+     * @return The filter or null if there is none or it is not valid
+     */
+    private static SimpleBloomFilter<Number160> knownPeersFilter(final Buffer buffer) {
+        if (buffer == null || !buffer.isComplete()) {
+            return null;
+        }
+        final ByteBuf buf = buffer.buffer().duplicate();
+        if (buf.readableBytes() < SimpleBloomFilter.SIZE_HEADER) {
+            LOG.debug("Ignoring known peers filter without header.");
+            return null;
+        }
+        final int byteArraySize = buf.getUnsignedShort(buf.readerIndex()) - SimpleBloomFilter.SIZE_HEADER;
+        final int expectedElements = buf.getInt(buf.readerIndex() + 2);
+        if (byteArraySize < 0 || byteArraySize > KNOWN_PEERS_MAX_BYTES
+                || byteArraySize > buf.readableBytes() - SimpleBloomFilter.SIZE_HEADER || expectedElements < 1) {
+            LOG.debug("Ignoring known peers filter of {} bytes with {} expected elements.", byteArraySize,
+                    expectedElements);
+            return null;
+        }
+        // the number of hashes, as calculated by the filter
+        final double hashes = Math.ceil((byteArraySize * Byte.SIZE / (double) expectedElements) * Math.log(2.0));
+        if (hashes > KNOWN_PEERS_MAX_HASHES) {
+            LOG.debug("Ignoring known peers filter with {} hashes.", hashes);
+            return null;
+        }
+        return new SimpleBloomFilter<Number160>(buf);
+    }
+
     /**
 	 * The search values for fast get. You can either provide one content key. If you want to check for
 	 * multiple keys,
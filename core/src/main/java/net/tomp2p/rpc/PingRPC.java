@@ -15,12 +15,15 @@
  */
 package net.tomp2p.rpc;
 
+import io.netty.buffer.Unpooled;
+
 import java.util.ArrayList;
 import java.util.List;
 
 import net.tomp2p.connection.ChannelCreator;
 import net.tomp2p.connection.ConnectionBean;
 import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.MTUProfile;
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
@@ -28,6 +31,7 @@ import net.tomp2p.connection.Responder;
 import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Buffer;
 import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.message.NeighborSet;
@@ -141,6 +145,45 @@ public class PingRPC extends DispatchHandler {
 		return createHandler(remotePeer, Type.REQUEST_4, configuration).sendBroadcastUDP(channelCreator);
 	}
 
+	/**
+	 * Probes the path to a UDP peer with a ping that is padded to the given
+	 * datagram size. If the peer answers, the size is stored in the
+	 * {@link MTUProfile} and larger messages to this peer are sent over UDP. A
+	 * failed probe does not change the profile, as the datagram may have been
+	 * lost for other reasons.
+	 * 
+	 * @param remotePeer
+	 *            The destination peer
+	 * @param channelCreator
+	 *            The channel creator where we create a UDP channel
+	 * @param configuration
+	 *            The connection configuration
+	 * @param datagramSize
+	 *            The size of the datagram to probe
+	 * @return The future that will be triggered when we receive an answer or
+	 *         something fails.
+	 */
+	public FutureResponse probeUDP(final PeerAddress remotePeer, final ChannelCreator channelCreator,
+			final ConnectionConfiguration configuration, final int datagramSize) {
+		final RequestHandler<FutureResponse> requestHandler = ping(remotePeer, configuration);
+		final Message message = requestHandler.futureResponse().request();
+		// the buffer is encoded with its length as an int
+		final int padding = Math.max(0, datagramSize - message.estimateSize() - Utils.INTEGER_BYTE_SIZE);
+		message.buffer(new Buffer(Unpooled.wrappedBuffer(new byte[padding])));
+		LOG.debug("Probe UDP path to {} with {} bytes.", remotePeer, datagramSize);
+		final FutureResponse futureResponse = requestHandler.sendUDP(channelCreator);
+		futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+			@Override
+			public void operationComplete(final FutureResponse future) throws Exception {
+				if (future.isSuccess()) {
+					connectionBean().resourceConfiguration().mtuProfile()
+							.probed(remotePeer.inetAddress(), datagramSize);
+				}
+			}
+		});
+		return futureResponse;
+	}
+
 	/**
 	 * Ping a UDP peer, but don't expect an answer.
 	 * 
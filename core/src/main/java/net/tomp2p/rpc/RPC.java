@@ -30,7 +30,8 @@ public class RPC {
 		GCM(),
 		LOCAL_ANNOUNCE(),
 		REPLICA_PUT(), 
-		DIGEST_ALL_BLOOMFILTER();
+		DIGEST_ALL_BLOOMFILTER(),
+		RECURSIVE_NEIGHBOR();
 	public byte getNr() {
 		return (byte) ordinal();
 	}
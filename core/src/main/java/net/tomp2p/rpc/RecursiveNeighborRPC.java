@@ -0,0 +1,378 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.ConnectionConfiguration;
+import net.tomp2p.connection.PeerBean;
+import net.tomp2p.connection.PeerConnection;
+import net.tomp2p.connection.RequestHandler;
+import net.tomp2p.connection.Responder;
+import net.tomp2p.futures.BaseFutureAdapter;
+import net.tomp2p.futures.FutureChannelCreator;
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.message.NeighborSet;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.Utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the recursive neighbor requests. Instead of returning its close peers to the requester, a peer forwards the
+ * request to the closest peer it knows. The close peers of the last peer travel back along the path, which saves the
+ * origin from waiting for a round-trip to every hop.
+ * <ul>
+ * <li>REQUEST_1 forwards the lookup. It carries the location key, the lookup id, the remaining number of hops and the
+ * path, the origin first. It is acknowledged right away, so the previous hop can try another peer if the next hop is
+ * offline.</li>
+ * <li>REQUEST_2 delivers the close peers of the last hop and the path to the previous hop, which passes them on until
+ * they reach the origin.</li>
+ * </ul>
+ * A request is only forwarded to a peer that is closer to the location key than the forwarding peer and that is not
+ * on the path, so the lookup cannot loop. If a peer knows no closer peer or the hops are used up, it answers the
+ * previous hop. The answer is only sent to the peer the lookup came from and only accepted from the peer it was
+ * forwarded to, so a forged path cannot make a peer send answers to a third peer. If no answer arrives in time, the
+ * origin fails the lookup and the routing falls back to iterative routing.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class RecursiveNeighborRPC extends DispatchHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(RecursiveNeighborRPC.class);
+
+    public static final int DEFAULT_MAX_HOPS = 20;
+    // the number of closer peers a hop tries before it answers the origin itself
+    public static final int FORWARD_TRIES = 3;
+    // how long a hop remembers a lookup to pass its answer back, and how many lookups it remembers
+    public static final int FORWARDED_TTL_SECONDS = 60;
+    public static final int MAX_FORWARDED = 1024;
+
+    private final NeighborRPC neighborRPC;
+
+    // the lookups started by this peer, the key is the lookup id
+    private final ConcurrentMap<Number160, Hop> pending = new ConcurrentHashMap<Number160, Hop>();
+    // the lookups forwarded by this peer, the key is the lookup id
+    private final ConcurrentCacheMap<Number160, Hop> forwarded = new ConcurrentCacheMap<Number160, Hop>(
+            FORWARDED_TTL_SECONDS, MAX_FORWARDED, false);
+
+    private final Random rnd = new Random();
+
+    public RecursiveNeighborRPC(final PeerBean peerBean, final ConnectionBean connectionBean,
+            final NeighborRPC neighborRPC) {
+        this(peerBean, connectionBean, neighborRPC, true);
+    }
+
+    /**
+     * Setup the RPC and register for incoming messages.
+     * 
+     * @param peerBean
+     *            The peer bean
+     * @param connectionBean
+     *            The connection bean
+     * @param neighborRPC
+     *            The neighbor RPC that selects the close peers
+     * @param register
+     *            Whether incoming messages should be registered
+     */
+    public RecursiveNeighborRPC(final PeerBean peerBean, final ConnectionBean connectionBean,
+            final NeighborRPC neighborRPC, final boolean register) {
+        super(peerBean, connectionBean);
+        this.neighborRPC = neighborRPC;
+        if (register) {
+            register(RPC.Commands.RECURSIVE_NEIGHBOR.getNr());
+        }
+    }
+
+    /**
+     * Starts a recursive lookup. This is an RPC.
+     * 
+     * @param firstHop
+     *            The peer that gets the lookup first, usually the closest peer we know
+     * @param locationKey
+     *            The key to look for
+     * @param maxHops
+     *            The maximum number of times the lookup is forwarded
+     * @param timeoutMillis
+     *            The time to wait per hop, the answer is awaited for at most maxHops times this, but not longer than
+     *            the hops remember the lookup
+     * @param channelCreator
+     *            The channel creator for the request to the first hop
+     * @param configuration
+     *            The client-side connection configuration
+     * @return The future with the message of the last hop, the close peers are in the first and the path in the second
+     *         neighbor set. It fails if the first hop does not accept the lookup or no answer arrives in time.
+     */
+    public FutureDone<Message> route(final PeerAddress firstHop, final Number160 locationKey, final int maxHops,
+            final int timeoutMillis, final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
+        final Number160 lookupId;
+        synchronized (rnd) {
+            lookupId = new Number160(rnd);
+        }
+        final FutureDone<Message> futureDone = new FutureDone<Message>();
+        final Hop hop = new Hop(null, futureDone);
+        hop.next = firstHop;
+        pending.put(lookupId, hop);
+        // every hop on the path waits for the acknowledgment of the next hop, one timeout is not enough for the path
+        final long pathTimeoutMillis = Math.min((long) timeoutMillis * Math.max(1, maxHops),
+                TimeUnit.SECONDS.toMillis(FORWARDED_TTL_SECONDS));
+        final ScheduledFuture<?> timeout = connectionBean().timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (pending.remove(lookupId, hop)) {
+                    futureDone.failed("No answer to the recursive lookup within " + pathTimeoutMillis + "ms");
+                }
+            }
+        }, pathTimeoutMillis, TimeUnit.MILLISECONDS);
+        futureDone.addListener(new BaseFutureAdapter<FutureDone<Message>>() {
+            @Override
+            public void operationComplete(final FutureDone<Message> future) throws Exception {
+                timeout.cancel(false);
+                pending.remove(lookupId, hop);
+            }
+        });
+
+        final List<PeerAddress> path = Collections.singletonList(peerBean().serverPeerAddress());
+        final FutureResponse futureResponse = send(forwardMessage(firstHop, locationKey, lookupId, maxHops, path),
+                configuration, channelCreator);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (!future.isSuccess() || future.responseMessage().type() != Type.OK) {
+                    futureDone.failed("The first hop did not accept the recursive lookup", future);
+                }
+            }
+        });
+        return futureDone;
+    }
+
+    /**
+     * @return The number of recursive lookups started by this peer that wait for an answer
+     */
+    public int pending() {
+        return pending.size();
+    }
+
+    @Override
+    public void handleResponse(final Message message, final PeerConnection peerConnection, final boolean sign,
+            final Responder responder) throws Exception {
+        if (message.keyList().size() < 2 || message.neighborsSet(0) == null) {
+            throw new IllegalArgumentException("Location key, lookup id and path are needed.");
+        }
+        if (!((message.type() == Type.REQUEST_1 || message.type() == Type.REQUEST_2)
+                && message.command() == RPC.Commands.RECURSIVE_NEIGHBOR.getNr())) {
+            throw new IllegalArgumentException("Message content is wrong for this handler.");
+        }
+        final Number160 locationKey = message.key(0);
+        final Number160 lookupId = message.key(1);
+        if (message.type() == Type.REQUEST_2) {
+            handleAnswer(message, locationKey, lookupId, responder);
+            return;
+        }
+        final List<PeerAddress> path = new ArrayList<PeerAddress>(message.neighborsSet(0).neighbors());
+        // the sender has to be the last peer on the path, the origin if this is the first hop
+        if (path.isEmpty() || !path.get(path.size() - 1).peerId().equals(message.sender().peerId())) {
+            throw new IllegalArgumentException("The sender is not the last peer on the path.");
+        }
+        final Hop hop = new Hop(message.sender(), null);
+        if (forwarded.putIfAbsent(lookupId, hop) != null || pending.containsKey(lookupId)) {
+            // the lookup has already been here
+            responder.response(createResponseMessage(message, Type.DENIED));
+            return;
+        }
+        // acknowledge first, the lookup continues without the previous hop
+        responder.response(createResponseMessage(message, Type.OK));
+
+        final Integer hops = message.intAt(0);
+        final List<PeerAddress> neighbors = neighborRPC.getNeighbors(locationKey, NeighborRPC.NEIGHBOR_SIZE);
+        final List<PeerAddress> candidates = new ArrayList<PeerAddress>(FORWARD_TRIES);
+        if (hops != null && hops > 0) {
+            final Number160 distance = peerBean().serverPeerAddress().peerId().xor(locationKey);
+            for (PeerAddress neighbor : neighbors) {
+                if (candidates.size() >= FORWARD_TRIES
+                        || neighbor.peerId().xor(locationKey).compareTo(distance) >= 0) {
+                    // the neighbors are sorted, the closest first
+                    break;
+                }
+                if (!path.contains(neighbor)) {
+                    candidates.add(neighbor);
+                }
+            }
+        }
+        path.add(peerBean().serverPeerAddress());
+        if (candidates.isEmpty()) {
+            forwarded.remove(lookupId);
+            answer(hop.previous, locationKey, lookupId, neighbors, path);
+        } else {
+            forward(hop, candidates, 0, locationKey, lookupId, hops - 1, neighbors, path);
+        }
+    }
+
+    /**
+     * Handles the answer of the next hop. The origin completes the lookup, every other hop passes the answer on to the
+     * previous hop.
+     */
+    private void handleAnswer(final Message message, final Number160 locationKey, final Number160 lookupId,
+            final Responder responder) {
+        final Hop pendingHop = pending.get(lookupId);
+        final Hop hop = pendingHop == null ? forwarded.get(lookupId) : pendingHop;
+        if (hop == null || hop.next == null || !hop.next.peerId().equals(message.sender().peerId())) {
+            responder.response(createResponseMessage(message, Type.NOT_FOUND));
+            LOG.debug("Answer to recursive lookup {} from {} is unknown or arrived too late.", lookupId,
+                    message.sender());
+            return;
+        }
+        responder.response(createResponseMessage(message, Type.OK));
+        final Collection<PeerAddress> neighbors = message.neighborsSet(0).neighbors();
+        final List<PeerAddress> path = message.neighborsSet(1) == null ? Collections.<PeerAddress> emptyList()
+                : new ArrayList<PeerAddress>(message.neighborsSet(1).neighbors());
+        if (pendingHop == null) {
+            if (forwarded.remove(lookupId) != null) {
+                answer(hop.previous, locationKey, lookupId, neighbors, path);
+            }
+            return;
+        }
+        if (!pending.remove(lookupId, pendingHop)) {
+            return;
+        }
+        // the close peers are reported by the last hop
+        final PeerAddress referrer = path.isEmpty() ? message.sender() : path.get(path.size() - 1);
+        for (PeerAddress neighbor : neighbors) {
+            peerBean().notifyPeerFound(neighbor, referrer, null, null);
+        }
+        pendingHop.futureDone.done(message);
+    }
+
+    /**
+     * Forwards the lookup to the next candidate. If the candidate does not accept it, the next one is tried, and if
+     * there is none left, this peer answers the previous hop.
+     */
+    private void forward(final Hop hop, final List<PeerAddress> candidates, final int index,
+            final Number160 locationKey, final Number160 lookupId, final int hops, final List<PeerAddress> neighbors,
+            final List<PeerAddress> path) {
+        final PeerAddress next = candidates.get(index);
+        hop.next = next;
+        connectionBean().reservation().create(1, 0).addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    LOG.warn("Could not forward recursive lookup {}: {}.", lookupId, future.failedReason());
+                    forwarded.remove(lookupId);
+                    return;
+                }
+                LOG.debug("Forward recursive lookup {} to {}.", lookupId, next);
+                final FutureResponse futureResponse = send(forwardMessage(next, locationKey, lookupId, hops, path),
+                        connectionBean().channelServer().channelServerConfiguration(), future.channelCreator());
+                Utils.addReleaseListener(future.channelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (future.isSuccess() && future.responseMessage().type() == Type.OK) {
+                            return;
+                        }
+                        if (index + 1 < candidates.size()) {
+                            forward(hop, candidates, index + 1, locationKey, lookupId, hops, neighbors, path);
+                        } else if (forwarded.remove(lookupId) != null) {
+                            answer(hop.previous, locationKey, lookupId, neighbors, path);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the close peers of the last hop to the previous hop of the lookup.
+     */
+    private void answer(final PeerAddress previous, final Number160 locationKey, final Number160 lookupId,
+            final Collection<PeerAddress> neighbors, final List<PeerAddress> path) {
+        connectionBean().reservation().create(1, 0).addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    LOG.warn("Could not answer recursive lookup {}: {}.", lookupId, future.failedReason());
+                    return;
+                }
+                LOG.debug("Answer recursive lookup {} to {} after {} hops.", lookupId, previous, path.size() - 1);
+                final Message message = createMessage(previous, RPC.Commands.RECURSIVE_NEIGHBOR.getNr(),
+                        Type.REQUEST_2);
+                message.key(locationKey);
+                message.key(lookupId);
+                message.neighborsSet(new NeighborSet(NeighborRPC.NEIGHBOR_LIMIT, neighbors));
+                message.neighborsSet(new NeighborSet(-1, path));
+                final FutureResponse futureResponse = send(message,
+                        connectionBean().channelServer().channelServerConfiguration(), future.channelCreator());
+                Utils.addReleaseListener(future.channelCreator(), futureResponse);
+            }
+        });
+    }
+
+    /**
+     * A lookup that this peer started or forwarded.
+     */
+    private static final class Hop {
+        // the peer to pass the answer to, null on the origin
+        private final PeerAddress previous;
+        // completed with the answer, only on the origin
+        private final FutureDone<Message> futureDone;
+        // the peer the lookup was forwarded to, the answer is only accepted from this peer
+        private volatile PeerAddress next;
+
+        private Hop(final PeerAddress previous, final FutureDone<Message> futureDone) {
+            this.previous = previous;
+            this.futureDone = futureDone;
+        }
+    }
+
+    private Message forwardMessage(final PeerAddress remotePeer, final Number160 locationKey,
+            final Number160 lookupId, final int hops, final List<PeerAddress> path) {
+        final Message message = createMessage(remotePeer, RPC.Commands.RECURSIVE_NEIGHBOR.getNr(), Type.REQUEST_1);
+        message.key(locationKey);
+        message.key(lookupId);
+        message.intValue(hops);
+        message.neighborsSet(new NeighborSet(-1, path));
+        return message;
+    }
+
+    private FutureResponse send(final Message message, final ConnectionConfiguration configuration,
+            final ChannelCreator channelCreator) {
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), configuration);
+        if (!configuration.isForceTCP()) {
+            return request.sendUDP(channelCreator);
+        } else {
+            return request.sendTCP(channelCreator);
+        }
+    }
+}
@@ -90,6 +90,12 @@ public class AlternativeCompositeByteBuf extends ByteBuf {
 			.newUpdater(AlternativeCompositeByteBuf.class, "refCnt");
 	private boolean freed;
 	private final ResourceLeak leak;
+
+	// the bytes of the components added from outside and the buffers we
+	// allocated ourselves, used to check the allocation budget of a message
+	private int attachedBytes;
+	private int allocations;
+	private int allocatedBytes;
 	private static final ResourceLeakDetector<ByteBuf> leakDetector = new ResourceLeakDetector<ByteBuf>(
 			AlternativeCompositeByteBuf.class);
 
@@ -282,7 +288,35 @@ public class AlternativeCompositeByteBuf extends ByteBuf {
 	}
 
 	private ByteBuf allocBuffer(int capacity) {
-		return alloc().buffer(capacity);
+		final ByteBuf buf = alloc().buffer(capacity);
+		allocations++;
+		allocatedBytes += buf.capacity();
+		return buf;
+	}
+
+	/**
+	 * @return The number of buffers this composite buffer allocated to write
+	 *         to. Components added with {@link #addComponent(ByteBuf...)} are
+	 *         not counted
+	 */
+	public int allocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return The capacity of all buffers this composite buffer allocated to
+	 *         write to
+	 */
+	public int allocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return The bytes of the components that were added with
+	 *         {@link #addComponent(ByteBuf...)} without a copy
+	 */
+	public int attachedBytes() {
+		return attachedBytes;
 	}
 
 	public AlternativeCompositeByteBuf addComponent(ByteBuf... buffers) {
@@ -299,6 +333,7 @@ public class AlternativeCompositeByteBuf extends ByteBuf {
 			}
 			//We want to use this buffer, so mark it as used
 			b.retain();
+			attachedBytes += b.writerIndex();
 			addComponentElement(fillBuffer, b);
 		}
 		return this;
@@ -562,8 +597,14 @@ public class AlternativeCompositeByteBuf extends ByteBuf {
 							writerIndex, minWritableBytes, maxCapacity(), this));
 		}
 
-		// Normalize the current capacity to the power of 2.
-		int newCapacity = calculateNewCapacity(writerIndex + minWritableBytes);
+		// Normalize the current capacity to the power of 2. Attached components
+		// are not counted, otherwise a few bytes written after a large payload
+		// would allocate a buffer of the size of that payload.
+		final int capacity = capacity();
+		final int missing = minWritableBytes - writableBytes();
+		final int padding = calculateNewCapacity(writerIndex - attachedBytes + minWritableBytes)
+				- (capacity - attachedBytes);
+		final int newCapacity = (int) Math.min(maxCapacity(), (long) capacity + Math.max(missing, padding));
 
 		// Adjust to the new capacity.
 		capacity(newCapacity, fillBuffer);
@@ -260,11 +260,13 @@ public class Data {
 			}
 			//get basedon
 			int index = buf.readerIndex() + indexBasedOnNr + Utils.BYTE_BYTE_SIZE;
-			final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+			final int[] me = new int[Number160.INT_ARRAY_SIZE];
 			for (int i = 0; i < numBasedOn; i++) {
-				buf.getBytes(index, me);
-				index += Number160.BYTE_ARRAY_SIZE;
-				basedOn.add(new Number160(me));
+				for (int j = 0; j < Number160.INT_ARRAY_SIZE; j++) {
+					me[j] = buf.getInt(index);
+					index += Utils.INTEGER_BYTE_SIZE;
+				}
+				basedOn.add(new Number160(me, 0));
 			}
 			
 		} else {
@@ -420,7 +422,7 @@ public class Data {
 		if (basedOnFlag) {
 			buf.writeByte(basedOnSet.size() - 1);
 			for (Number160 basedOn : basedOnSet) {
-				buf.writeBytes(basedOn.toByteArray());
+				basedOn.toByteBuf(buf);
 			}
 		}
 		if (publicKeyFlag) {
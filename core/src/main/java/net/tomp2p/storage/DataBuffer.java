@@ -10,6 +10,12 @@ import java.util.List;
 
 public class DataBuffer {
 
+	/**
+	 * Buffers smaller than this are copied into the message when encoding,
+	 * larger buffers are attached as slices without a copy.
+	 */
+	public static final int COPY_THRESHOLD = 256;
+
 	private final List<ByteBuf> buffers;
 
 	public DataBuffer() {
@@ -130,18 +136,31 @@ public class DataBuffer {
 	}
 
 	/**
-	 * Transfers the data from this buffer the CompositeByteBuf.
+	 * Transfers the data from this buffer the CompositeByteBuf. Small buffers
+	 * are copied, larger ones are attached as retained slices.
 	 * 
 	 * @param buf
 	 *            The AlternativeCompositeByteBuf, where the data from this buffer is
 	 *            transfered to
 	 */
 	public int transferTo(final AlternativeCompositeByteBuf buf) {
-		final DataBuffer copy = shallowCopy();
 		int transferred = 0;
-		for (final ByteBuf buffer : copy.buffers) {
-			buf.addComponent(buffer);
-			transferred += buffer.readableBytes();
+		synchronized (buffers) {
+			for (final ByteBuf buffer : buffers) {
+				final int readable = buffer.readableBytes();
+				if (readable == 0) {
+					continue;
+				}
+				if (readable < COPY_THRESHOLD) {
+					// cheaper to copy than to add a component
+					buf.writeBytes(buffer, buffer.readerIndex(), readable);
+				} else {
+					// no copy, addComponent retains the slice, which is
+					// released together with buf
+					buf.addComponent(buffer.slice());
+				}
+				transferred += readable;
+			}
 		}
 		return transferred;
 	}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.utils;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map that copies its content on every modification and publishes the copy as an immutable snapshot. Reads and
+ * iterations work on the current snapshot without any locking, thus they never block a writer and never see a
+ * concurrent modification. Writers are serialized on the map itself, so a check-then-act sequence can still be made
+ * atomic with <code>synchronized (map)</code>. This is meant for small maps that are read much more often than they are
+ * modified, such as the bags of the peer map.
+ * 
+ * @author Thomas Bocek
+ * @param <K>
+ *            The key
+ * @param <V>
+ *            The value
+ */
+public class CopyOnWriteMap<K, V> extends AbstractMap<K, V> {
+
+    private volatile Map<K, V> snapshot;
+
+    /**
+     * Creates an empty map.
+     */
+    public CopyOnWriteMap() {
+        this.snapshot = Collections.emptyMap();
+    }
+
+    /**
+     * @return The current content of this map. The returned map is immutable and does not change if this map is
+     *         modified afterwards
+     */
+    public Map<K, V> snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return snapshot.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return snapshot.containsValue(value);
+    }
+
+    @Override
+    public V get(final Object key) {
+        return snapshot.get(key);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return snapshot.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        return snapshot.values();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return snapshot.entrySet();
+    }
+
+    @Override
+    public synchronized V put(final K key, final V value) {
+        final Map<K, V> current = snapshot;
+        final V old = current.get(key);
+        if (old == value && (old != null || current.containsKey(key))) {
+            // nothing changes, no need to copy
+            return old;
+        }
+        final Map<K, V> copy = new HashMap<K, V>(current);
+        copy.put(key, value);
+        snapshot = Collections.unmodifiableMap(copy);
+        return old;
+    }
+
+    @Override
+    public synchronized void putAll(final Map<? extends K, ? extends V> m) {
+        if (m.isEmpty()) {
+            return;
+        }
+        final Map<K, V> copy = new HashMap<K, V>(snapshot);
+        copy.putAll(m);
+        snapshot = Collections.unmodifiableMap(copy);
+    }
+
+    @Override
+    public synchronized V remove(final Object key) {
+        final Map<K, V> current = snapshot;
+        if (!current.containsKey(key)) {
+            return null;
+        }
+        final Map<K, V> copy = new HashMap<K, V>(current);
+        final V old = copy.remove(key);
+        snapshot = Collections.unmodifiableMap(copy);
+        return old;
+    }
+
+    @Override
+    public synchronized void clear() {
+        snapshot = Collections.emptyMap();
+    }
+}
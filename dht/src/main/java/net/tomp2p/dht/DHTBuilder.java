@@ -65,6 +65,8 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
     // private boolean signMessage = false;
     private KeyPair keyPair = null;
     private boolean streaming = false;
+    private boolean routeCache = false;
+    private boolean recursiveRouting = false;
     // private boolean forceUDP = false;
     // private boolean forceTCP = false;
     
@@ -266,6 +268,67 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         return self;
     }
     
+    /**
+     * @return True if a cached routing result may be used instead of routing to the location key
+     */
+    public boolean isRouteCache() {
+        return routeCache;
+    }
+
+    /**
+     * Set if a recent routing result for the same key may be used. In that case, the requests are sent right away to
+     * the peers found before. This only has an effect if the peer has a {@link net.tomp2p.p2p.RouteCache}.
+     * 
+     * @param routeCache
+     *            True if a cached routing result may be used
+     * @return This class
+     */
+    public K routeCache(final boolean routeCache) {
+        this.routeCache = routeCache;
+        return self;
+    }
+
+    /**
+     * Set route cache to true. See {@link #routeCache(boolean)}
+     * 
+     * @return This class
+     */
+    public K routeCache() {
+        this.routeCache = true;
+        return self;
+    }
+
+    /**
+     * @return True if the routing may forward the lookup from peer to peer instead of asking every hop itself
+     */
+    public boolean isRecursiveRouting() {
+        return recursiveRouting;
+    }
+
+    /**
+     * Set if the lookup is forwarded from peer to peer and the closest peer answers directly, which saves a round-trip
+     * per hop. This is only used for routing without digest, e.g., for put. If the lookup does not finish in time,
+     * the routing falls back to iterative routing.
+     * 
+     * @param recursiveRouting
+     *            True if the lookup may be forwarded
+     * @return This class
+     */
+    public K recursiveRouting(final boolean recursiveRouting) {
+        this.recursiveRouting = recursiveRouting;
+        return self;
+    }
+
+    /**
+     * Set recursive routing to true. See {@link #recursiveRouting(boolean)}
+     * 
+     * @return This class
+     */
+    public K recursiveRouting() {
+        this.recursiveRouting = true;
+        return self;
+    }
+
     public K addPeerMapFilter(PeerMapFilter peerMapFilter) {
     	if(peerMapFilters == null) {
     		//most likely we have 1-2 filters
@@ -323,6 +386,11 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
         routingBuilder.maxFailures(routingConfiguration.maxFailures());
         routingBuilder.maxSuccess(routingConfiguration.maxSuccess());
+        routingBuilder.routeCache(isRouteCache());
+        routingBuilder.recursive(isRecursiveRouting());
+        routingBuilder.idleUDPMillis(idleUDPMillis());
+        routingBuilder.routingStrategy(routingConfiguration.routingStrategy());
+        routingBuilder.adaptiveParallelism(routingConfiguration.adaptiveParallelism());
         return routingBuilder;
     }
 
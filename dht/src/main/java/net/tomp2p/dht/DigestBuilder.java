@@ -81,7 +81,7 @@ public class DigestBuilder extends DHTBuilder<DigestBuilder> implements Searchab
      * Set the content keys that should be found. Please note that if the content keys are too large, you may need to
      * switch to TCP during routing. The default routing is UDP. Currently, the header is 59bytes, and the length of the
      * content keys is as follows: 4 bytes for the length, 20bytes per content key. The user is warned if it will exceed
-     * the UDP size of 1400 (ConnectionHandler.UDP_LIMIT)
+     * the UDP size of 1400 (ConnectionBean.UDP_LIMIT, see MTUProfile for larger datagrams in the LAN)
      * 
      * @param contentKeys
      * @return
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of records in memory-mapped segment files, used by {@link StorageDisk}. A record is written as
+ * its length, the CRC32 of its body and the body. The segment files are created with their full size and are zero
+ * filled, so a length of 0 marks the end of a segment. A record that does not fit into the current segment starts a
+ * new segment. This class does not interpret the body of a record.
+ *
+ * @author Thomas Bocek
+ *
+ */
+final class DiskLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DiskLog.class);
+
+    // length and CRC32
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final boolean syncWrites;
+
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+    // readers and writers use the read lock, removing a segment needs the write lock
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private Segment active;
+    // set under the write lock, a closed segment is unmapped and must not be accessed anymore
+    private boolean closed = false;
+
+    /**
+     * The position of a record in the log.
+     */
+    static final class Location {
+        private final int segment;
+        private final int offset;
+        private final int length;
+
+        Location(final int segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return The id of the segment
+         */
+        int segment() {
+            return segment;
+        }
+
+        /**
+         * @return The offset of the record in the segment
+         */
+        int offset() {
+            return offset;
+        }
+
+        /**
+         * @return The length of the record including its header
+         */
+        int length() {
+            return length;
+        }
+    }
+
+    /**
+     * Visits the records of the log in the order they were written.
+     */
+    interface RecordVisitor {
+        /**
+         * @param location
+         *            The location of the record
+         * @param body
+         *            The body of the record, only valid during this call
+         */
+        void record(Location location, ByteBuf body);
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        // the position where the next record is written
+        private volatile int end;
+        // the bytes of the records that are still referenced by the index
+        private final AtomicLong live = new AtomicLong();
+
+        private Segment(final int id, final File file, final int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            if (randomAccessFile.length() < capacity) {
+                randomAccessFile.setLength(capacity);
+            }
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    randomAccessFile.length());
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Marks the segment as empty, so that it is not replayed if its file cannot be deleted.
+         */
+        private void invalidate() {
+            buffer.putInt(0, 0);
+        }
+
+        /**
+         * Writes the segment to disk and unmaps it. Until the garbage collector cleans up the mapping, the file
+         * cannot be deleted on Windows, thus it is unmapped right away like a direct buffer. The buffer must not be
+         * accessed afterwards.
+         */
+        private void close() {
+            buffer.force();
+            PlatformDependent.freeDirectBuffer(buffer);
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                LOG.warn("Could not close segment {}.", file, e);
+            }
+        }
+    }
+
+    /**
+     * Opens the segments in the directory. Call {@link #replay(int, int, RecordVisitor)} before appending, as this
+     * finds the end of the log.
+     *
+     * @param directory
+     *            The directory of the segment files
+     * @param segmentSize
+     *            The size of a segment file. A larger record gets its own segment
+     * @param syncWrites
+     *            True if every append should be forced to disk
+     * @throws IOException
+     *             If the segments cannot be mapped
+     */
+    DiskLog(final File directory, final int segmentSize, final boolean syncWrites) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncWrites = syncWrites;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    final int id = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                    segments.put(id, new Segment(id, file, 0));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(0, segmentSize);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * Reads all valid records from the given position on. The end of each replayed segment is set to the end of its
+     * last valid record. A broken record, e.g., from a crash during a write, ends its segment. In the last segment,
+     * the rest of the segment is zeroed so that new records can be appended.
+     *
+     * @param fromSegment
+     *            The segment to start from
+     * @param fromOffset
+     *            The offset within that segment
+     * @param visitor
+     *            The visitor that is called for every record
+     */
+    void replay(final int fromSegment, final int fromOffset, final RecordVisitor visitor) {
+        final CRC32 crc = new CRC32();
+        for (Segment segment : segments.tailMap(fromSegment, true).values()) {
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = segment.id == fromSegment ? fromOffset : 0;
+            while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                final int length = buffer.getInt(offset);
+                if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+                    break;
+                }
+                final int checksum = buffer.getInt(offset + 4);
+                final byte[] body = new byte[length];
+                buffer.position(offset + RECORD_HEADER_SIZE);
+                buffer.get(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn("Broken record in segment {} at {}, ignoring the rest of the segment.", segment.id, offset);
+                    break;
+                }
+                final int recordLength = RECORD_HEADER_SIZE + length;
+                visitor.record(new Location(segment.id, offset, recordLength), Unpooled.wrappedBuffer(body));
+                offset += recordLength;
+            }
+            segment.end = offset;
+        }
+        // anything after the last valid record is garbage from a crash
+        final ByteBuffer buffer = active.buffer.duplicate();
+        for (int i = active.end; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param body
+     *            The body of the record, the readable bytes are written
+     * @return The location of the new record
+     * @throws IOException
+     *             If a new segment cannot be created
+     */
+    Location append(final ByteBuf body) throws IOException {
+        final int length = body.readableBytes();
+        final byte[] bytes = new byte[length];
+        body.getBytes(body.readerIndex(), bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return append(bytes, (int) crc.getValue());
+    }
+
+    /**
+     * Copies a record to the end of the log without interpreting it, e.g., to compact a segment.
+     *
+     * @param location
+     *            The location of the record
+     * @return The new location or null if the segment of the record does not exist anymore
+     * @throws IOException
+     *             If a new segment cannot be created
+     */
+    Location copy(final Location location) throws IOException {
+        final int length = location.length - RECORD_HEADER_SIZE;
+        final byte[] bytes = new byte[length];
+        final int checksum;
+        segmentLock.readLock().lock();
+        try {
+            final Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                return null;
+            }
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            checksum = buffer.getInt(location.offset + 4);
+            buffer.position(location.offset + RECORD_HEADER_SIZE);
+            buffer.get(bytes);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        return append(bytes, checksum);
+    }
+
+    /**
+     * Reads the body of a record. The body is copied, so it stays valid if the segment is removed.
+     *
+     * @param location
+     *            The location of the record
+     * @return The body or null if the segment of the record does not exist anymore
+     */
+    ByteBuf read(final Location location) {
+        segmentLock.readLock().lock();
+        try {
+            final Segment segment = segments.get(location.segment);
+            if (segment == null) {
+                return null;
+            }
+            final ByteBuffer buffer = segment.buffer.duplicate();
+            final byte[] body = new byte[location.length - RECORD_HEADER_SIZE];
+            buffer.position(location.offset + RECORD_HEADER_SIZE);
+            buffer.get(body);
+            return Unpooled.wrappedBuffer(body);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks bytes of a segment as referenced or as garbage.
+     *
+     * @param location
+     *            The location of a record
+     * @param live
+     *            True if the record is now referenced, false if it became garbage
+     */
+    void live(final Location location, final boolean live) {
+        final Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.live.addAndGet(live ? location.length : -location.length);
+        }
+    }
+
+    /**
+     * Sets the end of a segment that is not replayed, as stored in a checkpoint.
+     *
+     * @param id
+     *            The id of the segment
+     * @param end
+     *            The end of the last record
+     */
+    void end(final int id, final int end) {
+        final Segment segment = segments.get(id);
+        if (segment != null) {
+            segment.end = end;
+        }
+    }
+
+    /**
+     * @return The current end of the log as segment id and offset
+     */
+    int[] position() {
+        synchronized (appendLock) {
+            return new int[] { active.id, active.end };
+        }
+    }
+
+    /**
+     * @return The segment ids and their ends
+     */
+    Map<Integer, Integer> ends() {
+        final Map<Integer, Integer> ends = new ConcurrentSkipListMap<Integer, Integer>();
+        for (Segment segment : segments.values()) {
+            ends.put(segment.id, segment.end);
+        }
+        return ends;
+    }
+
+    /**
+     * @return The id of the first segment
+     */
+    int firstSegment() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return True if no segment has been removed, so a replay from the first segment sees every record that was
+     *         written
+     */
+    boolean isComplete() {
+        int expected = 0;
+        for (Integer id : segments.keySet()) {
+            if (id != expected++) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forces the entries of the directory to disk, so that a rename or a new file survives a crash. Not all platforms
+     * can open a directory, there the entries are left to the file system.
+     */
+    void syncDirectory() {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Cannot force the directory {} to disk.", directory, e);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOG.debug("Cannot close the directory {}.", directory, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the segments before the given segment of which at least the given ratio is garbage.
+     *
+     * @param beforeSegment
+     *            Only segments with a smaller id are considered
+     * @param garbageRatio
+     *            The ratio of garbage bytes to the written bytes of a segment
+     * @return The ids of the segments to compact
+     */
+    List<Integer> garbageSegments(final int beforeSegment, final double garbageRatio) {
+        final List<Integer> result = new ArrayList<Integer>();
+        for (Segment segment : segments.headMap(beforeSegment, false).values()) {
+            final long end = segment.end;
+            if (end == 0 || (end - segment.live.get()) >= end * garbageRatio) {
+                result.add(segment.id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes a segment and deletes its file. The segment must not be the active segment.
+     *
+     * @param id
+     *            The id of the segment
+     */
+    void remove(final int id) {
+        final Segment segment;
+        segmentLock.writeLock().lock();
+        try {
+            if (active.id == id) {
+                throw new IllegalArgumentException("Cannot remove the active segment.");
+            }
+            segment = segments.remove(id);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        if (segment != null) {
+            // if the file stays, e.g., as another process has it open, the replay must not revive its records
+            segment.invalidate();
+            segment.close();
+            if (!segment.file.delete()) {
+                LOG.warn("Could not delete segment {}, it is empty and deleted on exit.", segment.file);
+                segment.file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Forces the written records of the active segment to disk.
+     */
+    void force() {
+        segmentLock.readLock().lock();
+        try {
+            synchronized (appendLock) {
+                if (!closed) {
+                    active.buffer.force();
+                }
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    void close() {
+        segmentLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private Location append(final byte[] body, final int checksum) throws IOException {
+        final int recordLength = RECORD_HEADER_SIZE + body.length;
+        segmentLock.readLock().lock();
+        try {
+            synchronized (appendLock) {
+                if (closed) {
+                    throw new IOException("The log is closed.");
+                }
+                if (active.end + recordLength > active.capacity()) {
+                    active.buffer.force();
+                    active = createSegment(active.id + 1, Math.max(segmentSize, recordLength));
+                }
+                final ByteBuffer buffer = active.buffer.duplicate();
+                final int offset = active.end;
+                buffer.position(offset);
+                buffer.putInt(body.length);
+                buffer.putInt(checksum);
+                buffer.put(body);
+                active.end = offset + recordLength;
+                if (syncWrites) {
+                    active.buffer.force();
+                }
+                return new Location(active.id, offset, recordLength);
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private Segment createSegment(final int id, final int capacity) throws IOException {
+        final File file = new File(directory, String.format("%s%08d%s", PREFIX, id, SUFFIX));
+        final Segment segment = new Segment(id, file, capacity);
+        segments.put(id, segment);
+        LOG.debug("Created segment {} with {} bytes.", file, capacity);
+        return segment;
+    }
+}
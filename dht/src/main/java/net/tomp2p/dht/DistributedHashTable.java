@@ -28,6 +28,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.connection.ChannelCreator;
+import net.tomp2p.connection.ConnectionBean;
+import net.tomp2p.connection.ConnectionConfiguration;
 import net.tomp2p.dht.StorageLayer.PutStatus;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.BaseFutureAdapter;
@@ -37,14 +39,17 @@ import net.tomp2p.futures.FutureForkJoin;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
 import net.tomp2p.message.KeyMap640Keys;
+import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.DistributedRouting;
+import net.tomp2p.p2p.Hedging;
 import net.tomp2p.p2p.RequestP2PConfiguration;
 import net.tomp2p.p2p.builder.BasicBuilder;
 import net.tomp2p.p2p.builder.RoutingBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
 import net.tomp2p.rpc.DefaultBloomfilterFactory;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.rpc.DirectDataRPC;
@@ -332,7 +337,7 @@ public class DistributedHashTable {
                                         p2pConfiguration2,
                                         builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
                                         futureRouting.potentialHits(),
-                                        futureDHT, true,
+                                        futureDHT, true, hedgeContext(builder),
                                         future.channelCreator(), new OperationMapper<FutureGet>() {
                                             Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
@@ -369,28 +374,27 @@ public class DistributedHashTable {
                                                 	boolean hasData = false;
                                                     Map<Number640, Data> data = future.responseMessage().dataMap(0).dataMap();
                                                     if(data !=null && !data.isEmpty()) {
-                                                        rawData.put(future.request().recipient(), data);
+                                                        rawData.put(responder(future), data);
                                                         hasData = true;
                                                     }
 													
 													KeyMap640Keys keyMaps = future.responseMessage()
 															.keyMap640Keys(0);
 													if (keyMaps != null && keyMaps.keysMap() != null) {
-														rawDigest.put(future.request().recipient(),
+														rawDigest.put(responder(future),
 																new DigestResult(keyMaps.keysMap()));
 														hasData = true;
 													}
 													
 													if(hasData) {
-														rawStatus.put(future.request().recipient(), (byte) PutStatus.OK.ordinal());
+														rawStatus.put(responder(future), (byte) PutStatus.OK.ordinal());
 													} else {
-														rawStatus.put(future.request().recipient(), (byte) PutStatus.NOT_FOUND.ordinal());
+														rawStatus.put(responder(future), (byte) PutStatus.NOT_FOUND.ordinal());
 													}
 
-                                                    logger.debug("set data from {}", future.request()
-                                                            .recipient());
+                                                    logger.debug("set data from {}", responder(future));
                                                 } else {
-                                                	rawStatus.put(future.request().recipient(), (byte) PutStatus.FAILED.ordinal());
+                                                	rawStatus.put(responder(future), (byte) PutStatus.FAILED.ordinal());
                                                 }
                                             }
                                         });
@@ -433,7 +437,7 @@ public class DistributedHashTable {
                                         builder.requestP2PConfiguration(),
                                         builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
                                         futureRouting.potentialHits(), 
-                                        futureDHT, true,
+                                        futureDHT, true, hedgeContext(builder),
                                         future.channelCreator(), new OperationMapper<FutureDigest>() {
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
 
@@ -471,8 +475,8 @@ public class DistributedHashTable {
 												                .responseMessage().keyMap640Keys(0).keysMap();
 												        digest = new DigestResult(keyDigest);
 											        }
-											        rawDigest.put(future.request().recipient(), digest);
-											        logger.debug("set data from {}", future.request().recipient());
+											        rawDigest.put(responder(future), digest);
+											        logger.debug("set data from {}", responder(future));
                                                 }
                                             }
                                         });
@@ -611,10 +615,17 @@ public class DistributedHashTable {
         return futureDHT;
     }
 
-    //TODO: have two queues, direct queue + potential queue.
     private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
     		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
             OperationMapper<K> operation) {
+        parallelRequests(p2pConfiguration, directHit, potentialHit, future, cancleOnFinish, null, channelCreator,
+                operation);
+    }
+
+    //TODO: have two queues, direct queue + potential queue.
+    private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
+    		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish,
+    		HedgeContext hedgeContext, ChannelCreator channelCreator, OperationMapper<K> operation) {
     	//the potential hits may contain same values as in directHit, so remove it from potentialHit
     	for(PeerAddress peerAddress:directHit) {
     		potentialHit.remove(peerAddress);
@@ -628,28 +639,29 @@ public class DistributedHashTable {
         // here we split min and pardiff, par=min+pardiff
         loopRec(directHit, potentialHit, p2pConfiguration.minimumResults(), new AtomicInteger(0),
                 p2pConfiguration.maxFailure(), p2pConfiguration.parallelDiff(),
-                new AtomicReferenceArray<FutureResponse>(futures), future, cancleOnFinish, channelCreator,
-                operation);
+                new AtomicReferenceArray<FutureResponse>(futures), future, cancleOnFinish, hedgeContext,
+                channelCreator, operation);
     }
 
     private static <K extends FutureDHT<?>> void loopRec(final NavigableSet<PeerAddress> directHit, final NavigableSet<PeerAddress> potentialHit,
             final int min, final AtomicInteger nrFailure, final int maxFailure, final int parallelDiff,
             final AtomicReferenceArray<FutureResponse> futures, final K futureDHT,
-            final boolean cancelOnFinish, final ChannelCreator channelCreator,
+            final boolean cancelOnFinish, final HedgeContext hedgeContext, final ChannelCreator channelCreator,
             final OperationMapper<K> operation) {
         // final int parallel=min+parallelDiff;
         int active = 0;
         for (int i = 0; i < min + parallelDiff; i++) {
             if (futures.get(i) == null) {
-                PeerAddress next = directHit.pollFirst();
-                if(next == null) {
-                	next = potentialHit.pollFirst();
-                }
+                final PeerAddress next = pollNext(directHit, potentialHit);
                 if (next != null) {
                     active++;
                     FutureResponse futureResponse = operation.create(channelCreator, next);
-                    futures.set(i, futureResponse);
                     futureDHT.addRequests(futureResponse);
+                    if (hedgeContext != null) {
+                        futureResponse = hedge(hedgeContext, futureResponse, next, directHit, potentialHit,
+                                futureDHT, operation);
+                    }
+                    futures.set(i, futureResponse);
                 }
             } else {
                 active++;
@@ -682,12 +694,72 @@ public class DistributedHashTable {
                     operation.response(futureDHT, future.futuresCompleted());
                 } else {
                     loopRec(directHit, potentialHit, min - future.successCounter(), nrFailure, maxFailure, parallelDiff,
-                            futures, futureDHT, cancelOnFinish, channelCreator, operation);
+                            futures, futureDHT, cancelOnFinish, hedgeContext, channelCreator, operation);
                 }
             }
         });
     }
     
+    /**
+     * Takes the next peer to ask. Hedges take their peer from the same sets in another thread.
+     */
+    private static PeerAddress pollNext(final NavigableSet<PeerAddress> directHit,
+            final NavigableSet<PeerAddress> potentialHit) {
+        synchronized (potentialHit) {
+            final PeerAddress next = directHit.pollFirst();
+            return next == null ? potentialHit.pollFirst() : next;
+        }
+    }
+
+    /**
+     * Sends the same request to the next peer if the peer is slow to answer. The response of the hedge completes the
+     * returned future, so the results have to be attributed with {@link #responder(FutureResponse)}.
+     */
+    private static <K extends FutureDHT<?>> FutureResponse hedge(final HedgeContext hedgeContext,
+            final FutureResponse futureResponse, final PeerAddress recipient,
+            final NavigableSet<PeerAddress> directHit, final NavigableSet<PeerAddress> potentialHit,
+            final K futureDHT, final OperationMapper<K> operation) {
+        return hedgeContext.hedging.hedge(futureResponse, hedgeContext.peerMap.getPeerStatistic(recipient),
+                hedgeContext.connectionBean, hedgeContext.tcp, new Hedging.HedgeRequest() {
+                    @Override
+                    public FutureResponse create(final ChannelCreator channelCreator) {
+                        if (futureDHT.isCompleted()) {
+                            return null;
+                        }
+                        final PeerAddress next = pollNext(directHit, potentialHit);
+                        if (next == null) {
+                            return null;
+                        }
+                        logger.debug("hedge request to {} with {}", recipient, next);
+                        final FutureResponse hedge = operation.create(channelCreator, next);
+                        futureDHT.addRequests(hedge);
+                        return hedge;
+                    }
+                });
+    }
+
+    /**
+     * @return The peer that answered the request, which is not the recipient if a hedge answered first
+     */
+    private static PeerAddress responder(final FutureResponse future) {
+        final Message responseMessage = future.responseMessage();
+        return responseMessage == null ? future.request().recipient() : responseMessage.sender();
+    }
+
+    /**
+     * Hedging is only used for reads, as a write must not be applied on a peer it was not meant for.
+     * 
+     * @return The context to hedge the requests of a read operation or null if hedging is not set
+     */
+    private HedgeContext hedgeContext(final ConnectionConfiguration connectionConfiguration) {
+        final Hedging hedging = routing.hedging();
+        if (hedging == null) {
+            return null;
+        }
+        return new HedgeContext(hedging, storeRCP.connectionBean(), storeRCP.peerBean().peerMap(),
+                !connectionConfiguration.isForceUDP());
+    }
+
     private static RoutingBuilder createBuilder(BasicBuilder<?> builder) {
     	RoutingBuilder routingBuilder = builder.createBuilder(builder.requestP2PConfiguration(),
                 builder.routingConfiguration());
@@ -751,4 +823,22 @@ public class DistributedHashTable {
                     p2pConfiguration.parallelDiff());
         }
     }
+
+    /**
+     * What a read operation needs to hedge its requests.
+     */
+    private static final class HedgeContext {
+        private final Hedging hedging;
+        private final ConnectionBean connectionBean;
+        private final PeerMap peerMap;
+        private final boolean tcp;
+
+        private HedgeContext(final Hedging hedging, final ConnectionBean connectionBean, final PeerMap peerMap,
+                final boolean tcp) {
+            this.hedging = hedging;
+            this.connectionBean = connectionBean;
+            this.peerMap = peerMap;
+            this.tcp = tcp;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.List;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Decides which entries {@link StorageBounded} evicts when it runs out of space. The storage tells the policy about
+ * every entry it stores, reads and removes. The methods are called concurrently, an implementation needs to be
+ * thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+public interface EvictionPolicy {
+
+    /**
+     * @param key
+     *            The key of an entry that was stored or replaced
+     */
+    public void added(Number640 key);
+
+    /**
+     * @param key
+     *            The key of an entry that was read
+     */
+    public void accessed(Number640 key);
+
+    /**
+     * @param key
+     *            The key of an entry that was removed or evicted
+     */
+    public void removed(Number640 key);
+
+    /**
+     * @param storage
+     *            The storage that holds the entries
+     * @param max
+     *            The maximum number of candidates
+     * @return The keys to evict, the first key is evicted first. The list may contain keys that have been removed in
+     *         the meantime.
+     */
+    public List<Number640> candidates(Storage storage, int max);
+}
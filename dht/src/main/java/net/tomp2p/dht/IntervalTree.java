@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+/**
+ * An AVL tree of closed intervals that is augmented with the largest end of each subtree, so that an overlapping
+ * interval is found in O(log n). Each interval has an owner, intervals of the same owner never conflict. This class
+ * is not thread-safe, {@link RangeLock} guards it.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the interval bounds
+ */
+final class IntervalTree<K extends Comparable<K>> {
+
+    private Node<K> root = null;
+    private int size = 0;
+    private long sequence = 0;
+
+    /**
+     * An interval in the tree. The sequence number makes intervals with the same start unique.
+     */
+    static final class Node<K> {
+        private final K from;
+        private final K to;
+        private final long owner;
+        private final long seq;
+        private K max;
+        private int height = 1;
+        private Node<K> left;
+        private Node<K> right;
+
+        private Node(final K from, final K to, final long owner, final long seq) {
+            this.from = from;
+            this.to = to;
+            this.owner = owner;
+            this.seq = seq;
+            this.max = to;
+        }
+    }
+
+    /**
+     * Adds an interval.
+     *
+     * @param from
+     *            The start, inclusive
+     * @param to
+     *            The end, inclusive
+     * @param owner
+     *            The owner of the interval
+     * @return The node that needs to be used to remove the interval again
+     */
+    public Node<K> add(final K from, final K to, final long owner) {
+        final Node<K> node = new Node<K>(from, to, owner, sequence++);
+        root = insert(root, node);
+        size++;
+        return node;
+    }
+
+    /**
+     * Removes an interval.
+     *
+     * @param node
+     *            The node returned by {@link #add(Comparable, Comparable, long)}
+     */
+    public void remove(final Node<K> node) {
+        final int before = size;
+        root = delete(root, node);
+        if (size == before) {
+            throw new IllegalArgumentException("Interval not in this tree.");
+        }
+    }
+
+    /**
+     * @param from
+     *            The start of the interval to test, inclusive
+     * @param to
+     *            The end of the interval to test, inclusive
+     * @param owner
+     *            The owner of the interval to test
+     * @return True if an interval of another owner overlaps with the given interval
+     */
+    public boolean overlapsOther(final K from, final K to, final long owner) {
+        return overlapsOther(root, from, to, owner);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean overlapsOther(final Node<K> node, final K from, final K to, final long owner) {
+        // all intervals in this subtree end before the interval to test
+        if (node == null || node.max.compareTo(from) < 0) {
+            return false;
+        }
+        if (overlapsOther(node.left, from, to, owner)) {
+            return true;
+        }
+        // this interval and all intervals to the right start after the interval to test
+        if (node.from.compareTo(to) > 0) {
+            return false;
+        }
+        if (node.owner != owner && node.to.compareTo(from) >= 0) {
+            return true;
+        }
+        return overlapsOther(node.right, from, to, owner);
+    }
+
+    private int compare(final Node<K> n1, final Node<K> n2) {
+        final int diff = n1.from.compareTo(n2.from);
+        if (diff != 0) {
+            return diff;
+        }
+        return n1.seq < n2.seq ? -1 : (n1.seq == n2.seq ? 0 : 1);
+    }
+
+    private Node<K> insert(final Node<K> node, final Node<K> newNode) {
+        if (node == null) {
+            return newNode;
+        }
+        if (compare(newNode, node) < 0) {
+            node.left = insert(node.left, newNode);
+        } else {
+            node.right = insert(node.right, newNode);
+        }
+        return balance(node);
+    }
+
+    private Node<K> delete(final Node<K> node, final Node<K> toDelete) {
+        if (node == null) {
+            return null;
+        }
+        final int diff = compare(toDelete, node);
+        if (diff < 0) {
+            node.left = delete(node.left, toDelete);
+        } else if (diff > 0) {
+            node.right = delete(node.right, toDelete);
+        } else {
+            size--;
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            // replace with the smallest node of the right subtree
+            Node<K> min = node.right;
+            while (min.left != null) {
+                min = min.left;
+            }
+            min.right = deleteMin(node.right);
+            min.left = node.left;
+            return balance(min);
+        }
+        return balance(node);
+    }
+
+    private Node<K> deleteMin(final Node<K> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        node.left = deleteMin(node.left);
+        return balance(node);
+    }
+
+    private Node<K> balance(final Node<K> node) {
+        update(node);
+        final int diff = height(node.left) - height(node.right);
+        if (diff > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (diff < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private Node<K> rotateRight(final Node<K> node) {
+        final Node<K> left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private Node<K> rotateLeft(final Node<K> node) {
+        final Node<K> right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private void update(final Node<K> node) {
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        K max = node.to;
+        if (node.left != null && node.left.max.compareTo(max) > 0) {
+            max = node.left.max;
+        }
+        if (node.right != null && node.right.max.compareTo(max) > 0) {
+            max = node.right.max;
+        }
+        node.max = max;
+    }
+
+    private static int height(final Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Evicts the entries that have been stored or read the least often. Entries with the same count are evicted in the
+ * order in which they reached this count. The counts are kept in buckets, so each update is O(log n) in the number of
+ * distinct counts.
+ *
+ * @author Thomas Bocek
+ */
+public class LFUEvictionPolicy implements EvictionPolicy {
+
+    private final Map<Number640, Integer> counts = new HashMap<Number640, Integer>();
+    private final TreeMap<Integer, Set<Number640>> buckets = new TreeMap<Integer, Set<Number640>>();
+
+    @Override
+    public synchronized void added(final Number640 key) {
+        increment(key);
+    }
+
+    @Override
+    public synchronized void accessed(final Number640 key) {
+        if (counts.containsKey(key)) {
+            increment(key);
+        }
+    }
+
+    @Override
+    public synchronized void removed(final Number640 key) {
+        final Integer count = counts.remove(key);
+        if (count != null) {
+            removeFromBucket(key, count);
+        }
+    }
+
+    @Override
+    public synchronized List<Number640> candidates(final Storage storage, final int max) {
+        final List<Number640> candidates = new ArrayList<Number640>(Math.min(max, counts.size()));
+        for (Set<Number640> bucket : buckets.values()) {
+            for (Number640 key : bucket) {
+                if (candidates.size() >= max) {
+                    return candidates;
+                }
+                candidates.add(key);
+            }
+        }
+        return candidates;
+    }
+
+    private void increment(final Number640 key) {
+        final Integer count = counts.get(key);
+        final int next;
+        if (count == null) {
+            next = 1;
+        } else {
+            removeFromBucket(key, count);
+            next = count == Integer.MAX_VALUE ? count : count + 1;
+        }
+        counts.put(key, next);
+        Set<Number640> bucket = buckets.get(next);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<Number640>();
+            buckets.put(next, bucket);
+        }
+        bucket.add(key);
+    }
+
+    private void removeFromBucket(final Number640 key, final Integer count) {
+        final Set<Number640> bucket = buckets.get(count);
+        if (bucket != null) {
+            bucket.remove(key);
+            if (bucket.isEmpty()) {
+                buckets.remove(count);
+            }
+        }
+    }
+}
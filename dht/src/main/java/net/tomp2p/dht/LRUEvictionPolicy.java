@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Evicts the entries that have not been stored or read for the longest time.
+ *
+ * @author Thomas Bocek
+ */
+public class LRUEvictionPolicy implements EvictionPolicy {
+
+    // access order, the eldest entry comes first
+    private final Map<Number640, Boolean> keys = new LinkedHashMap<Number640, Boolean>(16, 0.75f, true);
+
+    @Override
+    public synchronized void added(final Number640 key) {
+        keys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void accessed(final Number640 key) {
+        keys.get(key);
+    }
+
+    @Override
+    public synchronized void removed(final Number640 key) {
+        keys.remove(key);
+    }
+
+    @Override
+    public synchronized List<Number640> candidates(final Storage storage, final int max) {
+        final List<Number640> candidates = new ArrayList<Number640>(Math.min(max, keys.size()));
+        for (Number640 key : keys.keySet()) {
+            if (candidates.size() >= max) {
+                break;
+            }
+            candidates.add(key);
+        }
+        return candidates;
+    }
+}
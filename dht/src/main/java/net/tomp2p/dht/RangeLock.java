@@ -1,76 +1,174 @@
 package net.tomp2p.dht;
 
-import java.util.NavigableMap;
-import java.util.TreeMap;
-
+/**
+ * Locks ranges of keys. Only ranges that overlap block each other. The lock is striped by a partition of the keys,
+ * e.g., the location key: a range that lies within one partition only uses the monitor of its stripe, and only
+ * waiters of that stripe are woken up on unlock. A range that spans several partitions is added to all stripes, in
+ * ascending order to avoid deadlocks. Within a stripe, the locked ranges are kept in an {@link IntervalTree}.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the keys
+ */
 final public class RangeLock<K extends Comparable<K>> {
-	private final Object lockInternal = new Object();
-	private final NavigableMap<K, Long> cache = new TreeMap<K, Long>();
-	
+
+	/**
+	 * Maps a key to its partition. All keys between two keys of the same partition must be in this partition as
+	 * well, e.g., the location key of a {@link net.tomp2p.peers.Number640}.
+	 */
+	public interface Partition<K> {
+		Object partition(K key);
+	}
+
+	private final Stripe<K>[] stripes;
+	private final Partition<K> partition;
+
+	private static final class Stripe<K extends Comparable<K>> {
+		private final IntervalTree<K> ranges = new IntervalTree<K>();
+	}
+
 	final public class Range {
-        final private K fromKey;
-        final private K toKey;
-        final private RangeLock<K> ref;
-        private Range(final K fromKey, final K toKey, RangeLock<K> ref) {
-        	this.fromKey = fromKey;
-        	this.toKey = toKey;
-        	this.ref = ref;
-        }
-        
-        public void unlock() {
-        	ref.unlock(this);
-        }
-    }
-	
+		// the stripe, or -1 if the range is in all stripes
+		final private int stripe;
+		final private IntervalTree.Node<K>[] nodes;
+		final private RangeLock<K> ref;
+
+		private Range(final int stripe, final IntervalTree.Node<K>[] nodes, final RangeLock<K> ref) {
+			this.stripe = stripe;
+			this.nodes = nodes;
+			this.ref = ref;
+		}
+
+		public void unlock() {
+			ref.unlock(this);
+		}
+	}
+
+	/**
+	 * Creates a range lock with a single stripe.
+	 */
+	public RangeLock() {
+		this(1, null);
+	}
+
+	/**
+	 * @param nrStripes
+	 *            The number of stripes
+	 * @param partition
+	 *            The partition of the keys, may be null if there is only one stripe
+	 */
+	public RangeLock(final int nrStripes, final Partition<K> partition) {
+		if (nrStripes < 1 || (nrStripes > 1 && partition == null)) {
+			throw new IllegalArgumentException("Need at least one stripe, and a partition for more than one stripe.");
+		}
+		this.partition = partition;
+		this.stripes = newStripes(nrStripes);
+		for (int i = 0; i < nrStripes; i++) {
+			stripes[i] = new Stripe<K>();
+		}
+	}
+
 	/**
-	 * The same thread can lock a range twice. The first unlock for range x unlocks all range x.   
+	 * The same thread can lock overlapping ranges, each range needs to be unlocked on its own. A thread that already
+	 * holds a range should not lock a range in another partition, as a range that spans several partitions may wait
+	 * for the first while holding the second.
+	 *
 	 * @param fromKey
+	 *            The start of the range, inclusive
 	 * @param toKey
-	 * @return
+	 *            The end of the range, inclusive
+	 * @return The locked range, or null if the thread was interrupted while waiting
 	 */
 	public Range lock(final K fromKey, final K toKey) {
 		final long id = Thread.currentThread().getId();
-		synchronized (lockInternal) {
-			final NavigableMap<K, Long> subMap = cache.subMap(fromKey, true, toKey, true);
-			while (subMap.size() > 0) {
-				if(mapSizeFiltered(id, subMap) == 0) {
-					break;
+		final int stripe = stripe(fromKey, toKey);
+		if (stripe >= 0) {
+			final IntervalTree.Node<K> node = lock(stripes[stripe], fromKey, toKey, id);
+			if (node == null) {
+				return null;
+			}
+			final IntervalTree.Node<K>[] nodes = newNodes(1);
+			nodes[0] = node;
+			return new Range(stripe, nodes, this);
+		}
+		final IntervalTree.Node<K>[] nodes = newNodes(stripes.length);
+		for (int i = 0; i < stripes.length; i++) {
+			nodes[i] = lock(stripes[i], fromKey, toKey, id);
+			if (nodes[i] == null) {
+				for (int j = 0; j < i; j++) {
+					unlock(stripes[j], nodes[j]);
 				}
+				return null;
+			}
+		}
+		return new Range(-1, nodes, this);
+	}
+
+	public void unlock(RangeLock<K>.Range lock) {
+		if (lock.stripe >= 0) {
+			unlock(stripes[lock.stripe], lock.nodes[0]);
+			return;
+		}
+		for (int i = 0; i < stripes.length; i++) {
+			unlock(stripes[i], lock.nodes[i]);
+		}
+	}
+
+	/**
+	 * @return The number of locked ranges, a range that spans several partitions is counted once per stripe
+	 */
+	public int size() {
+		int size = 0;
+		for (final Stripe<K> stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.ranges.size();
+			}
+		}
+		return size;
+	}
+
+	private IntervalTree.Node<K> lock(final Stripe<K> stripe, final K fromKey, final K toKey, final long id) {
+		synchronized (stripe) {
+			while (stripe.ranges.overlapsOther(fromKey, toKey, id)) {
 				try {
-					lockInternal.wait();
+					stripe.wait();
 				} catch (InterruptedException e) {
 					return null;
 				}
 			}
-        	
-        	cache.put(fromKey, id);
-        	cache.put(toKey, id);
-        }
-		return new Range(fromKey, toKey, this);
+			return stripe.ranges.add(fromKey, toKey, id);
+		}
 	}
-	
-	private int mapSizeFiltered(final long id, final NavigableMap<K, Long> subMap) {
-		int counter = 0;
-		for(final long longValue:subMap.values()) {
-			if(longValue != id) {
-				counter ++;
-			}
+
+	private void unlock(final Stripe<K> stripe, final IntervalTree.Node<K> node) {
+		synchronized (stripe) {
+			stripe.ranges.remove(node);
+			stripe.notifyAll();
 		}
-		return counter;
 	}
 
-	public void unlock(RangeLock<?>.Range lock) {
-		synchronized (lockInternal) {
-			cache.remove(lock.fromKey);
-			cache.remove(lock.toKey);
-			lockInternal.notifyAll();
-	    }
+	// generic arrays cannot be created, the casts are safe as the arrays are only filled with elements of type K
+	@SuppressWarnings("unchecked")
+	private static <K extends Comparable<K>> Stripe<K>[] newStripes(final int length) {
+		return (Stripe<K>[]) new Stripe<?>[length];
 	}
-	
-	public int size() {
-		synchronized (lockInternal) {
-			return cache.size();
+
+	@SuppressWarnings("unchecked")
+	private static <K> IntervalTree.Node<K>[] newNodes(final int length) {
+		return (IntervalTree.Node<K>[]) new IntervalTree.Node<?>[length];
+	}
+
+	private int stripe(final K fromKey, final K toKey) {
+		if (stripes.length == 1) {
+			return 0;
+		}
+		final Object fromPartition = partition.partition(fromKey);
+		if (!fromPartition.equals(partition.partition(toKey))) {
+			return -1;
 		}
+		final int hash = fromPartition.hashCode();
+		// spread the bits, as the stripes are selected with a modulo
+		return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length;
 	}
-	
 }
@@ -65,6 +65,15 @@ public interface Storage {
     public abstract void removeTimeout(Number640 key);
 
     public abstract Collection<Number640> subMapTimeout(long to);
+
+    /**
+     * @param to
+     *            The time until which the keys are returned, exclusive
+     * @param limit
+     *            The maximum number of keys, or -1 for all
+     * @return The keys that expire before the given time, the earliest first
+     */
+    public abstract Collection<Number640> subMapTimeout(long to, int limit);
     
     public int storageCheckIntervalMillis();
 
@@ -0,0 +1,468 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that limits the number of bytes and the number of entries of another storage. If a put does not fit, entries
+ * are evicted as chosen by the {@link EvictionPolicy}. Entries of location keys this peer is not responsible for, see
+ * {@link Storage#findContentForResponsiblePeerID(Number160)}, are evicted first, as other peers hold them as well. To
+ * not evict on each put, eviction frees space down to a low watermark. If not enough space can be freed, the put throws
+ * a {@link StorageFullException}, which {@link StorageLayer} reports as {@link StorageLayer.PutStatus#FAILED_OVER_QUOTA}.
+ * Thus, a burst of puts is rejected instead of running the peer out of memory.
+ * <p>
+ * An evicted entry is accounted as removed right away, but it is only removed from the wrapped storage with
+ * {@link #removeEviction(Number640)}, which {@link StorageLayer} calls after the put while holding the lock of the
+ * evicted key. A put of an evicted key before that cancels its removal.
+ * <p>
+ * The bytes of an entry are the bytes of its value. Evicted entries disappear like expired entries. The storage that
+ * is wrapped should keep all versions, as versions it removes on its own are only accounted for once they are
+ * evicted.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageBounded implements Storage {
+
+    public static final double DEFAULT_WATERMARK = 0.9;
+    public static final int DEFAULT_EVICTION_BATCH = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageBounded.class);
+
+    final private Storage backend;
+    final private Number160 peerId;
+    final private long maxBytes;
+    final private int maxEntries;
+    final private EvictionPolicy evictionPolicy;
+
+    // the bytes of each entry, the sum and the map are guarded by this
+    final private Map<Number640, Integer> sizes = new ConcurrentHashMap<Number640, Integer>();
+    private long usedBytes = 0;
+
+    // the entries that are evicted but still in the backend, guarded by this
+    final private Set<Number640> evictions = new LinkedHashSet<Number640>();
+
+    final private AtomicLong evicted = new AtomicLong();
+    final private AtomicLong rejected = new AtomicLong();
+
+    private double watermark = DEFAULT_WATERMARK;
+    private int evictionBatch = DEFAULT_EVICTION_BATCH;
+    private boolean evictResponsible = true;
+
+    /**
+     * @param backend
+     *            The storage that holds the entries
+     * @param peerId
+     *            The ID of this peer, used to find the entries this peer is responsible for
+     * @param maxBytes
+     *            The maximum number of bytes of all values together
+     * @param maxEntries
+     *            The maximum number of entries
+     * @param evictionPolicy
+     *            The policy that chooses the entries to evict
+     */
+    public StorageBounded(Storage backend, Number160 peerId, long maxBytes, int maxEntries,
+            EvictionPolicy evictionPolicy) {
+        this.backend = backend;
+        this.peerId = peerId;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    // Core
+    @Override
+    public Data put(Number640 key, Data value) {
+        final int size = value.length();
+        if (size > maxBytes) {
+            rejected.incrementAndGet();
+            throw new StorageFullException("Value of " + size + " bytes is larger than the storage of " + maxBytes
+                    + " bytes.");
+        }
+        final Integer oldSize;
+        final boolean wasEvicted;
+        synchronized (this) {
+            // the new value replaces the evicted one
+            wasEvicted = evictions.remove(key);
+            oldSize = sizes.get(key);
+            final long neededBytes = usedBytes + size - (oldSize == null ? 0 : oldSize);
+            final int neededEntries = sizes.size() + (oldSize == null ? 1 : 0);
+            if (neededBytes > maxBytes || neededEntries > maxEntries) {
+                evict(key, neededBytes, neededEntries);
+            }
+            // reserve the space before the put, so concurrent puts cannot exceed the limits
+            sizes.put(key, size);
+            usedBytes += size - (oldSize == null ? 0 : oldSize);
+        }
+        final Data oldData;
+        try {
+            oldData = backend.put(key, value);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (sizes.get(key) != null && sizes.get(key) == size) {
+                    if (oldSize == null) {
+                        sizes.remove(key);
+                    } else {
+                        sizes.put(key, oldSize);
+                    }
+                    usedBytes -= size - (oldSize == null ? 0 : oldSize);
+                }
+                if (wasEvicted) {
+                    evictions.add(key);
+                }
+            }
+            throw e;
+        }
+        evictionPolicy.added(key);
+        return oldData;
+    }
+
+    @Override
+    public Data get(Number640 key) {
+        final Data data = backend.get(key);
+        if (data != null) {
+            evictionPolicy.accessed(key);
+        }
+        return data;
+    }
+
+    @Override
+    public boolean contains(Number640 key) {
+        return backend.contains(key);
+    }
+
+    @Override
+    public int contains(Number640 from, Number640 to) {
+        return backend.contains(from, to);
+    }
+
+    @Override
+    public Data remove(Number640 key, boolean returnData) {
+        final Data data = backend.remove(key, returnData);
+        removed(key);
+        return data;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(Number640 from, Number640 to) {
+        final NavigableMap<Number640, Data> removed = backend.remove(from, to);
+        for (Number640 key : removed.keySet()) {
+            removed(key);
+        }
+        return removed;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(Number640 from, Number640 to, int limit, boolean ascending) {
+        final NavigableMap<Number640, Data> subMap = backend.subMap(from, to, limit, ascending);
+        for (Number640 key : subMap.keySet()) {
+            evictionPolicy.accessed(key);
+        }
+        return subMap;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        return backend.map();
+    }
+
+    @Override
+    public void close() {
+        backend.close();
+        synchronized (this) {
+            for (Number640 key : sizes.keySet()) {
+                evictionPolicy.removed(key);
+            }
+            sizes.clear();
+            evictions.clear();
+            usedBytes = 0;
+        }
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(Number640 key, long expiration) {
+        backend.addTimeout(key, expiration);
+    }
+
+    @Override
+    public void removeTimeout(Number640 key) {
+        backend.removeTimeout(key);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return backend.subMapTimeout(to);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        return backend.subMapTimeout(to, limit);
+    }
+
+    @Override
+    public int storageCheckIntervalMillis() {
+        return backend.storageCheckIntervalMillis();
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(Number320 key, PublicKey publicKey) {
+        return backend.protectDomain(key, publicKey);
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(Number320 key, PublicKey publicKey) {
+        return backend.isDomainProtectedByOthers(key, publicKey);
+    }
+
+    @Override
+    public boolean protectEntry(Number480 key, PublicKey publicKey) {
+        return backend.protectEntry(key, publicKey);
+    }
+
+    @Override
+    public boolean isEntryProtectedByOthers(Number480 key, PublicKey publicKey) {
+        return backend.isEntryProtectedByOthers(key, publicKey);
+    }
+
+    // Responsibility
+    @Override
+    public Number160 findPeerIDsForResponsibleContent(Number160 locationKey) {
+        return backend.findPeerIDsForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
+        return backend.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(Number160 locationKey, Number160 peerId) {
+        return backend.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(Number160 locationKey) {
+        backend.removeResponsibility(locationKey);
+    }
+
+    // Capacity
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The keys of the entries that are evicted, but not yet removed from the wrapped storage
+     */
+    public synchronized Collection<Number640> evictions() {
+        return new ArrayList<Number640>(evictions);
+    }
+
+    /**
+     * Removes an evicted entry from the wrapped storage. The caller needs to hold the lock of the key, see
+     * {@link StorageLayer}, and needs to release the returned data.
+     * 
+     * @param key
+     *            The key of an evicted entry
+     * @return The removed data, or null if the entry was put again or removed in the meantime
+     */
+    public Data removeEviction(Number640 key) {
+        synchronized (this) {
+            if (!evictions.remove(key)) {
+                return null;
+            }
+        }
+        backend.removeTimeout(key);
+        return backend.remove(key, false);
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public int size() {
+        return sizes.size();
+    }
+
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return The number of entries evicted so far
+     */
+    public long evicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return The number of puts rejected so far, as not enough space could be freed
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    public double watermark() {
+        return watermark;
+    }
+
+    /**
+     * @param watermark
+     *            The fraction of the limits to free down to once eviction is needed, 1.0 to only free what the put
+     *            needs
+     * @return This class
+     */
+    public StorageBounded watermark(double watermark) {
+        this.watermark = watermark;
+        return this;
+    }
+
+    public int evictionBatch() {
+        return evictionBatch;
+    }
+
+    /**
+     * @param evictionBatch
+     *            The maximum number of entries a single put evicts. If this is not enough, the put is rejected. The
+     *            eviction policy is asked for more candidates than this if some of them cannot be evicted.
+     * @return This class
+     */
+    public StorageBounded evictionBatch(int evictionBatch) {
+        this.evictionBatch = evictionBatch;
+        return this;
+    }
+
+    public boolean isEvictResponsible() {
+        return evictResponsible;
+    }
+
+    /**
+     * @param evictResponsible
+     *            True to evict entries this peer is responsible for if the other entries do not free enough space,
+     *            false to reject the put instead
+     * @return This class
+     */
+    public StorageBounded evictResponsible(boolean evictResponsible) {
+        this.evictResponsible = evictResponsible;
+        return this;
+    }
+
+    private void removed(final Number640 key) {
+        synchronized (this) {
+            evictions.remove(key);
+            final Integer size = sizes.remove(key);
+            if (size != null) {
+                usedBytes -= size;
+            }
+        }
+        evictionPolicy.removed(key);
+    }
+
+    /**
+     * Evicts entries until the put of the given key fits below the watermark. The entries are chosen first and only
+     * evicted if they free enough space for the put, otherwise nothing is evicted and the put is rejected. If the
+     * candidates of the policy are not enough, e.g., as this peer is responsible for them, the policy is asked for twice
+     * as many, until it has no more. Needs to be called while holding this.
+     */
+    private void evict(final Number640 key, final long neededBytes, final int neededEntries) {
+        // at least this is needed to not exceed the limits
+        final long minBytes = neededBytes - maxBytes;
+        final int minEntries = neededEntries - maxEntries;
+        final long targetBytes = Math.max(minBytes, neededBytes - (long) (maxBytes * watermark));
+        final int targetEntries = Math.max(minEntries, neededEntries - (int) (maxEntries * watermark));
+
+        final Collection<Number160> responsible = peerId == null ? null : backend
+                .findContentForResponsiblePeerID(peerId);
+        final Set<Number640> victims = new LinkedHashSet<Number640>();
+        long freedBytes = 0;
+        int freedEntries = 0;
+        int maxCandidates = evictionBatch;
+        while (true) {
+            final List<Number640> candidates = evictionPolicy.candidates(backend, maxCandidates);
+            victims.clear();
+            freedBytes = 0;
+            freedEntries = 0;
+            // first the entries other peers are responsible for, then the own entries
+            for (int pass = 0; pass < 2 && (freedBytes < targetBytes || freedEntries < targetEntries); pass++) {
+                if (pass == 1 && (!evictResponsible || (freedBytes >= minBytes && freedEntries >= minEntries))) {
+                    break;
+                }
+                for (Number640 candidate : candidates) {
+                    if ((freedBytes >= targetBytes && freedEntries >= targetEntries)
+                            || victims.size() >= evictionBatch) {
+                        break;
+                    }
+                    if (candidate.equals(key)) {
+                        continue;
+                    }
+                    final boolean isResponsible = responsible != null
+                            && responsible.contains(candidate.locationKey());
+                    if (isResponsible != (pass == 1)) {
+                        continue;
+                    }
+                    final Integer size = sizes.get(candidate);
+                    if (size == null || !victims.add(candidate)) {
+                        // already removed or already chosen
+                        continue;
+                    }
+                    freedBytes += size;
+                    freedEntries++;
+                }
+            }
+            if ((freedBytes >= minBytes && freedEntries >= minEntries) || victims.size() >= evictionBatch
+                    || candidates.size() < maxCandidates || maxCandidates >= Integer.MAX_VALUE / 2) {
+                break;
+            }
+            maxCandidates *= 2;
+        }
+        if (freedBytes < minBytes || freedEntries < minEntries) {
+            rejected.incrementAndGet();
+            LOG.debug("Rejecting {}, could free {} bytes and {} entries, but {} bytes and {} entries are needed.",
+                    key, freedBytes, freedEntries, minBytes, minEntries);
+            throw new StorageFullException("Storage full, " + usedBytes + " of " + maxBytes + " bytes and "
+                    + sizes.size() + " of " + maxEntries + " entries are used.");
+        }
+        for (Number640 victim : victims) {
+            // the backend entry is removed by removeEviction, while holding the lock of the victim
+            usedBytes -= sizes.remove(victim);
+            evictions.add(victim);
+            evictionPolicy.removed(victim);
+            evicted.incrementAndGet();
+        }
+        LOG.debug("Evicted {} entries with {} bytes.", freedEntries, freedBytes);
+    }
+}
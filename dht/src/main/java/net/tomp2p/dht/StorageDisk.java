@@ -0,0 +1,895 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.dht.DiskLog.Location;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable storage that writes every change as a record to an append-only, memory-mapped {@link DiskLog}. The values
+ * stay on disk, only a sorted index from {@link Number640} to the location of the latest record is kept in memory,
+ * together with the timeouts, the protection and the responsibility maps.
+ * <p>
+ * From time to time, and on {@link #close()}, the index and the other maps are written to a checkpoint file. On
+ * startup, the checkpoint is loaded and the records written after it are replayed. Neither step deserializes a value.
+ * A record that was only partially written during a crash is detected by its checksum and ignored. A background
+ * thread compacts segments that are covered by a checkpoint and consist mostly of garbage by copying their live
+ * records to the end of the log. Only the values are copied, so once a segment has been removed, the storage cannot be
+ * opened without its checkpoint.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageDisk implements Storage {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_COMPACTION_INTERVAL = 60 * 1000;
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5;
+    public static final int DEFAULT_SHUTDOWN_TIMEOUT = 30 * 1000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageDisk.class);
+
+    private static final String CHECKPOINT = "index.dat";
+    private static final int MAGIC = 0x546f6d50;
+    private static final int VERSION = 1;
+
+    // record types, the first byte of each record body
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte TIMEOUT = 3;
+    private static final byte REMOVE_TIMEOUT = 4;
+    private static final byte PROTECT_DOMAIN = 5;
+    private static final byte PROTECT_ENTRY = 6;
+    private static final byte RESPONSIBILITY = 7;
+    private static final byte REMOVE_RESPONSIBILITY = 8;
+    // only used in the checkpoint
+    private static final byte INDEX = 9;
+    private static final byte SEGMENT = 10;
+
+    private static final int FLAG_DELETED = 0x01;
+    private static final int FLAG_META = 0x02;
+
+    // Core
+    final private NavigableMap<Number640, Location> index = new ConcurrentSkipListMap<Number640, Location>();
+
+    // Maintenance
+    final private TimingWheel timeouts = new TimingWheel();
+
+    // Protection
+    final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
+    final private Map<Number480, PublicKey> entryMap = new ConcurrentHashMap<Number480, PublicKey>();
+
+    // Responsibility
+    final private Map<Number160, Number160> responsibilityMap = new ConcurrentHashMap<Number160, Number160>();
+    final private Map<Number160, Set<Number160>> responsibilityMapRev = new ConcurrentHashMap<Number160, Set<Number160>>();
+
+    final private File directory;
+    final private DiskLog log;
+    final private SignatureFactory signatureFactory;
+    final private int storageCheckIntervalMillis;
+    final private int maxVersions;
+    final private double garbageRatio;
+    final private ScheduledExecutorService compaction;
+
+    // a record and the change of the maps are done together, so the order in the log is the order of the changes
+    final private Object writeLock = new Object();
+    // the segment of the last checkpoint, older segments can be compacted
+    private volatile int checkpointSegment;
+    private volatile int shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT;
+
+    /**
+     * Opens or creates a storage in the given directory with the default settings.
+     *
+     * @param directory
+     *            The directory of the log and the checkpoint
+     * @param signatureFactory
+     *            The signature factory to encode public keys and signatures
+     * @throws IOException
+     *             If the directory cannot be read
+     */
+    public StorageDisk(File directory, SignatureFactory signatureFactory) throws IOException {
+        this(directory, signatureFactory, StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL,
+                StorageMemory.DEFAULT_MAX_VERSIONS, DEFAULT_SEGMENT_SIZE, false, DEFAULT_COMPACTION_INTERVAL,
+                DEFAULT_GARBAGE_RATIO);
+    }
+
+    /**
+     * Opens or creates a storage in the given directory.
+     *
+     * @param directory
+     *            The directory of the log and the checkpoint
+     * @param signatureFactory
+     *            The signature factory to encode public keys and signatures
+     * @param storageCheckIntervalMillis
+     *            The interval to check for expired data
+     * @param maxVersions
+     *            The number of versions to keep per key, -1 for all
+     * @param segmentSize
+     *            The size of a segment file
+     * @param syncWrites
+     *            True to force each record to disk, otherwise records are forced to disk on each compaction run, on a
+     *            new segment and on close
+     * @param compactionIntervalMillis
+     *            The interval of the background compaction and checkpointing
+     * @param garbageRatio
+     *            The ratio of garbage in a segment from which on it is compacted
+     * @throws IOException
+     *             If the directory cannot be read
+     */
+    public StorageDisk(File directory, SignatureFactory signatureFactory, int storageCheckIntervalMillis,
+            int maxVersions, int segmentSize, boolean syncWrites, int compactionIntervalMillis, double garbageRatio)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        this.signatureFactory = signatureFactory;
+        this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+        this.maxVersions = maxVersions;
+        this.garbageRatio = garbageRatio;
+        this.log = new DiskLog(directory, segmentSize, syncWrites);
+
+        final int[] position = loadCheckpoint();
+        final DiskLog.RecordVisitor visitor = new DiskLog.RecordVisitor() {
+            @Override
+            public void record(final Location location, final ByteBuf body) {
+                apply(location, body);
+            }
+        };
+        if (position == null) {
+            // the removed segments held records that are only in the checkpoint, e.g., removals and protections
+            if (!log.isComplete()) {
+                log.close();
+                throw new IOException("The checkpoint of " + directory + " is missing or broken, but segments"
+                        + " have been compacted. Replaying the log would lose records.");
+            }
+            checkpointSegment = log.firstSegment();
+            log.replay(checkpointSegment, 0, visitor);
+        } else {
+            checkpointSegment = position[0];
+            log.replay(position[0], position[1], visitor);
+        }
+        LOG.debug("Opened storage {} with {} entries.", directory, index.size());
+
+        this.compaction = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "TomP2P storage compaction " + StorageDisk.this.directory);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compaction.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Throwable t) {
+                    LOG.error("Compaction of {} failed.", StorageDisk.this.directory, t);
+                }
+            }
+        }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Core
+    @Override
+    public Data put(Number640 key, Data value) {
+        final ByteBuf body = Unpooled.buffer();
+        body.writeByte(PUT);
+        key.toByteBuf(body);
+        body.writeLong(value.validFromMillis());
+        body.writeByte((value.isDeleted() ? FLAG_DELETED : 0) | (value.isMeta() ? FLAG_META : 0));
+        value.encodeHeader(body, signatureFactory);
+        for (ByteBuffer buffer : value.toByteBuffers()) {
+            body.writeBytes(buffer);
+        }
+        try {
+            value.encodeDone(body, signatureFactory);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Cannot sign data for " + key, e);
+        } catch (SignatureException e) {
+            throw new RuntimeException("Cannot sign data for " + key, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot sign data for " + key, e);
+        }
+
+        final Data oldData = get(key);
+        synchronized (writeLock) {
+            putLocation(key, append(body));
+        }
+        if (maxVersions > 0) {
+            NavigableMap<Number640, Location> versions = index.subMap(
+                new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.ZERO), true,
+                new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.MAX_VALUE), true);
+
+            while (!versions.isEmpty()
+                    && versions.firstKey().versionKey().timestamp() + maxVersions <= versions.lastKey().versionKey()
+                            .timestamp()) {
+                final Number640 first = versions.firstKey();
+                remove(first, false);
+                removeTimeout(first);
+            }
+        }
+        return oldData;
+    }
+
+    @Override
+    public Data get(Number640 key) {
+        Location location = index.get(key);
+        while (location != null) {
+            final ByteBuf body = log.read(location);
+            if (body != null) {
+                return decode(body);
+            }
+            // if the segment was compacted in the meantime, the index points to the copy
+            final Location current = index.get(key);
+            if (current == location) {
+                LOG.warn("Cannot read {} at segment {}, offset {}, dropping it.", key, location.segment(),
+                        location.offset());
+                synchronized (writeLock) {
+                    if (index.get(key) == location) {
+                        removeLocation(key);
+                    }
+                }
+                return null;
+            }
+            location = current;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean contains(Number640 key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public int contains(Number640 fromKey, Number640 toKey) {
+        return index.subMap(fromKey, true, toKey, true).size();
+    }
+
+    @Override
+    public Data remove(Number640 key, boolean returnData) {
+        final Data oldData = returnData ? get(key) : null;
+        final ByteBuf body = Unpooled.buffer(1 + Number640.BYTE_ARRAY_SIZE);
+        body.writeByte(REMOVE);
+        key.toByteBuf(body);
+        synchronized (writeLock) {
+            if (!index.containsKey(key)) {
+                return null;
+            }
+            append(body);
+            removeLocation(key);
+        }
+        return oldData;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey) {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Number640 key : new ArrayList<Number640>(index.subMap(fromKey, true, toKey, true).keySet())) {
+            final Data data = remove(key, true);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(Number640 fromKey, Number640 toKey, int limit, boolean ascending) {
+        final NavigableMap<Number640, Location> tmp = index.subMap(fromKey, true, toKey, true);
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        final Iterator<Number640> iterator = ascending ? tmp.keySet().iterator() : tmp.descendingKeySet().iterator();
+        while (iterator.hasNext() && (limit < 0 || retVal.size() < limit)) {
+            final Number640 key = iterator.next();
+            final Data data = get(key);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return ascending || limit >= 0 ? retVal : retVal.descendingMap();
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Number640 key : index.keySet()) {
+            final Data data = get(key);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return retVal;
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(Number640 key, long expiration) {
+        final ByteBuf body = Unpooled.buffer(1 + Number640.BYTE_ARRAY_SIZE + 8);
+        body.writeByte(TIMEOUT);
+        key.toByteBuf(body);
+        body.writeLong(expiration);
+        synchronized (writeLock) {
+            append(body);
+            addTimeoutInternal(key, expiration);
+        }
+    }
+
+    @Override
+    public void removeTimeout(Number640 key) {
+        final ByteBuf body = Unpooled.buffer(1 + Number640.BYTE_ARRAY_SIZE);
+        body.writeByte(REMOVE_TIMEOUT);
+        key.toByteBuf(body);
+        synchronized (writeLock) {
+            if (!timeouts.contains(key)) {
+                return;
+            }
+            append(body);
+            removeTimeoutInternal(key);
+        }
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return timeouts.expired(to, -1);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        return timeouts.expired(to, limit);
+    }
+
+    @Override
+    public int storageCheckIntervalMillis() {
+        return storageCheckIntervalMillis;
+    }
+
+    /**
+     * @return The time {@link #close()} waits for a running compaction to finish
+     */
+    public int shutdownTimeoutMillis() {
+        return shutdownTimeoutMillis;
+    }
+
+    /**
+     * @param shutdownTimeoutMillis
+     *            The time {@link #close()} waits for a running compaction to finish, a compaction copies whole
+     *            segments, thus this is independent of the storage check interval
+     * @return This class
+     */
+    public StorageDisk shutdownTimeoutMillis(final int shutdownTimeoutMillis) {
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        return this;
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(Number320 key, PublicKey publicKey) {
+        final ByteBuf body = Unpooled.buffer();
+        body.writeByte(PROTECT_DOMAIN);
+        key.locationKey().toByteBuf(body);
+        key.domainKey().toByteBuf(body);
+        writePublicKey(body, publicKey);
+        synchronized (writeLock) {
+            append(body);
+            protectedMap.put(key, publicKey);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(Number320 key, PublicKey publicKey) {
+        PublicKey other = protectedMap.get(key);
+        if (other == null) {
+            LOG.debug("domain {} not protected", key);
+            return false;
+        }
+        final boolean retVal = !other.equals(publicKey);
+        LOG.debug("domain {} protected: {}", key, retVal);
+        return retVal;
+    }
+
+    @Override
+    public boolean protectEntry(Number480 key, PublicKey publicKey) {
+        final ByteBuf body = Unpooled.buffer();
+        body.writeByte(PROTECT_ENTRY);
+        key.locationKey().toByteBuf(body);
+        key.domainKey().toByteBuf(body);
+        key.contentKey().toByteBuf(body);
+        writePublicKey(body, publicKey);
+        synchronized (writeLock) {
+            append(body);
+            entryMap.put(key, publicKey);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEntryProtectedByOthers(Number480 key, PublicKey publicKey) {
+        PublicKey other = entryMap.get(key);
+        if (other == null) {
+            return false;
+        }
+        return !other.equals(publicKey);
+    }
+
+    // Responsibility
+    @Override
+    public Number160 findPeerIDsForResponsibleContent(Number160 locationKey) {
+        return responsibilityMap.get(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
+        return responsibilityMapRev.get(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(Number160 locationKey, Number160 peerId) {
+        final ByteBuf body = Unpooled.buffer(1 + 2 * Number160.BYTE_ARRAY_SIZE);
+        body.writeByte(RESPONSIBILITY);
+        locationKey.toByteBuf(body);
+        peerId.toByteBuf(body);
+        synchronized (writeLock) {
+            if (peerId.equals(responsibilityMap.get(locationKey))) {
+                return false;
+            }
+            append(body);
+            return updateResponsibilitiesInternal(locationKey, peerId);
+        }
+    }
+
+    @Override
+    public void removeResponsibility(Number160 locationKey) {
+        final ByteBuf body = Unpooled.buffer(1 + Number160.BYTE_ARRAY_SIZE);
+        body.writeByte(REMOVE_RESPONSIBILITY);
+        locationKey.toByteBuf(body);
+        synchronized (writeLock) {
+            if (!responsibilityMap.containsKey(locationKey)) {
+                return;
+            }
+            append(body);
+            removeResponsibilityInternal(locationKey);
+        }
+    }
+
+    // Misc
+    /**
+     * Stops the compaction, writes a checkpoint and closes the segment files. The storage cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        compaction.shutdown();
+        try {
+            if (!compaction.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Compaction of {} did not stop in time.", directory);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (writeLock) {
+            try {
+                log.force();
+                checkpoint();
+            } catch (IOException e) {
+                LOG.error("Could not write the checkpoint of {}, the log will be replayed.", directory, e);
+            }
+            log.close();
+            index.clear();
+            protectedMap.clear();
+            entryMap.clear();
+            timeouts.clear();
+        }
+    }
+
+    /**
+     * @return The directory of the log and the checkpoint
+     */
+    public File directory() {
+        return directory;
+    }
+
+    /**
+     * Forces the log to disk, compacts the segments with too much garbage and writes a checkpoint if needed. This is
+     * called periodically from a background thread.
+     *
+     * @throws IOException
+     *             If the log or the checkpoint cannot be written
+     */
+    void compact() throws IOException {
+        log.force();
+        final List<Integer> segments = log.garbageSegments(checkpointSegment, garbageRatio);
+        if (segments.isEmpty()) {
+            // checkpoint each time a segment is full, so at most one segment needs to be replayed
+            if (log.position()[0] > checkpointSegment) {
+                checkpoint();
+            }
+            return;
+        }
+        final Set<Integer> toCompact = new HashSet<Integer>(segments);
+        int copied = 0;
+        for (Map.Entry<Number640, Location> entry : index.entrySet()) {
+            if (!toCompact.contains(entry.getValue().segment())) {
+                continue;
+            }
+            final Number640 key = entry.getKey();
+            synchronized (writeLock) {
+                // the key may have been changed or removed in the meantime
+                final Location current = index.get(key);
+                if (current == null || !toCompact.contains(current.segment())) {
+                    continue;
+                }
+                final Location copy = log.copy(current);
+                if (copy != null) {
+                    putLocation(key, copy);
+                    copied++;
+                }
+            }
+        }
+        log.force();
+        // the checkpoint has to point to the copies before the segments can be removed, checkpoint() forces the
+        // rename to disk
+        checkpoint();
+        for (Integer id : segments) {
+            log.remove(id);
+        }
+        LOG.debug("Compacted segments {} of {}, copied {} records.", segments, directory, copied);
+    }
+
+    private Location append(final ByteBuf body) {
+        try {
+            return log.append(body);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write to " + directory, e);
+        }
+    }
+
+    private void putLocation(final Number640 key, final Location location) {
+        final Location old = index.put(key, location);
+        log.live(location, true);
+        if (old != null) {
+            log.live(old, false);
+        }
+    }
+
+    private void removeLocation(final Number640 key) {
+        final Location old = index.remove(key);
+        if (old != null) {
+            log.live(old, false);
+        }
+    }
+
+    /**
+     * Applies a record from the log or the checkpoint to the maps. The values are not deserialized.
+     */
+    private void apply(final Location location, final ByteBuf body) {
+        final byte type = body.readByte();
+        switch (type) {
+        case PUT:
+            putLocation(readKey(body), location);
+            break;
+        case REMOVE:
+            removeLocation(readKey(body));
+            break;
+        case TIMEOUT:
+            addTimeoutInternal(readKey(body), body.readLong());
+            break;
+        case REMOVE_TIMEOUT:
+            removeTimeoutInternal(readKey(body));
+            break;
+        case PROTECT_DOMAIN:
+            final Number320 domain = new Number320(new Number160(body), new Number160(body));
+            protectedMap.put(domain, readPublicKey(body));
+            break;
+        case PROTECT_ENTRY:
+            final Number480 entry = new Number480(new Number160(body), new Number160(body), new Number160(body));
+            entryMap.put(entry, readPublicKey(body));
+            break;
+        case RESPONSIBILITY:
+            updateResponsibilitiesInternal(new Number160(body), new Number160(body));
+            break;
+        case REMOVE_RESPONSIBILITY:
+            removeResponsibilityInternal(new Number160(body));
+            break;
+        case INDEX:
+            final Number640 key = readKey(body);
+            putLocation(key, new Location(body.readInt(), body.readInt(), body.readInt()));
+            break;
+        case SEGMENT:
+            log.end(body.readInt(), body.readInt());
+            break;
+        default:
+            LOG.warn("Unknown record type {} at {}, skipping.", type, location == null ? "checkpoint" : location);
+        }
+    }
+
+    private Data decode(final ByteBuf body) {
+        // type and key
+        body.skipBytes(1 + Number640.BYTE_ARRAY_SIZE);
+        final long validFromMillis = body.readLong();
+        final int flags = body.readUnsignedByte();
+        final Data data = Data.decodeHeader(body, signatureFactory);
+        if (data == null || !data.decodeBuffer(body) || !data.decodeDone(body, signatureFactory)) {
+            throw new IllegalStateException("Incomplete data record in " + directory);
+        }
+        data.validFromMillis(validFromMillis);
+        data.deleted((flags & FLAG_DELETED) != 0);
+        data.meta((flags & FLAG_META) != 0);
+        return data;
+    }
+
+    private static Number640 readKey(final ByteBuf body) {
+        return new Number640(new Number160(body), new Number160(body), new Number160(body), new Number160(body));
+    }
+
+    private void writePublicKey(final ByteBuf body, final PublicKey publicKey) {
+        if (publicKey == null) {
+            body.writeBoolean(false);
+        } else {
+            body.writeBoolean(true);
+            signatureFactory.encodePublicKey(publicKey, body);
+        }
+    }
+
+    private PublicKey readPublicKey(final ByteBuf body) {
+        return body.readBoolean() ? signatureFactory.decodePublicKey(body) : null;
+    }
+
+    /**
+     * Writes the index and the other maps to a temporary file and renames it to the checkpoint. The position of the
+     * log is taken first, changes that happen while writing may or may not be in the checkpoint. As they are replayed
+     * from the position on, this does not matter.
+     */
+    private void checkpoint() throws IOException {
+        final int[] position = log.position();
+        final Map<Integer, Integer> ends = log.ends();
+        final File tmp = new File(directory, CHECKPOINT + ".tmp");
+        final FileOutputStream fileOutputStream = new FileOutputStream(tmp);
+        try {
+            final CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOutputStream),
+                    new CRC32());
+            final DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(position[0]);
+            out.writeInt(position[1]);
+            final ByteBuf body = Unpooled.buffer();
+            for (Map.Entry<Integer, Integer> entry : ends.entrySet()) {
+                if (entry.getKey() < position[0]) {
+                    body.clear().writeByte(SEGMENT).writeInt(entry.getKey()).writeInt(entry.getValue());
+                    writeEntry(out, body);
+                }
+            }
+            for (Map.Entry<Number640, Location> entry : index.entrySet()) {
+                final Location location = entry.getValue();
+                body.clear().writeByte(INDEX);
+                entry.getKey().toByteBuf(body);
+                body.writeInt(location.segment()).writeInt(location.offset()).writeInt(location.length());
+                writeEntry(out, body);
+            }
+            final ByteBuf timeoutEntries = Unpooled.buffer();
+            timeouts.forEach(new TimingWheel.Visitor() {
+                @Override
+                public void timeout(final Number640 key, final long deadline) {
+                    timeoutEntries.writeInt(1 + Number640.BYTE_ARRAY_SIZE + 8).writeByte(TIMEOUT);
+                    key.toByteBuf(timeoutEntries);
+                    timeoutEntries.writeLong(deadline);
+                }
+            });
+            timeoutEntries.readBytes(out, timeoutEntries.readableBytes());
+            for (Map.Entry<Number320, PublicKey> entry : protectedMap.entrySet()) {
+                body.clear().writeByte(PROTECT_DOMAIN);
+                entry.getKey().locationKey().toByteBuf(body);
+                entry.getKey().domainKey().toByteBuf(body);
+                writePublicKey(body, entry.getValue());
+                writeEntry(out, body);
+            }
+            for (Map.Entry<Number480, PublicKey> entry : entryMap.entrySet()) {
+                body.clear().writeByte(PROTECT_ENTRY);
+                entry.getKey().locationKey().toByteBuf(body);
+                entry.getKey().domainKey().toByteBuf(body);
+                entry.getKey().contentKey().toByteBuf(body);
+                writePublicKey(body, entry.getValue());
+                writeEntry(out, body);
+            }
+            for (Map.Entry<Number160, Number160> entry : responsibilityMap.entrySet()) {
+                body.clear().writeByte(RESPONSIBILITY);
+                entry.getKey().toByteBuf(body);
+                entry.getValue().toByteBuf(body);
+                writeEntry(out, body);
+            }
+            out.writeInt(0);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        final File checkpoint = new File(directory, CHECKPOINT);
+        // rename replaces the old checkpoint atomically on POSIX systems
+        if (!tmp.renameTo(checkpoint) && !(checkpoint.delete() && tmp.renameTo(checkpoint))) {
+            throw new IOException("Cannot rename " + tmp + " to " + checkpoint);
+        }
+        log.syncDirectory();
+        checkpointSegment = position[0];
+        LOG.debug("Wrote checkpoint of {} at segment {}, offset {}.", directory, position[0], position[1]);
+    }
+
+    private static void writeEntry(final DataOutputStream out, final ByteBuf body) throws IOException {
+        out.writeInt(body.readableBytes());
+        body.readBytes(out, body.readableBytes());
+    }
+
+    /**
+     * Loads the checkpoint if there is a valid one. The checksum is verified before anything is applied.
+     *
+     * @return The position of the log from which on the records need to be replayed, or null if there is no valid
+     *         checkpoint
+     */
+    private int[] loadCheckpoint() throws IOException {
+        final File checkpoint = new File(directory, CHECKPOINT);
+        if (!checkpoint.isFile()) {
+            return null;
+        }
+        if (!readCheckpoint(checkpoint, false)) {
+            LOG.warn("Checkpoint {} is broken, replaying the whole log if no segment has been compacted.", checkpoint);
+            return null;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)));
+        try {
+            in.readInt();
+            in.readInt();
+            final int[] position = new int[] { in.readInt(), in.readInt() };
+            // only now apply, as the checksum is correct
+            readEntries(in, true);
+            return position;
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean readCheckpoint(final File checkpoint, final boolean apply) throws IOException {
+        final CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(
+                checkpoint)), new CRC32());
+        final DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            in.readInt();
+            in.readInt();
+            readEntries(in, apply);
+            final long checksum = checked.getChecksum().getValue();
+            return in.readLong() == checksum;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readEntries(final DataInputStream in, final boolean apply) throws IOException {
+        byte[] bytes = new byte[64];
+        while (true) {
+            final int length = in.readInt();
+            if (length <= 0) {
+                return;
+            }
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            in.readFully(bytes, 0, length);
+            if (apply) {
+                apply(null, Unpooled.wrappedBuffer(bytes, 0, length));
+            }
+        }
+    }
+
+    private void addTimeoutInternal(Number640 key, long expiration) {
+        timeouts.schedule(key, expiration);
+    }
+
+    private void removeTimeoutInternal(Number640 key) {
+        timeouts.cancel(key);
+    }
+
+    private boolean updateResponsibilitiesInternal(Number160 locationKey, Number160 peerId) {
+        final Number160 oldPeerID = responsibilityMap.put(locationKey, peerId);
+        final boolean hasChanged;
+        if (oldPeerID != null) {
+            if (oldPeerID.equals(peerId)) {
+                hasChanged = false;
+            } else {
+                removeRevResponsibility(oldPeerID, locationKey);
+                hasChanged = true;
+            }
+        } else {
+            hasChanged = true;
+        }
+        Set<Number160> contentIDs = responsibilityMapRev.get(peerId);
+        if (contentIDs == null) {
+            contentIDs = new HashSet<Number160>();
+            responsibilityMapRev.put(peerId, contentIDs);
+        }
+        contentIDs.add(locationKey);
+        LOG.debug("Update {} is responsible for key {}.", peerId, locationKey);
+        return hasChanged;
+    }
+
+    private void removeResponsibilityInternal(Number160 locationKey) {
+        Number160 peerId = responsibilityMap.remove(locationKey);
+        if (peerId != null) {
+            removeRevResponsibility(peerId, locationKey);
+            LOG.debug("Remove responsiblity for {}.", locationKey);
+        }
+    }
+
+    private void removeRevResponsibility(Number160 peerId, Number160 locationKey) {
+        Set<Number160> contentIDs = responsibilityMapRev.get(peerId);
+        if (contentIDs != null) {
+            contentIDs.remove(locationKey);
+            if (contentIDs.isEmpty()) {
+                responsibilityMapRev.remove(peerId);
+            }
+        }
+    }
+}
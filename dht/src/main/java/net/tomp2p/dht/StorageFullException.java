@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+/**
+ * Thrown by {@link Storage#put(net.tomp2p.peers.Number640, net.tomp2p.storage.Data)} if the storage has no room left
+ * for the value. The storage is unchanged, the previous value of the key, if any, is still stored.
+ *
+ * @author Thomas Bocek
+ */
+public class StorageFullException extends RuntimeException {
+    private static final long serialVersionUID = -2184316722907283114L;
+
+    /**
+     * @param message
+     *            The reason, e.g., the capacity and the requested size
+     */
+    public StorageFullException(final String message) {
+        super(message);
+    }
+}
@@ -30,6 +30,7 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
@@ -59,7 +60,8 @@ public class StorageLayer implements DigestStorage {
 
 	// The number of PutStatus should never exceed 255.
 	public enum PutStatus {
-		OK, OK_PREPARED, OK_UNCHANGED, FAILED_NOT_ABSENT, FAILED_SECURITY, FAILED, VERSION_FORK, NOT_FOUND, DELETED  
+		OK, OK_PREPARED, OK_UNCHANGED, FAILED_NOT_ABSENT, FAILED_SECURITY, FAILED, VERSION_FORK, NOT_FOUND, DELETED,
+		FAILED_OVER_QUOTA
 	};
 
 	// Hash of public key is always preferred
@@ -78,11 +80,33 @@ public class StorageLayer implements DigestStorage {
 	// anyone
 	final private Collection<Number160> removedDomains = new HashSet<Number160>();
 
-	final private RangeLock<Number640> rangeLock = new RangeLock<Number640>();
-	final private RangeLock<Number640> responsibilityLock = new RangeLock<Number640>();
+	// the number of stripes of the locks, keys of different location keys are likely in different stripes
+	private static final int LOCK_STRIPES = 64;
+	private static final RangeLock.Partition<Number640> LOCATION_KEY = new RangeLock.Partition<Number640>() {
+		@Override
+		public Object partition(Number640 key) {
+			return key.locationKey();
+		}
+	};
+
+	final private RangeLock<Number640> rangeLock = new RangeLock<Number640>(LOCK_STRIPES, LOCATION_KEY);
+	final private RangeLock<Number640> responsibilityLock = new RangeLock<Number640>(LOCK_STRIPES, LOCATION_KEY);
 	
 	final private Storage backend;
 
+	public static final int DEFAULT_EXPIRY_TICK_MILLIS = 250;
+	public static final int DEFAULT_EXPIRY_BATCH = 1000;
+
+	// expire continuously in small batches instead of all at once per storage check interval
+	private int expiryTickMillis = DEFAULT_EXPIRY_TICK_MILLIS;
+	private int expiryBatch = DEFAULT_EXPIRY_BATCH;
+
+	// the lag is the time between the expiration of an entry and its removal
+	final private AtomicLong expiredCount = new AtomicLong();
+	final private AtomicLong totalExpiryLagMillis = new AtomicLong();
+	final private AtomicLong maxExpiryLagMillis = new AtomicLong();
+	private volatile long expiryLagMillis = 0;
+
 	public StorageLayer(Storage backend) {
 		this.backend = backend;
 	}
@@ -215,17 +239,25 @@ public class StorageLayer implements DigestStorage {
 						continue;
 					}
 					final Data oldData = backend.get(key);
-					if(oldData.isDeleted()) {
+					// a bounded storage may have evicted it in the meantime
+					if(oldData != null && oldData.isDeleted()) {
 						retVal.put(key, PutStatus.DELETED);
 						continue;
 					}
-					if(!oldData.basedOnSet().equals(newData.basedOnSet())) {
+					if(oldData != null && !oldData.basedOnSet().equals(newData.basedOnSet())) {
 						retVal.put(key, PutStatus.VERSION_FORK);
 						continue;
 					}
 				}
 				
-				Data oldData = backend.put(key, newData);
+				final Data oldData;
+				try {
+					oldData = backend.put(key, newData);
+				} catch (StorageFullException e) {
+					LOG.debug("Storage full, cannot put {}: {}", key, e.getMessage());
+					retVal.put(key, PutStatus.FAILED_OVER_QUOTA);
+					continue;
+				}
 				
 				long expiration = newData.expirationMillis();
 				// handle timeout
@@ -262,6 +294,8 @@ public class StorageLayer implements DigestStorage {
 			
 		} finally {
 			lock.unlock();
+			// the entries a bounded storage evicted for this put, their locks are taken one by one
+			removeEvicted();
 		}
 	}
 	
@@ -519,34 +553,154 @@ public class StorageLayer implements DigestStorage {
 		}
 	}
 
+	/**
+	 * Removes all expired entries.
+	 */
 	public void checkTimeout() {
+		removeEvicted();
+		final int batch = expiryBatch;
+		int removed;
+		do {
+			removed = expire(batch);
+			// if a whole batch was due, more entries may be due, a batch of -1 removes all at once
+		} while (removed > 0 && removed == batch);
+	}
+
+	/**
+	 * Removes expired entries, the earliest first.
+	 * 
+	 * @param max
+	 *            The maximum number of entries to remove
+	 * @return The number of entries that were due, if this equals max, more may be due
+	 */
+	public int expire(int max) {
 		long time = System.currentTimeMillis();
-		Collection<Number640> toRemove = backend.subMapTimeout(time);
+		Collection<Number640> toRemove = backend.subMapTimeout(time, max);
 		for (Number640 key : toRemove) {
 			RangeLock<Number640>.Range lock = lock(key);
 			try {
+				final Data data = backend.get(key);
+				if (data != null) {
+					final long expiration = data.expirationMillis();
+					// the entry may have been put again with a new ttl in the meantime
+					if (expiration > time) {
+						backend.addTimeout(key, expiration);
+						continue;
+					}
+					recordExpiryLag(time - expiration);
+				}
 				Data oldData = backend.remove(key, false);
 				if(oldData != null) {
 					oldData.release();
 				}
 				backend.removeTimeout(key);
-				// remove responsibility if we don't have any data stored under
-				// locationkey
-				Number160 locationKey = key.locationKey();
-				RangeLock<Number640>.Range lockResp= lockResponsibility(locationKey);
-				try {
-					if (isEmpty(locationKey)) {
-						backend.removeResponsibility(locationKey);
-					}
-				} finally {
-					lockResp.unlock();
+			} finally {
+				lock.unlock();
+			}
+			removeResponsibilityIfEmpty(key.locationKey());
+		}
+		return toRemove.size();
+	}
+
+	/**
+	 * Removes the entries that a {@link StorageBounded} has evicted, each while holding the lock of its key.
+	 */
+	private void removeEvicted() {
+		if (!(backend instanceof StorageBounded)) {
+			return;
+		}
+		final StorageBounded storageBounded = (StorageBounded) backend;
+		for (Number640 key : storageBounded.evictions()) {
+			RangeLock<Number640>.Range lock = lock(key);
+			try {
+				final Data oldData = storageBounded.removeEviction(key);
+				if (oldData != null) {
+					oldData.release();
 				}
 			} finally {
 				lock.unlock();
 			}
+			removeResponsibilityIfEmpty(key.locationKey());
+		}
+	}
+
+	/**
+	 * Removes the responsibility if we don't have any data stored under the location key. The responsibility lock is
+	 * taken first in removeResponsibility, so we must not hold the range lock here.
+	 */
+	private void removeResponsibilityIfEmpty(final Number160 locationKey) {
+		RangeLock<Number640>.Range lockResp= lockResponsibility(locationKey);
+		try {
+			if (isEmpty(locationKey)) {
+				backend.removeResponsibility(locationKey);
+			}
+		} finally {
+			lockResp.unlock();
 		}
 	}
 
+	private void recordExpiryLag(long lagMillis) {
+		expiryLagMillis = lagMillis;
+		expiredCount.incrementAndGet();
+		totalExpiryLagMillis.addAndGet(lagMillis);
+		long max = maxExpiryLagMillis.get();
+		while (lagMillis > max && !maxExpiryLagMillis.compareAndSet(max, lagMillis)) {
+			max = maxExpiryLagMillis.get();
+		}
+	}
+
+	/**
+	 * @return The number of entries removed as they expired
+	 */
+	public long expiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * @return The time between the expiration and the removal of the last expired entry
+	 */
+	public long expiryLagMillis() {
+		return expiryLagMillis;
+	}
+
+	/**
+	 * @return The longest time between the expiration and the removal of an entry
+	 */
+	public long maxExpiryLagMillis() {
+		return maxExpiryLagMillis.get();
+	}
+
+	/**
+	 * @return The average time between the expiration and the removal of an entry
+	 */
+	public long averageExpiryLagMillis() {
+		final long count = expiredCount.get();
+		return count == 0 ? 0 : totalExpiryLagMillis.get() / count;
+	}
+
+	public void expiryTickMillis(int expiryTickMillis) {
+		this.expiryTickMillis = expiryTickMillis;
+	}
+
+	public int expiryTickMillis() {
+		return expiryTickMillis;
+	}
+
+	/**
+	 * @param expiryBatch
+	 *            The maximum number of entries removed per tick, or -1 to remove all expired entries at once
+	 */
+	public void expiryBatch(int expiryBatch) {
+		if (expiryBatch == 0 || expiryBatch < -1) {
+			throw new IllegalArgumentException("The expiry batch needs to be positive or -1 for all entries.");
+		}
+		this.expiryBatch = expiryBatch;
+	}
+
+	public int expiryBatch() {
+		return expiryBatch;
+	}
+
 	private boolean isEmpty(Number160 locationKey) {
 		Number640 from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
 		Number640 to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
@@ -804,13 +958,17 @@ public class StorageLayer implements DigestStorage {
 	private class StorageMaintenanceTask implements Runnable {
 		@Override
 		public void run() {
-			checkTimeout();
+			expire(expiryBatch);
 		}
 	}
 
+	/**
+	 * Starts the removal of expired entries. A batch of at most {@link #expiryBatch()} entries is removed every
+	 * {@link #expiryTickMillis()}, or every storageIntervalMillis if that is shorter.
+	 */
 	public void start(ScheduledExecutorService timer, int storageIntervalMillis) {
-		timer.scheduleAtFixedRate(new StorageMaintenanceTask(), storageIntervalMillis, storageIntervalMillis,
-		        TimeUnit.MILLISECONDS);
+		final int tickMillis = Math.min(storageIntervalMillis, expiryTickMillis);
+		timer.scheduleAtFixedRate(new StorageMaintenanceTask(), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
 	}
 
 	public Enum<?> updateMeta(Number320 locationAndDomainKey, PublicKey publicKey, PublicKey newPublicKey) {
@@ -848,13 +1006,19 @@ public class StorageLayer implements DigestStorage {
 				// handle timeout
 				backend.addTimeout(key, expiration);
 				// no release of old data, as we just update it
-				backend.put(key, data);
+				try {
+					backend.put(key, data);
+				} catch (StorageFullException e) {
+					LOG.debug("Storage full, cannot update {}: {}", key, e.getMessage());
+					return PutStatus.FAILED_OVER_QUOTA;
+				}
 				return PutStatus.OK;
 			} else {
 				return PutStatus.NOT_FOUND;
 			}
 		} finally {
 			lock.unlock();
+			removeEvicted();
 		}
 	}
 
@@ -881,7 +1045,12 @@ public class StorageLayer implements DigestStorage {
 				long expiration = data.expirationMillis();
 				// handle timeout
 				backend.addTimeout(key, expiration);
-				Data oldData = backend.put(key, data);
+				try {
+					backend.put(key, data);
+				} catch (StorageFullException e) {
+					LOG.debug("Storage full, cannot confirm {}: {}", key, e.getMessage());
+					return PutStatus.FAILED_OVER_QUOTA;
+				}
 				//don't release data as we just update
 				return PutStatus.OK;
 			} else {
@@ -889,6 +1058,7 @@ public class StorageLayer implements DigestStorage {
 			}
 		} finally {
 			lock.unlock();
+			removeEvicted();
 		}
 		//TODO: check for FORKS!
 	}
@@ -17,15 +17,12 @@
 package net.tomp2p.dht;
 
 import java.security.PublicKey;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -51,8 +48,7 @@ public class StorageMemory implements Storage {
     final private NavigableMap<Number640, Data> dataMap = new ConcurrentSkipListMap<Number640, Data>();
 
     // Maintenance
-    final private Map<Number640, Long> timeoutMap = new ConcurrentHashMap<Number640, Long>();
-    final private ConcurrentSkipListMap<Long, Set<Number640>> timeoutMapRev = new ConcurrentSkipListMap<Long, Set<Number640>>();
+    final private TimingWheel timeouts = new TimingWheel();
 
     // Protection
     final private Map<Number320, PublicKey> protectedMap = new ConcurrentHashMap<Number320, PublicKey>();
@@ -230,43 +226,22 @@ public class StorageMemory implements Storage {
     // Maintenance
     @Override
     public void addTimeout(Number640 key, long expiration) {
-        Long oldExpiration = timeoutMap.put(key, expiration);
-        Set<Number640> tmp = putIfAbsent2(expiration,
-                Collections.newSetFromMap(new ConcurrentHashMap<Number640, Boolean>()));
-        tmp.add(key);
-        if (oldExpiration == null) {
-            return;
-        }
-        removeRevTimeout(key, oldExpiration);
+        timeouts.schedule(key, expiration);
     }
 
     @Override
     public void removeTimeout(Number640 key) {
-        Long expiration = timeoutMap.remove(key);
-        if (expiration == null) {
-            return;
-        }
-        removeRevTimeout(key, expiration);
+        timeouts.cancel(key);
     }
 
-    private void removeRevTimeout(Number640 key, Long expiration) {
-        Set<Number640> tmp = timeoutMapRev.get(expiration);
-        if (tmp != null) {
-            tmp.remove(key);
-            if (tmp.isEmpty()) {
-                timeoutMapRev.remove(expiration);
-            }
-        }
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return timeouts.expired(to, -1);
     }
 
     @Override
-    public Collection<Number640> subMapTimeout(long to) {
-        SortedMap<Long, Set<Number640>> tmp = timeoutMapRev.subMap(0L, to);
-        Collection<Number640> toRemove = new ArrayList<Number640>();
-        for (Set<Number640> set : tmp.values()) {
-            toRemove.addAll(set);
-        }
-        return toRemove;
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        return timeouts.expired(to, limit);
     }
 
     // Protection
@@ -288,11 +263,6 @@ public class StorageMemory implements Storage {
         return retVal;
     }
 
-    private Set<Number640> putIfAbsent2(long expiration, Set<Number640> hashSet) {
-        Set<Number640> timeouts = timeoutMapRev.putIfAbsent(expiration, hashSet);
-        return timeouts == null ? hashSet : timeouts;
-    }
-
 	@Override
 	public Number160 findPeerIDsForResponsibleContent(Number160 locationKey) {
 		return responsibilityMap.get(locationKey);
@@ -351,8 +321,7 @@ public class StorageMemory implements Storage {
     public void close() {
         dataMap.clear();
         protectedMap.clear();
-        timeoutMap.clear();
-        timeoutMapRev.clear();
+        timeouts.clear();
     }
 
 	@Override
@@ -0,0 +1,529 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number320;
+import net.tomp2p.peers.Number480;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * A storage that keeps the values outside of the Java heap. Each value is serialized together with its metadata into
+ * a direct buffer of a dedicated pooled allocator, whose chunks serve as slabs. Only the sorted key index and a small
+ * buffer object per entry remain on the heap, so millions of small entries no longer add to the garbage collection
+ * work. A {@link Data} object is only created when a value is read with {@link #get(Number640)} or
+ * {@link #subMap(Number640, Number640, int, boolean)}, and it is a heap copy that does not depend on the stored bytes.
+ * <p>
+ * Public keys are stored once in a reference counted table, the entries only refer to them. The total size of the
+ * stored entries is limited, a put that would exceed the limit throws a {@link StorageFullException}. The timeouts, the
+ * protection and the responsibility maps are the same as in {@link StorageMemory}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageOffHeap implements Storage {
+
+    // 8 KiB pages and 1 MiB chunks
+    private static final int PAGE_SIZE = 8192;
+    private static final int MAX_ORDER = 7;
+    private static final int STRIPES = 64;
+
+    // validFromMillis, flags, public key reference, followed by the data header, the value and the signature
+    private static final int INDEX_FLAGS = 8;
+    private static final int INDEX_PUBLIC_KEY = INDEX_FLAGS + 1;
+    private static final int METADATA_SIZE = INDEX_PUBLIC_KEY + 4;
+
+    private static final int FLAG_DELETED = 0x01;
+    private static final int FLAG_META = 0x02;
+    private static final int NO_PUBLIC_KEY = -1;
+
+    // Core
+    final private NavigableMap<Number640, ByteBuf> index = new ConcurrentSkipListMap<Number640, ByteBuf>();
+
+    // Maintenance, protection and responsibility do not hold any values
+    final private StorageMemory metadata;
+
+    final private PooledByteBufAllocator allocator;
+    final private PublicKeyTable publicKeys = new PublicKeyTable();
+    final private SignatureFactory signatureFactory;
+    // a buffer of a key is only read, replaced, or released while holding the stripe of the key
+    final private Object[] stripes = new Object[STRIPES];
+    final private AtomicLong usedBytes = new AtomicLong();
+    final private long maxBytes;
+    final private int maxVersions;
+
+    /**
+     * Creates an off-heap storage that keeps all versions.
+     *
+     * @param maxBytes
+     *            The maximum number of bytes of all entries together
+     * @param signatureFactory
+     *            The signature factory to encode public keys and signatures
+     */
+    public StorageOffHeap(long maxBytes, SignatureFactory signatureFactory) {
+        this(maxBytes, signatureFactory, StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL,
+                StorageMemory.DEFAULT_MAX_VERSIONS);
+    }
+
+    /**
+     * Creates an off-heap storage.
+     *
+     * @param maxBytes
+     *            The maximum number of bytes of all entries together
+     * @param signatureFactory
+     *            The signature factory to encode public keys and signatures
+     * @param storageCheckIntervalMillis
+     *            The interval to check for expired data
+     * @param maxVersions
+     *            The number of versions to keep per key, -1 for all
+     */
+    public StorageOffHeap(long maxBytes, SignatureFactory signatureFactory, int storageCheckIntervalMillis,
+            int maxVersions) {
+        this.maxBytes = maxBytes;
+        this.signatureFactory = signatureFactory;
+        this.maxVersions = maxVersions;
+        this.metadata = new StorageMemory(storageCheckIntervalMillis);
+        this.allocator = new PooledByteBufAllocator(true, 0, Runtime.getRuntime().availableProcessors(), PAGE_SIZE,
+                MAX_ORDER);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    // Core
+    @Override
+    public Data put(Number640 key, Data value) {
+        final PublicKeyTable.Entry publicKey = publicKeys.acquire(value.hasPublicKey() ? value.publicKey() : null);
+        final Data oldData;
+        try {
+            final ByteBuf record = encode(key, value, publicKey);
+            synchronized (stripe(key)) {
+                final ByteBuf old = index.get(key);
+                final int delta = record.readableBytes() - (old == null ? 0 : old.capacity());
+                reserve(delta);
+                ByteBuf buf = null;
+                boolean stored = false;
+                try {
+                    buf = allocator.directBuffer(record.readableBytes(), record.readableBytes());
+                    buf.writeBytes(record);
+                    index.put(key, buf);
+                    stored = true;
+                } finally {
+                    // e.g., no direct memory left, the bytes were never used
+                    if (!stored) {
+                        usedBytes.addAndGet(-delta);
+                        if (buf != null) {
+                            buf.release();
+                        }
+                    }
+                }
+                if (old != null) {
+                    oldData = decode(copy(old));
+                    free(old, false);
+                } else {
+                    oldData = null;
+                }
+            }
+        } catch (RuntimeException e) {
+            publicKeys.release(publicKey);
+            throw e;
+        }
+        if (maxVersions > 0) {
+            NavigableMap<Number640, ByteBuf> versions = index.subMap(
+                new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.ZERO), true,
+                new Number640(key.locationKey(), key.domainKey(), key.contentKey(), Number160.MAX_VALUE), true);
+
+            while (!versions.isEmpty()
+                    && versions.firstKey().versionKey().timestamp() + maxVersions <= versions.lastKey().versionKey()
+                            .timestamp()) {
+                final Number640 first = versions.firstKey();
+                remove(first, false);
+                removeTimeout(first);
+            }
+        }
+        return oldData;
+    }
+
+    @Override
+    public Data get(Number640 key) {
+        final Copy copy;
+        synchronized (stripe(key)) {
+            final ByteBuf buf = index.get(key);
+            if (buf == null) {
+                return null;
+            }
+            copy = copy(buf);
+        }
+        return decode(copy);
+    }
+
+    @Override
+    public boolean contains(Number640 key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public int contains(Number640 fromKey, Number640 toKey) {
+        return index.subMap(fromKey, true, toKey, true).size();
+    }
+
+    @Override
+    public Data remove(Number640 key, boolean returnData) {
+        synchronized (stripe(key)) {
+            final ByteBuf buf = index.remove(key);
+            if (buf == null) {
+                return null;
+            }
+            final Data data = returnData ? decode(copy(buf)) : null;
+            free(buf, true);
+            return data;
+        }
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey) {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Number640 key : new ArrayList<Number640>(index.subMap(fromKey, true, toKey, true).keySet())) {
+            final Data data = remove(key, true);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return retVal;
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> subMap(Number640 fromKey, Number640 toKey, int limit, boolean ascending) {
+        final NavigableMap<Number640, ByteBuf> tmp = index.subMap(fromKey, true, toKey, true);
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        final Iterator<Number640> iterator = ascending ? tmp.keySet().iterator() : tmp.descendingKeySet().iterator();
+        while (iterator.hasNext() && (limit < 0 || retVal.size() < limit)) {
+            final Number640 key = iterator.next();
+            final Data data = get(key);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return ascending || limit >= 0 ? retVal : retVal.descendingMap();
+    }
+
+    @Override
+    public NavigableMap<Number640, Data> map() {
+        final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+        for (Number640 key : index.keySet()) {
+            final Data data = get(key);
+            if (data != null) {
+                retVal.put(key, data);
+            }
+        }
+        return retVal;
+    }
+
+    // Maintenance
+    @Override
+    public void addTimeout(Number640 key, long expiration) {
+        metadata.addTimeout(key, expiration);
+    }
+
+    @Override
+    public void removeTimeout(Number640 key) {
+        metadata.removeTimeout(key);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to) {
+        return metadata.subMapTimeout(to);
+    }
+
+    @Override
+    public Collection<Number640> subMapTimeout(long to, int limit) {
+        return metadata.subMapTimeout(to, limit);
+    }
+
+    @Override
+    public int storageCheckIntervalMillis() {
+        return metadata.storageCheckIntervalMillis();
+    }
+
+    // Protection
+    @Override
+    public boolean protectDomain(Number320 key, PublicKey publicKey) {
+        return metadata.protectDomain(key, publicKey);
+    }
+
+    @Override
+    public boolean isDomainProtectedByOthers(Number320 key, PublicKey publicKey) {
+        return metadata.isDomainProtectedByOthers(key, publicKey);
+    }
+
+    @Override
+    public boolean protectEntry(Number480 key, PublicKey publicKey) {
+        return metadata.protectEntry(key, publicKey);
+    }
+
+    @Override
+    public boolean isEntryProtectedByOthers(Number480 key, PublicKey publicKey) {
+        return metadata.isEntryProtectedByOthers(key, publicKey);
+    }
+
+    // Responsibility
+    @Override
+    public Number160 findPeerIDsForResponsibleContent(Number160 locationKey) {
+        return metadata.findPeerIDsForResponsibleContent(locationKey);
+    }
+
+    @Override
+    public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
+        return metadata.findContentForResponsiblePeerID(peerID);
+    }
+
+    @Override
+    public boolean updateResponsibilities(Number160 locationKey, Number160 peerId) {
+        return metadata.updateResponsibilities(locationKey, peerId);
+    }
+
+    @Override
+    public void removeResponsibility(Number160 locationKey) {
+        metadata.removeResponsibility(locationKey);
+    }
+
+    // Misc
+    /**
+     * Releases all entries back to the allocator.
+     */
+    @Override
+    public void close() {
+        for (Number640 key : index.keySet()) {
+            remove(key, false);
+        }
+        metadata.close();
+    }
+
+    /**
+     * @return The number of bytes of all entries, including the metadata of each entry
+     */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return The maximum number of bytes of all entries together
+     */
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The number of distinct public keys that are referenced by the entries
+     */
+    public int publicKeys() {
+        return publicKeys.size();
+    }
+
+    private Object stripe(final Number640 key) {
+        final int hash = key.hashCode();
+        return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private void reserve(final int delta) {
+        while (true) {
+            final long current = usedBytes.get();
+            final long next = current + delta;
+            if (delta > 0 && next > maxBytes) {
+                throw new StorageFullException("Cannot store " + delta + " more bytes, " + current + " of "
+                        + maxBytes + " bytes are used.");
+            }
+            if (usedBytes.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private void free(final ByteBuf buf, final boolean account) {
+        publicKeys.release(publicKeys.get(buf.getInt(INDEX_PUBLIC_KEY)));
+        if (account) {
+            usedBytes.addAndGet(-buf.capacity());
+        }
+        buf.release();
+    }
+
+    /**
+     * Serializes a value on the heap, the public key is replaced by a reference.
+     */
+    private ByteBuf encode(final Number640 key, final Data value, final PublicKeyTable.Entry publicKey) {
+        final ByteBuf record = Unpooled.buffer(METADATA_SIZE + value.length() + 64);
+        record.writeLong(value.validFromMillis());
+        record.writeByte((value.isDeleted() ? FLAG_DELETED : 0) | (value.isMeta() ? FLAG_META : 0));
+        record.writeInt(publicKey == null ? NO_PUBLIC_KEY : publicKey.id);
+        value.encodeHeader(record, signatureFactory);
+        if (publicKey != null) {
+            // the public key is the last field of the header, keep its flag but store it with length 0
+            record.writerIndex(record.writerIndex() - publicKey.encodedLength);
+            record.writeShort(0);
+        }
+        for (ByteBuffer buffer : value.toByteBuffers()) {
+            record.writeBytes(buffer);
+        }
+        try {
+            value.encodeDone(record, signatureFactory);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Cannot sign data for " + key, e);
+        } catch (SignatureException e) {
+            throw new RuntimeException("Cannot sign data for " + key, e);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot sign data for " + key, e);
+        }
+        return record;
+    }
+
+    /**
+     * Copies an entry to the heap. The public key is resolved here, as the reference may be reused once the entry is
+     * released.
+     */
+    private Copy copy(final ByteBuf buf) {
+        final ByteBuf heap = Unpooled.buffer(buf.readableBytes());
+        buf.getBytes(buf.readerIndex(), heap, buf.readableBytes());
+        final PublicKeyTable.Entry publicKey = publicKeys.get(buf.getInt(INDEX_PUBLIC_KEY));
+        return new Copy(heap, publicKey == null ? null : publicKey.publicKey);
+    }
+
+    private Data decode(final Copy copy) {
+        final ByteBuf buf = copy.buf;
+        final long validFromMillis = buf.readLong();
+        final int flags = buf.readUnsignedByte();
+        buf.skipBytes(METADATA_SIZE - INDEX_PUBLIC_KEY);
+        final Data data = Data.decodeHeader(buf, signatureFactory);
+        if (data == null || !data.decodeBuffer(buf) || !data.decodeDone(buf, signatureFactory)) {
+            throw new IllegalStateException("Incomplete off-heap entry.");
+        }
+        if (copy.publicKey != null) {
+            data.publicKey(copy.publicKey);
+        }
+        data.validFromMillis(validFromMillis);
+        data.deleted((flags & FLAG_DELETED) != 0);
+        data.meta((flags & FLAG_META) != 0);
+        return data;
+    }
+
+    private static final class Copy {
+        private final ByteBuf buf;
+        private final PublicKey publicKey;
+
+        private Copy(final ByteBuf buf, final PublicKey publicKey) {
+            this.buf = buf;
+            this.publicKey = publicKey;
+        }
+    }
+
+    /**
+     * The public keys of the stored entries. Many entries are signed with the same few keys, so each key is kept once
+     * and released when no entry refers to it anymore.
+     */
+    private final class PublicKeyTable {
+        private final Map<PublicKey, Entry> keys = new HashMap<PublicKey, Entry>();
+        private Entry[] ids = new Entry[16];
+        private int nextId = 0;
+
+        private final class Entry {
+            private final PublicKey publicKey;
+            private final int id;
+            private final int encodedLength;
+            private int references = 0;
+
+            private Entry(final PublicKey publicKey, final int id, final int encodedLength) {
+                this.publicKey = publicKey;
+                this.id = id;
+                this.encodedLength = encodedLength;
+            }
+        }
+
+        private synchronized Entry acquire(final PublicKey publicKey) {
+            if (publicKey == null || publicKey == PeerBuilder.EMPTY_PUBLIC_KEY) {
+                return null;
+            }
+            Entry entry = keys.get(publicKey);
+            if (entry == null) {
+                final ByteBuf encoded = Unpooled.buffer();
+                signatureFactory.encodePublicKey(publicKey, encoded);
+                entry = new Entry(publicKey, freeId(), encoded.readableBytes());
+                keys.put(publicKey, entry);
+                ids[entry.id] = entry;
+            }
+            entry.references++;
+            return entry;
+        }
+
+        private synchronized void release(final Entry entry) {
+            if (entry != null && --entry.references == 0) {
+                keys.remove(entry.publicKey);
+                ids[entry.id] = null;
+            }
+        }
+
+        private synchronized Entry get(final int id) {
+            return id == NO_PUBLIC_KEY ? null : ids[id];
+        }
+
+        private synchronized int size() {
+            return keys.size();
+        }
+
+        private int freeId() {
+            for (int i = 0; i < ids.length; i++) {
+                final int id = (nextId + i) % ids.length;
+                if (ids[id] == null) {
+                    nextId = id + 1;
+                    return id;
+                }
+            }
+            final Entry[] tmp = new Entry[ids.length * 2];
+            System.arraycopy(ids, 0, tmp, 0, ids.length);
+            nextId = ids.length + 1;
+            ids = tmp;
+            return nextId - 1;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * Evicts the entries that expire next. The order is taken from the timeouts of the storage, see
+ * {@link Storage#subMapTimeout(long, int)}, so this policy keeps no state of its own. Entries without an expiration are
+ * never evicted.
+ *
+ * @author Thomas Bocek
+ */
+public class TTLEvictionPolicy implements EvictionPolicy {
+
+    @Override
+    public void added(final Number640 key) {
+    }
+
+    @Override
+    public void accessed(final Number640 key) {
+    }
+
+    @Override
+    public void removed(final Number640 key) {
+    }
+
+    @Override
+    public List<Number640> candidates(final Storage storage, final int max) {
+        return new ArrayList<Number640>(storage.subMapTimeout(Long.MAX_VALUE, max));
+    }
+}
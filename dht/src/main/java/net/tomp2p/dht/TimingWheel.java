@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * A hashed timing wheel of expiration times. Each key is kept in the slot of its tick modulo the number of slots, the
+ * deadline is stored as a primitive long. Finding the due keys only visits the slots between the cursor and the
+ * requested time, instead of all keys. The cursor follows the current time, but only passes a slot once it holds no
+ * due keys anymore, so a key that is returned is returned again until it is canceled. A key without an expiration
+ * ({@link Long#MAX_VALUE}) is not put into any slot.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+final class TimingWheel {
+
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+    public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+    private static final int NO_SLOT = -1;
+
+    private static final Comparator<Entry> LATEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry o1, final Entry o2) {
+            return o1.deadline > o2.deadline ? -1 : (o1.deadline == o2.deadline ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<Entry> EARLIEST_FIRST = Collections.reverseOrder(LATEST_FIRST);
+
+    private final Map<Number640, Entry> entries = new HashMap<Number640, Entry>();
+    private final Entry[] slots;
+    private final long tickMillis;
+    private final int mask;
+    // all slots before the cursor have no due keys
+    private long cursor;
+
+    /**
+     * Visits all keys and their deadlines.
+     */
+    interface Visitor {
+        void timeout(Number640 key, long deadline);
+    }
+
+    private static final class Entry {
+        private final Number640 key;
+        private long deadline;
+        private int slot = NO_SLOT;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(final Number640 key) {
+            this.key = key;
+        }
+    }
+
+    TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis
+     *            The time covered by a slot
+     * @param wheelSize
+     *            The number of slots, a power of two
+     */
+    TimingWheel(final long tickMillis, final int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Need a positive tick and a power of two of slots.");
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Entry[wheelSize];
+        this.mask = wheelSize - 1;
+        this.cursor = tick(System.currentTimeMillis());
+    }
+
+    /**
+     * Sets or replaces the deadline of a key.
+     */
+    synchronized void schedule(final Number640 key, final long deadline) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        } else {
+            unlink(entry);
+        }
+        entry.deadline = deadline;
+        if (deadline != Long.MAX_VALUE) {
+            // a deadline before the cursor goes to the slot of the cursor, so it is found right away
+            link(entry, (int) (Math.max(tick(deadline), cursor) & mask));
+        }
+    }
+
+    /**
+     * @return True if the key had a deadline
+     */
+    synchronized boolean cancel(final Number640 key) {
+        final Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * @param to
+     *            The time until which keys are returned, exclusive
+     * @param limit
+     *            The maximum number of keys, or -1 for all
+     * @return The keys with a deadline before the given time, the earliest deadline first
+     */
+    synchronized List<Number640> expired(final long to, final int limit) {
+        if (limit == 0 || to <= 0) {
+            return Collections.emptyList();
+        }
+        final long toTick = tick(to - 1);
+        final long now = tick(System.currentTimeMillis());
+        // a bounded heap keeps the earliest deadlines, the latest on top
+        final PriorityQueue<Entry> heap = new PriorityQueue<Entry>(limit < 0 ? 16 : Math.min(limit, 1024),
+                LATEST_FIRST);
+        final long last = Math.min(Math.max(cursor, toTick), cursor + slots.length - 1);
+        boolean advance = true;
+        for (long t = cursor; t <= last; t++) {
+            boolean due = false;
+            for (Entry entry = slots[(int) (t & mask)]; entry != null; entry = entry.next) {
+                if (tick(entry.deadline) <= t) {
+                    due = true;
+                }
+                if (entry.deadline < to) {
+                    heap.add(entry);
+                    if (limit > 0 && heap.size() > limit) {
+                        heap.poll();
+                    }
+                }
+            }
+            // the cursor only passes slots of the past without due keys
+            if (advance && !due && t < now && t < toTick) {
+                cursor = t + 1;
+            } else {
+                advance = false;
+            }
+        }
+        final List<Entry> sorted = new ArrayList<Entry>(heap);
+        Collections.sort(sorted, EARLIEST_FIRST);
+        final List<Number640> result = new ArrayList<Number640>(sorted.size());
+        for (Entry entry : sorted) {
+            result.add(entry.key);
+        }
+        return result;
+    }
+
+    synchronized void forEach(final Visitor visitor) {
+        for (Entry entry : entries.values()) {
+            visitor.timeout(entry.key, entry.deadline);
+        }
+    }
+
+    synchronized boolean contains(final Number640 key) {
+        return entries.containsKey(key);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+    }
+
+    private long tick(final long time) {
+        return Math.max(0, time) / tickMillis;
+    }
+
+    private void link(final Entry entry, final int slot) {
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = slots[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[slot] = entry;
+    }
+
+    private void unlink(final Entry entry) {
+        if (entry.slot == NO_SLOT) {
+            return;
+        }
+        if (entry.prev == null) {
+            slots[entry.slot] = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = NO_SLOT;
+    }
+}